@@ -10,7 +10,8 @@ java -version
 echo "---------------------------------------------------------------------"
 
 DIR="$(cd "$(dirname "$0")" && pwd)"
-java -jar "$DIR/promptfx-@version@.jar"
+# optional JVM options, e.g. JAVA_OPTS="--add-modules jdk.incubator.vector" for SIMD similarity search
+java $JAVA_OPTS -jar "$DIR/promptfx-@version@.jar"
 
 echo "---------------------------------------------------------------------"
 echo "PromptFx UI has exited."
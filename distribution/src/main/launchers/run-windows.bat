@@ -9,7 +9,8 @@ echo "---------------------------------------------------------------------"
 java -version
 echo "---------------------------------------------------------------------"
 
-java -jar promptfx-@version@.jar
+REM optional JVM options, e.g. set JAVA_OPTS=--add-modules jdk.incubator.vector for SIMD similarity search
+java %JAVA_OPTS% -jar promptfx-@version@.jar
 
 echo "---------------------------------------------------------------------"
 echo "PromptFx UI has exited."
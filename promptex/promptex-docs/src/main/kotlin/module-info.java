@@ -25,9 +25,12 @@ module tri.promptkt.docs {
     requires transitive org.apache.poi.ooxml;
     requires transitive org.apache.poi.scratchpad;
 
+    requires com.fasterxml.jackson.dataformat.smile;
     requires com.google.common;
     requires org.apache.pdfbox;
     requires org.jsoup;
+    // optional, for SIMD similarity search when launched with --add-modules jdk.incubator.vector
+    requires static jdk.incubator.vector;
 
     opens tri.ai.embedding to com.fasterxml.jackson.databind;
     opens tri.ai.text.chunks to com.fasterxml.jackson.databind, com.github.mustachejava;
@@ -0,0 +1,297 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.TextChunk
+import tri.ai.text.chunks.TextDoc
+import tri.util.io.writeAtomically
+import tri.util.warning
+import java.io.*
+import kotlin.math.ln
+
+/**
+ * An inverted index over the text of the chunks of a set of documents, scored with BM25. Each chunk is keyed by
+ * document path, chunk position, and a hash of its text (see [TextChunk.textHash]), so the index can be updated
+ * incrementally as documents change, and saved to a file so it does not need to be rebuilt on startup. Since the hash
+ * is saved with each chunk, document text is only loaded to tokenize new or changed chunks.
+ *
+ * Tokens are lowercase runs of letters and digits, where runs joined by `-`, `_`, `.`, or `/` (as in part numbers,
+ * versions, or paths) are indexed both as a whole and as their parts.
+ */
+class Bm25Index(val k1: Double = DEFAULT_K1, val b: Double = DEFAULT_B) {
+
+    private val keys = mutableListOf<ChunkKey?>()
+    private val slotByKey = mutableMapOf<ChunkKey, Int>()
+    private val docs = mutableListOf<TextDoc?>()
+    private val chunks = mutableListOf<TextChunk?>()
+    private var lengths = IntArray(16)
+    private val postings = mutableMapOf<String, Postings>()
+    private var totalLength = 0L
+    private var deletedCount = 0
+
+    /** Number of chunks that can be returned by search. */
+    val size
+        @Synchronized get() = slotByKey.size
+
+    /**
+     * Update the index to match the given documents, tokenizing new or changed chunks and removing chunks that are no
+     * longer present. The index is rebuilt if too many chunks have been removed. Returns true if the index was modified.
+     * Documents whose text cannot be read are left out of the index.
+     */
+    @Synchronized
+    fun sync(libraryDocs: List<TextDoc>): Boolean {
+        val seen = BooleanArray(keys.size)
+        var changed = false
+        libraryDocs.forEach { doc ->
+            val path = ChunkKey.path(doc)
+            try {
+                doc.chunks.forEachIndexed { i, chunk ->
+                    val key = ChunkKey(path, i, chunk.textHash(doc))
+                    val existing = slotByKey[key]
+                    val slot = if (existing != null && existing < seen.size && !seen[existing]) existing else {
+                        changed = true
+                        insert(key, chunk.text(doc.all))
+                    }
+                    docs[slot] = doc
+                    chunks[slot] = chunk
+                    if (slot < seen.size)
+                        seen[slot] = true
+                }
+            } catch (x: UncheckedIOException) {
+                warning<Bm25Index>("Unable to index text of $path: ${x.message}", x)
+            }
+        }
+        seen.indices.filter { !seen[it] && keys[it] != null }.forEach {
+            delete(it)
+            changed = true
+        }
+        if (deletedCount > MAX_DELETED_FRACTION * keys.size) {
+            clear()
+            sync(libraryDocs)
+            return true
+        }
+        return changed
+    }
+
+    private fun insert(key: ChunkKey, text: String): Int {
+        val slot = keys.size
+        val terms = tokenize(text)
+        terms.groupingBy { it }.eachCount().forEach { (term, tf) ->
+            postings.getOrPut(term) { Postings() }.add(slot, tf)
+        }
+        addSlot(key, terms.size)
+        return slot
+    }
+
+    private fun addSlot(key: ChunkKey, length: Int) {
+        val slot = keys.size
+        if (slot == lengths.size)
+            lengths = lengths.copyOf(2 * slot)
+        lengths[slot] = length
+        totalLength += length
+        keys += key
+        docs += null
+        chunks += null
+        slotByKey.putIfAbsent(key, slot)
+    }
+
+    private fun delete(slot: Int) {
+        keys[slot]?.let { if (slotByKey[it] == slot) slotByKey.remove(it) }
+        keys[slot] = null
+        docs[slot] = null
+        chunks[slot] = null
+        totalLength -= lengths[slot]
+        deletedCount++
+    }
+
+    private fun clear() {
+        keys.clear()
+        slotByKey.clear()
+        docs.clear()
+        chunks.clear()
+        postings.clear()
+        totalLength = 0L
+        deletedCount = 0
+    }
+
+    /** Rough estimate of the heap memory used by the index, in bytes. */
+    @Synchronized
+    fun estimatedMemoryBytes() = 64L * keys.size + 4L * lengths.size + postings.values.sumOf { 48L + 8L * it.ids.size }
+
+    /** Find the [n] chunks with the highest BM25 score for the query. Call [sync] first to index the documents. */
+    @Synchronized
+    fun search(query: String, n: Int): List<LexicalMatch> {
+        val live = keys.size - deletedCount
+        if (live == 0 || n <= 0)
+            return listOf()
+        val avgLength = totalLength.toDouble() / live
+        val scores = FloatArray(keys.size)
+        tokenize(query).distinct().forEach { term ->
+            val p = postings[term] ?: return@forEach
+            val df = (0 until p.size).count { keys[p.ids[it]] != null }
+            if (df == 0)
+                return@forEach
+            val idf = ln(1 + (live - df + 0.5) / (df + 0.5))
+            for (i in 0 until p.size) {
+                val slot = p.ids[i]
+                if (keys[slot] != null) {
+                    val tf = p.tfs[i].toDouble()
+                    scores[slot] += (idf * tf * (k1 + 1) / (tf + k1 * (1 - b + b * lengths[slot] / avgLength))).toFloat()
+                }
+            }
+        }
+        val heap = TopKHeap(n)
+        scores.forEachIndexed { slot, score -> if (score > 0f) heap.offer(slot, score) }
+        return heap.toSortedList().map { LexicalMatch(docs[it.row]!!, chunks[it.row]!!, it.score) }
+    }
+
+    //region PERSISTENCE
+
+    /** Save the index to a file, replacing any existing file. Removed chunks are not saved. */
+    @Synchronized
+    fun saveTo(file: File) {
+        try {
+            val liveSlots = keys.indices.filter { keys[it] != null }
+            val newSlot = IntArray(keys.size) { -1 }.also { map -> liveSlots.forEachIndexed { i, s -> map[s] = i } }
+            writeAtomically(file) { stream ->
+                DataOutputStream(BufferedOutputStream(stream)).use { out ->
+                    out.writeInt(MAGIC)
+                    out.writeInt(VERSION)
+                    out.writeDouble(k1)
+                    out.writeDouble(b)
+                    out.writeInt(liveSlots.size)
+                    liveSlots.forEach {
+                        keys[it]!!.writeTo(out)
+                        out.writeInt(lengths[it])
+                    }
+                    val terms = postings.mapValues { (_, p) -> (0 until p.size).filter { newSlot[p.ids[it]] >= 0 } }
+                        .filterValues { it.isNotEmpty() }
+                    out.writeInt(terms.size)
+                    terms.forEach { (term, live) ->
+                        val p = postings[term]!!
+                        out.writeUTF(term)
+                        out.writeInt(live.size)
+                        live.forEach {
+                            out.writeInt(newSlot[p.ids[it]])
+                            out.writeInt(p.tfs[it])
+                        }
+                    }
+                }
+            }
+        } catch (x: IOException) {
+            warning<Bm25Index>("Unable to save lexical index to $file: ${x.message}", x)
+        }
+    }
+
+    //endregion
+
+    /** Growable list of (chunk slot, term frequency) pairs for a term. */
+    private class Postings {
+        var ids = IntArray(4)
+        var tfs = IntArray(4)
+        var size = 0
+
+        fun add(slot: Int, tf: Int) {
+            if (size == ids.size) {
+                ids = ids.copyOf(2 * size)
+                tfs = tfs.copyOf(2 * size)
+            }
+            ids[size] = slot
+            tfs[size++] = tf
+        }
+    }
+
+    companion object {
+        /** Extension used for saved index files. */
+        const val EXTENSION = "bm25"
+        const val DEFAULT_K1 = 1.2
+        const val DEFAULT_B = 0.75
+
+        private const val MAGIC = 0x424D3235 // "BM25"
+        private const val VERSION = 2
+        private const val MAX_DELETED_FRACTION = 0.2
+        private val TOKEN = Regex("[\\p{L}\\p{N}]+(?:[-_./][\\p{L}\\p{N}]+)*")
+        private val TOKEN_PART = Regex("[\\p{L}\\p{N}]+")
+
+        /** Split text into lowercase tokens, including both compound tokens and their parts. */
+        fun tokenize(text: String): List<String> {
+            val tokens = mutableListOf<String>()
+            TOKEN.findAll(text.lowercase()).forEach { match ->
+                val token = match.value
+                tokens += token
+                if (TOKEN_PART.matchEntire(token) == null)
+                    TOKEN_PART.findAll(token).forEach { tokens += it.value }
+            }
+            return tokens
+        }
+
+        /**
+         * Load an index saved with [saveTo], attaching chunks of the given documents. Chunks that are no longer present
+         * or have changed are marked as removed, so call [sync] afterwards to index any new chunks. The parameters saved
+         * with the index are restored, or the defaults for files saved before they were included.
+         * Returns null if the file does not exist or cannot be read.
+         */
+        fun loadFrom(file: File, libraryDocs: List<TextDoc>): Bm25Index? {
+            if (!file.exists())
+                return null
+            return try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != MAGIC)
+                        return null
+                    val version = input.readInt()
+                    if (version !in 1..VERSION)
+                        return null
+                    val k1 = if (version >= 2) input.readDouble() else DEFAULT_K1
+                    val b = if (version >= 2) input.readDouble() else DEFAULT_B
+                    val docsByPath = libraryDocs.associateBy { ChunkKey.path(it) }
+                    Bm25Index(k1, b).apply {
+                        repeat(input.readInt()) {
+                            val key = ChunkKey.readFrom(input)
+                            val slot = keys.size
+                            addSlot(key, input.readInt())
+                            val doc = docsByPath[key.path]
+                            val chunk = doc?.chunks?.getOrNull(key.chunk)
+                            if (chunk != null && chunk.textHash(doc) == key.checksum) {
+                                docs[slot] = doc
+                                chunks[slot] = chunk
+                            } else {
+                                delete(slot)
+                            }
+                        }
+                        repeat(input.readInt()) {
+                            val p = Postings().also { postings[input.readUTF()] = it }
+                            repeat(input.readInt()) { p.add(input.readInt(), input.readInt()) }
+                        }
+                    }
+                }
+            } catch (x: IOException) {
+                warning<Bm25Index>("Unable to load lexical index from $file: ${x.message}", x)
+                null
+            } catch (x: UncheckedIOException) {
+                warning<Bm25Index>("Unable to load lexical index from $file: ${x.message}", x)
+                null
+            }
+        }
+    }
+
+}
+
+/** A chunk matching a lexical query, with its BM25 score. */
+class LexicalMatch(val document: TextDoc, val chunk: TextChunk, val score: Float)
@@ -0,0 +1,312 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.MappedEmbedding
+import tri.ai.text.chunks.TextChunk
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.util.io.writeAtomically
+import tri.util.warning
+import java.io.*
+
+/**
+ * Embeddings for all chunks of a set of documents for a single model, packed into an [EmbeddingMatrix],
+ * with the document and chunk for each row.
+ *
+ * With [EmbeddingPrecision.INT8] or [EmbeddingPrecision.PRODUCT_QUANTIZED], vectors are instead held as
+ * [QuantizedEmbeddings], and search re-ranks a shortlist of the best approximate matches using the full-precision
+ * embeddings stored with each chunk. Product quantization is trained by [of] on the vectors of all documents, or on the
+ * vectors added before the first search if documents are added individually. Quantized vectors can be saved with
+ * [saveQuantizedTo] and reused by [of], so unchanged chunks are not quantized again and the quantizer is not retrained.
+ *
+ * For models trained with Matryoshka representations, where a prefix of an embedding is itself a useful embedding,
+ * [prefixDims] can be set to also keep normalized prefixes of full-precision vectors. Search then scans the shorter
+ * prefixes and re-scores the best candidates with the full vectors.
+ *
+ * At full precision, vectors that are views of a memory-mapped vector file (see [MappedEmbedding]) are scored in place
+ * as a [MappedEmbeddingMatrix] rather than copied to the heap. If vectors that are not mapped are added as well, all
+ * vectors are copied into a heap [EmbeddingMatrix].
+ */
+class ChunkEmbeddingMatrix(
+    val modelId: String,
+    val precision: EmbeddingPrecision = EmbeddingPrecision.FULL,
+    val prefixDims: Int? = null
+) {
+
+    init {
+        require(prefixDims == null || prefixDims > 0) { "Prefix dimensions must be positive" }
+    }
+
+    /** Document for each row. */
+    val docs = mutableListOf<TextDoc>()
+    /** Chunk for each row. */
+    val chunks = mutableListOf<TextChunk>()
+    /** Full-precision vectors, created when the first vector is added, if not using quantized or mapped vectors. */
+    var matrix: EmbeddingMatrix? = null
+        private set
+    /** Full-precision vectors scored in place from a memory-mapped vector file, if all vectors added so far are mapped. */
+    var mapped: MappedEmbeddingMatrix? = null
+        private set
+    /** Normalized vector prefixes for a coarse search pass, if [prefixDims] is less than the full dimension. */
+    var prefix: EmbeddingMatrix? = null
+        private set
+    /** Quantized vectors, if using a quantized precision. */
+    var quantized: QuantizedEmbeddings? = null
+        private set
+    /** True if quantized vectors have changed since they were loaded by [of], so they should be saved again. */
+    var quantizedModified = false
+        private set
+    /** Bitmap indexes over the metadata of each row, created by the first filtered search. */
+    private var metadataIndex: MetadataBitmapIndex? = null
+
+    /** Bitmap indexes over the metadata of each row, for filtered search, creating them if needed. */
+    val metadata: MetadataBitmapIndex
+        @Synchronized get() = metadataIndex ?: MetadataBitmapIndex().also { index ->
+            chunks.indices.forEach { index.add(it, docs[it], chunks[it]) }
+            metadataIndex = index
+        }
+
+    /** True if [metadata] has been created, so it is included in [estimatedMemoryBytes]. */
+    val isMetadataIndexed
+        get() = metadataIndex != null
+
+    /** Number of rows. */
+    val size
+        get() = chunks.size
+
+    /**
+     * Add all chunks of a document.
+     * @throws IllegalStateException if a chunk is missing an embedding for the model
+     */
+    fun addDoc(doc: TextDoc) = addDoc(doc, null)
+
+    /** Add all chunks of a document, copying quantized vectors of unchanged chunks from saved vectors. */
+    private fun addDoc(doc: TextDoc, saved: SavedQuantizedEmbeddings?) {
+        val path = ChunkKey.path(doc)
+        doc.chunks.forEachIndexed { i, chunk ->
+            val embedding = chunk.getEmbeddingInfo(modelId)
+                ?: throw IllegalStateException("Chunk is missing embedding for model $modelId: ${chunk.text(doc.all)}")
+            val savedRow = saved?.rowByKey?.get(ChunkKey(path, i, ChunkHnswIndex.checksum(embedding)))
+            when {
+                quantized != null && savedRow != null -> quantized!!.addRow(saved!!.embeddings, savedRow)
+                quantized != null -> {
+                    quantized!!.add(EmbeddingVector.of(embedding))
+                    quantizedModified = true
+                }
+                precision == EmbeddingPrecision.INT8 -> {
+                    quantized = Int8EmbeddingMatrix(embedding.size).apply { add(EmbeddingVector.of(embedding)) }
+                    quantizedModified = true
+                }
+                embedding is MappedEmbedding && precision == EmbeddingPrecision.FULL && matrix == null -> {
+                    val m = mapped ?: MappedEmbeddingMatrix(embedding.size).also { mapped = it }
+                    if (m.rows == 0 && prefixDims != null && prefixDims < embedding.size)
+                        prefix = EmbeddingMatrix(prefixDims)
+                    m.add(embedding)
+                    prefix?.add(EmbeddingVector.of(FloatArray(prefixDims!!) { embedding.getFloat(it) }))
+                }
+                else -> {
+                    val vector = EmbeddingVector.of(embedding)
+                    val m = matrix ?: heapMatrix(vector.dims).also { matrix = it }
+                    if (m.rows == 0 && prefixDims != null && prefixDims < vector.dims)
+                        prefix = EmbeddingMatrix(prefixDims)
+                    m.add(vector)
+                    prefix?.add(EmbeddingVector.of(vector.values.copyOf(prefixDims!!)))
+                }
+            }
+            metadataIndex?.add(chunks.size, doc, chunk)
+            docs += doc
+            chunks += chunk
+        }
+    }
+
+    /** Create a heap matrix for full-precision vectors, copying any mapped vectors already added into it. */
+    private fun heapMatrix(dims: Int) = EmbeddingMatrix(dims, maxOf(16, size)).also { m ->
+        mapped?.let { mp ->
+            for (r in 0 until mp.rows)
+                m.add(mp.row(r))
+        }
+        mapped = null
+    }
+
+    /**
+     * Train product quantization on the vectors added so far and encode them, if using
+     * [EmbeddingPrecision.PRODUCT_QUANTIZED] and not yet trained. Vectors added later are encoded with the same quantizer.
+     */
+    fun trainQuantizer() {
+        if (precision == EmbeddingPrecision.PRODUCT_QUANTIZED && quantized == null) {
+            matrix?.let {
+                quantized = PqEmbeddingMatrix.of(it)
+                quantizedModified = true
+            }
+            matrix = null
+            prefix = null
+        }
+    }
+
+    /**
+     * Find the [k] rows most similar to the query, sorted by descending similarity. For quantized vectors or vector
+     * prefixes, the best `k * rerankFactor` approximate matches are re-scored with full-precision embeddings.
+     */
+    fun topK(query: EmbeddingVector, k: Int, rerankFactor: Int = DEFAULT_RERANK_FACTOR): List<ScoredRow> {
+        trainQuantizer()
+        val p = prefix
+        val m = matrix
+        val mp = mapped
+        if (p != null && (m != null || mp != null)) {
+            val prefixQuery = EmbeddingVector.of(query.values.copyOf(p.dims))
+            return p.topK(prefixQuery, k * maxOf(1, rerankFactor))
+                .map { ScoredRow(it.row, m?.score(query, it.row) ?: mp!!.score(query, it.row)) }
+                .sortedWith(compareByDescending<ScoredRow> { it.score }.thenBy { it.row }).take(k)
+        }
+        val q = quantized ?: return m?.topK(query, k) ?: mp?.topK(query, k) ?: listOf()
+        return q.topK(query, k * maxOf(1, rerankFactor)).map {
+            val embedding = chunks[it.row].getEmbeddingInfo(modelId)
+            if (embedding == null || embedding.size != q.dims) it else ScoredRow(it.row, query.cosine(embedding))
+        }.sortedWith(compareByDescending<ScoredRow> { it.score }.thenBy { it.row }).take(k)
+    }
+
+    /**
+     * Find the [k] rows matching the metadata filter that are most similar to the query, sorted by descending
+     * similarity. Only matching rows are scored, so the cost is proportional to the number of matching rows.
+     */
+    fun topK(query: EmbeddingVector, k: Int, filter: MetadataFilter?, rerankFactor: Int = DEFAULT_RERANK_FACTOR): List<ScoredRow> {
+        if (filter == null)
+            return topK(query, k, rerankFactor)
+        trainQuantizer()
+        val rows = metadata.rows(filter)
+        val m = matrix
+        val mp = mapped
+        val q = quantized
+        val qScore = q?.scorer(query)
+        val heap = TopKHeap(if (m == null && mp == null && q != null) k * maxOf(1, rerankFactor) else k)
+        var row = rows.nextSetBit(0)
+        while (row in 0 until size) {
+            when {
+                m != null -> heap.offer(row, m.score(query, row))
+                mp != null -> heap.offer(row, mp.score(query, row))
+                q != null && row < q.rows -> heap.offer(row, qScore!!(row))
+                else -> chunks[row].getEmbeddingInfo(modelId)?.let { heap.offer(row, query.cosine(it)) }
+            }
+            row = rows.nextSetBit(row + 1)
+        }
+        if (m != null || mp != null || q == null)
+            return heap.toSortedList()
+        return heap.toSortedList().map {
+            val embedding = chunks[it.row].getEmbeddingInfo(modelId)
+            if (embedding == null || embedding.size != q.dims) it else ScoredRow(it.row, query.cosine(embedding))
+        }.sortedWith(compareByDescending<ScoredRow> { it.score }.thenBy { it.row }).take(k)
+    }
+
+    /** Estimated heap memory used by the vectors and metadata indexes, in bytes. Memory-mapped vectors are not included. */
+    fun estimatedMemoryBytes() = (matrix?.let { 4L * it.data.size } ?: 0L) + (prefix?.let { 4L * it.data.size } ?: 0L) +
+            (mapped?.estimatedMemoryBytes() ?: 0L) + (quantized?.estimatedMemoryBytes() ?: 0L) +
+            (metadataIndex?.estimatedMemoryBytes() ?: 0L)
+
+    /** Create a match object for the given row. */
+    fun match(query: SemanticTextQuery, row: Int, score: Float) =
+        EmbeddingMatch(query, docs[row], chunks[row], modelId, chunks[row].getEmbeddingInfo(modelId)!!, score)
+
+    //region PERSISTENCE
+
+    /**
+     * Save the quantized vectors to a file with a key for each row, replacing any existing file, so they can be reused
+     * by [of]. Does nothing if vectors are not quantized.
+     */
+    fun saveQuantizedTo(file: File) {
+        val q = quantized ?: return
+        try {
+            writeAtomically(file) { stream ->
+                DataOutputStream(BufferedOutputStream(stream)).use { out ->
+                    out.writeInt(MAGIC)
+                    out.writeInt(VERSION)
+                    out.writeUTF(modelId)
+                    out.writeUTF(precision.name)
+                    out.writeInt(size)
+                    var position = 0
+                    for (row in 0 until size) {
+                        position = if (row > 0 && docs[row] === docs[row - 1]) position + 1 else 0
+                        val checksum = ChunkHnswIndex.checksum(chunks[row].getEmbeddingInfo(modelId)!!)
+                        ChunkKey.of(docs[row], position, checksum).writeTo(out)
+                    }
+                    q.writeTo(out)
+                }
+            }
+            quantizedModified = false
+        } catch (x: IOException) {
+            warning<ChunkEmbeddingMatrix>("Unable to save quantized vectors to $file: ${x.message}", x)
+        }
+    }
+
+    /** Quantized vectors loaded from a file, with the row for each chunk key. */
+    private class SavedQuantizedEmbeddings(val embeddings: QuantizedEmbeddings, val rowByKey: Map<ChunkKey, Int>)
+
+    //endregion
+
+    companion object {
+        /** Default multiple of the number of requested results to re-rank when using quantized vectors. */
+        const val DEFAULT_RERANK_FACTOR = 4
+        /** Extension used for saved quantized vector files. */
+        const val QUANTIZED_EXTENSION = "qvec"
+
+        private const val MAGIC = 0x51564543 // "QVEC"
+        private const val VERSION = 1
+
+        /**
+         * Create a matrix with all chunks of the given documents. With a quantized precision, vectors are quantized (and
+         * product quantization is trained) here rather than on the first search. If [quantizedFile] was saved by
+         * [saveQuantizedTo] for the same model and precision, its vectors are reused for unchanged chunks, and its
+         * quantizer is used for new chunks.
+         */
+        fun of(modelId: String, docs: List<TextDoc>, precision: EmbeddingPrecision = EmbeddingPrecision.FULL,
+               prefixDims: Int? = null, quantizedFile: File? = null) =
+            ChunkEmbeddingMatrix(modelId, precision, prefixDims).apply {
+                val saved = quantizedFile?.let { loadQuantized(it, modelId, precision) }
+                if (saved != null)
+                    quantized = saved.embeddings.emptyCopy(docs.sumOf { it.chunks.size })
+                docs.forEach { addDoc(it, saved) }
+                trainQuantizer()
+                if (saved != null && saved.embeddings.rows != size)
+                    quantizedModified = true
+            }
+
+        /** Load quantized vectors saved with [saveQuantizedTo], or return null if missing or saved for other settings. */
+        private fun loadQuantized(file: File, modelId: String, precision: EmbeddingPrecision): SavedQuantizedEmbeddings? {
+            if (precision != EmbeddingPrecision.INT8 && precision != EmbeddingPrecision.PRODUCT_QUANTIZED || !file.exists())
+                return null
+            return try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readUTF() != modelId ||
+                        input.readUTF() != precision.name)
+                        return null
+                    val keys = List(input.readInt()) { ChunkKey.readFrom(input) }
+                    val embeddings = QuantizedEmbeddings.readFrom(input)
+                    if (embeddings.rows != keys.size)
+                        return null
+                    SavedQuantizedEmbeddings(embeddings, keys.withIndex().associate { it.value to it.index })
+                }
+            } catch (x: IOException) {
+                warning<ChunkEmbeddingMatrix>("Unable to load quantized vectors from $file: ${x.message}", x)
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.TextChunk
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.util.io.writeAtomically
+import tri.util.warning
+import java.io.*
+
+/**
+ * An [HnswIndex] over the chunks of a set of documents for a single embedding model. Each node is keyed by document
+ * path, chunk position, and a checksum of the chunk's embedding, so the graph can be updated incrementally as the
+ * documents change, and saved to a file so it does not need to be rebuilt on startup.
+ */
+class ChunkHnswIndex(val modelId: String, val config: HnswConfig = HnswConfig()) {
+
+    private var graph: HnswIndex? = null
+    private val keys = mutableListOf<ChunkKey?>()
+    private val nodeByKey = mutableMapOf<ChunkKey, Int>()
+    private val docs = mutableListOf<TextDoc?>()
+    private val chunks = mutableListOf<TextChunk?>()
+    private var metadata: MetadataBitmapIndex? = null
+    private var checksumsByPath = mapOf<String, DocChecksums>()
+
+    /** Number of chunks that can be returned by search. */
+    val size
+        @Synchronized get() = nodeByKey.size
+
+    /** True if the metadata index used for filtered search has been created, so it is included in [estimatedMemoryBytes]. */
+    val isMetadataIndexed
+        @Synchronized get() = metadata != null
+
+    /**
+     * Update the graph to match the given documents, inserting nodes for new or changed chunks and deleting nodes for
+     * chunks that are no longer present. The graph is rebuilt if too many nodes have been deleted.
+     * Returns true if the graph was modified.
+     * @throws IllegalStateException if a chunk is missing an embedding for the model
+     */
+    @Synchronized
+    fun sync(libraryDocs: List<TextDoc>): Boolean {
+        val seen = BooleanArray(keys.size)
+        var changed = false
+        metadata = null
+        val checksums = mutableMapOf<String, DocChecksums>()
+        libraryDocs.forEach { doc ->
+            val path = ChunkKey.path(doc)
+            val docChecksums = checksums(doc, checksumsByPath[path])
+            checksums[path] = docChecksums
+            doc.chunks.forEachIndexed { i, chunk ->
+                val key = ChunkKey(path, i, docChecksums.checksums[i])
+                val existing = nodeByKey[key]
+                val node = if (existing != null && existing < seen.size && !seen[existing]) existing else {
+                    changed = true
+                    insert(key, EmbeddingVector.of(docChecksums.embeddings[i]))
+                }
+                docs[node] = doc
+                chunks[node] = chunk
+                if (node < seen.size)
+                    seen[node] = true
+            }
+        }
+        checksumsByPath = checksums
+        seen.indices.filter { !seen[it] && keys[it] != null }.forEach {
+            delete(it)
+            changed = true
+        }
+
+        val g = graph
+        if (g != null && g.deletedCount > config.maxDeletedFraction * g.size) {
+            clear()
+            sync(libraryDocs)
+            return true
+        }
+        return changed
+    }
+
+    /**
+     * Get the embedding checksums of a document's chunks, reusing the previous checksums if every chunk still has the
+     * same embedding instance, since embeddings are replaced rather than modified when they are recalculated.
+     */
+    private fun checksums(doc: TextDoc, previous: DocChecksums?): DocChecksums {
+        val embeddings = doc.chunks.map {
+            it.getEmbeddingInfo(modelId)
+                ?: throw IllegalStateException("Chunk is missing embedding for model $modelId: ${it.text(doc.all)}")
+        }
+        if (previous != null && previous.embeddings.size == embeddings.size &&
+            embeddings.indices.all { embeddings[it] === previous.embeddings[it] })
+            return previous
+        return DocChecksums(embeddings, IntArray(embeddings.size) { checksum(embeddings[it]) })
+    }
+
+    private fun insert(key: ChunkKey, vector: EmbeddingVector): Int {
+        val g = graph ?: HnswIndex(vector.dims, config).also { graph = it }
+        val node = g.insert(vector)
+        keys += key
+        docs += null
+        chunks += null
+        nodeByKey.putIfAbsent(key, node)
+        return node
+    }
+
+    private fun delete(node: Int) {
+        graph!!.delete(node)
+        keys[node]?.let { if (nodeByKey[it] == node) nodeByKey.remove(it) }
+        keys[node] = null
+        docs[node] = null
+        chunks[node] = null
+    }
+
+    private fun clear() {
+        graph = null
+        keys.clear()
+        nodeByKey.clear()
+        docs.clear()
+        chunks.clear()
+        metadata = null
+    }
+
+    /** Rough estimate of the heap memory used by the graph, in bytes. */
+    @Synchronized
+    fun estimatedMemoryBytes() = (graph?.estimatedMemoryBytes() ?: 0L) + 64L * keys.size +
+            (metadata?.estimatedMemoryBytes() ?: 0L)
+
+    /** Find approximately the [n] chunks most similar to the query. Call [sync] first to index the documents. */
+    @Synchronized
+    fun search(query: SemanticTextQuery, n: Int): List<EmbeddingMatch> {
+        val g = graph ?: return listOf()
+        return g.search(EmbeddingVector.of(query.embedding), n).map { match(query, it) }
+    }
+
+    /**
+     * Find approximately the [n] chunks matching the metadata filter that are most similar to the query.
+     * Call [sync] first to index the documents.
+     */
+    @Synchronized
+    fun search(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        if (filter == null)
+            return search(query, n)
+        val g = graph ?: return listOf()
+        val index = metadata ?: MetadataBitmapIndex().also { index ->
+            docs.indices.forEach { node ->
+                val doc = docs[node]
+                val chunk = chunks[node]
+                if (doc != null && chunk != null)
+                    index.add(node, doc, chunk)
+            }
+            metadata = index
+        }
+        return g.search(EmbeddingVector.of(query.embedding), n, index.rows(filter)).map { match(query, it) }
+    }
+
+    private fun match(query: SemanticTextQuery, row: ScoredRow): EmbeddingMatch {
+        val chunk = chunks[row.row]!!
+        return EmbeddingMatch(query, docs[row.row]!!, chunk, modelId, chunk.getEmbeddingInfo(modelId)!!, row.score)
+    }
+
+    //region PERSISTENCE
+
+    /** Save the graph and node keys to a file, replacing any existing file. */
+    @Synchronized
+    fun saveTo(file: File) {
+        val g = graph
+        if (g == null) {
+            file.delete()
+            return
+        }
+        try {
+            writeAtomically(file) { stream ->
+                DataOutputStream(BufferedOutputStream(stream)).use { out ->
+                    out.writeInt(MAGIC)
+                    out.writeInt(VERSION)
+                    out.writeUTF(modelId)
+                    out.writeInt(keys.size)
+                    keys.forEach { key ->
+                        out.writeBoolean(key != null)
+                        key?.writeTo(out)
+                    }
+                    g.writeTo(out)
+                }
+            }
+        } catch (x: IOException) {
+            warning<ChunkHnswIndex>("Unable to save search graph to $file: ${x.message}", x)
+        }
+    }
+
+    companion object {
+        /** Extension used for saved graph files. */
+        const val EXTENSION = "hnsw"
+
+        private const val MAGIC = 0x484E5357 // "HNSW"
+        private const val VERSION = 1
+
+        /**
+         * Load a graph saved with [saveTo], attaching nodes to chunks of the given documents. Nodes whose chunks are no
+         * longer present are marked as deleted, so call [sync] afterwards to index any new chunks.
+         * Returns null if the file does not exist or was saved for a different model or graph configuration.
+         */
+        fun loadFrom(file: File, modelId: String, config: HnswConfig, libraryDocs: List<TextDoc>): ChunkHnswIndex? {
+            if (!file.exists())
+                return null
+            return try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readUTF() != modelId)
+                        return null
+                    val savedKeys = List(input.readInt()) {
+                        if (input.readBoolean()) ChunkKey.readFrom(input) else null
+                    }
+                    val docsByPath = libraryDocs.associateBy { ChunkKey.path(it) }
+                    ChunkHnswIndex(modelId, config).apply {
+                        val resolved = savedKeys.map { key -> key?.let { resolve(it, docsByPath) } }
+                        graph = HnswIndex.readFrom(input, config) { node ->
+                            resolved[node]?.let { EmbeddingVector.of(it.second.getEmbeddingInfo(modelId)!!) }
+                        } ?: return null
+                        savedKeys.forEachIndexed { node, key ->
+                            val match = resolved[node]
+                            keys += if (match == null) null else key
+                            docs += match?.first
+                            chunks += match?.second
+                            if (match != null)
+                                nodeByKey.putIfAbsent(key!!, node)
+                        }
+                    }
+                }
+            } catch (x: IOException) {
+                warning<ChunkHnswIndex>("Unable to load search graph from $file: ${x.message}", x)
+                null
+            }
+        }
+
+        /** Find the chunk for a key, if it is still present with the same embedding. */
+        private fun ChunkHnswIndex.resolve(key: ChunkKey, docsByPath: Map<String, TextDoc>): Pair<TextDoc, TextChunk>? {
+            val doc = docsByPath[key.path] ?: return null
+            val chunk = doc.chunks.getOrNull(key.chunk) ?: return null
+            val embedding = chunk.getEmbeddingInfo(modelId) ?: return null
+            return if (checksum(embedding) == key.checksum) doc to chunk else null
+        }
+
+        /** Checksum of an embedding at float precision, so it is unchanged when vectors are stored as float32. */
+        internal fun checksum(embedding: List<Double>): Int {
+            var hash = embedding.size
+            for (i in embedding.indices)
+                hash = 31 * hash + embedding[i].toFloat().toRawBits()
+            return hash
+        }
+    }
+
+    //endregion
+
+    /** Embedding checksums of a document's chunks, with the embeddings they were computed from. */
+    private class DocChecksums(val embeddings: List<List<Double>>, val checksums: IntArray)
+
+}
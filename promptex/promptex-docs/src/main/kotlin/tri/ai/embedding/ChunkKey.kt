@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.TextDoc
+import java.io.DataInput
+import java.io.DataOutput
+
+/**
+ * Identifies a chunk in a saved index by document path, chunk position, and a checksum of the chunk's text or
+ * embedding, so saved entries can be matched to chunks of the current documents.
+ */
+internal data class ChunkKey(val path: String, val chunk: Int, val checksum: Int) {
+
+    /** Write the key, so it can be read with [readFrom]. */
+    fun writeTo(out: DataOutput) {
+        out.writeUTF(path)
+        out.writeInt(chunk)
+        out.writeInt(checksum)
+    }
+
+    companion object {
+        /** Path used to identify a document in keys, its path if known or otherwise its id. */
+        fun path(doc: TextDoc) = doc.metadata.path?.toString() ?: doc.metadata.id
+
+        /** Create a key for the chunk at the given position in a document. */
+        fun of(doc: TextDoc, chunk: Int, checksum: Int) = ChunkKey(path(doc), chunk, checksum)
+
+        /** Read a key written by [writeTo]. */
+        fun readFrom(input: DataInput) = ChunkKey(input.readUTF(), input.readInt(), input.readInt())
+    }
+
+}
@@ -0,0 +1,354 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.core.EmbeddingModel
+import tri.util.info
+import tri.util.io.writeAtomically
+import tri.util.warning
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Persistent cache of embeddings keyed by a hash of the model id, output dimensionality, and normalized text, so the
+ * same text is not embedded twice even across libraries or chunkings. Entries are appended to a binary file, with an
+ * in-memory index of file offsets and a bounded set of recently used vectors held in memory. When the file grows past
+ * [maxFileBytes], it is compacted to keep only the most recently used entries.
+ *
+ * The file may be shared by several processes. Appends and compaction hold a lock on a `.lock` file next to the cache,
+ * compaction replaces the file atomically, and a process that finds the file replaced reloads its index before
+ * appending. Each read checks the key stored in the record, so a stale offset is treated as a cache miss.
+ *
+ * Record layout (little-endian): `long keyHigh, long keyLow, int dims, float32[dims]`.
+ */
+class EmbeddingCache(
+    val file: File,
+    val maxMemoryEntries: Int = DEFAULT_MAX_MEMORY_ENTRIES,
+    val maxFileBytes: Long = DEFAULT_MAX_FILE_BYTES
+) : Closeable {
+
+    /** File used for cross-process locking, since the cache file itself is replaced when compacted. */
+    private val lockFile = File(file.absoluteFile.parentFile, "${file.name}.lock")
+    /** Object used to serialize locking within this process, since file locks are held per process. */
+    private val processLock = PROCESS_LOCKS.computeIfAbsent(file.absoluteFile.canonicalPath) { Any() }
+    /** Identity of the file when it was opened, used to detect replacement by another process. */
+    private var fileKey: Any? = null
+    private var channel = open()
+    /** File offsets by key, in least-recently-used order. */
+    private val offsets = LinkedHashMap<CacheKey, Long>(16, 0.75f, true)
+    private val vectors = object : LinkedHashMap<CacheKey, FloatArray>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<CacheKey, FloatArray>) = size > maxMemoryEntries
+    }
+
+    init {
+        withFileLock { loadIndex() }
+    }
+
+    /** Number of cached embeddings. */
+    val size
+        @Synchronized get() = offsets.size
+
+    /** Get a cached embedding, or null if not cached. */
+    @Synchronized
+    fun get(modelId: String, outputDimensionality: Int?, text: String): List<Double>? {
+        val key = key(modelId, outputDimensionality, text)
+        val offset = offsets[key] ?: return null
+        val vector = vectors[key] ?: try {
+            readVector(offset, key)?.also { vectors[key] = it } ?: run {
+                offsets.remove(key)
+                return null
+            }
+        } catch (x: IOException) {
+            warning<EmbeddingCache>("Unable to read cached embedding from $file: ${x.message}", x)
+            return null
+        }
+        return vector.map { it.toDouble() }
+    }
+
+    /** Add an embedding to the cache. */
+    @Synchronized
+    fun put(modelId: String, outputDimensionality: Int?, text: String, embedding: List<Double>) {
+        val key = key(modelId, outputDimensionality, text)
+        if (key in offsets)
+            return
+        val vector = FloatArray(embedding.size) { embedding[it].toFloat() }
+        try {
+            withFileLock {
+                if (isReplaced())
+                    reopen()
+                val offset = channel.size()
+                val buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + 4 * vector.size).order(ByteOrder.LITTLE_ENDIAN)
+                buffer.putLong(key.high).putLong(key.low).putInt(vector.size)
+                vector.forEach { buffer.putFloat(it) }
+                buffer.flip()
+                while (buffer.hasRemaining())
+                    channel.write(buffer, offset + buffer.position())
+                offsets[key] = offset
+                vectors[key] = vector
+                if (channel.size() > maxFileBytes)
+                    compact(maxFileBytes / 2)
+            }
+        } catch (x: IOException) {
+            warning<EmbeddingCache>("Unable to write cached embedding to $file: ${x.message}", x)
+        }
+    }
+
+    override fun close() {
+        channel.close()
+    }
+
+    //region FILE MANAGEMENT
+
+    private fun open(): FileChannel {
+        file.absoluteFile.parentFile?.mkdirs()
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            .also { fileKey = currentFileKey() }
+    }
+
+    private fun currentFileKey() = try {
+        Files.readAttributes(file.toPath(), BasicFileAttributes::class.java).fileKey()
+    } catch (x: IOException) {
+        null
+    }
+
+    /** True if the file has been replaced since it was opened, e.g. compacted by another process. */
+    private fun isReplaced() = fileKey != null && currentFileKey() != fileKey
+
+    /** Reopen the file and rebuild the index. Must be called with the file lock held. */
+    private fun reopen() {
+        channel.close()
+        channel = open()
+        offsets.clear()
+        loadIndex()
+        vectors.keys.retainAll(offsets.keys)
+    }
+
+    /** Run an operation holding the cross-process lock for the cache file. */
+    private fun <T> withFileLock(op: () -> T): T = synchronized(processLock) {
+        FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE).use { lockChannel ->
+            lockChannel.lock().use { op() }
+        }
+    }
+
+    /** Scan the file to build the index, truncating any incomplete record at the end. */
+    private fun loadIndex() {
+        val size = channel.size()
+        val header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+        var offset = 0L
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            header.clear()
+            readFully(header, offset)
+            val key = CacheKey(header.getLong(0), header.getLong(8))
+            val dims = header.getInt(16)
+            val next = offset + RECORD_HEADER_BYTES + 4L * dims
+            if (dims < 0 || next > size)
+                break
+            offsets[key] = offset
+            offset = next
+        }
+        if (offset < size) {
+            warning<EmbeddingCache>("Truncating incomplete embedding cache record in $file")
+            channel.truncate(offset)
+        }
+    }
+
+    /**
+     * Read the vector stored at an offset, or return null if the record there is not for the given key, e.g. because the
+     * file was changed by another process.
+     */
+    private fun readVector(offset: Long, key: CacheKey): FloatArray? {
+        val dims = recordDims(offset, key) ?: return null
+        val data = ByteBuffer.allocate(4 * dims).order(ByteOrder.LITTLE_ENDIAN)
+        readFully(data, offset + RECORD_HEADER_BYTES)
+        return FloatArray(dims) { data.getFloat(4 * it) }
+    }
+
+    /** Get the number of dimensions of the record at an offset, or null if it is not a complete record for the key. */
+    private fun recordDims(offset: Long, key: CacheKey): Int? {
+        if (offset + RECORD_HEADER_BYTES > channel.size())
+            return null
+        val header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+        readFully(header, offset)
+        val dims = header.getInt(16)
+        return dims.takeIf {
+            header.getLong(0) == key.high && header.getLong(8) == key.low &&
+                    it >= 0 && offset + RECORD_HEADER_BYTES + 4L * it <= channel.size()
+        }
+    }
+
+    private fun readFully(buffer: ByteBuffer, offset: Long) {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw IOException("Unexpected end of file")
+        }
+    }
+
+    /**
+     * Rewrite the file with the most recently used entries that fit in the given number of bytes. Records are copied
+     * directly from the old file into a temporary file, which then replaces the cache file. Must be called with the file
+     * lock held.
+     */
+    private fun compact(targetBytes: Long) {
+        try {
+            // find records to keep, most recently used first
+            val keep = ArrayDeque<Pair<CacheKey, Long>>()
+            var bytes = 0L
+            for (key in offsets.keys.reversed()) {
+                val offset = offsets[key]!!
+                val dims = recordDims(offset, key) ?: continue
+                bytes += RECORD_HEADER_BYTES + 4L * dims
+                if (bytes > targetBytes)
+                    break
+                keep.addFirst(key to offset)
+            }
+            val newOffsets = mutableListOf<Pair<CacheKey, Long>>()
+            writeAtomically(file) { stream ->
+                val out = stream.channel
+                keep.forEach { (key, offset) ->
+                    newOffsets += key to out.position()
+                    val length = RECORD_HEADER_BYTES + 4L * recordDims(offset, key)!!
+                    var copied = 0L
+                    while (copied < length) {
+                        val n = channel.transferTo(offset + copied, length - copied, out)
+                        if (n <= 0)
+                            throw IOException("Unexpected end of file")
+                        copied += n
+                    }
+                }
+                out.force(true)
+                channel.close()
+            }
+            offsets.clear()
+            newOffsets.forEach { offsets[it.first] = it.second }
+            vectors.keys.retainAll(offsets.keys)
+            info<EmbeddingCache>("Compacted embedding cache $file to ${offsets.size} entries")
+        } catch (x: IOException) {
+            warning<EmbeddingCache>("Unable to compact embedding cache $file: ${x.message}", x)
+        } finally {
+            if (!channel.isOpen)
+                channel = open()
+        }
+    }
+
+    //endregion
+
+    /** 128-bit key derived from a SHA-256 hash. */
+    private data class CacheKey(val high: Long, val low: Long)
+
+    companion object {
+        /** System property with the path of the shared cache file, or "none" to disable the shared cache. */
+        const val CACHE_FILE_PROPERTY = "promptfx.embedding.cache"
+        const val DEFAULT_MAX_MEMORY_ENTRIES = 10_000
+        const val DEFAULT_MAX_FILE_BYTES = 1L shl 30
+
+        private const val RECORD_HEADER_BYTES = 20
+        /** Locks by canonical cache file path, shared by all caches in this process. */
+        private val PROCESS_LOCKS = ConcurrentHashMap<String, Any>()
+        private val WHITESPACE = Regex("\\s+")
+
+        /** Location of the shared cache used by [enableShared] if none is configured, in the user's home folder. */
+        val DEFAULT_SHARED_FILE
+            get() = File(System.getProperty("user.home"), ".promptfx/embeddings.cache")
+
+        /** File for the shared cache, if configured or enabled. */
+        private var sharedFile = System.getProperty(CACHE_FILE_PROPERTY)?.takeIf { it != "none" }?.let { File(it) }
+        private var sharedCache: EmbeddingCache? = null
+
+        /**
+         * Cache shared by all libraries in the process, opened on first use. Null unless a location is configured with
+         * the [CACHE_FILE_PROPERTY] system property or the cache is enabled by [enableShared], e.g. by an application's
+         * entry point, or if the file cannot be opened.
+         */
+        val shared: EmbeddingCache?
+            @Synchronized get() {
+                val file = sharedFile
+                if (sharedCache == null && file != null) {
+                    sharedCache = try {
+                        EmbeddingCache(file)
+                    } catch (x: IOException) {
+                        warning<EmbeddingCache>("Unable to open embedding cache $file: ${x.message}", x)
+                        null
+                    }
+                    if (sharedCache == null)
+                        sharedFile = null
+                }
+                return sharedCache
+            }
+
+        /**
+         * Enable the [shared] cache, stored in [defaultFile] unless another location is configured with the
+         * [CACHE_FILE_PROPERTY] system property. Does nothing if that property is "none".
+         */
+        @Synchronized
+        fun enableShared(defaultFile: File = DEFAULT_SHARED_FILE) {
+            if (sharedFile == null && System.getProperty(CACHE_FILE_PROPERTY) != "none")
+                sharedFile = defaultFile
+        }
+
+        /** Normalize text for caching, collapsing runs of whitespace. */
+        fun normalize(text: String) = text.trim().replace(WHITESPACE, " ")
+
+        private fun key(modelId: String, outputDimensionality: Int?, text: String): CacheKey {
+            val digest = MessageDigest.getInstance("SHA-256")
+            digest.update("$modelId\u0000${outputDimensionality ?: ""}\u0000${normalize(text)}".toByteArray(Charsets.UTF_8))
+            val hash = ByteBuffer.wrap(digest.digest())
+            return CacheKey(hash.getLong(0), hash.getLong(8))
+        }
+    }
+
+}
+
+/**
+ * Calculate embeddings, using cached values where available and caching any newly calculated values.
+ * Texts that normalize to the same value are only calculated once.
+ */
+suspend fun EmbeddingModel.calculateEmbeddingCached(
+    text: List<String>,
+    outputDimensionality: Int? = null,
+    cache: EmbeddingCache? = EmbeddingCache.shared
+): List<List<Double>> {
+    if (cache == null)
+        return calculateEmbedding(text, outputDimensionality)
+    val results = text.map { cache.get(modelId, outputDimensionality, it) }.toMutableList()
+    val missing = text.indices.filter { results[it] == null }
+        .groupBy { EmbeddingCache.normalize(text[it]) }
+    if (missing.isNotEmpty()) {
+        val calculated = calculateEmbedding(missing.values.map { text[it.first()] }, outputDimensionality)
+        missing.values.forEachIndexed { i, indices ->
+            cache.put(modelId, outputDimensionality, text[indices.first()], calculated[i])
+            indices.forEach { results[it] = calculated[i] }
+        }
+    }
+    return results.map { it!! }
+}
+
+/** Calculate an embedding, using a cached value if available. */
+suspend fun EmbeddingModel.calculateEmbeddingCached(text: String, outputDimensionality: Int? = null,
+                                                    cache: EmbeddingCache? = EmbeddingCache.shared) =
+    calculateEmbeddingCached(listOf(text), outputDimensionality, cache).first()
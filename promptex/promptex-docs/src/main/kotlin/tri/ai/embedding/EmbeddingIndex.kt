@@ -27,9 +27,57 @@ import tri.ai.text.chunks.TextChunker
 abstract class EmbeddingIndex(val embeddingStrategy: EmbeddingStrategy) {
     /** Optional progress callback for tracking embedding calculations (message, fractional progress 0.0–1.0). */
     var onProgress: ((String, Double) -> Unit)? = null
+    /** Cache of query embeddings, shared by all indexes by default, or null to embed every query. */
+    var queryCache: QueryEmbeddingCache? = QueryEmbeddingCache.shared
 
     /** Find the most similar section to the query. */
     abstract suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch>
+
+    /**
+     * Find the [n] sections most similar to a query whose embedding has already been calculated, e.g. so one embedding
+     * can be shared by several indexes. By default, this searches with the query text.
+     */
+    open suspend fun findMostSimilar(query: SemanticTextQuery, n: Int): List<EmbeddingMatch> =
+        findMostSimilar(query.query, n)
+
+    /**
+     * Find the [n] sections most similar to the query among those matching a metadata filter. By default, this filters
+     * a larger set of unfiltered results, which may return fewer than [n] matches, so indexes that can narrow the
+     * candidates before scoring should override it.
+     */
+    open suspend fun findMostSimilar(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> =
+        if (filter == null)
+            findMostSimilar(query, n)
+        else
+            findMostSimilar(query, n * FILTER_OVERFETCH_FACTOR).filter { filter.matches(it.document, it.chunk) }.take(n)
+
+    /** Find the [n] sections most similar to the query among those matching a metadata filter. */
+    suspend fun findMostSimilar(query: String, n: Int, filter: MetadataFilter?) =
+        findMostSimilar(semanticQuery(query), n, filter)
+
+    /**
+     * Load documents and prepare search structures, so the first search does not have to wait for them. This does not
+     * embed a query. By default, this does nothing.
+     */
+    open suspend fun warmUp() { }
+
+    /**
+     * Get the index to use for retrieval, e.g. combining lexical and vector search if selected by the embedding
+     * strategy's [EmbeddingStrategy.retrieval]. The same index is returned by repeated calls. By default, this index.
+     */
+    open fun forRetrieval(): EmbeddingIndex = this
+
+    /** Calculate the embedding of a query with this index's embedding model, using [queryCache] if set. */
+    suspend fun semanticQuery(query: String): SemanticTextQuery {
+        val model = embeddingStrategy.model
+        val embedding = queryCache?.embedding(model, query) ?: model.calculateEmbedding(query)
+        return SemanticTextQuery(query, embedding, embeddingStrategy.modelId)
+    }
+
+    companion object {
+        /** Multiple of the number of requested results searched by the default filtered search. */
+        const val FILTER_OVERFETCH_FACTOR = 4
+    }
 }
 
 /** A no-op version of the embedding index. */
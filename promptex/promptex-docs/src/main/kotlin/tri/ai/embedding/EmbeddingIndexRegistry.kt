@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import tri.ai.text.chunks.SmartTextChunker
+import tri.ai.text.chunks.TextChunker
+import tri.util.fine
+import tri.util.warning
+import java.io.File
+import java.io.IOException
+
+/**
+ * Process-wide cache of [LocalFolderEmbeddingIndex] objects, so that repeated questions against the same folder
+ * reuse the loaded library and search structures instead of reloading them from disk.
+ * Indexes are keyed by folder, embedding model, chunker, and chunk size, including whether the size is in tokens.
+ * The retrieval mode is not part of the key, since it does not change what is stored for a folder: there is one index
+ * (and one set of files) per folder and model, which callers wrap in a [HybridEmbeddingIndex] for hybrid retrieval.
+ * A cached index is replaced if its index file was changed by another process, and least-recently-used indexes are
+ * evicted when the estimated memory of all loaded indexes exceeds [memoryBudgetBytes].
+ *
+ * If [watchFolders] is true, each cached index watches its folder for changes in the background. This is off by
+ * default, since it starts a file watcher per folder, and is meant to be enabled by long-running applications. Indexes
+ * stop watching when they are evicted or removed. Otherwise, a cached index is checked for changes to its folder when it
+ * is next warmed up, if it was last checked more than [rescanIntervalMillis] ago. Searches never scan the file system.
+ */
+object EmbeddingIndexRegistry {
+
+    /** Maximum estimated heap memory for cached indexes, defaulting to a quarter of the maximum heap size. */
+    @Volatile
+    var memoryBudgetBytes: Long = Runtime.getRuntime().maxMemory() / 4
+
+    /** If true, indexes cached after this is set watch their folders for changes (default false). */
+    @Volatile
+    var watchFolders = false
+
+    /** Minimum time between checks for changes to the folder of a cached index that is not watching its folder. */
+    @Volatile
+    var rescanIntervalMillis: Long = DEFAULT_RESCAN_INTERVAL_MILLIS
+
+    private val indexes = LinkedHashMap<IndexKey, LocalFolderEmbeddingIndex>(16, 0.75f, true)
+    /** Scope for watching folders of cached indexes. */
+    private val watchScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Get a cached index for the given folder and embedding strategy, creating it if needed. The index uses vector
+     * retrieval whatever the retrieval mode of [strategy], so it can be shared by callers using either mode.
+     */
+    @Synchronized
+    fun get(folder: File, strategy: EmbeddingStrategy, maxChunkSize: Int = DEFAULT_MAX_CHUNK_SIZE): LocalFolderEmbeddingIndex {
+        val key = IndexKey(folder.canonicalFile, strategy.modelId, chunkerKey(strategy.chunker), maxChunkSize)
+        var index = indexes[key]
+        if (index != null && index.isIndexFileModified()) {
+            fine<EmbeddingIndexRegistry>("Reloading embedding index for ${key.folder}, index file has changed")
+            index.stopWatching()
+            index = null
+        }
+        if (index == null) {
+            index = LocalFolderEmbeddingIndex(key.folder, EmbeddingStrategy(strategy.model, strategy.chunker)).also {
+                it.maxChunkSize = maxChunkSize
+                if (watchFolders)
+                    watch(it)
+            }
+            indexes[key] = index
+        } else if (!index.isWatching && System.currentTimeMillis() - index.lastScanTime >= rescanIntervalMillis) {
+            index.requestRescan()
+        }
+        evict()
+        return index
+    }
+
+    /** Start watching the folder of an index, falling back to periodic scans if the folder cannot be watched. */
+    private fun watch(index: LocalFolderEmbeddingIndex) {
+        try {
+            index.startWatching(watchScope)
+        } catch (x: IOException) {
+            warning<EmbeddingIndexRegistry>("Unable to watch ${index.rootDir} for changes: ${x.message}", x)
+        } catch (x: IllegalArgumentException) {
+            warning<EmbeddingIndexRegistry>("Unable to watch ${index.rootDir} for changes: ${x.message}", x)
+        }
+    }
+
+    /** Remove all cached indexes for a folder. */
+    @Synchronized
+    fun invalidate(folder: File) {
+        val canonical = folder.canonicalFile
+        indexes.entries.removeIf { (key, index) ->
+            (key.folder == canonical).also { if (it) index.stopWatching() }
+        }
+    }
+
+    /** Remove all cached indexes. */
+    @Synchronized
+    fun clear() {
+        indexes.values.forEach { it.stopWatching() }
+        indexes.clear()
+    }
+
+    /** Number of cached indexes. */
+    val size
+        @Synchronized get() = indexes.size
+
+    /**
+     * Evict least-recently-used indexes until the estimate of memory used is within budget.
+     * The most recently used index is always kept.
+     */
+    @Synchronized
+    fun evict() {
+        var total = indexes.values.sumOf { it.estimatedMemoryBytes() }
+        val iterator = indexes.entries.iterator()
+        while (total > memoryBudgetBytes && indexes.size > 1 && iterator.hasNext()) {
+            val entry = iterator.next()
+            total -= entry.value.estimatedMemoryBytes()
+            fine<EmbeddingIndexRegistry>("Evicting embedding index for ${entry.key.folder} to stay within memory budget")
+            entry.value.stopWatching()
+            iterator.remove()
+        }
+    }
+
+    private const val DEFAULT_MAX_CHUNK_SIZE = 1000
+    /** Default minimum time between checks for changes to the folder of a cached index. */
+    const val DEFAULT_RESCAN_INTERVAL_MILLIS = 10_000L
+
+    /** Identifies the chunker type, and for [SmartTextChunker] whether chunk sizes are measured in tokens. */
+    private fun chunkerKey(chunker: TextChunker) =
+        chunker.javaClass.name + if ((chunker as? SmartTextChunker)?.tokenCounter != null) ":tokens" else ""
+
+    private data class IndexKey(val folder: File, val modelId: String, val chunker: String, val maxChunkSize: Int)
+
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
+/**
+ * A growable row-major matrix of normalized embedding vectors, stored in a single primitive array so that
+ * similarity with a query can be computed for all rows in a tight loop.
+ */
+class EmbeddingMatrix(val dims: Int, initialCapacity: Int = 16) {
+
+    /** Packed row data, which may have extra capacity beyond [rows]. */
+    var data = FloatArray(dims * maxOf(1, initialCapacity))
+        private set
+    /** Number of rows in the matrix. */
+    var rows = 0
+        private set
+
+    /** Add a row to the matrix, returning its index. */
+    fun add(vector: EmbeddingVector): Int {
+        require(vector.dims == dims) { "Expected vector of size $dims but was ${vector.dims}" }
+        if ((rows + 1) * dims > data.size)
+            data = data.copyOf(maxOf(data.size * 2, (rows + 1) * dims))
+        vector.values.copyInto(data, rows * dims)
+        return rows++
+    }
+
+    /** Get a row of the matrix as a vector. */
+    fun row(index: Int): FloatArray {
+        require(index in 0 until rows)
+        return data.copyOfRange(index * dims, (index + 1) * dims)
+    }
+
+    /** Compute the dot product of the query with a single row. */
+    fun score(query: EmbeddingVector, row: Int, kernel: VectorKernel = VectorKernel.DEFAULT) =
+        kernel.dot(query.values, 0, data, row * dims, dims)
+
+    /**
+     * Compute cosine similarity of the query with every row, writing results to [out] (which must have at least [rows] elements).
+     * Returns [out] for convenience.
+     */
+    fun scores(query: EmbeddingVector, out: FloatArray = FloatArray(rows), kernel: VectorKernel = VectorKernel.DEFAULT): FloatArray {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        kernel.dotRows(query.values, data, 0, rows, out)
+        return out
+    }
+
+    /**
+     * Find the [k] rows most similar to the query, sorted by descending similarity. Large matrices are split into
+     * partitions of about [partitionRows] rows that are scanned in parallel on [pool], each keeping only its own top [k].
+     */
+    fun topK(query: EmbeddingVector, k: Int, kernel: VectorKernel = VectorKernel.DEFAULT,
+             partitionRows: Int = DEFAULT_PARTITION_ROWS, pool: ForkJoinPool = ForkJoinPool.commonPool()): List<ScoredRow> {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        require(partitionRows > 0) { "Partition size must be positive" }
+        if (k <= 0 || rows == 0)
+            return listOf()
+        val task = TopKTask(query.values, k, kernel, partitionRows, 0, rows)
+        val heap = if (rows <= partitionRows) task.compute() else pool.invoke(task)
+        return heap.toSortedList()
+    }
+
+    /** Scans a range of rows, splitting it in half until it is small enough to scan directly. */
+    private inner class TopKTask(
+        private val query: FloatArray,
+        private val k: Int,
+        private val kernel: VectorKernel,
+        private val partitionRows: Int,
+        private val fromRow: Int,
+        private val toRow: Int
+    ) : RecursiveTask<TopKHeap>() {
+        public override fun compute(): TopKHeap {
+            if (toRow - fromRow <= partitionRows) {
+                val heap = TopKHeap(k)
+                for (r in fromRow until toRow)
+                    heap.offer(r, kernel.dot(query, 0, data, r * dims, dims))
+                return heap
+            }
+            val mid = (fromRow + toRow) ushr 1
+            val left = TopKTask(query, k, kernel, partitionRows, fromRow, mid).fork()
+            val right = TopKTask(query, k, kernel, partitionRows, mid, toRow).compute()
+            return left.join().also { it.addAll(right) }
+        }
+    }
+
+    companion object {
+        /** Default number of rows scanned by a single task in [topK]. */
+        const val DEFAULT_PARTITION_ROWS = 8192
+    }
+}
+
+/** A row of an [EmbeddingMatrix] or [HnswIndex] with its similarity score. */
+data class ScoredRow(val row: Int, val score: Float)
@@ -22,8 +22,20 @@ package tri.ai.embedding
 import tri.ai.core.EmbeddingModel
 import tri.ai.text.chunks.TextChunker
 
-/** Encapsulates the strategy for embedding text chunks. */
-class EmbeddingStrategy(val model: EmbeddingModel, val chunker: TextChunker) {
+/** Encapsulates the strategy for embedding text chunks, and for retrieving chunks relevant to a query. */
+class EmbeddingStrategy(
+    val model: EmbeddingModel,
+    val chunker: TextChunker,
+    val retrieval: RetrievalMode = RetrievalMode.VECTOR
+) {
     val modelId
         get() = model.modelId
 }
+
+/** Method used to retrieve chunks relevant to a query. */
+enum class RetrievalMode {
+    /** Rank chunks by embedding similarity. */
+    VECTOR,
+    /** Combine embedding similarity with lexical (BM25) matching, using [HybridEmbeddingIndex]. */
+    HYBRID
+}
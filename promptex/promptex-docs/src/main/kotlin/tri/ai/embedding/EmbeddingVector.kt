@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlin.math.sqrt
+
+/**
+ * An embedding vector stored as a unit-length primitive float array, so cosine similarity reduces to a dot product.
+ * The original norm is retained in [norm].
+ */
+class EmbeddingVector private constructor(
+    /** Normalized values. */
+    val values: FloatArray,
+    /** Norm of the original values. */
+    val norm: Float
+) {
+
+    /** Number of dimensions. */
+    val dims
+        get() = values.size
+
+    /** Cosine similarity with another vector. */
+    fun cosine(other: EmbeddingVector, kernel: VectorKernel = VectorKernel.DEFAULT): Float {
+        require(other.dims == dims) { "Vector dimensions do not match: $dims vs ${other.dims}" }
+        return kernel.dot(values, 0, other.values, 0, dims)
+    }
+
+    /** Cosine similarity with an unnormalized vector, computed in a single pass without allocation. */
+    fun cosine(other: List<Double>): Float {
+        require(other.size == dims) { "Vector dimensions do not match: $dims vs ${other.size}" }
+        var dot = 0.0
+        var norm2 = 0.0
+        for (i in values.indices) {
+            val x = other[i]
+            dot += values[i] * x
+            norm2 += x * x
+        }
+        return if (norm2 == 0.0) 0f else (dot / sqrt(norm2)).toFloat()
+    }
+
+    companion object {
+        /** Create a normalized vector from the given values, which are not modified. */
+        fun of(values: FloatArray) = values.copyOf().let { normalize(it) }
+
+        /** Create a normalized vector from the given values. */
+        fun of(values: List<Double>) = normalize(FloatArray(values.size) { values[it].toFloat() })
+
+        /** Normalize the values in place, and wrap them as a vector. */
+        private fun normalize(values: FloatArray): EmbeddingVector {
+            val norm = sqrt(ScalarVectorKernel.dot(values, 0, values, 0, values.size))
+            if (norm > 0f) {
+                for (i in values.indices)
+                    values[i] /= norm
+            }
+            return EmbeddingVector(values, norm)
+        }
+    }
+}
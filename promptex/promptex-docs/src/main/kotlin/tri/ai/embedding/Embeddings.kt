@@ -19,16 +19,40 @@
  */
 package tri.ai.embedding
 
-import kotlin.math.pow
+import kotlin.math.sqrt
 
 /** Compute cosine similarity of two vectors. */
 fun cosineSimilarity(resp1: List<Double>, resp2: List<Double>): Double {
-    val dotProduct = resp1.zip(resp2).sumOf { it.first * it.second }
-    val magnitude1 = resp1.sumOf { it * it }.pow(0.5)
-    val magnitude2 = resp2.sumOf { it * it }.pow(0.5)
-    return dotProduct / (magnitude1 * magnitude2)
+    var dotProduct = 0.0
+    var norm1 = 0.0
+    var norm2 = 0.0
+    for (i in 0 until minOf(resp1.size, resp2.size)) {
+        val x = resp1[i]
+        val y = resp2[i]
+        dotProduct += x * y
+        norm1 += x * x
+        norm2 += y * y
+    }
+    for (i in resp2.size until resp1.size)
+        norm1 += resp1[i] * resp1[i]
+    for (i in resp1.size until resp2.size)
+        norm2 += resp2[i] * resp2[i]
+    return dotProduct / sqrt(norm1 * norm2)
+}
+
+/** Compute cosine similarity of two vectors. */
+fun cosineSimilarity(resp1: FloatArray, resp2: FloatArray, kernel: VectorKernel = VectorKernel.DEFAULT): Float {
+    require(resp1.size == resp2.size) { "Vector dimensions do not match: ${resp1.size} vs ${resp2.size}" }
+    val dotProduct = kernel.dot(resp1, 0, resp2, 0, resp1.size)
+    val norm1 = kernel.dot(resp1, 0, resp1, 0, resp1.size)
+    val norm2 = kernel.dot(resp2, 0, resp2, 0, resp2.size)
+    return dotProduct / sqrt(norm1 * norm2)
 }
 
 /** Compute dot product of two vectors. */
-fun List<Float>.dot(resp2: List<Float>) =
-    zip(resp2).sumOf { it.first * it.second.toDouble() }
+fun List<Float>.dot(resp2: List<Float>): Double {
+    var sum = 0.0
+    for (i in 0 until minOf(size, resp2.size))
+        sum += this[i] * resp2[i].toDouble()
+    return sum
+}
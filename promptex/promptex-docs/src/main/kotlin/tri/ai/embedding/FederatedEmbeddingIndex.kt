@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import tri.ai.text.chunks.TextDoc
+import tri.util.warning
+
+/**
+ * An embedding index that searches several child indexes concurrently, e.g. one per document folder, library file, or
+ * shard of a large library, and merges their results into a single top-k list. The query embedding is calculated once
+ * and shared by all children, so children must use the same embedding model.
+ *
+ * Results are merged by score, unless a child ranks its results by something other than score (e.g. a
+ * [HybridEmbeddingIndex], which ranks by reciprocal rank fusion), in which case they are merged by each child's own
+ * rank.
+ *
+ * A child that fails, or does not respond within [shardTimeoutMillis], is left out of the results rather than failing
+ * the whole search. With a timeout, each child is searched on [Dispatchers.IO] outside of the calling scope, so a child
+ * blocked in non-cancellable work does not delay the results. Its search is cancelled when it times out or when the
+ * caller is cancelled.
+ */
+class FederatedEmbeddingIndex(
+    val children: List<EmbeddingIndex>,
+    val shardTimeoutMillis: Long? = null
+) : EmbeddingIndex(children.firstOrNull()?.embeddingStrategy ?: NoOpEmbeddingStrategy) {
+
+    init {
+        require(children.isNotEmpty()) { "At least one child index is required" }
+        require(children.all { it.embeddingStrategy.modelId == embeddingStrategy.modelId }) {
+            "All child indexes must use the same embedding model"
+        }
+        require(shardTimeoutMillis == null || shardTimeoutMillis > 0) { "Shard timeout must be positive" }
+    }
+
+    /** True if results are merged by each child's rank rather than by score. */
+    val mergesByRank: Boolean = children.any { it is HybridEmbeddingIndex || (it is FederatedEmbeddingIndex && it.mergesByRank) }
+
+    /** Scope for child searches with a timeout, which are cancelled rather than awaited once they time out. */
+    private val timeoutScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /** Index searching each child's retrieval index, or this index if every child is its own retrieval index. */
+    private val retrievalIndex: EmbeddingIndex by lazy {
+        val retrievalChildren = children.map { it.forRetrieval() }
+        if (retrievalChildren.indices.all { retrievalChildren[it] === children[it] })
+            this
+        else
+            FederatedEmbeddingIndex(retrievalChildren, shardTimeoutMillis)
+    }
+
+    override fun forRetrieval() = retrievalIndex
+
+    override suspend fun findMostSimilar(query: String, n: Int) =
+        findMostSimilar(semanticQuery(query), n)
+
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int) =
+        findMostSimilar(query, n, null)
+
+    /** Search all children with the metadata filter, so each child can narrow its candidates before scoring. */
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        if (n <= 0)
+            return listOf()
+        val childResults = coroutineScope {
+            children.map { child ->
+                async(Dispatchers.Default) { search(child, query, n, filter) }
+            }.awaitAll()
+        }
+        return if (mergesByRank) mergeByRank(childResults, n) else mergeByScore(childResults.flatten(), n)
+    }
+
+    /** Merge results by score. */
+    private fun mergeByScore(results: List<EmbeddingMatch>, n: Int): List<EmbeddingMatch> {
+        val heap = TopKHeap(n)
+        results.forEachIndexed { i, match -> heap.offer(i, match.queryScore) }
+        return heap.toSortedList().map { results[it.row] }
+    }
+
+    /**
+     * Merge results by their rank in each child's own order, with ties broken by the order of children. Since each
+     * chunk is found by a single child, this is the order given by reciprocal rank fusion.
+     */
+    private fun mergeByRank(childResults: List<List<EmbeddingMatch>>, n: Int) =
+        childResults.flatMapIndexed { c, results -> results.mapIndexed { rank, match -> Triple(match, rank, c) } }
+            .sortedWith(compareBy<Triple<EmbeddingMatch, Int, Int>> { it.second }.thenBy { it.third })
+            .take(n)
+            .map { it.first }
+
+    /** Search a single child, returning no results if it fails or times out. */
+    private suspend fun search(child: EmbeddingIndex, query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        return try {
+            val result = if (shardTimeoutMillis == null) {
+                child.findMostSimilar(query, n, filter)
+            } else {
+                val search = timeoutScope.async { child.findMostSimilar(query, n, filter) }
+                try {
+                    withTimeoutOrNull(shardTimeoutMillis) { search.await() }
+                } finally {
+                    // the search is not a child of the caller, so cancel it if it timed out or the caller was cancelled
+                    search.cancel()
+                }
+            }
+            result ?: listOf<EmbeddingMatch>().also {
+                warning<FederatedEmbeddingIndex>("Search of $child timed out after $shardTimeoutMillis ms")
+            }
+        } catch (x: CancellationException) {
+            throw x
+        } catch (x: Exception) {
+            warning<FederatedEmbeddingIndex>("Search of $child failed: ${x.message}", x)
+            listOf()
+        }
+    }
+
+    /** Warm up all children concurrently. A child that fails is logged and skipped, as in search. */
+    override suspend fun warmUp() {
+        coroutineScope {
+            children.forEach { child ->
+                launch(Dispatchers.Default) {
+                    try {
+                        child.warmUp()
+                    } catch (x: CancellationException) {
+                        throw x
+                    } catch (x: Exception) {
+                        warning<FederatedEmbeddingIndex>("Loading $child failed: ${x.message}", x)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Update all children concurrently, reindexing folders with [LocalFolderEmbeddingIndex.reindexNew] (including the
+     * folder index of a [HybridEmbeddingIndex]) and calculating missing embeddings for [TextLibraryEmbeddingIndex]es.
+     * Children of any nested [FederatedEmbeddingIndex] are updated in the same way.
+     * @throws UnsupportedOperationException if a child is of any other type, before any child is updated
+     */
+    suspend fun reindexNew(onProgress: ((String, Double) -> Unit)? = this.onProgress) {
+        unsupportedForReindex().firstOrNull()?.let {
+            throw UnsupportedOperationException("Unable to reindex child index of type ${it::class.simpleName}")
+        }
+        coroutineScope {
+            children.forEach { child ->
+                launch(Dispatchers.Default) {
+                    when (child) {
+                        is LocalFolderEmbeddingIndex -> child.reindexNew(onProgress)
+                        is HybridEmbeddingIndex -> child.index.reindexNew(onProgress)
+                        is TextLibraryEmbeddingIndex -> child.calculateMissingEmbeddings(onProgress)
+                        is FederatedEmbeddingIndex -> child.reindexNew(onProgress)
+                        else -> throw UnsupportedOperationException("Unable to reindex child index of type ${child::class.simpleName}")
+                    }
+                }
+            }
+        }
+    }
+
+    /** Children, including children of nested indexes, that cannot be updated by [reindexNew]. */
+    private fun unsupportedForReindex(): List<EmbeddingIndex> = children.flatMap {
+        when (it) {
+            is LocalFolderEmbeddingIndex, is HybridEmbeddingIndex, is TextLibraryEmbeddingIndex -> listOf()
+            is FederatedEmbeddingIndex -> it.unsupportedForReindex()
+            else -> listOf(it)
+        }
+    }
+
+    companion object {
+        /** Default number of shards used by [shards]. */
+        val DEFAULT_SHARD_COUNT = Runtime.getRuntime().availableProcessors()
+
+        /**
+         * Split documents into [shardCount] [TextLibraryEmbeddingIndex] shards of similar size, so embeddings can be
+         * calculated and searched in parallel.
+         */
+        fun shards(
+            docs: List<TextDoc>,
+            embeddingStrategy: EmbeddingStrategy,
+            shardCount: Int = DEFAULT_SHARD_COUNT,
+            shardTimeoutMillis: Long? = null
+        ): FederatedEmbeddingIndex {
+            require(shardCount > 0) { "Shard count must be positive" }
+            val shards = List(minOf(shardCount, maxOf(1, docs.size))) { mutableListOf<TextDoc>() }
+            val chunkCounts = IntArray(shards.size)
+            // assign largest documents first, each to the shard with the fewest chunks
+            docs.sortedByDescending { it.chunks.size }.forEach { doc ->
+                val i = chunkCounts.indices.minBy { chunkCounts[it] }
+                shards[i] += doc
+                chunkCounts[i] += doc.chunks.size
+            }
+            return FederatedEmbeddingIndex(shards.map { TextLibraryEmbeddingIndex(embeddingStrategy, it) }, shardTimeoutMillis)
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.util.BitSet
+import java.util.PriorityQueue
+import kotlin.math.ln
+import kotlin.random.Random
+
+/** Parameters for building and searching an [HnswIndex]. */
+data class HnswConfig(
+    /** Number of neighbors per node on upper layers (twice this on the bottom layer). */
+    val m: Int = 16,
+    /** Size of the candidate list used when inserting nodes. */
+    val efConstruction: Int = 200,
+    /** Size of the candidate list used when searching, increase for better recall at the cost of speed. */
+    val efSearch: Int = 64,
+    /** Fraction of deleted nodes above which the graph should be rebuilt. */
+    val maxDeletedFraction: Double = 0.2,
+    /** Seed for assigning node levels. */
+    val seed: Long = 42L
+) {
+    init {
+        require(m >= 2) { "m must be at least 2" }
+        require(efConstruction >= 1 && efSearch >= 1) { "ef values must be positive" }
+    }
+}
+
+/**
+ * Hierarchical navigable small world (HNSW) graph for approximate nearest-neighbor search over normalized vectors,
+ * following Malkov and Yashunin. Similarity is the dot product of normalized vectors (i.e. cosine similarity).
+ * Nodes are numbered in insertion order and may be added incrementally. Deleted nodes are excluded from results but
+ * are still used to navigate the graph, so the graph should be rebuilt once [deletedCount] grows large.
+ * This class is not thread-safe.
+ */
+class HnswIndex(val dims: Int, val config: HnswConfig = HnswConfig(), private val kernel: VectorKernel = VectorKernel.DEFAULT) {
+
+    /** Vectors for each node. */
+    val vectors = EmbeddingMatrix(dims)
+    private val neighbors = mutableListOf<Array<NeighborList>>()
+    private val deleted = BitSet()
+    private var entryPoint = -1
+    private var maxLevel = -1
+    private var random = Random(config.seed)
+    private val levelFactor = 1.0 / ln(config.m.toDouble())
+
+    /** Number of nodes, including deleted nodes. */
+    val size
+        get() = vectors.rows
+    /** Number of deleted nodes. */
+    val deletedCount
+        get() = deleted.cardinality()
+
+    /** Rough estimate of the heap memory used by vectors and links, in bytes. */
+    fun estimatedMemoryBytes() = 4L * vectors.data.size + 4L * size * (3 * config.m) + 64L * size
+
+    /** Check if a node has been deleted. */
+    fun isDeleted(node: Int) = deleted[node]
+
+    /** Mark a node as deleted, so it is no longer returned in search results. */
+    fun delete(node: Int) {
+        require(node in 0 until size)
+        deleted.set(node)
+    }
+
+    //region INSERT
+
+    /** Insert a vector into the graph, returning its node id. */
+    fun insert(vector: EmbeddingVector): Int {
+        val node = vectors.add(vector)
+        val level = randomLevel()
+        neighbors += Array(level + 1) { NeighborList(maxNeighbors(it)) }
+        if (entryPoint < 0) {
+            entryPoint = node
+            maxLevel = level
+            return node
+        }
+
+        val offset = node * dims
+        var nearest = listOf(ScoredRow(entryPoint, similarity(vectors.data, offset, entryPoint)))
+        for (lc in maxLevel downTo level + 1)
+            nearest = searchLayer(vectors.data, offset, nearest, 1, lc)
+        for (lc in minOf(level, maxLevel) downTo 0) {
+            nearest = searchLayer(vectors.data, offset, nearest, config.efConstruction, lc)
+            selectNeighbors(nearest, config.m).forEach {
+                neighbors[node][lc].add(it.row)
+                connect(it.row, node, lc)
+            }
+        }
+        if (level > maxLevel) {
+            entryPoint = node
+            maxLevel = level
+        }
+        return node
+    }
+
+    private fun randomLevel() =
+        minOf(MAX_LEVEL, (-ln(1.0 - random.nextDouble()) * levelFactor).toInt())
+
+    private fun maxNeighbors(level: Int) = if (level == 0) 2 * config.m else config.m
+
+    /** Add a link from [node] to [target], pruning the node's neighbors if there are too many. */
+    private fun connect(node: Int, target: Int, level: Int) {
+        val list = neighbors[node][level]
+        if (list.size < list.capacity) {
+            list.add(target)
+        } else {
+            val offset = node * dims
+            val candidates = (list.toIntArray() + target).map { ScoredRow(it, similarity(vectors.data, offset, it)) }
+                .sortedByDescending { it.score }
+            list.set(selectNeighbors(candidates, list.capacity).map { it.row })
+        }
+    }
+
+    /**
+     * Select up to [m] neighbors from candidates sorted by descending similarity, preferring candidates that are closer
+     * to the base node than to any already-selected neighbor, so links spread across clusters. Remaining slots are
+     * filled with the closest pruned candidates.
+     */
+    private fun selectNeighbors(candidates: List<ScoredRow>, m: Int): List<ScoredRow> {
+        if (candidates.size <= m)
+            return candidates
+        val selected = ArrayList<ScoredRow>(m)
+        val pruned = mutableListOf<ScoredRow>()
+        for (c in candidates) {
+            if (selected.size >= m)
+                break
+            val offset = c.row * dims
+            if (selected.all { similarity(vectors.data, offset, it.row) < c.score })
+                selected += c
+            else
+                pruned += c
+        }
+        pruned.take(m - selected.size).forEach { selected += it }
+        return selected
+    }
+
+    //endregion
+
+    //region SEARCH
+
+    /**
+     * Find approximately the [k] nodes most similar to the query, excluding deleted nodes, sorted by descending similarity.
+     * @param ef size of the candidate list, at least [k]
+     */
+    fun search(query: EmbeddingVector, k: Int, ef: Int = config.efSearch): List<ScoredRow> {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        if (entryPoint < 0 || k <= 0)
+            return listOf()
+        var nearest = listOf(ScoredRow(entryPoint, similarity(query.values, 0, entryPoint)))
+        for (lc in maxLevel downTo 1)
+            nearest = searchLayer(query.values, 0, nearest, 1, lc)
+        nearest = searchLayer(query.values, 0, nearest, maxOf(ef, k + minOf(deletedCount, ef)), 0)
+        return nearest.filter { !deleted[it.row] }.take(k)
+    }
+
+    /**
+     * Find approximately the [k] nodes among [allowed] most similar to the query, excluding deleted nodes, sorted by
+     * descending similarity. The candidate list is enlarged in proportion to the fraction of nodes that are not allowed,
+     * and if that would visit more nodes than are allowed, the allowed nodes are scored directly instead.
+     * @param ef size of the candidate list before enlarging, at least [k]
+     */
+    fun search(query: EmbeddingVector, k: Int, allowed: BitSet, ef: Int = config.efSearch): List<ScoredRow> {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        if (entryPoint < 0 || k <= 0)
+            return listOf()
+        val candidates = (allowed.clone() as BitSet).apply {
+            andNot(deleted)
+            if (length() > size)
+                clear(size, length())
+        }
+        val count = candidates.cardinality()
+        if (count == 0)
+            return listOf()
+        val live = size - deletedCount
+        val filteredEf = minOf(live.toLong(), maxOf(ef, k).toLong() * live / count).toInt()
+        if (count <= filteredEf) {
+            val heap = TopKHeap(k)
+            var node = candidates.nextSetBit(0)
+            while (node >= 0) {
+                heap.offer(node, similarity(query.values, 0, node))
+                node = candidates.nextSetBit(node + 1)
+            }
+            return heap.toSortedList()
+        }
+        var nearest = listOf(ScoredRow(entryPoint, similarity(query.values, 0, entryPoint)))
+        for (lc in maxLevel downTo 1)
+            nearest = searchLayer(query.values, 0, nearest, 1, lc)
+        nearest = searchLayer(query.values, 0, nearest, filteredEf + minOf(deletedCount, ef), 0)
+        return nearest.filter { candidates[it.row] }.take(k)
+    }
+
+    /** Beam search on a single layer, returning up to [ef] nodes sorted by descending similarity. */
+    private fun searchLayer(query: FloatArray, queryOffset: Int, entries: List<ScoredRow>, ef: Int, level: Int): List<ScoredRow> {
+        val visited = BitSet(size)
+        val candidates = PriorityQueue<ScoredRow>(compareByDescending { it.score })
+        val results = PriorityQueue<ScoredRow>(compareBy { it.score })
+        entries.forEach {
+            visited.set(it.row)
+            candidates += it
+            results += it
+        }
+        while (results.size > ef)
+            results.poll()
+        while (candidates.isNotEmpty()) {
+            val c = candidates.poll()
+            if (results.size >= ef && c.score < results.peek().score)
+                break
+            val list = neighbors[c.row].getOrNull(level) ?: continue
+            for (i in 0 until list.size) {
+                val n = list[i]
+                if (visited[n])
+                    continue
+                visited.set(n)
+                val score = similarity(query, queryOffset, n)
+                if (results.size < ef || score > results.peek().score) {
+                    val scored = ScoredRow(n, score)
+                    candidates += scored
+                    results += scored
+                    if (results.size > ef)
+                        results.poll()
+                }
+            }
+        }
+        return results.sortedByDescending { it.score }
+    }
+
+    private fun similarity(query: FloatArray, queryOffset: Int, node: Int) =
+        kernel.dot(query, queryOffset, vectors.data, node * dims, dims)
+
+    //endregion
+
+    //region PERSISTENCE
+
+    /** Write the graph structure to output. Vectors are not written, and must be provided when reading. */
+    fun writeTo(out: DataOutput) {
+        out.writeInt(dims)
+        out.writeInt(config.m)
+        out.writeInt(config.efConstruction)
+        out.writeInt(size)
+        out.writeInt(entryPoint)
+        out.writeInt(maxLevel)
+        neighbors.forEachIndexed { node, levels ->
+            out.writeBoolean(deleted[node])
+            out.writeInt(levels.size)
+            levels.forEach { list ->
+                out.writeInt(list.size)
+                for (i in 0 until list.size)
+                    out.writeInt(list[i])
+            }
+        }
+    }
+
+    companion object {
+        private const val MAX_LEVEL = 16
+
+        /**
+         * Read a graph written by [writeTo], with vectors for each node provided by [vector].
+         * Nodes without a vector are marked as deleted.
+         * Returns null if the graph was built with different dimensions or construction parameters.
+         */
+        fun readFrom(input: DataInput, config: HnswConfig, vector: (Int) -> EmbeddingVector?): HnswIndex? {
+            val dims = input.readInt()
+            if (input.readInt() != config.m || input.readInt() != config.efConstruction)
+                return null
+            val size = input.readInt()
+            return HnswIndex(dims, config).apply {
+                entryPoint = input.readInt()
+                maxLevel = input.readInt()
+                for (node in 0 until size) {
+                    val wasDeleted = input.readBoolean()
+                    val v = if (wasDeleted) null else vector(node)
+                    if (v != null && v.dims != dims)
+                        throw IOException("Vector for node $node has size ${v.dims}, expected $dims")
+                    vectors.add(v ?: EmbeddingVector.of(FloatArray(dims)))
+                    if (v == null)
+                        deleted.set(node)
+                    neighbors += Array(input.readInt()) { level ->
+                        NeighborList(maxNeighbors(level)).apply {
+                            set(IntArray(input.readInt()) { input.readInt() }.toList())
+                        }
+                    }
+                }
+                random = Random(config.seed + size)
+            }
+        }
+    }
+
+    //endregion
+
+    /** Fixed-capacity list of neighbor ids. */
+    private class NeighborList(val capacity: Int) {
+        private var ids = IntArray(capacity)
+        var size = 0
+            private set
+
+        operator fun get(index: Int) = ids[index]
+
+        fun add(id: Int) {
+            ids[size++] = id
+        }
+
+        fun set(values: List<Int>) {
+            if (values.size > ids.size)
+                ids = IntArray(values.size)
+            values.forEachIndexed { i, id -> ids[i] = id }
+            size = values.size
+        }
+
+        fun toIntArray() = ids.copyOf(size)
+    }
+
+}
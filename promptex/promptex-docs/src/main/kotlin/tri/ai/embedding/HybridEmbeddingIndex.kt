@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.TextChunk
+
+/**
+ * An embedding index that combines lexical (BM25) and vector search over a [LocalFolderEmbeddingIndex], so queries
+ * for part numbers, acronyms, or exact terms can find chunks that vector search alone would rank poorly. Each search
+ * retrieves `n * candidateFactor` candidates by both methods, and ranks chunks by reciprocal rank fusion, summing
+ * `1 / (rrfK + rank)` over both rankings. Matches report the cosine similarity of each chunk as their score.
+ *
+ * If [pruneVectorSearch] is true and lexical search finds enough candidates, vector similarity is only computed for
+ * those candidates rather than scanning all chunks.
+ *
+ * Filtered searches retrieve vector candidates among matching chunks only, and widen the lexical search until it finds
+ * enough matching candidates or runs out of chunks, so up to `n` matches are returned when enough chunks match.
+ */
+class HybridEmbeddingIndex(
+    val index: LocalFolderEmbeddingIndex,
+    val candidateFactor: Int = DEFAULT_CANDIDATE_FACTOR,
+    val rrfK: Int = DEFAULT_RRF_K,
+    val pruneVectorSearch: Boolean = false
+) : EmbeddingIndex(index.embeddingStrategy) {
+
+    init {
+        require(candidateFactor > 0) { "Candidate factor must be positive" }
+    }
+
+    override suspend fun warmUp() =
+        index.warmUp()
+
+    override suspend fun findMostSimilar(query: String, n: Int) =
+        findMostSimilar(index.semanticQuery(query), n)
+
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int) =
+        findMostSimilar(query, n, null)
+
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        if (n <= 0)
+            return listOf()
+        val candidates = n * candidateFactor
+        val lexical = if (filter == null)
+            index.findLexicalMatches(query.query, candidates)
+        else
+            findFilteredLexicalMatches(query.query, candidates, filter)
+        val vector = if (pruneVectorSearch && lexical.size >= n) {
+            lexical.mapNotNull { index.match(query, it.document, it.chunk) }
+                .sortedByDescending { it.queryScore }
+        } else {
+            index.findMostSimilar(query, candidates, filter)
+        }
+        return fuse(query, n, vector, lexical)
+    }
+
+    /**
+     * Find the [n] chunks matching the filter with the highest BM25 score, widening the search until enough matching
+     * chunks are found or all chunks with query terms have been searched.
+     */
+    private suspend fun findFilteredLexicalMatches(query: String, n: Int, filter: MetadataFilter): List<LexicalMatch> {
+        var fetch = n * FILTER_OVERFETCH_FACTOR
+        while (true) {
+            val lexical = index.findLexicalMatches(query, fetch)
+            val matching = lexical.filter { filter.matches(it.document, it.chunk) }
+            if (matching.size >= n || lexical.size < fetch)
+                return matching.take(n)
+            fetch *= FILTER_OVERFETCH_FACTOR
+        }
+    }
+
+    /** Rank vector and lexical matches by reciprocal rank fusion, returning the top [n]. */
+    private fun fuse(query: SemanticTextQuery, n: Int, vector: List<EmbeddingMatch>, lexical: List<LexicalMatch>): List<EmbeddingMatch> {
+        val fused = mutableMapOf<ChunkIdentity, Double>()
+        val matches = mutableMapOf<ChunkIdentity, EmbeddingMatch>()
+        vector.forEachIndexed { rank, match ->
+            val id = ChunkIdentity(match.chunk)
+            fused[id] = fused.getOrDefault(id, 0.0) + 1.0 / (rrfK + rank + 1)
+            matches[id] = match
+        }
+        lexical.forEachIndexed { rank, match ->
+            val id = ChunkIdentity(match.chunk)
+            fused[id] = fused.getOrDefault(id, 0.0) + 1.0 / (rrfK + rank + 1)
+            if (id !in matches)
+                index.match(query, match.document, match.chunk)?.let { matches[id] = it }
+        }
+        return fused.entries.filter { it.key in matches }
+            .sortedByDescending { it.value }
+            .take(n)
+            .map { matches[it.key]!! }
+    }
+
+    /** Compares chunks by identity, since chunks with equal content may appear in several documents. */
+    private class ChunkIdentity(val chunk: TextChunk) {
+        override fun equals(other: Any?) = other is ChunkIdentity && other.chunk === chunk
+        override fun hashCode() = System.identityHashCode(chunk)
+    }
+
+    companion object {
+        /** Default multiple of the number of requested results to retrieve with each search method. */
+        const val DEFAULT_CANDIDATE_FACTOR = 4
+        /** Default rank offset for reciprocal rank fusion. */
+        const val DEFAULT_RRF_K = 60
+    }
+
+}
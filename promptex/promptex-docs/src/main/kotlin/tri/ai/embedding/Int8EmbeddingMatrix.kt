@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import java.io.DataInput
+import java.io.DataOutput
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * Normalized embedding vectors quantized to signed 8-bit integers with a scale per vector, using a quarter of the
+ * memory of an [EmbeddingMatrix]. Each value is stored as `round(value / scale)`, where `scale` maps the largest
+ * absolute value in the vector to 127.
+ */
+class Int8EmbeddingMatrix(override val dims: Int, initialCapacity: Int = 16) : QuantizedEmbeddings {
+
+    /** Packed row codes, which may have extra capacity beyond [rows]. */
+    private var codes = ByteArray(dims * maxOf(1, initialCapacity))
+    /** Scale for each row. */
+    private var scales = FloatArray(maxOf(1, initialCapacity))
+
+    override var rows = 0
+        private set
+
+    override fun add(vector: EmbeddingVector): Int {
+        require(vector.dims == dims) { "Expected vector of size $dims but was ${vector.dims}" }
+        ensureCapacity()
+        val values = vector.values
+        val maxAbs = values.maxOfOrNull { abs(it) } ?: 0f
+        val scale = if (maxAbs == 0f) 1f else maxAbs / 127f
+        val offset = rows * dims
+        for (i in 0 until dims)
+            codes[offset + i] = (values[i] / scale).roundToInt().coerceIn(-127, 127).toByte()
+        scales[rows] = scale
+        return rows++
+    }
+
+    /** Get the dequantized values of a row. */
+    fun row(index: Int): FloatArray {
+        require(index in 0 until rows)
+        return FloatArray(dims) { codes[index * dims + it] * scales[index] }
+    }
+
+    override fun score(query: EmbeddingVector, row: Int): Float {
+        val q = query.values
+        val offset = row * dims
+        var s0 = 0f
+        var s1 = 0f
+        var i = 0
+        val upper = dims and 1.inv()
+        while (i < upper) {
+            s0 += q[i] * codes[offset + i]
+            s1 += q[i + 1] * codes[offset + i + 1]
+            i += 2
+        }
+        if (i < dims)
+            s0 += q[i] * codes[offset + i]
+        return (s0 + s1) * scales[row]
+    }
+
+    override fun estimatedMemoryBytes() = codes.size + 4L * scales.size
+
+    override fun emptyCopy(initialCapacity: Int) = Int8EmbeddingMatrix(dims, initialCapacity)
+
+    override fun addRow(from: QuantizedEmbeddings, row: Int): Int {
+        require(from is Int8EmbeddingMatrix && from.dims == dims) { "Expected int8 vectors of size $dims" }
+        require(row in 0 until from.rows)
+        ensureCapacity()
+        from.codes.copyInto(codes, rows * dims, row * dims, (row + 1) * dims)
+        scales[rows] = from.scales[row]
+        return rows++
+    }
+
+    private fun ensureCapacity() {
+        if (rows == scales.size) {
+            codes = codes.copyOf(2 * rows * dims)
+            scales = scales.copyOf(2 * rows)
+        }
+    }
+
+    override fun writeTo(out: DataOutput) {
+        out.writeByte(QuantizedEmbeddings.INT8_TAG)
+        out.writeInt(dims)
+        out.writeInt(rows)
+        out.write(codes, 0, rows * dims)
+        for (r in 0 until rows)
+            out.writeFloat(scales[r])
+    }
+
+    companion object {
+        /** Read vectors written by [writeTo], after the encoding tag. */
+        internal fun readFrom(input: DataInput): Int8EmbeddingMatrix {
+            val dims = input.readInt()
+            val rows = input.readInt()
+            return Int8EmbeddingMatrix(dims, rows).apply {
+                input.readFully(codes, 0, rows * dims)
+                for (r in 0 until rows)
+                    scales[r] = input.readFloat()
+                this.rows = rows
+            }
+        }
+    }
+
+}
@@ -19,14 +19,36 @@
  */
 package tri.ai.embedding
 
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import org.apache.poi.UnsupportedFileFormatException
+import tri.ai.core.EmbeddingPrecision
 import tri.ai.text.chunks.TextChunk
 import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.LazyTextChunkRaw
+import tri.ai.text.chunks.MappedEmbedding
+import tri.ai.text.chunks.PackedEmbedding
 import tri.ai.text.chunks.TextLibrary
+import tri.ai.text.chunks.TextLibraryChangeLog
+import tri.ai.text.chunks.TextLibraryFormat
 import tri.ai.text.chunks.TextDocEmbeddings.calculateMissingEmbeddings
-import tri.ai.text.chunks.TextDocEmbeddings.chunkedEmbedding
+import tri.ai.text.chunks.TextDocEmbeddings.chunkedDoc
 import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.util.io.FileManifest
+import tri.util.io.FileManifest.FileStatus
+import tri.util.io.FolderWatcher
 import tri.util.io.LocalFileManager
+import tri.util.io.LocalFileManager.fileWithTextContentFilter
 import tri.util.io.LocalFileManager.listFilesWithTextContent
 import tri.util.loggerFor
 import tri.util.warning
@@ -37,13 +59,53 @@ import java.net.URI
 /** An embedding index that loads the documents from the local file system. */
 class LocalFolderEmbeddingIndex(val rootDir: File, embeddingStrategy: EmbeddingStrategy) : EmbeddingIndex(embeddingStrategy) {
 
+    /** Maximum chunk size, in characters unless the strategy's chunker measures tokens (see [tri.ai.text.chunks.SmartTextChunker]). */
     var maxChunkSize: Int = 1000
+    /**
+     * Minimum number of chunks for approximate (HNSW graph) search to be used instead of exact search.
+     * Set to 0 to always use approximate search, or [Int.MAX_VALUE] to always use exact search. Ignored when
+     * [searchPrecision] is quantized, since the graph is built from full-precision vectors.
+     */
+    var approximateSearchThreshold: Int = DEFAULT_APPROXIMATE_SEARCH_THRESHOLD
+    /** Parameters for the approximate search graph. */
+    var hnswConfig = HnswConfig()
+    /**
+     * Precision of vectors held in memory for exact search. With [EmbeddingPrecision.INT8] or
+     * [EmbeddingPrecision.PRODUCT_QUANTIZED], a shortlist of `n * rerankFactor` results is re-ranked at full precision,
+     * and all searches scan the quantized vectors rather than the approximate search graph. Quantized vectors are saved
+     * to [quantizedVectorFile], and built (including training product quantization) outside of the library lock.
+     */
+    var searchPrecision = EmbeddingPrecision.FULL
+    /**
+     * Number of leading dimensions to use for a coarse pass of exact search, or null to scan full vectors. Only useful
+     * for models trained with Matryoshka representations (e.g. OpenAI `text-embedding-3` models), where a prefix of an
+     * embedding is itself a meaningful embedding. Ignored when [searchPrecision] is quantized.
+     */
+    var searchPrefixDims: Int? = null
+    /** Multiple of the number of requested results to re-rank when using quantized vectors or [searchPrefixDims]. */
+    var rerankFactor = ChunkEmbeddingMatrix.DEFAULT_RERANK_FACTOR
+
+    /**
+     * Format used to save the library. If the library was saved in the other format, that file is loaded instead,
+     * and replaced by a file in this format when the index is next saved.
+     */
+    var libraryFormat = TextLibraryFormat.JSON
+
+    /** File used to save the library, depending on [libraryFormat]. */
+    val indexFile
+        get() = libraryFile(libraryFormat)
 
-    val indexFile by lazy { File(rootDir, EMBEDDINGS_FILE_NAME) }
+    private fun libraryFile(format: TextLibraryFormat) = when (format) {
+        TextLibraryFormat.JSON -> File(rootDir, EMBEDDINGS_FILE_NAME)
+        TextLibraryFormat.SMILE -> File(rootDir, EMBEDDINGS_FILE_NAME_SMILE)
+    }
 
-    private val library: TextLibrary by lazy {
+    private val libraryLoader = lazy {
         try {
-            TextLibrary.loadFrom(indexFile).apply {
+            val file = indexFile.takeIf { it.exists() }
+                ?: TextLibraryFormat.entries.map { libraryFile(it) }.firstOrNull { it.exists() }
+                ?: indexFile
+            TextLibrary.loadFrom(file, onProgress = { msg, pct -> onProgress?.invoke(msg, pct) }).apply {
                 if (metadata.path.isNullOrEmpty()) {
                     metadata.path = rootDir.toURI().toString()
                 }
@@ -54,58 +116,140 @@ class LocalFolderEmbeddingIndex(val rootDir: File, embeddingStrategy: EmbeddingS
                 metadata.id = rootDir.name
                 metadata.path = rootDir.toURI().toString()
             }
+        }.also {
+            indexFileStamp = currentIndexFileStamp()
+            updateMemoryEstimate(it.docs)
         }
     }
+    private val library: TextLibrary by libraryLoader
+    /** Guards updates to the library, so an index can be shared by concurrent queries. */
+    private val libraryLock = Mutex()
+    /** Modification time and size of the index file when it was last loaded or saved by this object. */
+    private var indexFileStamp: List<Pair<Long, Long>?>? = null
+
+    /** Normalized chunk vectors used for search, created on demand and reset whenever the library changes. */
+    private var searchMatrix: ChunkEmbeddingMatrix? = null
+    /** Incremented whenever the library changes, so a search matrix built outside the lock can be checked before use. */
+    private var libraryVersion = 0L
+    /** Graph used for approximate search, created on demand and updated incrementally when the library changes. */
+    private var searchGraph: ChunkHnswIndex? = null
+    private var searchGraphStale = true
+
+    /** Inverted index used for lexical search, created on demand and updated incrementally when the library changes. */
+    private var lexicalIndex: Bm25Index? = null
+    private var lexicalIndexStale = true
+
+    /** File used to save the lexical search index. */
+    val lexicalIndexFile
+        get() = File(rootDir, "${indexFile.nameWithoutExtension}.${Bm25Index.EXTENSION}")
+
+    /** File used to save the approximate search graph for the current embedding model. */
+    val searchGraphFile
+        get() = File(rootDir, "${indexFile.nameWithoutExtension}-${embeddingStrategy.modelId.replace(UNSAFE_FILE_CHARS, "_")}.${ChunkHnswIndex.EXTENSION}")
+
+    /** File used to save quantized vectors for the current embedding model and [searchPrecision]. */
+    val quantizedVectorFile
+        get() = File(rootDir, "${indexFile.nameWithoutExtension}-${embeddingStrategy.modelId.replace(UNSAFE_FILE_CHARS, "_")}" +
+                "-${searchPrecision.name.lowercase()}.${ChunkEmbeddingMatrix.QUANTIZED_EXTENSION}")
+
+    /** File used to save changes to the library since it was last saved in full. */
+    val changeLogFile
+        get() = TextLibraryChangeLog.changeLogFor(indexFile, libraryFormat)
+
+    /** Sizes, modification times, and hashes of indexed files, used to detect changes. */
+    private val manifest by lazy { FileManifest.loadFrom(manifestFile) }
+    /** File used to save the manifest. */
+    val manifestFile
+        get() = File(rootDir, "${indexFile.nameWithoutExtension}.manifest.json")
+
+    /** Time the folder was last checked for changes by [reindexNew] or [reindexAll], or 0 if it has not been checked. */
+    @Volatile
+    var lastScanTime = 0L
+        private set
+    @Volatile
+    private var rescanRequested = false
+    private var watchJob: Job? = null
 
     /** List of files that can be chunked and embedded. */
     fun chunkableFiles() = rootDir.listFilesWithTextContent()
 
     /**
-     * Reindex just new documents, calculating and storing embedding vectors for them.
-     * Saves over existing library of chunked document embeddings if there are any changes.
+     * Reindex new, modified, and removed documents, using the manifest to detect changes, and calculate any missing
+     * embedding vectors. Saves over existing library of chunked document embeddings if there are any changes.
      * @param onProgress optional callback invoked with a status message and fractional progress (0.0–1.0)
      */
     suspend fun reindexNew(onProgress: ((String, Double) -> Unit)? = null) {
-        val allPaths = chunkableFiles().map { it.toURI() }
-        val docsWithEmbeddings = library.docs.filter {
-            it.chunks.all { it.getEmbeddingInfo(embeddingStrategy.modelId) != null }
-        }.toSet()
-
-        // add to existing chunks that just need embedding calculations
-        val docsNeedingEmbeddings = (library.docs - docsWithEmbeddings).toSet()
-        val newDocs = allPaths - library.docs.mapNotNull { it.metadata.path }.toSet()
-        val totalItems = docsNeedingEmbeddings.size + newDocs.size
-        var processed = 0
-
-        docsNeedingEmbeddings.forEach { doc ->
-            val docName = doc.metadata.id ?: doc.metadata.path?.toString()?.substringAfterLast('/') ?: "document"
-            val docIndex = processed
-            doc.calculateMissingEmbeddings(embeddingStrategy.model) { msg, pct ->
-                if (totalItems > 0)
-                    onProgress?.invoke("$docName: $msg", (docIndex + pct) / totalItems)
-            }
-            processed++
+        libraryLock.withLock {
+            val files = chunkableFiles()
+            val fileUris = files.map { it.toURI() }.toSet()
+            val libraryPaths = library.docs.mapNotNull { it.metadata.path }.toSet()
+            // documents indexed before the manifest was introduced are assumed to be current
+            files.filter { it.toURI() in libraryPaths && it !in manifest }.forEach { manifest.update(it) }
+
+            val changed = files.filter { it.toURI() !in libraryPaths || manifest.check(it) == FileStatus.MODIFIED }
+            val removed = manifest.uris().filter { it !in fileUris }
+            updateDocuments(changed, removed, onProgress)
+            lastScanTime = System.currentTimeMillis()
+            rescanRequested = false
         }
+    }
 
-        // add new documents from file system that were not in library
-        newDocs.forEach { uri ->
-            val fileName = uri.path.substringAfterLast('/')
-            val docIndex = processed
-            try {
-                library.docs += calculateDocChunksAndEmbeddings(uri, uri.readText()) { msg, pct ->
-                    if (totalItems > 0)
-                        onProgress?.invoke("$fileName: $msg", (docIndex + pct) / totalItems)
-                }
-            } catch (x: IOException) {
-                warning<LocalFolderEmbeddingIndex>("Failed to read text from $uri: ${x.message}", x)
-            } catch (x: UnsupportedFileFormatException) {
-                warning<LocalFolderEmbeddingIndex>("Failed to read text from $uri: ${x.message}", x)
-            }
-            processed++
+    /**
+     * Reindex specific files, e.g. those reported as changed by a [FolderWatcher]. Files that no longer exist are
+     * removed from the library. If the root folder is included, all files are checked with [reindexNew].
+     * @param onProgress optional callback invoked with a status message and fractional progress (0.0–1.0)
+     */
+    suspend fun reindexFiles(files: Collection<File>, onProgress: ((String, Double) -> Unit)? = null) {
+        if (files.any { it.absoluteFile == rootDir.absoluteFile }) {
+            reindexNew(onProgress)
+            return
+        }
+        libraryLock.withLock {
+            val libraryPaths = library.docs.mapNotNull { it.metadata.path }.toSet()
+            val (existing, missing) = files.partition { it.exists() }
+            val changed = existing.filter { it.toURI() !in libraryPaths || manifest.check(it) != FileStatus.UNCHANGED }
+            val trackedPaths = manifest.uris().toSet()
+            val removed = missing.map { it.toURI() }.filter { it in libraryPaths || it in trackedPaths }
+            updateDocuments(changed, removed, onProgress)
         }
+    }
 
-        if (newDocs.isNotEmpty() || docsNeedingEmbeddings.isNotEmpty())
-            saveIndex()
+    /**
+     * Replace documents for changed files, remove documents for removed files, and calculate embeddings that are
+     * missing from other documents. Saves the changes to the library and the manifest if anything changed. Must be called
+     * with the lock held.
+     * The library and manifest are only changed once all embeddings are calculated, so if calculation fails (e.g. due to
+     * a rate limit), the previous documents are kept and the changed files are retried on the next scan.
+     */
+    private suspend fun updateDocuments(changed: List<File>, removed: List<URI>, onProgress: ((String, Double) -> Unit)?) {
+        val replaced = (changed.map { it.toURI() } + removed).toSet()
+        val removedDocs = library.docs.filter { it.metadata.path in replaced }.toSet()
+        val docsNeedingEmbeddings = library.docs.filter { doc ->
+            doc !in removedDocs && doc.chunks.any { it.getEmbeddingInfo(embeddingStrategy.modelId) == null }
+        }
+
+        // chunk new or modified documents from file system, then calculate embeddings for all documents together
+        val readFraction = if (changed.isEmpty()) 0.0 else READ_PROGRESS_FRACTION
+        val newDocs = chunkFiles(changed) { msg, pct -> onProgress?.invoke(msg, pct * readFraction) }
+        (docsNeedingEmbeddings + newDocs.values).calculateMissingEmbeddings(embeddingStrategy.model) { msg, pct ->
+            onProgress?.invoke(msg, readFraction + pct * (1 - readFraction))
+        }
+
+        removed.forEach { manifest.remove(it) }
+        library.docs.removeAll(removedDocs)
+        library.docs += newDocs.values.onEach { it.releaseText() }
+        newDocs.keys.forEach { manifest.update(it) }
+
+        if (removedDocs.isNotEmpty() || changed.isNotEmpty() || docsNeedingEmbeddings.isNotEmpty()) {
+            libraryChanged()
+            val newKeys = newDocs.values.map { TextLibraryChangeLog.key(it) }.toSet()
+            saveIndexChanges(docsNeedingEmbeddings + newDocs.values,
+                removedDocs.map { TextLibraryChangeLog.key(it) }.filter { it !in newKeys })
+            if (lexicalIndex != null)
+                lexicalIndex()
+        } else if (manifest.isChanged) {
+            manifest.saveTo(manifestFile)
+        }
     }
 
     /**
@@ -115,31 +259,186 @@ class LocalFolderEmbeddingIndex(val rootDir: File, embeddingStrategy: EmbeddingS
      * @param onProgress optional callback invoked with a status message and fractional progress (0.0–1.0)
      */
     suspend fun reindexAll(onProgress: ((String, Double) -> Unit)? = null) {
-        val uris = chunkableFiles().map { it.toURI() }
-        val total = uris.size
-        val updatedDocs = uris.mapIndexed { idx, uri ->
-            val fileName = uri.path.substringAfterLast('/')
-            calculateDocChunksAndEmbeddings(uri, uri.readText()) { msg, pct ->
-                if (total > 0)
-                    onProgress?.invoke("$fileName: $msg", (idx + pct) / total)
+        libraryLock.withLock {
+            val files = chunkableFiles()
+            val updatedDocs = chunkFiles(files) { msg, pct -> onProgress?.invoke(msg, pct * READ_PROGRESS_FRACTION) }
+            updatedDocs.values.toList().calculateMissingEmbeddings(embeddingStrategy.model) { msg, pct ->
+                onProgress?.invoke(msg, READ_PROGRESS_FRACTION + pct * (1 - READ_PROGRESS_FRACTION))
             }
+            library.docs.clear()
+            library.docs.addAll(updatedDocs.values.onEach { it.releaseText() })
+            manifest.clear()
+            updatedDocs.keys.forEach { manifest.update(it) }
+            libraryChanged()
+            saveIndex()
+            if (lexicalIndex != null)
+                lexicalIndex()
+            lastScanTime = System.currentTimeMillis()
+            rescanRequested = false
         }
-        library.docs.clear()
-        library.docs.addAll(updatedDocs)
-        saveIndex()
     }
 
+    //region WATCHING
+
+    /** True if the folder is being watched for changes. */
+    val isWatching
+        get() = watchJob?.isActive == true
+
+    /**
+     * Start watching the folder for changes in the background, reindexing changed files shortly after they change,
+     * so the index is kept up to date without rescanning the folder. Returns the watching job, which stops watching when cancelled.
+     * @param debounceMillis time to wait after a change before reindexing, so multiple changes are processed together
+     */
+    fun startWatching(scope: CoroutineScope, debounceMillis: Long = DEFAULT_WATCH_DEBOUNCE_MILLIS): Job {
+        stopWatching()
+        val changes = Channel<File>(Channel.UNLIMITED)
+        val watcher = FolderWatcher(rootDir, fileWithTextContentFilter) { changes.trySend(it) }
+        return scope.launch {
+            try {
+                for (file in changes) {
+                    delay(debounceMillis)
+                    val batch = mutableSetOf(file)
+                    while (true)
+                        batch += changes.tryReceive().getOrNull() ?: break
+                    try {
+                        reindexFiles(batch, onProgress)
+                    } catch (x: CancellationException) {
+                        throw x
+                    } catch (x: Exception) {
+                        warning<LocalFolderEmbeddingIndex>("Failed to reindex changed files in $rootDir: ${x.message}", x)
+                    }
+                }
+            } finally {
+                watcher.close()
+                changes.close()
+            }
+        }.also { watchJob = it }
+    }
+
+    /** Stop watching the folder for changes. */
+    fun stopWatching() {
+        watchJob?.cancel()
+        watchJob = null
+    }
+
+    /**
+     * Request a check of the file system for changes the next time the index is warmed up (see [warmUp]), e.g. for a
+     * folder that is not being watched. Searches never check the file system.
+     */
+    fun requestRescan() {
+        rescanRequested = true
+    }
+
+    /** Check the file system for changes if the folder has not been scanned yet, or if a check was requested. */
+    private suspend fun refreshIfRequested() {
+        if (lastScanTime == 0L || rescanRequested)
+            reindexNew(onProgress)
+    }
+
+    //endregion
+
     /** Adds a document to the library if it is not already present. */
-    fun addIfNotPresent(it: TextDoc): Boolean {
+    suspend fun addIfNotPresent(it: TextDoc): Boolean = libraryLock.withLock {
         if (library.docs.any { doc -> doc.metadata.path == it.metadata.path })
-            return false
+            return@withLock false
         library.docs.add(it)
-        return true
+        libraryChanged()
+        true
     }
 
-    /** Saves the index to file. */
+    /**
+     * Saves the index to file in [libraryFormat], with embedding vectors in a binary file next to the index file.
+     * Removes any library file saved in another format, which would otherwise be out of date.
+     */
     fun saveIndex() {
-        TextLibrary.saveTo(library, indexFile)
+        TextLibrary.saveTo(library, indexFile, useVectorFile = true, format = libraryFormat)
+        removeOtherFormatFiles()
+        indexFileStamp = currentIndexFileStamp()
+        manifest.saveTo(manifestFile)
+    }
+
+    /**
+     * Saves changed and removed documents to the change log next to the index file, or saves the whole index if the
+     * log needs to be compacted. Saves the manifest afterwards, so files are only marked as indexed once they are saved.
+     */
+    private fun saveIndexChanges(updated: Collection<TextDoc>, removedKeys: Collection<String>) {
+        if (!TextLibrary.saveChanges(library, indexFile, updated, removedKeys, useVectorFile = true, format = libraryFormat))
+            removeOtherFormatFiles()
+        indexFileStamp = currentIndexFileStamp()
+        manifest.saveTo(manifestFile)
+    }
+
+    private fun removeOtherFormatFiles() {
+        TextLibraryFormat.entries.filter { it != libraryFormat }
+            .flatMap { listOf(libraryFile(it), TextLibraryChangeLog.changeLogFor(libraryFile(it), it)) }
+            .forEach {
+                if (it.exists() && !it.delete())
+                    warning<LocalFolderEmbeddingIndex>("Unable to remove outdated library file $it")
+            }
+    }
+
+    /** True if the library has been loaded from the index file. */
+    val isLoaded
+        get() = libraryLoader.isInitialized()
+
+    /**
+     * True if the index file or its change log has been changed, e.g. by another process, since it was loaded or saved
+     * by this object.
+     */
+    fun isIndexFileModified() = isLoaded && indexFileStamp != currentIndexFileStamp()
+
+    private fun currentIndexFileStamp() = listOf(indexFile, changeLogFile).map {
+        if (it.exists()) it.lastModified() to it.length() else null
+    }
+
+    /**
+     * Rough estimate of the heap memory used by the loaded library and search structures, in bytes.
+     * Memory-mapped embedding vectors are not included. The estimate is updated when the library is loaded or changed
+     * and when search structures are built, so reading it does not walk the library.
+     */
+    fun estimatedMemoryBytes() = memoryEstimate
+
+    /** Cached value of [estimatedMemoryBytes]. */
+    @Volatile
+    private var memoryEstimate = 0L
+
+    /** Recalculate [memoryEstimate] for the given documents and the current search structures. */
+    private fun updateMemoryEstimate(docs: List<TextDoc> = library.docs) {
+        var bytes = 0L
+        docs.forEach { doc ->
+            // text of lazily loaded documents is held by a shared, budgeted cache
+            val all = doc.all
+            if (all != null && all !is LazyTextChunkRaw)
+                bytes += 2L * all.text.length
+            doc.chunks.forEach { chunk ->
+                bytes += CHUNK_OVERHEAD_BYTES
+                chunk.getEmbeddingInfo()?.values?.forEach {
+                    when (it) {
+                        is MappedEmbedding -> {}
+                        is PackedEmbedding -> bytes += 4L * it.size
+                        else -> bytes += BOXED_DOUBLE_BYTES * it.size
+                    }
+                }
+            }
+        }
+        searchMatrix?.let { bytes += it.estimatedMemoryBytes() }
+        searchGraph?.let { bytes += it.estimatedMemoryBytes() }
+        lexicalIndex?.let { bytes += it.estimatedMemoryBytes() }
+        memoryEstimate = bytes
+    }
+
+    /** Resets search structures after documents are added or updated. */
+    private fun libraryChanged() {
+        searchMatrix = null
+        libraryVersion++
+        searchGraphStale = true
+        lexicalIndexStale = true
+        updateMemoryEstimate()
+    }
+
+    /** Replace a document's text with a lazily loaded view of its file, so it is not kept in memory after indexing. */
+    private fun TextDoc.releaseText() {
+        metadata.path?.let { all = LazyTextChunkRaw(File(it)) }
     }
 
     /** Read text from a URI, assuming for this class it must be a file that exists. */
@@ -147,43 +446,227 @@ class LocalFolderEmbeddingIndex(val rootDir: File, embeddingStrategy: EmbeddingS
 
     //region INDEXERS
 
-    /** Chunks the document and calculates the embedding for each chunk. */
-    private suspend fun calculateDocChunksAndEmbeddings(uri: URI, text: String,
-                                                        onProgress: ((String, Double) -> Unit)? = null) =
-        embeddingStrategy.chunkedEmbedding(uri, text, maxChunkSize, onProgress)
+    /** Reads and chunks files, skipping any that cannot be read. Stops if the calling coroutine is cancelled. */
+    private suspend fun chunkFiles(files: List<File>, onProgress: ((String, Double) -> Unit)?): Map<File, TextDoc> {
+        val docs = linkedMapOf<File, TextDoc>()
+        files.forEachIndexed { i, file ->
+            currentCoroutineContext().ensureActive()
+            val uri = file.toURI()
+            onProgress?.invoke("Reading ${file.name}", i.toDouble() / files.size)
+            try {
+                docs[file] = embeddingStrategy.chunkedDoc(uri, uri.readText(), maxChunkSize)
+            } catch (x: IOException) {
+                warning<LocalFolderEmbeddingIndex>("Failed to read text from $uri: ${x.message}", x)
+            } catch (x: UnsupportedFileFormatException) {
+                warning<LocalFolderEmbeddingIndex>("Failed to read text from $uri: ${x.message}", x)
+            }
+        }
+        return docs
+    }
 
     //endregion
 
-    private fun TextLibrary.docChunks(): List<Pair<TextDoc, TextChunk>> =
-        docs.flatMap { doc ->
-            doc.chunks.map { chunk -> doc to chunk }
+    //region SEARCH
+
+    override suspend fun findMostSimilar(query: String, n: Int) =
+        findMostSimilar(semanticQuery(query), n)
+
+    /** Find the [n] chunks most similar to a query whose embedding has already been calculated. */
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int) =
+        findMostSimilar(query, n, null)
+
+    /**
+     * Find the [n] chunks matching the metadata filter that are most similar to a query. Matching chunks are found with
+     * bitmap indexes before scoring, so the cost of exact search is proportional to the number of matching chunks.
+     * Only the loaded library is searched: new files are indexed by [warmUp], [reindexNew], or a folder watcher.
+     */
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        prepareSearchMatrix()
+        return libraryLock.withLock {
+            currentCoroutineContext().ensureActive()
+            if (useApproximateSearch())
+                findMostSimilarApproximate(query, n, filter)
+            else
+                findMostSimilarExact(query, n, filter)
         }
+    }
 
-    override suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch> {
-        val modelId = embeddingStrategy.modelId
-        val queryEmbedding = embeddingStrategy.model.calculateEmbedding(query)
-        val semanticTextQuery = SemanticTextQuery(query, queryEmbedding, modelId)
-        reindexNew(onProgress)
-        val matches = library.docChunks().map { (doc, chunk) ->
-            val chunkEmbedding = chunk.getEmbeddingInfo(modelId)
-                ?: throw IllegalStateException("Chunk is missing embedding for model $modelId: ${chunk.text(doc.all)}")
-            EmbeddingMatch(semanticTextQuery, doc, chunk,
-                modelId, chunkEmbedding,
-                cosineSimilarity(semanticTextQuery.embedding, chunkEmbedding).toFloat()
-            )
+    /**
+     * Load the library and prepare the structure used for search. Indexes the folder if it has not been indexed yet, or
+     * if a check for changes was requested by [requestRescan].
+     */
+    override suspend fun warmUp() {
+        refreshIfRequested()
+        prepareSearchMatrix()
+        libraryLock.withLock {
+            if (useApproximateSearch())
+                searchGraph()
+            else
+                searchMatrix()
         }
-        return matches.sortedByDescending { it.queryScore }.take(n)
     }
 
-    /** Gets embedding index, processing new files and overwriting saved library if needed. */
+    /** True if the HNSW graph should be used for search. Must be called with the lock held. */
+    private fun useApproximateSearch() = !searchPrecision.isQuantized &&
+            library.docs.sumOf { it.chunks.size } >= approximateSearchThreshold
+
+    /** Find the [n] chunks with the highest BM25 score for the query terms, building the lexical index if needed. */
+    suspend fun findLexicalMatches(query: String, n: Int): List<LexicalMatch> =
+        libraryLock.withLock { lexicalIndex().search(query, n) }
+
+    /** Score a chunk against a query using its stored embedding, or return null if the chunk has no embedding. */
+    fun match(query: SemanticTextQuery, doc: TextDoc, chunk: TextChunk): EmbeddingMatch? {
+        val embedding = chunk.getEmbeddingInfo(embeddingStrategy.modelId) ?: return null
+        return EmbeddingMatch(query, doc, chunk, embeddingStrategy.modelId, embedding,
+            EmbeddingVector.of(query.embedding).cosine(embedding))
+    }
+
+    /** Scores every chunk against the query, in parallel for large libraries. */
+    private fun findMostSimilarExact(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        val rows = searchMatrix()
+        val indexed = rows.isMetadataIndexed
+        val matches = rows.topK(EmbeddingVector.of(query.embedding), n, filter, rerankFactor).map {
+            rows.match(query, it.row, it.score)
+        }
+        // the first filtered search creates the metadata index, which adds to memory use
+        if (!indexed && rows.isMetadataIndexed)
+            updateMemoryEstimate()
+        return matches
+    }
+
+    /** Searches the HNSW graph, loading it from file or updating it first if needed. */
+    private fun findMostSimilarApproximate(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> {
+        val graph = searchGraph()
+        val indexed = graph.isMetadataIndexed
+        val matches = graph.search(query, n, filter)
+        if (!indexed && graph.isMetadataIndexed)
+            updateMemoryEstimate()
+        return matches
+    }
+
+    /** Gets the matrix for exact search, creating it if needed. Must be called with the lock held. */
+    private fun searchMatrix() = currentSearchMatrix() ?: buildSearchMatrix(library.docs).also {
+        searchMatrix = it
+        updateMemoryEstimate()
+    }
+
+    /** Gets the matrix for exact search if it is up to date. Must be called with the lock held. */
+    private fun currentSearchMatrix() =
+        searchMatrix?.takeIf { it.precision == searchPrecision && it.prefixDims == searchPrefixDims }
+
+    /**
+     * Builds the matrix for exact search with quantized vectors, if needed, without holding the lock while vectors are
+     * quantized, so other queries and updates are not blocked while e.g. product quantization is trained. The matrix is
+     * discarded if the library changed while it was being built.
+     */
+    private suspend fun prepareSearchMatrix() {
+        if (!searchPrecision.isQuantized)
+            return
+        val (docs, version) = libraryLock.withLock {
+            if (currentSearchMatrix() != null)
+                return
+            library.docs.toList() to libraryVersion
+        }
+        val matrix = withContext(Dispatchers.Default) { buildSearchMatrix(docs) }
+        libraryLock.withLock {
+            if (libraryVersion == version && currentSearchMatrix() == null) {
+                searchMatrix = matrix
+                updateMemoryEstimate()
+            }
+        }
+    }
+
+    /** Creates the matrix for exact search, reusing and updating any saved quantized vectors. */
+    private fun buildSearchMatrix(docs: List<TextDoc>): ChunkEmbeddingMatrix {
+        val file = quantizedVectorFile
+        return ChunkEmbeddingMatrix.of(embeddingStrategy.modelId, docs, searchPrecision, searchPrefixDims, file).also {
+            if (it.quantizedModified)
+                it.saveQuantizedTo(file)
+        }
+    }
+
+    /**
+     * Gets the HNSW graph, loading it from file or updating it first if needed, and saving it if it changed.
+     * Must be called with the lock held.
+     */
+    private fun searchGraph(): ChunkHnswIndex {
+        var graph = searchGraph?.takeIf { it.config == hnswConfig }
+        if (graph == null) {
+            graph = ChunkHnswIndex.loadFrom(searchGraphFile, embeddingStrategy.modelId, hnswConfig, library.docs)
+                ?: ChunkHnswIndex(embeddingStrategy.modelId, hnswConfig)
+            searchGraph = graph
+            searchGraphStale = true
+        }
+        if (searchGraphStale) {
+            if (graph.sync(library.docs))
+                graph.saveTo(searchGraphFile)
+            searchGraphStale = false
+            updateMemoryEstimate()
+        }
+        return graph
+    }
+
+    /**
+     * Gets the lexical index, loading it from file or updating it first if needed, and saving it if it changed.
+     * Must be called with the lock held.
+     */
+    private fun lexicalIndex(): Bm25Index {
+        var index = lexicalIndex
+        if (index == null) {
+            index = Bm25Index.loadFrom(lexicalIndexFile, library.docs) ?: Bm25Index()
+            lexicalIndex = index
+            lexicalIndexStale = true
+        }
+        if (lexicalIndexStale) {
+            if (index.sync(library.docs))
+                index.saveTo(lexicalIndexFile)
+            lexicalIndexStale = false
+            updateMemoryEstimate()
+        }
+        return index
+    }
+
+    //endregion
+
+    //region RETRIEVAL
+
+    /** Index combining lexical and vector search over this index, created on first use. */
+    val hybridIndex by lazy { HybridEmbeddingIndex(this) }
+
+    /** Get the index to use for retrieval with the given mode, reusing [hybridIndex] for hybrid retrieval. */
+    fun forRetrieval(mode: RetrievalMode): EmbeddingIndex =
+        if (mode == RetrievalMode.HYBRID) hybridIndex else this
+
+    override fun forRetrieval() =
+        forRetrieval(embeddingStrategy.retrieval)
+
+    //endregion
+
+    /**
+     * Gets embedding index, processing new files and overwriting saved library if the folder has not been indexed yet,
+     * or if a check for changes was requested by [requestRescan].
+     */
     suspend fun calculateAndGetDocs(): List<TextDoc> {
-        reindexNew(onProgress)
-        return library.docs.toList()
+        refreshIfRequested()
+        return libraryLock.withLock { library.docs.toList() }
     }
 
     companion object {
         const val EMBEDDINGS_FILE_NAME = "embeddings2.json"
+        const val EMBEDDINGS_FILE_NAME_SMILE = "embeddings2.smile"
         const val EMBEDDINGS_FILE_NAME_LEGACY = "embeddings.json"
+        /** Default number of chunks above which approximate search is used. */
+        const val DEFAULT_APPROXIMATE_SEARCH_THRESHOLD = 20_000
+
+        /** Default time to wait after a file changes before reindexing it. */
+        const val DEFAULT_WATCH_DEBOUNCE_MILLIS = 1_000L
+
+        /** Fraction of reindexing progress reported for reading and chunking files, with the rest for embeddings. */
+        private const val READ_PROGRESS_FRACTION = 0.2
+
+        private const val CHUNK_OVERHEAD_BYTES = 200L
+        private const val BOXED_DOUBLE_BYTES = 24L
+        private val UNSAFE_FILE_CHARS = Regex("[^A-Za-z0-9._-]")
     }
 
 }
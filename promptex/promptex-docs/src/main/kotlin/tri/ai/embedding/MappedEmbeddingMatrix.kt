@@ -0,0 +1,75 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.MappedEmbedding
+import java.util.concurrent.ForkJoinPool
+import kotlin.math.sqrt
+
+/**
+ * Rows of embedding vectors that are views of a memory-mapped vector file (see [MappedEmbedding]), scored in place so
+ * that loading a library from a vector file does not copy every vector onto the heap. Only the inverse norm of each row
+ * is kept on the heap, since mapped vectors are not normalized.
+ */
+class MappedEmbeddingMatrix(val dims: Int) {
+
+    private val vectors = mutableListOf<MappedEmbedding>()
+    private var inverseNorms = FloatArray(16)
+
+    /** Number of rows in the matrix. */
+    val rows
+        get() = vectors.size
+
+    /** Add a row to the matrix, returning its index. */
+    fun add(vector: MappedEmbedding): Int {
+        require(vector.size == dims) { "Expected vector of size $dims but was ${vector.size}" }
+        if (rows == inverseNorms.size)
+            inverseNorms = inverseNorms.copyOf(2 * rows)
+        val norm = sqrt(vector.squaredNorm())
+        inverseNorms[rows] = if (norm > 0f) 1f / norm else 0f
+        vectors += vector
+        return rows - 1
+    }
+
+    /** Get a row of the matrix as a normalized vector. */
+    fun row(index: Int) = EmbeddingVector.of(vectors[index].toFloatArray())
+
+    /** Compute the cosine similarity of the query with a single row. */
+    fun score(query: EmbeddingVector, row: Int) =
+        vectors[row].dot(query.values) * inverseNorms[row]
+
+    /**
+     * Find the [k] rows most similar to the query, sorted by descending similarity. Large matrices are split into
+     * partitions of about [partitionRows] rows that are scanned in parallel on [pool], each keeping only its own top [k].
+     */
+    fun topK(query: EmbeddingVector, k: Int, partitionRows: Int = EmbeddingMatrix.DEFAULT_PARTITION_ROWS,
+             pool: ForkJoinPool = ForkJoinPool.commonPool()): List<ScoredRow> {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        return scanTopK(rows, k, partitionRows, pool) { score(query, it) }
+    }
+
+    /** Estimated heap memory used, in bytes, not including the mapped vectors themselves. */
+    fun estimatedMemoryBytes() = 4L * inverseNorms.size + MAPPED_VIEW_BYTES * rows
+
+    companion object {
+        /** Approximate heap size of a [MappedEmbedding] view and its list entry. */
+        private const val MAPPED_VIEW_BYTES = 32L
+    }
+}
@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.embedding.MetadataFilter.Companion.metadataDate
+import tri.ai.embedding.MetadataFilter.Companion.metadataValues
+import tri.ai.embedding.MetadataFilter.Companion.normalize
+import tri.ai.text.chunks.TextChunk
+import tri.ai.text.chunks.TextDoc
+import java.time.LocalDate
+import java.util.BitSet
+import java.util.TreeMap
+
+/**
+ * Bitmap indexes over document and chunk metadata, used to find the rows matching a [MetadataFilter] without testing
+ * each chunk. Rows are assigned by the caller, e.g. the row of a chunk in a [ChunkEmbeddingMatrix] or its node in a
+ * [ChunkHnswIndex]. The rows of each field value are stored as sorted row ranges rather than one bit per row, so since
+ * the chunks of a document occupy consecutive rows, memory is proportional to the number of documents and chunk
+ * values, not to the number of distinct values times the number of rows.
+ */
+class MetadataBitmapIndex {
+
+    private val values = mutableMapOf<String, MutableMap<String, RowRanges>>()
+    private val dates = TreeMap<LocalDate, RowRanges>()
+    private val rows = RowRanges()
+
+    /** Number of rows, including any rows that were skipped. */
+    val size
+        get() = rows.end
+
+    /** Index the metadata of a chunk at the given row. */
+    fun add(row: Int, doc: TextDoc, chunk: TextChunk) {
+        rows.add(row)
+        metadataValues(doc, chunk).forEach { (field, fieldValues) ->
+            val byValue = values.getOrPut(field) { mutableMapOf() }
+            fieldValues.forEach { byValue.getOrPut(it) { RowRanges() }.add(row) }
+        }
+        doc.metadataDate()?.let { dates.getOrPut(it) { RowRanges() }.add(row) }
+    }
+
+    /** Get the rows matching the filter. The result may be modified by the caller. */
+    fun rows(filter: MetadataFilter): BitSet = when (filter) {
+        is MetadataFilter.Equals -> union(listOfNotNull(values[filter.field]?.get(normalize(filter.value))))
+        is MetadataFilter.AnyOf -> union(filter.values.mapNotNull { values[filter.field]?.get(normalize(it)) })
+        is MetadataFilter.Prefix -> {
+            val prefix = normalize(filter.prefix)
+            union(values[filter.field].orEmpty().filterKeys { it.startsWith(prefix) }.values)
+        }
+        is MetadataFilter.DateRange -> union(when {
+            filter.from != null && filter.to != null ->
+                if (filter.from > filter.to) emptyMap() else dates.subMap(filter.from, true, filter.to, true)
+            filter.from != null -> dates.tailMap(filter.from, true)
+            filter.to != null -> dates.headMap(filter.to, true)
+            else -> dates
+        }.values)
+        is MetadataFilter.And -> filter.filters.map { rows(it) }.reduceOrNull { a, b -> a.apply { and(b) } } ?: union(listOf(rows))
+        is MetadataFilter.Or -> filter.filters.map { rows(it) }.reduceOrNull { a, b -> a.apply { or(b) } } ?: BitSet()
+        is MetadataFilter.Not -> union(listOf(rows)).apply { andNot(rows(filter.filter)) }
+    }
+
+    /** Estimated heap memory used by the index, in bytes. */
+    fun estimatedMemoryBytes(): Long {
+        var bytes = rows.estimatedMemoryBytes() + dates.size * (MAP_ENTRY_BYTES + DATE_BYTES)
+        dates.values.forEach { bytes += it.estimatedMemoryBytes() }
+        values.forEach { (field, byValue) ->
+            bytes += MAP_ENTRY_BYTES + stringBytes(field)
+            byValue.forEach { (value, ranges) -> bytes += MAP_ENTRY_BYTES + stringBytes(value) + ranges.estimatedMemoryBytes() }
+        }
+        return bytes
+    }
+
+    private fun union(sets: Collection<RowRanges>) = BitSet().apply { sets.forEach { it.setIn(this) } }
+
+    /** Sorted, disjoint ranges of rows, stored as pairs of inclusive start and exclusive end rows. */
+    private class RowRanges {
+        private var bounds = IntArray(2)
+        private var count = 0
+
+        /** One more than the last row, or 0 if empty. */
+        val end
+            get() = if (count == 0) 0 else bounds[count - 1]
+
+        fun add(row: Int) {
+            when {
+                count == 0 || row > end -> append(row)
+                row == end -> bounds[count - 1] = row + 1
+                else -> insert(row)
+            }
+        }
+
+        /** Add a row before the last range, as when rows are not added in order. */
+        private fun insert(row: Int) {
+            var i = 0
+            while (bounds[i + 1] < row)
+                i += 2
+            when {
+                row >= bounds[i] && row < bounds[i + 1] -> return
+                row == bounds[i + 1] -> {
+                    bounds[i + 1] = row + 1
+                    if (bounds[i + 2] == row + 1) {
+                        bounds[i + 1] = bounds[i + 3]
+                        bounds.copyInto(bounds, i + 2, i + 4, count)
+                        count -= 2
+                    }
+                }
+                row == bounds[i] - 1 -> bounds[i] = row
+                else -> {
+                    ensureCapacity()
+                    bounds.copyInto(bounds, i + 2, i, count)
+                    bounds[i] = row
+                    bounds[i + 1] = row + 1
+                    count += 2
+                }
+            }
+        }
+
+        private fun append(row: Int) {
+            ensureCapacity()
+            bounds[count++] = row
+            bounds[count++] = row + 1
+        }
+
+        private fun ensureCapacity() {
+            if (count + 2 > bounds.size)
+                bounds = bounds.copyOf(bounds.size * 2)
+        }
+
+        fun setIn(bits: BitSet) {
+            for (i in 0 until count step 2)
+                bits.set(bounds[i], bounds[i + 1])
+        }
+
+        fun estimatedMemoryBytes() = OBJECT_BYTES + ARRAY_BYTES + 4L * bounds.size
+    }
+
+    companion object {
+        private const val OBJECT_BYTES = 24L
+        private const val ARRAY_BYTES = 16L
+        private const val MAP_ENTRY_BYTES = 48L
+        private const val DATE_BYTES = 24L
+
+        private fun stringBytes(s: String) = 40L + 2L * s.length
+
+        /** Index the chunks of the given documents, with rows numbered in order of documents and their chunks. */
+        fun of(docs: List<TextDoc>) = MetadataBitmapIndex().apply {
+            var row = 0
+            docs.forEach { doc -> doc.chunks.forEach { add(row++, doc, it) } }
+        }
+    }
+
+}
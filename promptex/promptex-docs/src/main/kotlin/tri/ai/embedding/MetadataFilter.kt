@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.ai.text.chunks.TextChunk
+import tri.ai.text.chunks.TextDoc
+import java.time.LocalDate
+
+/**
+ * A filter on document and chunk metadata, used to restrict embedding search to a subset of chunks.
+ *
+ * Fields are [AUTHOR], [TITLE], [PATH] and [DATE] from the document metadata, plus any document property or chunk
+ * attribute with a string, number or boolean value. Values are compared ignoring case and surrounding whitespace.
+ * Filters are evaluated with a [MetadataBitmapIndex], so that only matching chunks need to be scored.
+ */
+sealed class MetadataFilter {
+
+    /** Test whether a chunk of a document passes the filter. */
+    abstract fun matches(doc: TextDoc, chunk: TextChunk): Boolean
+
+    infix fun and(other: MetadataFilter): MetadataFilter = And(listOf(this, other))
+    infix fun or(other: MetadataFilter): MetadataFilter = Or(listOf(this, other))
+    operator fun not(): MetadataFilter = Not(this)
+
+    /** Field has the given value. */
+    data class Equals(val field: String, val value: Any) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk) = normalize(value) in metadataValues(doc, chunk)[field].orEmpty()
+    }
+
+    /** Field has any of the given values. */
+    data class AnyOf(val field: String, val values: Collection<Any>) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk): Boolean {
+            val actual = metadataValues(doc, chunk)[field].orEmpty()
+            return values.any { normalize(it) in actual }
+        }
+    }
+
+    /** Field has a value starting with the given prefix, e.g. a folder for [PATH]. */
+    data class Prefix(val field: String, val prefix: String) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk) =
+            metadataValues(doc, chunk)[field].orEmpty().any { it.startsWith(normalize(prefix)) }
+    }
+
+    /** Document date is within the given range, inclusive. A null bound is open. Documents without a date never match. */
+    data class DateRange(val from: LocalDate? = null, val to: LocalDate? = null) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk): Boolean {
+            val date = doc.metadataDate() ?: return false
+            return (from == null || date >= from) && (to == null || date <= to)
+        }
+    }
+
+    /** All of the filters match. */
+    data class And(val filters: List<MetadataFilter>) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk) = filters.all { it.matches(doc, chunk) }
+    }
+
+    /** Any of the filters match. */
+    data class Or(val filters: List<MetadataFilter>) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk) = filters.any { it.matches(doc, chunk) }
+    }
+
+    /** The filter does not match. */
+    data class Not(val filter: MetadataFilter) : MetadataFilter() {
+        override fun matches(doc: TextDoc, chunk: TextChunk) = !filter.matches(doc, chunk)
+    }
+
+    companion object {
+        const val AUTHOR = "author"
+        const val TITLE = "title"
+        const val PATH = "path"
+        const val DATE = "date"
+
+        /** Normalize a value for comparison. */
+        internal fun normalize(value: Any) = value.toString().trim().lowercase()
+
+        /** Document date, preferring [tri.ai.text.chunks.TextDocMetadata.dateTime]. */
+        @Suppress("DEPRECATION")
+        internal fun TextDoc.metadataDate(): LocalDate? = metadata.dateTime?.toLocalDate() ?: metadata.date
+
+        /** Normalized values of each filterable field for a chunk of a document. */
+        internal fun metadataValues(doc: TextDoc, chunk: TextChunk): Map<String, Set<String>> {
+            val values = mutableMapOf<String, MutableSet<String>>()
+            fun add(field: String, value: Any?) {
+                if (value is String || value is Number || value is Boolean)
+                    values.getOrPut(field) { mutableSetOf() } += normalize(value)
+            }
+            with(doc.metadata) {
+                add(AUTHOR, author)
+                add(TITLE, title)
+                add(PATH, path?.toString())
+                add(PATH, relativePath)
+                properties.forEach { (k, v) -> add(k, v) }
+            }
+            add(DATE, doc.metadataDate()?.toString())
+            chunk.attributes.forEach { (k, v) -> if (k != TextChunk.TEXT_HASH_ATTRIBUTE) add(k, v) }
+            return values
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+
+/**
+ * Product quantizer that splits vectors into [subspaces] groups of consecutive dimensions and replaces each group by
+ * the index of its nearest centroid, so a vector is stored in one byte per group. Centroids are learned by k-means
+ * on a sample of the vectors to be indexed.
+ */
+class ProductQuantizer private constructor(
+    val dims: Int,
+    val subspaces: Int,
+    /** Centroids for each subspace, packed as `centroids[s][c * width(s) + j]`. */
+    private val centroids: Array<FloatArray>
+) {
+
+    /** First dimension of each subspace, with an extra entry for the end of the last subspace. */
+    private val bounds = IntArray(subspaces + 1) { it * dims / subspaces }
+
+    /** Number of centroids in each subspace. */
+    val centroidCount
+        get() = centroids[0].size / width(0)
+
+    /** Number of score tables computed by [scoreTable], used to check that tables are shared across rows. */
+    internal val scoreTableCount = AtomicLong()
+
+    private fun width(s: Int) = bounds[s + 1] - bounds[s]
+
+    /** Encode a vector as one centroid index per subspace. */
+    fun encode(values: FloatArray, out: ByteArray = ByteArray(subspaces), outOffset: Int = 0): ByteArray {
+        require(values.size == dims) { "Expected vector of size $dims but was ${values.size}" }
+        return encode(values, 0, out, outOffset)
+    }
+
+    /** Encode the [dims] values of [values] starting at [offset], e.g. a row of a packed matrix. */
+    internal fun encode(values: FloatArray, offset: Int, out: ByteArray, outOffset: Int): ByteArray {
+        for (s in 0 until subspaces)
+            out[outOffset + s] = nearest(centroids[s], values, offset + bounds[s], width(s)).toByte()
+        return out
+    }
+
+    /**
+     * Compute a table of dot products between the query and every centroid, so the approximate score of an encoded
+     * vector is the sum of one table entry per subspace.
+     */
+    fun scoreTable(query: FloatArray): FloatArray {
+        require(query.size == dims) { "Expected vector of size $dims but was ${query.size}" }
+        scoreTableCount.incrementAndGet()
+        val k = centroidCount
+        val table = FloatArray(subspaces * k)
+        for (s in 0 until subspaces) {
+            val w = width(s)
+            for (c in 0 until k)
+                table[s * k + c] = ScalarVectorKernel.dot(query, bounds[s], centroids[s], c * w, w)
+        }
+        return table
+    }
+
+    /** Estimated memory used by the codebook, in bytes. */
+    fun estimatedMemoryBytes() = centroids.sumOf { 4L * it.size }
+
+    /** Write the dimensions and centroids, so the quantizer can be read with [readFrom]. */
+    fun writeTo(out: DataOutput) {
+        out.writeInt(dims)
+        out.writeInt(subspaces)
+        centroids.forEach { c ->
+            out.writeInt(c.size)
+            c.forEach { out.writeFloat(it) }
+        }
+    }
+
+    companion object {
+        /** Default number of dimensions in each subspace. */
+        const val DEFAULT_SUBSPACE_DIMS = 8
+        /** Maximum number of vectors used for training. */
+        const val MAX_TRAINING_VECTORS = 20_000
+        private const val MAX_CENTROIDS = 256
+        private const val ITERATIONS = 12
+
+        /**
+         * Train a quantizer on the first [rows] rows of a row-major [data] array with [dims] columns.
+         * Uses up to 256 centroids per subspace, fewer if there are fewer training vectors.
+         */
+        fun train(data: FloatArray, rows: Int, dims: Int, subspaces: Int = maxOf(1, dims / DEFAULT_SUBSPACE_DIMS),
+                  seed: Long = 42): ProductQuantizer {
+            require(rows > 0) { "At least one training vector is required" }
+            require(subspaces in 1..dims) { "Number of subspaces must be between 1 and $dims" }
+            val random = Random(seed)
+            val sample = if (rows <= MAX_TRAINING_VECTORS) IntArray(rows) { it }
+                else IntArray(rows) { it }.apply { shuffle(random) }.copyOf(MAX_TRAINING_VECTORS)
+            val k = minOf(MAX_CENTROIDS, sample.size)
+            val centroids = Array(subspaces) { s ->
+                val from = s * dims / subspaces
+                val width = (s + 1) * dims / subspaces - from
+                val points = FloatArray(sample.size * width).also { points ->
+                    sample.forEachIndexed { i, r -> data.copyInto(points, i * width, r * dims + from, r * dims + from + width) }
+                }
+                kMeans(points, sample.size, width, k, random)
+            }
+            return ProductQuantizer(dims, subspaces, centroids)
+        }
+
+        /** Read a quantizer written by [writeTo]. */
+        fun readFrom(input: DataInput): ProductQuantizer {
+            val dims = input.readInt()
+            val subspaces = input.readInt()
+            val centroids = Array(subspaces) { FloatArray(input.readInt()) { input.readFloat() } }
+            return ProductQuantizer(dims, subspaces, centroids)
+        }
+
+        /** Cluster [n] points of the given width into [k] centroids, initialized from distinct random points. */
+        private fun kMeans(points: FloatArray, n: Int, width: Int, k: Int, random: Random): FloatArray {
+            val centroids = FloatArray(k * width)
+            IntArray(n) { it }.apply { shuffle(random) }.take(k).forEachIndexed { c, p ->
+                points.copyInto(centroids, c * width, p * width, (p + 1) * width)
+            }
+            val assignment = IntArray(n)
+            val sums = FloatArray(k * width)
+            val counts = IntArray(k)
+            repeat(ITERATIONS) {
+                sums.fill(0f)
+                counts.fill(0)
+                for (p in 0 until n) {
+                    val c = nearest(centroids, points, p * width, width)
+                    assignment[p] = c
+                    counts[c]++
+                    for (j in 0 until width)
+                        sums[c * width + j] += points[p * width + j]
+                }
+                for (c in 0 until k) {
+                    if (counts[c] > 0) {
+                        for (j in 0 until width)
+                            centroids[c * width + j] = sums[c * width + j] / counts[c]
+                    }
+                }
+            }
+            return centroids
+        }
+
+        /** Index of the centroid closest in Euclidean distance to the [width] values of [values] at [offset]. */
+        private fun nearest(centroids: FloatArray, values: FloatArray, offset: Int, width: Int): Int {
+            var best = 0
+            var bestDistance = Float.MAX_VALUE
+            for (c in 0 until centroids.size / width) {
+                var d = 0f
+                for (j in 0 until width) {
+                    val x = values[offset + j] - centroids[c * width + j]
+                    d += x * x
+                }
+                if (d < bestDistance) {
+                    bestDistance = d
+                    best = c
+                }
+            }
+            return best
+        }
+    }
+}
+
+/**
+ * Normalized embedding vectors compressed by a [ProductQuantizer], using one byte per subspace. Scores are computed
+ * from a per-query table of centroid dot products, so scoring a row takes one lookup per subspace.
+ */
+class PqEmbeddingMatrix(val quantizer: ProductQuantizer, initialCapacity: Int = 16) : QuantizedEmbeddings {
+
+    override val dims
+        get() = quantizer.dims
+    private val subspaces = quantizer.subspaces
+    private val k = quantizer.centroidCount
+
+    /** Packed row codes, which may have extra capacity beyond [rows]. */
+    private var codes = ByteArray(subspaces * maxOf(1, initialCapacity))
+
+    override var rows = 0
+        private set
+
+    override fun add(vector: EmbeddingVector): Int {
+        if ((rows + 1) * subspaces > codes.size)
+            codes = codes.copyOf(maxOf(codes.size * 2, (rows + 1) * subspaces))
+        quantizer.encode(vector.values, codes, rows * subspaces)
+        return rows++
+    }
+
+    override fun score(query: EmbeddingVector, row: Int) =
+        score(quantizer.scoreTable(query.values), row)
+
+    private fun score(table: FloatArray, row: Int): Float {
+        val offset = row * subspaces
+        var sum = 0f
+        for (s in 0 until subspaces)
+            sum += table[s * k + (codes[offset + s].toInt() and 0xFF)]
+        return sum
+    }
+
+    override fun scorer(query: EmbeddingVector): (Int) -> Float {
+        val table = quantizer.scoreTable(query.values)
+        return { score(table, it) }
+    }
+
+    override fun estimatedMemoryBytes() = codes.size + quantizer.estimatedMemoryBytes()
+
+    override fun emptyCopy(initialCapacity: Int) = PqEmbeddingMatrix(quantizer, initialCapacity)
+
+    override fun addRow(from: QuantizedEmbeddings, row: Int): Int {
+        require(from is PqEmbeddingMatrix && from.quantizer === quantizer) { "Expected vectors encoded by the same quantizer" }
+        require(row in 0 until from.rows)
+        if ((rows + 1) * subspaces > codes.size)
+            codes = codes.copyOf(maxOf(codes.size * 2, (rows + 1) * subspaces))
+        from.codes.copyInto(codes, rows * subspaces, row * subspaces, (row + 1) * subspaces)
+        return rows++
+    }
+
+    override fun writeTo(out: DataOutput) {
+        out.writeByte(QuantizedEmbeddings.PRODUCT_QUANTIZED_TAG)
+        quantizer.writeTo(out)
+        out.writeInt(rows)
+        out.write(codes, 0, rows * subspaces)
+    }
+
+    companion object {
+        /** Read vectors written by [writeTo], after the encoding tag. */
+        internal fun readFrom(input: DataInput): PqEmbeddingMatrix {
+            val quantizer = ProductQuantizer.readFrom(input)
+            val rows = input.readInt()
+            return PqEmbeddingMatrix(quantizer, rows).apply {
+                input.readFully(codes, 0, rows * subspaces)
+                this.rows = rows
+            }
+        }
+
+        /** Train a quantizer on all rows of the matrix, and encode them. */
+        fun of(matrix: EmbeddingMatrix, subspaces: Int = maxOf(1, matrix.dims / ProductQuantizer.DEFAULT_SUBSPACE_DIMS)) =
+            PqEmbeddingMatrix(ProductQuantizer.train(matrix.data, matrix.rows, matrix.dims, subspaces), matrix.rows).apply {
+                for (r in 0 until matrix.rows)
+                    quantizer.encode(matrix.data, r * matrix.dims, codes, r * subspaces).also { rows++ }
+            }
+    }
+
+}
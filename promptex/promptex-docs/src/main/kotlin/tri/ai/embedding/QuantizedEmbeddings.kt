@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
+/**
+ * Compressed embedding vectors that can be scored against a full-precision query without decompressing them.
+ * Scores are approximate, so callers typically re-rank a shortlist of results with full-precision vectors.
+ */
+interface QuantizedEmbeddings {
+
+    /** Number of dimensions of the original vectors. */
+    val dims: Int
+    /** Number of rows. */
+    val rows: Int
+
+    /** Add a normalized vector, returning its row index. */
+    fun add(vector: EmbeddingVector): Int
+
+    /** Approximate dot product of a normalized query with a row. */
+    fun score(query: EmbeddingVector, row: Int): Float
+
+    /**
+     * Get a function computing the approximate score of a normalized query with a row, preparing anything that depends
+     * only on the query once, so it can be used to score many rows.
+     */
+    fun scorer(query: EmbeddingVector): (Int) -> Float {
+        require(query.dims == dims) { "Expected query of size $dims but was ${query.dims}" }
+        return { score(query, it) }
+    }
+
+    /** Find the [k] rows with the highest approximate score, sorted by descending score. */
+    fun topK(query: EmbeddingVector, k: Int, partitionRows: Int = EmbeddingMatrix.DEFAULT_PARTITION_ROWS,
+             pool: ForkJoinPool = ForkJoinPool.commonPool()): List<ScoredRow> =
+        scanTopK(rows, k, partitionRows, pool, scorer(query))
+
+    /** Estimated heap memory used by the compressed vectors, in bytes. */
+    fun estimatedMemoryBytes(): Long
+
+    /** Create an empty set of vectors with the same encoding, e.g. the same trained quantizer. */
+    fun emptyCopy(initialCapacity: Int = 16): QuantizedEmbeddings
+
+    /**
+     * Add a row copied from vectors with the same encoding, without re-encoding it, returning its row index.
+     * @throws IllegalArgumentException if the vectors use a different encoding
+     */
+    fun addRow(from: QuantizedEmbeddings, row: Int): Int
+
+    /** Write the encoding and all rows, so they can be read with [readFrom]. */
+    fun writeTo(out: DataOutput)
+
+    companion object {
+        internal const val INT8_TAG = 1
+        internal const val PRODUCT_QUANTIZED_TAG = 2
+
+        /** Read vectors written by [writeTo]. */
+        fun readFrom(input: DataInput): QuantizedEmbeddings = when (val tag = input.readByte().toInt()) {
+            INT8_TAG -> Int8EmbeddingMatrix.readFrom(input)
+            PRODUCT_QUANTIZED_TAG -> PqEmbeddingMatrix.readFrom(input)
+            else -> throw IOException("Unknown quantized vector encoding $tag")
+        }
+    }
+
+}
+
+/**
+ * Find the [k] highest-scoring rows among [rows] rows, splitting large scans into partitions of about [partitionRows]
+ * rows that are scored in parallel on [pool].
+ */
+internal fun scanTopK(rows: Int, k: Int, partitionRows: Int, pool: ForkJoinPool, score: (Int) -> Float): List<ScoredRow> {
+    require(partitionRows > 0) { "Partition size must be positive" }
+    if (k <= 0 || rows == 0)
+        return listOf()
+    val task = ScanTopKTask(k, partitionRows, 0, rows, score)
+    val heap = if (rows <= partitionRows) task.compute() else pool.invoke(task)
+    return heap.toSortedList()
+}
+
+/** Scores a range of rows, splitting it in half until it is small enough to scan directly. */
+private class ScanTopKTask(
+    private val k: Int,
+    private val partitionRows: Int,
+    private val fromRow: Int,
+    private val toRow: Int,
+    private val score: (Int) -> Float
+) : RecursiveTask<TopKHeap>() {
+    public override fun compute(): TopKHeap {
+        if (toRow - fromRow <= partitionRows) {
+            val heap = TopKHeap(k)
+            for (r in fromRow until toRow)
+                heap.offer(r, score(r))
+            return heap
+        }
+        val mid = (fromRow + toRow) ushr 1
+        val left = ScanTopKTask(k, partitionRows, fromRow, mid, score).fork()
+        val right = ScanTopKTask(k, partitionRows, mid, toRow, score).compute()
+        return left.join().also { it.addAll(right) }
+    }
+}
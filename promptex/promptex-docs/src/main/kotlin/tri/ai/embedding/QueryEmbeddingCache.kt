@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import tri.ai.core.EmbeddingModel
+
+/**
+ * Bounded in-memory cache of query embeddings keyed by model id, output dimensionality, and normalized query text, so
+ * a question that is searched several times, or by several indexes, is only embedded once. Concurrent requests for the
+ * same query share a single embedding call. Failed calls are not cached, and if the caller making the call is
+ * cancelled, a waiting caller makes the call instead.
+ */
+class QueryEmbeddingCache(val maxEntries: Int = DEFAULT_MAX_ENTRIES) {
+
+    init {
+        require(maxEntries > 0) { "Maximum number of entries must be positive" }
+    }
+
+    /** Embedding of each query, or null if the call was cancelled and should be retried by waiting callers. */
+    private val entries = object : LinkedHashMap<QueryKey, CompletableDeferred<List<Double>?>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<QueryKey, CompletableDeferred<List<Double>?>>) =
+            size > maxEntries
+    }
+
+    /** Number of cached or pending embeddings. */
+    val size
+        get() = synchronized(entries) { entries.size }
+
+    /** Get the embedding of a query, calculating it with the model if it is not cached. */
+    suspend fun embedding(model: EmbeddingModel, query: String, outputDimensionality: Int? = null): List<Double> {
+        val key = QueryKey(model.modelId, outputDimensionality, EmbeddingCache.normalize(query))
+        while (true) {
+            var owner = false
+            val entry = synchronized(entries) {
+                entries.getOrPut(key) { CompletableDeferred<List<Double>?>().also { owner = true } }
+            }
+            if (!owner) {
+                entry.await()?.let { return it }
+                continue
+            }
+            try {
+                return model.calculateEmbedding(query, outputDimensionality).also { entry.complete(it) }
+            } catch (x: CancellationException) {
+                // waiting callers were not cancelled, so let one of them make the call instead
+                synchronized(entries) { entries.remove(key, entry) }
+                entry.complete(null)
+                throw x
+            } catch (x: Throwable) {
+                synchronized(entries) { entries.remove(key, entry) }
+                entry.completeExceptionally(x)
+                throw x
+            }
+        }
+    }
+
+    /** Remove all cached embeddings. */
+    fun clear() {
+        synchronized(entries) { entries.clear() }
+    }
+
+    private data class QueryKey(val modelId: String, val outputDimensionality: Int?, val text: String)
+
+    companion object {
+        const val DEFAULT_MAX_ENTRIES = 1000
+
+        /** Cache shared by all embedding indexes in the process. */
+        val shared = QueryEmbeddingCache()
+    }
+
+}
@@ -0,0 +1,51 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import jdk.incubator.vector.FloatVector
+import jdk.incubator.vector.VectorOperators
+
+/**
+ * Implementation of [VectorKernel] using the incubating JDK Vector API, which compiles to SIMD instructions on
+ * supported hardware. Requires `--add-modules jdk.incubator.vector`; use [VectorKernel.DEFAULT] rather than
+ * referencing this directly.
+ */
+internal object SimdVectorKernel : VectorKernel {
+
+    private val SPECIES = FloatVector.SPECIES_PREFERRED
+
+    override fun dot(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float {
+        var acc = FloatVector.zero(SPECIES)
+        val upper = SPECIES.loopBound(length)
+        var i = 0
+        while (i < upper) {
+            val va = FloatVector.fromArray(SPECIES, a, aOffset + i)
+            val vb = FloatVector.fromArray(SPECIES, b, bOffset + i)
+            acc = va.mul(vb).add(acc)
+            i += SPECIES.length()
+        }
+        var sum = acc.reduceLanes(VectorOperators.ADD)
+        while (i < length) {
+            sum += a[aOffset + i] * b[bOffset + i]
+            i++
+        }
+        return sum
+    }
+}
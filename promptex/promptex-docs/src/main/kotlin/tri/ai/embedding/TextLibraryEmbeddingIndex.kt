@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.calculateMissingEmbeddings
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextLibrary
+import java.io.File
+
+/**
+ * An embedding index over a fixed set of documents, such as a [TextLibrary] file or one shard of a large library.
+ * Unlike [LocalFolderEmbeddingIndex], documents are not read from or saved to the file system. Embeddings missing for
+ * the index's model are calculated on the first search, or by [calculateMissingEmbeddings], and search is exact.
+ */
+class TextLibraryEmbeddingIndex(
+    embeddingStrategy: EmbeddingStrategy,
+    private val loader: () -> List<TextDoc>
+) : EmbeddingIndex(embeddingStrategy) {
+
+    /** Create an index for the given documents. */
+    constructor(embeddingStrategy: EmbeddingStrategy, docs: List<TextDoc>) : this(embeddingStrategy, { docs })
+
+    private val docs by lazy { loader() }
+    private val lock = Mutex()
+    private var searchMatrix: ChunkEmbeddingMatrix? = null
+
+    /** Precision of vectors held in memory for search, see [LocalFolderEmbeddingIndex.searchPrecision]. */
+    var searchPrecision = EmbeddingPrecision.FULL
+    /** Multiple of the number of requested results to re-rank when using quantized vectors. */
+    var rerankFactor = ChunkEmbeddingMatrix.DEFAULT_RERANK_FACTOR
+
+    /** Number of documents in the index, loading them if needed. */
+    val size
+        get() = docs.size
+
+    /** Calculate embeddings missing from any chunks for this index's model. */
+    suspend fun calculateMissingEmbeddings(onProgress: ((String, Double) -> Unit)? = this.onProgress) {
+        lock.withLock { calculateMissing(onProgress) }
+    }
+
+    override suspend fun findMostSimilar(query: String, n: Int) =
+        findMostSimilar(semanticQuery(query), n)
+
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int) =
+        findMostSimilar(query, n, null)
+
+    /** Find the [n] chunks matching the filter most similar to the query, scoring only the matching chunks. */
+    override suspend fun findMostSimilar(query: SemanticTextQuery, n: Int, filter: MetadataFilter?): List<EmbeddingMatch> =
+        lock.withLock {
+            calculateMissing(onProgress)
+            currentCoroutineContext().ensureActive()
+            val rows = searchMatrix()
+            rows.topK(EmbeddingVector.of(query.embedding), n, filter, rerankFactor).map {
+                rows.match(query, it.row, it.score)
+            }
+        }
+
+    /** Load the documents, calculate any missing embeddings, and prepare the matrix used for search. */
+    override suspend fun warmUp() {
+        lock.withLock {
+            calculateMissing(onProgress)
+            searchMatrix()
+        }
+    }
+
+    /** Must be called with the lock held. */
+    private fun searchMatrix() = searchMatrix?.takeIf { it.precision == searchPrecision }
+        ?: ChunkEmbeddingMatrix.of(embeddingStrategy.modelId, docs, searchPrecision).also { searchMatrix = it }
+
+    /** Must be called with the lock held. */
+    private suspend fun calculateMissing(onProgress: ((String, Double) -> Unit)?) {
+        val missing = docs.filter { doc -> doc.chunks.any { it.getEmbeddingInfo(embeddingStrategy.modelId) == null } }
+        if (missing.isNotEmpty()) {
+            missing.calculateMissingEmbeddings(embeddingStrategy.model, onProgress)
+            searchMatrix = null
+        }
+    }
+
+    companion object {
+        /** Create an index for a library file, which is loaded on first use. */
+        fun of(libraryFile: File, embeddingStrategy: EmbeddingStrategy) =
+            TextLibraryEmbeddingIndex(embeddingStrategy) { TextLibrary.loadFrom(libraryFile).docs }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+/**
+ * Keeps the [k] highest-scoring rows offered to it, using a bounded min-heap over primitive arrays so that selecting
+ * the top rows from n candidates takes O(n log k) time without allocating per candidate.
+ * Ties are broken in favor of lower row numbers, so results do not depend on the order rows are offered.
+ */
+class TopKHeap(val k: Int) {
+
+    private val rows = IntArray(k)
+    private val scores = FloatArray(k)
+
+    /** Number of rows currently held, at most [k]. */
+    var size = 0
+        private set
+
+    /** Lowest score currently held, or negative infinity if fewer than [k] rows have been offered. */
+    val threshold
+        get() = if (size < k) Float.NEGATIVE_INFINITY else scores[0]
+
+    /** Offer a row, returning true if it was kept. */
+    fun offer(row: Int, score: Float): Boolean {
+        if (size < k) {
+            rows[size] = row
+            scores[size] = score
+            siftUp(size++)
+            return true
+        } else if (k > 0 && worse(rows[0], scores[0], row, score)) {
+            rows[0] = row
+            scores[0] = score
+            siftDown(0)
+            return true
+        }
+        return false
+    }
+
+    /** Offer all rows held by another heap. */
+    fun addAll(other: TopKHeap) {
+        for (i in 0 until other.size)
+            offer(other.rows[i], other.scores[i])
+    }
+
+    /** Get the rows held, sorted by descending score. */
+    fun toSortedList() =
+        (0 until size).map { ScoredRow(rows[it], scores[it]) }
+            .sortedWith(compareByDescending<ScoredRow> { it.score }.thenBy { it.row })
+
+    /** True if the first row should be ranked below the second. */
+    private fun worse(row1: Int, score1: Float, row2: Int, score2: Float) =
+        score1 < score2 || (score1 == score2 && row1 > row2)
+
+    private fun siftUp(index: Int) {
+        var i = index
+        while (i > 0) {
+            val parent = (i - 1) shr 1
+            if (!worse(rows[i], scores[i], rows[parent], scores[parent]))
+                break
+            swap(i, parent)
+            i = parent
+        }
+    }
+
+    private fun siftDown(index: Int) {
+        var i = index
+        while (true) {
+            val left = 2 * i + 1
+            if (left >= size)
+                break
+            val right = left + 1
+            val child = if (right < size && worse(rows[right], scores[right], rows[left], scores[left])) right else left
+            if (!worse(rows[child], scores[child], rows[i], scores[i]))
+                break
+            swap(i, child)
+            i = child
+        }
+    }
+
+    private fun swap(i: Int, j: Int) {
+        val row = rows[i]
+        rows[i] = rows[j]
+        rows[j] = row
+        val score = scores[i]
+        scores[i] = scores[j]
+        scores[j] = score
+    }
+
+}
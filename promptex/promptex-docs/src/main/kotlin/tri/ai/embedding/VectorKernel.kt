@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import tri.util.fine
+
+/**
+ * Computes dot products over primitive float arrays, used as the inner loop of similarity search.
+ * Vectors are addressed by offset so rows of a packed matrix can be scored without copying.
+ */
+interface VectorKernel {
+
+    /** Dot product of [length] values of [a] starting at [aOffset] with values of [b] starting at [bOffset]. */
+    fun dot(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float
+
+    /**
+     * Dot product of [query] with rows [fromRow] until [toRow] of a row-major [matrix] with `query.size` columns,
+     * writing results to the same positions of [out].
+     */
+    fun dotRows(query: FloatArray, matrix: FloatArray, fromRow: Int, toRow: Int, out: FloatArray) {
+        val dims = query.size
+        for (r in fromRow until toRow)
+            out[r] = dot(query, 0, matrix, r * dims, dims)
+    }
+
+    companion object {
+        /**
+         * The default kernel, which is [ScalarVectorKernel] unless the incubating Vector API is available at runtime,
+         * in which case SIMD instructions are used. The API is opt-in, since it is only available if the JVM is started
+         * with `--add-modules jdk.incubator.vector` (e.g. by setting `JAVA_OPTS` for the PromptFx and PromptRt launchers).
+         */
+        val DEFAULT: VectorKernel by lazy {
+            try {
+                SimdVectorKernel.also {
+                    check(it.dot(FloatArray(33) { 1f }, 0, FloatArray(33) { 1f }, 0, 33) == 33f)
+                }
+            } catch (x: LinkageError) {
+                fine<VectorKernel>("Vector API not available, using scalar similarity kernel: ${x.message}")
+                ScalarVectorKernel
+            }
+        }
+    }
+}
+
+/** Portable implementation of [VectorKernel], unrolled so the JIT can keep several accumulators in flight. */
+object ScalarVectorKernel : VectorKernel {
+    override fun dot(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, length: Int): Float {
+        var s0 = 0f
+        var s1 = 0f
+        var s2 = 0f
+        var s3 = 0f
+        var i = 0
+        val upper = length and 3.inv()
+        while (i < upper) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1]
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2]
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3]
+            i += 4
+        }
+        while (i < length) {
+            s0 += a[aOffset + i] * b[bOffset + i]
+            i++
+        }
+        return (s0 + s1) + (s2 + s3)
+    }
+}
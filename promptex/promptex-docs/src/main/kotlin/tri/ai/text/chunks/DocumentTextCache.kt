@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import java.io.File
+
+/**
+ * Least-recently-used cache of document text loaded by [LazyTextChunkRaw], shared by all libraries and limited to
+ * about [budgetBytes] of text. Entries are dropped if their file has been modified since the text was loaded.
+ */
+object DocumentTextCache {
+
+    /** Maximum total size of cached text, in bytes, defaulting to a sixteenth of the maximum heap size. */
+    @Volatile
+    var budgetBytes: Long = Runtime.getRuntime().maxMemory() / 16
+        set(value) {
+            field = value
+            evict()
+        }
+
+    private val entries = LinkedHashMap<File, Entry>(16, 0.75f, true)
+
+    /** Estimated size of cached text, in bytes. */
+    var sizeBytes = 0L
+        @Synchronized get
+        private set
+
+    /** Get cached text for a file, if present and the file has not changed since it was cached. */
+    @Synchronized
+    fun get(file: File): String? {
+        val entry = entries[file] ?: return null
+        if (entry.lastModified != file.lastModified()) {
+            remove(file)
+            return null
+        }
+        return entry.text
+    }
+
+    /** Add text for a file, evicting least-recently-used entries if the cache is over budget. */
+    @Synchronized
+    fun put(file: File, text: String) {
+        remove(file)
+        entries[file] = Entry(text, file.lastModified())
+        sizeBytes += bytes(text)
+        evict()
+    }
+
+    /** Remove cached text for a file. */
+    @Synchronized
+    fun remove(file: File) {
+        entries.remove(file)?.let { sizeBytes -= bytes(it.text) }
+    }
+
+    /** Remove all cached text. */
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        sizeBytes = 0L
+    }
+
+    @Synchronized
+    private fun evict() {
+        val iterator = entries.values.iterator()
+        while (sizeBytes > budgetBytes && iterator.hasNext()) {
+            sizeBytes -= bytes(iterator.next().text)
+            iterator.remove()
+        }
+    }
+
+    private fun bytes(text: String) = 2L * text.length
+
+    private class Entry(val text: String, val lastModified: Long)
+
+}
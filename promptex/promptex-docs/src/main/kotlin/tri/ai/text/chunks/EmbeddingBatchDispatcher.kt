@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import tri.ai.core.EmbeddingModel
+import tri.ai.core.TokenCounter
+import tri.ai.core.TokenEncodings
+import tri.ai.embedding.EmbeddingCache
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import tri.util.fine
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Calculates missing embeddings for chunks across many documents. Chunks are packed into batches limited by the number
+ * of texts and the number of tokens per API call, and several batches are sent at once, up to a maximum number of
+ * concurrent requests. Limits default to those reported by the [EmbeddingModel]. Tokens are counted with the model's
+ * encoding if available (see [TokenEncodings]), and otherwise with [CONSERVATIVE_ESTIMATE], so batches of CJK text or
+ * code are not sent over the limit.
+ * If a batch fails, it is split in half and each half is retried once, in case the batch exceeded a provider limit.
+ * Embeddings found in the [cache] are used without calling the API, and newly calculated embeddings are added to it.
+ * Embeddings are requested with [outputDimensionality], which is also part of the cache key, so vectors of different
+ * sizes from the same model are cached separately.
+ */
+class EmbeddingBatchDispatcher(
+    val model: EmbeddingModel,
+    val maxBatchSize: Int = model.maxBatchSize,
+    val maxBatchTokens: Int? = model.maxBatchTokens,
+    val maxConcurrentRequests: Int = model.maxConcurrentRequests,
+    val cache: EmbeddingCache? = EmbeddingCache.shared,
+    val outputDimensionality: Int? = null,
+    val tokenCounter: TokenCounter = TokenEncodings.counterForModel(model.modelId)
+        .takeUnless { it === TokenCounter.ESTIMATE } ?: CONSERVATIVE_ESTIMATE
+) {
+
+    init {
+        require(maxBatchSize > 0) { "Batch size must be positive" }
+        require(maxConcurrentRequests > 0) { "Concurrent requests must be positive" }
+    }
+
+    /**
+     * Calculate embeddings for all chunks in the documents that are missing embeddings for the model, saving the results
+     * with each chunk.
+     * @param onProgress optional callback invoked with a status message and fractional progress (0.0–1.0)
+     */
+    suspend fun calculateMissingEmbeddings(docs: List<TextDoc>, onProgress: ((String, Double) -> Unit)? = null) {
+        val pending = docs.flatMap { doc ->
+            doc.chunks.filter { it.getEmbeddingInfo(model.modelId) == null }
+                .map { PendingChunk(it, it.text(doc.all)) }
+        }.filter { !it.useCached() }
+        if (pending.isEmpty())
+            return
+
+        val batches = batches(pending)
+        fine<EmbeddingBatchDispatcher>("Calculating ${pending.size} embeddings in ${batches.size} batches for ${model.modelId}")
+        val semaphore = Semaphore(maxConcurrentRequests)
+        val completed = AtomicInteger(0)
+        coroutineScope {
+            batches.map { batch ->
+                async {
+                    semaphore.withPermit { calculate(batch, retry = true) }
+                    val count = completed.addAndGet(batch.size)
+                    onProgress?.invoke("Embedding chunks: $count / ${pending.size}", count.toDouble() / pending.size)
+                }
+            }.awaitAll()
+        }
+    }
+
+    /** Pack chunks into batches, in order, within the size and token limits. */
+    internal fun batches(pending: List<PendingChunk>): List<List<PendingChunk>> {
+        val batches = mutableListOf<List<PendingChunk>>()
+        var batch = mutableListOf<PendingChunk>()
+        var batchTokens = 0
+        pending.forEach {
+            val tokens = tokenCounter.countTokens(it.text)
+            if (batch.isNotEmpty() && (batch.size >= maxBatchSize || (maxBatchTokens != null && batchTokens + tokens > maxBatchTokens))) {
+                batches += batch
+                batch = mutableListOf()
+                batchTokens = 0
+            }
+            batch += it
+            batchTokens += tokens
+        }
+        if (batch.isNotEmpty())
+            batches += batch
+        return batches
+    }
+
+    private suspend fun calculate(batch: List<PendingChunk>, retry: Boolean) {
+        try {
+            val embeddings = model.calculateEmbedding(batch.map { it.text }, outputDimensionality)
+            check(embeddings.size == batch.size) { "Expected ${batch.size} embeddings but received ${embeddings.size}" }
+            batch.forEachIndexed { i, pending ->
+                pending.chunk.putEmbeddingInfo(model.modelId, embeddings[i], model.precision)
+                cache?.put(model.modelId, outputDimensionality, pending.text, embeddings[i])
+            }
+        } catch (x: CancellationException) {
+            throw x
+        } catch (x: Exception) {
+            if (!retry || batch.size == 1)
+                throw x
+            fine<EmbeddingBatchDispatcher>("Retrying failed batch of ${batch.size} as two batches: ${x.message}")
+            val half = batch.size / 2
+            calculate(batch.subList(0, half), retry = false)
+            calculate(batch.subList(half, batch.size), retry = false)
+        }
+    }
+
+    /** Set the chunk's embedding from the cache, if available, returning true if the cached value was used. */
+    private fun PendingChunk.useCached(): Boolean {
+        val cached = cache?.get(model.modelId, outputDimensionality, text) ?: return false
+        chunk.putEmbeddingInfo(model.modelId, cached, model.precision)
+        return true
+    }
+
+    /** A chunk that needs an embedding, with its text. */
+    internal class PendingChunk(val chunk: TextChunk, val text: String)
+
+    companion object {
+        /**
+         * Estimate of tokens for models without a known encoding, erring high for text other than ASCII prose. ASCII
+         * letters, digits and whitespace count as about four characters per token, other ASCII characters as a token
+         * each, and other characters as a token per UTF-8 byte, since a token is never less than one byte.
+         */
+        val CONSERVATIVE_ESTIMATE = object : TokenCounter {
+            override val id = "conservative-estimate"
+            override fun countTokens(text: String) = countTokens(text, 0, text.length)
+            override fun countTokens(text: CharSequence, start: Int, end: Int): Int {
+                var prose = 0
+                var other = 0
+                for (i in start until end) {
+                    val c = text[i]
+                    when {
+                        c.code < 0x80 && (c.isLetterOrDigit() || c.isWhitespace()) -> prose++
+                        c.code < 0x80 -> other++
+                        c.code < 0x800 -> other += 2
+                        c.isSurrogate() -> other += 2
+                        else -> other += 3
+                    }
+                }
+                return (prose + 3) / 4 + other
+            }
+            override fun toString() = id
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import com.fasterxml.jackson.annotation.JsonIgnore
+import tri.util.io.LocalFileManager.fileToText
+import java.io.File
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.lang.ref.SoftReference
+
+/**
+ * A [TextChunkRaw] for the full text of a document file, loaded only when it is first needed, e.g. to display the text
+ * of a search result. Text is read with [fileToText] (normally from the `.txt` cache next to the file), shared through
+ * the byte-budgeted [DocumentTextCache], and otherwise held only by a soft reference, so the heap used by a large
+ * library does not grow with the size of its documents.
+ */
+class LazyTextChunkRaw(
+    @get:JsonIgnore
+    val file: File
+) : TextChunkRaw("") {
+
+    @Volatile
+    private var ref: SoftReference<String>? = null
+
+    /** True if the text is currently held in memory. */
+    @get:JsonIgnore
+    val isLoaded
+        get() = ref?.get() != null
+
+    /**
+     * The document text, loaded from the file if needed.
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    override val text: String
+        get() {
+            ref?.get()?.let { return it }
+            val text = DocumentTextCache.get(file) ?: try {
+                file.fileToText(useCache = true).also { DocumentTextCache.put(file, it) }
+            } catch (x: IOException) {
+                throw UncheckedIOException("Unable to read text from $file", x)
+            }
+            ref = SoftReference(text)
+            return text
+        }
+
+}
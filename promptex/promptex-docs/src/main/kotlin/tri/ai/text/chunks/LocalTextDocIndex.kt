@@ -19,9 +19,10 @@
  */
 package tri.ai.text.chunks
 
-import tri.util.io.LocalFileManager.extractTextContent
+import tri.ai.pips.AiTaskMonitor
+import tri.ai.pips.IgnoreMonitor
+import tri.util.io.LocalFileManager.listFilesWithTextContent
 import tri.util.io.LocalFileManager.textCacheFile
-import tri.util.io.LocalFileManager.textFiles
 import java.io.File
 import java.time.Instant
 import java.time.LocalDateTime
@@ -42,40 +43,20 @@ class LocalTextDocIndex(
 
     //region PROCESSING
 
-    /** Scrapes text from documents in index. */
-    fun processDocuments(reindexAll: Boolean) {
-        rootFolder.extractTextContent(reindexAll)
-        if (reindexAll) {
-            docIndex.clear()
-        }
-        val docs = mutableMapOf<String, Pair<File, TextDoc>>()
-        rootFolder.textFiles().forEach {
-            if (reindexAll || it.absolutePath !in docs) {
-                val doc = it.createTextDoc()
-                docs[doc.metadata.id] = it to doc
-            }
-        }
+    /**
+     * Scrapes text, chunks, and optionally embeds all documents in the folder using the given pipeline, then saves the
+     * index. Documents are processed concurrently, with progress reported to the [monitor].
+     * @return number of documents processed
+     */
+    suspend fun ingest(pipeline: TextDocIngestPipeline, reindexAll: Boolean, monitor: AiTaskMonitor = IgnoreMonitor): Int {
         if (reindexAll)
-            docIndex.putAll(docs)
-        else
-            docIndex.putAll(docs.filter { it.key !in docIndex })
-    }
-
-    /** Breaks up documents into chunks. */
-    fun processChunks(chunker: TextChunker, maxChunkSize: Int, reindexAll: Boolean) {
-        docIndex.values.forEach {
-            chunker.process(it.first, it.second, maxChunkSize, reindexAll)
-        }
-    }
-
-    /** Breaks up a single document into chunks. */
-    fun TextChunker.process(file: File, doc: TextDoc, maxChunkSize: Int, reindexAll: Boolean) {
-        if (doc.chunks.isEmpty() || reindexAll) {
-            doc.chunks.clear()
-            val text = file.readText()
-            doc.all = TextChunkRaw(text)
-            doc.chunks.addAll(chunkText(text, maxChunkSize))
+            docIndex.clear()
+        val existing = docIndex.mapValues { it.value.second }
+        val count = pipeline.ingest(rootFolder.listFilesWithTextContent(), existing, reindexAll, monitor) { file, doc ->
+            docIndex[doc.metadata.id] = file to doc
         }
+        saveIndex()
+        return count
     }
 
     //endregion
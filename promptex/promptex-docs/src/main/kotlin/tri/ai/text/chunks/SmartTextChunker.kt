@@ -19,14 +19,25 @@
  */
 package tri.ai.text.chunks
 
+import tri.ai.core.AiModel
+import tri.ai.core.AiModelProvider
+import tri.ai.core.TokenCounter
 import tri.util.fine
 import java.text.BreakIterator
+import java.text.StringCharacterIterator
+import java.util.regex.Pattern
 
 /**
  * Smart implementation of [TextChunker], attempting to automatically split up text into reasonable sections based on
- * natural breaks.
+ * natural breaks. Text is split into sections, then paragraphs, then sentences, as needed to fit the maximum chunk size,
+ * and adjacent pieces are recombined while they fit. All splitting works on index ranges of the original text.
+ *
+ * Chunk sizes are measured in characters, or in tokens if a [tokenCounter] is provided. Token counting is opt-in, since
+ * chunk size settings such as [tri.ai.embedding.LocalFolderEmbeddingIndex.maxChunkSize] are given in characters; use
+ * [forModel] to measure chunks in a model's tokens. Token counts of recombined pieces are the sum of the counts of each
+ * piece and the text between pieces, which may differ slightly from the count of the combined text.
  */
-class SmartTextChunker() : TextChunker {
+class SmartTextChunker(val tokenCounter: TokenCounter? = null) : TextChunker {
 
     override fun chunkText(text: String, maxChunkSize: Int) =
         TextChunkRaw(text).chunkBySections(maxChunkSize = maxChunkSize, combineShortSections = true)
@@ -34,22 +45,17 @@ class SmartTextChunker() : TextChunker {
     /** Chunk into sections by section breaks. Optionally combine shorter sections. */
     fun TextChunkRaw.chunkBySections(maxChunkSize: Int, combineShortSections: Boolean): List<TextChunk> {
         // return chunk if it's short enough
-        if (combineShortSections && text.length <= maxChunkSize)
+        if (combineShortSections && size(text, 0, text.length) <= maxChunkSize)
             return listOf(TextChunkInDoc(text.indices))
 
-        // break into sections and optionally concatenate short sections
-        val all = TextChunkInDoc(text.indices)
-        val sections = all.splitOnSections(this)
-            .recombine(if (combineShortSections) maxChunkSize else 0)
-
-        // split up any sections that are too long
+        // break into sections and optionally concatenate short sections, then split up any sections that are too long
         val result = mutableListOf<TextChunk>()
-        sections.forEach { section ->
-            if (section.text(this).length <= maxChunkSize) {
-                result += section
-            } else {
-                result += section.chunkByParagraphs(this, maxChunkSize)
-            }
+        val sections = split(text, text.indices, SECTION_DIVIDER)
+        recombine(text, sections, if (combineShortSections) maxChunkSize else 0) { section, size ->
+            if (size <= maxChunkSize)
+                result += TextChunkInDoc(section)
+            else
+                chunkByParagraphs(text, section, maxChunkSize, result)
         }
 
         // log chunks
@@ -66,99 +72,107 @@ class SmartTextChunker() : TextChunker {
 
     fun TextChunkInDoc.chunkByParagraphs(doc: TextChunkRaw, maxChunkSize: Int): List<TextChunkInDoc> {
         // return chunk if it's short enough
-        if (text(doc).length <= maxChunkSize)
+        if (size(doc.text, range.first, range.last + 1) <= maxChunkSize)
             return listOf(this)
+        return mutableListOf<TextChunkInDoc>().also { chunkByParagraphs(doc.text, range, maxChunkSize, it) }
+    }
 
-        // break into paragraphs and concatenate short paragraphs
-        val paragraphs = splitOnParagraphs(doc)
-            .recombine(maxChunkSize)
-
-        // split up any paragraphs that are too long
-        val result = mutableListOf<TextChunkInDoc>()
-        paragraphs.forEach { section ->
-            if (section.text(doc).length <= maxChunkSize) {
-                result += section
+    /** Break a range into paragraphs and concatenate short paragraphs, splitting long paragraphs into sentences. */
+    private fun chunkByParagraphs(text: String, range: IntRange, maxChunkSize: Int, result: MutableList<in TextChunkInDoc>) {
+        recombine(text, split(text, range, PARAGRAPH_DIVIDER), maxChunkSize) { paragraph, size ->
+            if (size <= maxChunkSize) {
+                result += TextChunkInDoc(paragraph)
             } else {
-                result += section.splitOnSentences(doc)
-                    .recombine(maxChunkSize)
+                recombine(text, splitOnSentences(text, paragraph), maxChunkSize) { sentences, _ ->
+                    result += TextChunkInDoc(sentences)
+                }
             }
         }
-        return result
     }
 
-    // TODO - make this find things like likely section headings
-    private fun TextChunkInDoc.splitOnSections(doc: TextChunkRaw) =
-        chunkByDividers(doc, listOf("\n\n\n", "\r\n\r\n\r\n", "\r\r\r", "\n\n", "\r\n\r\n", "\r\r"))
+    /** Size of `text[start until end]` in characters or tokens. */
+    private fun size(text: String, start: Int, end: Int) =
+        tokenCounter?.countTokens(text, start, end) ?: (end - start)
+
+    /**
+     * Recombines contiguous pieces into the longest runs that fit in [maxChunkSize], passing each run and its size to
+     * [op]. A piece that does not fit on its own is passed alone. Each character is measured once.
+     */
+    private fun recombine(text: String, pieces: List<IntRange>, maxChunkSize: Int, op: (IntRange, Int) -> Unit) {
+        var first = -1
+        var last = -1
+        var size = 0
+        pieces.forEach { piece ->
+            if (first >= 0) {
+                val added = size(text, last + 1, piece.last + 1)
+                if (size + added <= maxChunkSize) {
+                    last = piece.last
+                    size += added
+                    return@forEach
+                }
+                op(first..last, size)
+            }
+            first = piece.first
+            last = piece.last
+            size = size(text, first, last + 1)
+        }
+        if (first >= 0)
+            op(first..last, size)
+    }
 
-    private fun TextChunkInDoc.splitOnParagraphs(doc: TextChunkRaw) =
-        chunkByDividers(doc, listOf("\n", "\r\n", "\r"))
+    //region SPLITTING
 
-    private fun TextChunkInDoc.splitOnSentences(doc: TextChunkRaw): List<TextChunkInDoc> {
-        val sentences = mutableListOf<TextChunkInDoc>()
-        val iterator = BreakIterator.getSentenceInstance()
-        iterator.setText(text(doc))
+    /** Split a range at matches of the divider pattern, dropping dividers and blank pieces. */
+    private fun split(text: String, range: IntRange, divider: Pattern): List<IntRange> {
+        val pieces = mutableListOf<IntRange>()
+        val matcher = divider.matcher(text).region(range.first, range.last + 1)
+        var start = range.first
+        while (matcher.find()) {
+            addIfNotBlank(text, start, matcher.start(), pieces)
+            start = matcher.end()
+        }
+        addIfNotBlank(text, start, range.last + 1, pieces)
+        return pieces
+    }
 
+    /** Split a range into sentences, trimming whitespace and dropping blank sentences. */
+    private fun splitOnSentences(text: String, range: IntRange): List<IntRange> {
+        val sentences = mutableListOf<IntRange>()
+        val iterator = SENTENCE_ITERATOR.get()
+        iterator.setText(StringCharacterIterator(text, range.first, range.last + 1, range.first))
         var start = iterator.first()
         var end = iterator.next()
-
         while (end != BreakIterator.DONE) {
-            val sentence = doc.text.substring(start, end).trim()
-            if (sentence.isNotEmpty()) {
-                sentences.add(TextChunkInDoc(range.first + start, range.first + end - 1))
-            }
+            addIfNotBlank(text, start, end, sentences)
             start = end
             end = iterator.next()
         }
-
         return sentences
     }
 
-    private fun TextChunkInDoc.chunkByDividers(doc: TextChunkRaw, dividers: List<String>): List<TextChunk> {
-        val pattern = dividers.joinToString(separator = "|") { Regex.escape(it) }
-        val regex = Regex(pattern)
-        val chunks = mutableListOf<TextChunkInDoc>()
-        var currentIndex = 0
-
-        val text = text(doc)
-        regex.findAll(text).forEach { matchResult ->
-            val chunkEnd = matchResult.range.first
-            if (chunkEnd > currentIndex) {
-                chunks.add(
-                    TextChunkInDoc(range.first + currentIndex, range.first + chunkEnd)
-                )
-            }
-            currentIndex = matchResult.range.last + 1
-        }
-
-        if (currentIndex < doc.text.length) {
-            chunks.add(
-                TextChunkInDoc(range.first + currentIndex, range.first + text.length - 1)
-            )
-        }
-
-        return chunks.filter { it.text(doc).isNotBlank() }
+    /** Add `text[start until end]` with surrounding whitespace removed, if it is not blank. */
+    private fun addIfNotBlank(text: String, start: Int, end: Int, pieces: MutableList<IntRange>) {
+        var s = start
+        var e = end
+        while (s < e && text[s].isWhitespace())
+            s++
+        while (e > s && text[e - 1].isWhitespace())
+            e--
+        if (s < e)
+            pieces += s until e
     }
 
     //endregion
 
     companion object {
-        /** Recombines shorter chunks into longer chunks. Assumes list of contiguous chunks. */
-        private fun List<TextChunk>.recombine(maxChunkSize: Int) =
-            chunkWhile { it.totalSize() <= maxChunkSize }
-                .map { it.concatenate() }
-
-        /** Total number of characters in chunks. */
-        private fun List<TextChunk>.totalSize() = filterIsInstance<TextChunkInDoc>().let {
-            val min = it.minOfOrNull { it.range.first } ?: 0
-            val max = it.maxOfOrNull { it.range.last } ?: 0
-            max - min + 1
-        }
-
-        /** Concatenates all chunks into one. */
-        private fun List<TextChunk>.concatenate() = filterIsInstance<TextChunkInDoc>().let {
-            require(it.isNotEmpty())
-            TextChunkInDoc(it.minOfOrNull { it.range.first } ?: 0, it.maxOfOrNull { it.range.last } ?: 0)
-        }
+        private val SECTION_DIVIDER = Pattern.compile("(?:\\r\\n|\\r|\\n){2,}")
+        private val PARAGRAPH_DIVIDER = Pattern.compile("(?:\\r\\n|\\r|\\n)+")
+        /** Sentence iterators are not thread-safe, so one is kept per thread. */
+        private val SENTENCE_ITERATOR = ThreadLocal.withInitial { BreakIterator.getSentenceInstance() }
+
+        /** Chunker measuring chunk sizes in tokens of the given model, estimating tokens if its encoding is unknown. */
+        fun forModel(model: AiModel) =
+            SmartTextChunker(AiModelProvider.modelIndex(model)?.tokenCounter(model.modelId) ?: TokenCounter.ESTIMATE)
 
         /**
          * Chunks a list into sections, each of which are either size 1, or are the largest sublist for which the given predicate is true.
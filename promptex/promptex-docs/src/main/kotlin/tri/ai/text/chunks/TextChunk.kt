@@ -27,5 +27,18 @@ abstract class TextChunk {
     abstract fun text(doc: TextChunk?): String
     /** Attributes for the document. */
     val attributes: TextAttributes = mutableMapOf()
+
+    /**
+     * Hash of the chunk's text in the given document, saved as the [TEXT_HASH_ATTRIBUTE] attribute so that changed
+     * chunks can be detected without loading the text of a document, which may be loaded lazily. Calculated from the
+     * text if the attribute is not present.
+     */
+    fun textHash(doc: TextDoc): Int =
+        (attributes[TEXT_HASH_ATTRIBUTE] as? Number)?.toInt()
+            ?: text(doc.all).hashCode().also { attributes[TEXT_HASH_ATTRIBUTE] = it }
+
+    companion object {
+        const val TEXT_HASH_ATTRIBUTE = "text_hash"
+    }
 }
 
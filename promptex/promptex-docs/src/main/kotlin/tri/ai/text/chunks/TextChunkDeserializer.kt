@@ -20,24 +20,63 @@
 package tri.ai.text.chunks
 
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.JavaType
 import com.fasterxml.jackson.databind.JsonDeserializer
-import com.fasterxml.jackson.databind.JsonNode
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import com.fasterxml.jackson.databind.type.TypeFactory
 
-/** Deserializes a [TextChunk] from JSON, determining type based on which fields are present. */
+/**
+ * Deserializes a [TextChunk] from JSON, determining type based on which fields are present.
+ * Fields are read directly from the parser, so no intermediate tree or per-chunk mapper is created.
+ */
 class TextChunkDeserializer : JsonDeserializer<TextChunk>() {
     override fun deserialize(p: JsonParser, ctxt: DeserializationContext): TextChunk {
-        val node: JsonNode = p.codec.readTree(p)
-        val objectMapper = (p.codec as ObjectMapper).copy().registerKotlinModule()
+        var text: String? = null
+        var first: Int? = null
+        var last: Int? = null
+        var attributes: Map<String, Any?>? = null
+
+        var token = p.currentToken()
+        if (token == JsonToken.START_OBJECT)
+            token = p.nextToken()
+        while (token == JsonToken.FIELD_NAME) {
+            val field = p.currentName()
+            p.nextToken()
+            when (field) {
+                "text" -> text = p.valueAsString
+                "first" -> first = p.intValue
+                "last" -> last = p.intValue
+                "attributes" -> attributes = ctxt.readValue(p, ATTRIBUTES_TYPE)
+                else -> ctxt.handleUnknownProperty(p, this, TextChunk::class.java, field)
+            }
+            token = p.nextToken()
+        }
 
-        return if (node.has("text") && !node.has("first") && !node.has("last")) {
-            objectMapper.treeToValue(node, TextChunkRaw::class.java)
-        } else if (node.has("first") && node.has("last") && !node.has("text")) {
-            objectMapper.treeToValue(node, TextChunkInDoc::class.java)
+        val chunk = if (text != null && first == null && last == null) {
+            TextChunkRaw(text)
+        } else if (first != null && last != null && text == null) {
+            TextChunkInDoc(first, last)
         } else {
             throw IllegalArgumentException("Unknown type of TextChunk")
         }
+        attributes?.let { chunk.attributes.putAll(it) }
+        unpackEmbeddings(chunk.attributes["embeddings"])
+        return chunk
+    }
+
+    /** Replace any embedding vectors saved as packed binary (see [TextLibraryFormat.SMILE]) with [PackedEmbedding]s. */
+    private fun unpackEmbeddings(embeddings: Any?) {
+        if (embeddings !is MutableMap<*, *>)
+            return
+        @Suppress("UNCHECKED_CAST")
+        (embeddings as MutableMap<Any?, Any?>).entries.forEach { entry ->
+            (entry.value as? ByteArray)?.let { entry.setValue(PackedEmbedding.unpack(it)) }
+        }
+    }
+
+    companion object {
+        private val ATTRIBUTES_TYPE: JavaType = TypeFactory.defaultInstance()
+            .constructMapType(LinkedHashMap::class.java, String::class.java, Any::class.java)
     }
 }
@@ -28,12 +28,13 @@ import java.net.URI
 
 /**
  * Utilities for adding embedding information to [TextDoc]s.
- * Enforces a maximum number of embeddings to calculate in one query.
+ * Limits the number of embeddings to calculate in one query based on [EmbeddingModel.maxBatchSize].
  */
 object TextDocEmbeddings {
 
     /** Max number of embeddings to calculate in one query. */
-    const val MAX_EMBEDDING_BATCH_SIZE = 20
+    @Deprecated("Batch limits are now provided by each model", ReplaceWith("EmbeddingModel.maxBatchSize"))
+    const val MAX_EMBEDDING_BATCH_SIZE = EmbeddingModel.DEFAULT_MAX_BATCH_SIZE
 
     /** Calculate an embedding for a single chunk. */
     suspend fun EmbeddingModel.calculate(doc: TextDoc, chunk: TextChunk) =
@@ -41,7 +42,7 @@ object TextDocEmbeddings {
 
     /** Calculate embeddings for a single document. */
     suspend fun EmbeddingModel.calculate(doc: TextDoc): List<List<Double>> =
-        doc.chunks.map { it.text(doc.all) }.chunked(MAX_EMBEDDING_BATCH_SIZE)
+        doc.chunks.map { it.text(doc.all) }.chunked(maxBatchSize)
             .flatMap { calculateEmbedding(it) }
 
     /** Add embedding info for all chunks in a document. */
@@ -55,7 +56,7 @@ object TextDocEmbeddings {
     /** Save embedding info with a chunk. */
     fun TextChunk.putEmbeddingInfo(modelId: String, embedding: List<Double>, precision: EmbeddingPrecision) {
         attributes.putIfAbsent("embeddings", mutableMapOf<String, List<Double>>())
-        (attributes["embeddings"] as EmbeddingInfo)[modelId] = embedding.map { precision.op(it) }
+        (attributes["embeddings"] as EmbeddingInfo)[modelId] = precision.quantize(embedding)
     }
 
     /** Get embedding info object. */
@@ -66,39 +67,40 @@ object TextDocEmbeddings {
     fun TextChunk.getEmbeddingInfo(modelId: String): List<Double>? =
         (attributes["embeddings"] as? EmbeddingInfo)?.get(modelId)
 
-    /** Chunks a text into sections and calculates the embedding for each section. */
-    suspend fun EmbeddingStrategy.chunkedEmbedding(path: URI, text: String, maxChunkSize: Int,
-                                                   onProgress: ((String, Double) -> Unit)? = null): TextDoc {
-        info<TextDocEmbeddings>("Calculating embeddings for $path...")
+    /**
+     * Chunks a text into sections, without calculating embeddings. Records the hash of each chunk's text (see
+     * [TextChunk.textHash]) while the text is in memory.
+     */
+    fun EmbeddingStrategy.chunkedDoc(path: URI, text: String, maxChunkSize: Int): TextDoc {
         val doc = TextDoc(path.toString(), text).apply {
             metadata.path = path
         }
         doc.chunks.addAll(chunker.chunkText(text, maxChunkSize))
+        doc.chunks.forEach { it.textHash(doc) }
+        return doc
+    }
+
+    /** Chunks a text into sections and calculates the embedding for each section. */
+    suspend fun EmbeddingStrategy.chunkedEmbedding(path: URI, text: String, maxChunkSize: Int,
+                                                   onProgress: ((String, Double) -> Unit)? = null): TextDoc {
+        info<TextDocEmbeddings>("Calculating embeddings for $path...")
+        val doc = chunkedDoc(path, text, maxChunkSize)
         doc.calculateMissingEmbeddings(model, onProgress)
         return doc
     }
 
     /** Calculates embedding info for all chunks in a document where it is missing. */
     suspend fun TextDoc.calculateMissingEmbeddings(embeddingModel: EmbeddingModel,
-                                                   onProgress: ((String, Double) -> Unit)? = null) {
-        val id = embeddingModel.modelId
-        val chunksToCalculate = chunks.filter { it.getEmbeddingInfo(id) == null }
-        if (chunksToCalculate.isNotEmpty()) {
-            val batches = chunksToCalculate.chunked(MAX_EMBEDDING_BATCH_SIZE)
-            var processedCount = 0
-            batches.forEachIndexed { i, batch ->
-                val inputs = batch.map { it.text(all) }
-                embeddingModel.calculateEmbedding(inputs).forEachIndexed { j, embedding ->
-                    batch[j].putEmbeddingInfo(id, embedding, embeddingModel.precision)
-                }
-                processedCount += batch.size
-                onProgress?.invoke(
-                    "Embedding chunks: $processedCount / ${chunksToCalculate.size}",
-                    (i + 1.0) / batches.size
-                )
-            }
-        }
-    }
+                                                   onProgress: ((String, Double) -> Unit)? = null) =
+        listOf(this).calculateMissingEmbeddings(embeddingModel, onProgress)
+
+    /**
+     * Calculates embedding info for all chunks in a set of documents where it is missing, batching chunks across
+     * documents and sending several batches at once, using limits provided by the model.
+     */
+    suspend fun List<TextDoc>.calculateMissingEmbeddings(embeddingModel: EmbeddingModel,
+                                                         onProgress: ((String, Double) -> Unit)? = null) =
+        EmbeddingBatchDispatcher(embeddingModel).calculateMissingEmbeddings(this, onProgress)
 
     //region LIBRARY STATISTICS
 
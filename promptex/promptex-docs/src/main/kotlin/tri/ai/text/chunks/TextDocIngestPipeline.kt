@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import tri.ai.core.EmbeddingModel
+import tri.ai.pips.AiTaskMonitor
+import tri.ai.pips.IgnoreMonitor
+import tri.ai.pips.progressUpdate
+import tri.ai.text.chunks.LocalTextDocIndex.Companion.createTextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.util.info
+import tri.util.io.LocalFileManager.fileToText
+import tri.util.io.LocalFileManager.textCacheFile
+import tri.util.warning
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Ingests files into [TextDoc]s as a pipeline of stages: discover, extract, chunk, embed, and persist.
+ * Stages are connected by channels holding at most [bufferSize] documents, so a fast stage waits for a slow one rather
+ * than reading everything into memory. Each stage runs with its own concurrency, so CPU-bound extraction and chunking of
+ * some documents overlap with IO-bound embedding requests for others. Embeddings are only calculated if [embeddingModel]
+ * is provided, with at most [embedConcurrency] requests at once. Chunks of up to [bufferSize] documents are embedded
+ * together, so small documents share requests rather than each sending its own partial batch.
+ * A document that fails to extract is logged and skipped, and a document that fails to embed is kept without embeddings.
+ */
+class TextDocIngestPipeline(
+    val chunker: TextChunker,
+    val maxChunkSize: Int,
+    val embeddingModel: EmbeddingModel? = null,
+    val extractConcurrency: Int = DEFAULT_CPU_CONCURRENCY,
+    val chunkConcurrency: Int = DEFAULT_CPU_CONCURRENCY,
+    val embedConcurrency: Int = embeddingModel?.maxConcurrentRequests ?: 1,
+    val bufferSize: Int = DEFAULT_BUFFER_SIZE
+) {
+
+    init {
+        require(extractConcurrency > 0 && chunkConcurrency > 0 && embedConcurrency > 0) { "Concurrency must be positive" }
+        require(bufferSize >= 0) { "Buffer size must not be negative" }
+    }
+
+    /** Documents are embedded one group at a time, so [embedConcurrency] bounds requests across documents. */
+    private val embeddings = embeddingModel?.let { EmbeddingBatchDispatcher(it, maxConcurrentRequests = embedConcurrency) }
+
+    /**
+     * Ingest the given files, returning the number of documents persisted.
+     * Unless [reindexAll] is set, documents in [existing] (by id) that already have chunks are not extracted or
+     * chunked again, although missing embeddings are still calculated.
+     * @param persist called for each finished document with its text file, always from the same coroutine
+     */
+    suspend fun ingest(
+        files: List<File>,
+        existing: Map<String, TextDoc> = emptyMap(),
+        reindexAll: Boolean = false,
+        monitor: AiTaskMonitor = IgnoreMonitor,
+        persist: (File, TextDoc) -> Unit
+    ): Int = coroutineScope {
+        val failed = AtomicInteger(0)
+        val discovered = Channel<File>(bufferSize)
+        val extracted = Channel<Item>(bufferSize)
+        val chunked = Channel<Item>(bufferSize)
+        val embedded = Channel<Item>(bufferSize)
+
+        launch {
+            files.forEach { discovered.send(it) }
+            discovered.close()
+        }
+        stage(discovered, extracted, extractConcurrency, Dispatchers.Default) {
+            extract(it, existing, reindexAll).also { item -> if (item == null) failed.incrementAndGet() }
+        }
+        stage(extracted, chunked, chunkConcurrency, Dispatchers.Default) { chunk(it) }
+        embedStage(chunked, embedded)
+
+        var persisted = 0
+        for (item in embedded) {
+            persist(item.textFile, item.doc)
+            persisted++
+            val done = persisted + failed.get()
+            monitor.progressUpdate("Ingested ${item.doc.metadata.id} ($done / ${files.size})", done.toDouble() / files.size)
+        }
+        if (failed.get() > 0)
+            warning<TextDocIngestPipeline>("Skipped ${failed.get()} of ${files.size} documents that could not be read")
+        info<TextDocIngestPipeline>("Ingested $persisted documents")
+        persisted
+    }
+
+    /** Launch workers that apply [op] to each input, closing the output once all inputs are processed. */
+    private fun <X, Y : Any> CoroutineScope.stage(input: ReceiveChannel<X>, output: SendChannel<Y>, concurrency: Int,
+                                                  dispatcher: CoroutineDispatcher, op: suspend (X) -> Y?) = launch {
+        coroutineScope {
+            repeat(concurrency) {
+                launch(dispatcher) {
+                    for (x in input)
+                        op(x)?.let { output.send(it) }
+                }
+            }
+        }
+        output.close()
+    }
+
+    /**
+     * Launch a worker that collects documents into groups and embeds each group together, closing the output once all
+     * inputs are processed. A group is embedded once its missing chunks fill a batch for each concurrent request, or it
+     * holds [bufferSize] documents, or there are no more inputs.
+     */
+    private fun CoroutineScope.embedStage(input: ReceiveChannel<Item>, output: SendChannel<Item>) = launch(Dispatchers.IO) {
+        val dispatcher = embeddings
+        if (dispatcher == null) {
+            for (item in input)
+                output.send(item)
+        } else {
+            val targetChunks = dispatcher.maxBatchSize * embedConcurrency
+            val group = mutableListOf<Item>()
+            var groupChunks = 0
+            while (true) {
+                val item = input.receiveCatching().getOrNull()
+                if (item != null) {
+                    group += item
+                    groupChunks += item.doc.chunks.count { it.getEmbeddingInfo(dispatcher.model.modelId) == null }
+                }
+                if (group.isNotEmpty() && (item == null || groupChunks >= targetChunks || group.size >= bufferSize)) {
+                    embed(dispatcher, group)
+                    group.forEach { output.send(it) }
+                    group.clear()
+                    groupChunks = 0
+                }
+                if (item == null)
+                    break
+            }
+        }
+        output.close()
+    }
+
+    /** Read text for a file, using and updating the adjacent text cache, or reuse an existing document. */
+    private fun extract(file: File, existing: Map<String, TextDoc>, reindexAll: Boolean): Item? {
+        val textFile = file.textCacheFile()
+        val prior = existing[textFile.name]
+        if (!reindexAll && prior != null && prior.chunks.isNotEmpty() && textFile.exists())
+            return Item(textFile, prior, null)
+        return try {
+            Item(textFile, textFile.createTextDoc(), file.fileToText(useCache = true))
+        } catch (x: CancellationException) {
+            throw x
+        } catch (x: Exception) {
+            warning<TextDocIngestPipeline>("Failed to extract text from ${file.absolutePath}: ${x.message}", x)
+            null
+        }
+    }
+
+    /** Chunk newly extracted text. */
+    private fun chunk(item: Item): Item {
+        val text = item.text ?: return item
+        item.doc.all = TextChunkRaw(text)
+        item.doc.chunks.clear()
+        item.doc.chunks.addAll(chunker.chunkText(text, maxChunkSize))
+        return Item(item.textFile, item.doc, null)
+    }
+
+    /**
+     * Calculate missing embeddings for a group of documents. If the group fails, each document is retried on its own,
+     * so one bad document does not leave the rest of the group without embeddings.
+     */
+    private suspend fun embed(dispatcher: EmbeddingBatchDispatcher, group: List<Item>) {
+        val pending = group.filter { item -> item.doc.chunks.any { it.getEmbeddingInfo(dispatcher.model.modelId) == null } }
+        if (pending.isEmpty())
+            return
+        try {
+            pending.forEach { if (it.doc.all == null) it.doc.all = TextChunkRaw(it.textFile.readText()) }
+            dispatcher.calculateMissingEmbeddings(pending.map { it.doc })
+        } catch (x: CancellationException) {
+            throw x
+        } catch (x: Exception) {
+            if (pending.size == 1)
+                warning<TextDocIngestPipeline>("Failed to calculate embeddings for ${pending[0].doc.metadata.id}: ${x.message}", x)
+            else
+                pending.forEach { embed(dispatcher, listOf(it)) }
+        }
+    }
+
+    /** A document moving through the pipeline, with its text while it still needs chunking. */
+    private class Item(val textFile: File, val doc: TextDoc, val text: String?)
+
+    companion object {
+        /** Default number of documents buffered between stages. */
+        const val DEFAULT_BUFFER_SIZE = 16
+        /** Default number of workers for CPU-bound stages. */
+        val DEFAULT_CPU_CONCURRENCY = Runtime.getRuntime().availableProcessors()
+    }
+
+}
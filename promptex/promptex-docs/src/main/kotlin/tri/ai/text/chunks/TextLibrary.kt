@@ -19,23 +19,34 @@
  */
 package tri.ai.text.chunks
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.JsonSerializer
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
 import com.fasterxml.jackson.module.kotlin.readValue
 import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import tri.util.fine
+import tri.util.warning
 import tri.util.io.LocalFileManager
-import tri.util.io.LocalFileManager.fileToText
 import tri.util.io.LocalFileManager.readMetadata
-import java.io.File
+import tri.util.io.writeAtomically
+import java.io.*
 import java.net.URISyntaxException
-import java.nio.charset.Charset
+import java.util.UUID
 
 /**
  * Collection of [TextDoc]s.
  */
+@JsonIgnoreProperties("snapshot")
 class TextLibrary(_id: String? = null) {
     /** JSON version. */
     val version = "1.0"
@@ -50,11 +61,67 @@ class TextLibrary(_id: String? = null) {
 
     companion object {
         /**
-         * Load a [TextLibrary] from a file.
+         * Load a [TextLibrary] from a file, reading one document at a time so the file never needs to be held in memory
+         * as text or as a JSON tree. The file may be text JSON or binary Smile, detected from the file's header (see
+         * [TextLibraryFormat]). Embedding vectors in a [TextLibraryVectorFile] next to the file are attached to each
+         * document as it is read. Changes saved to a [TextLibraryChangeLog] next to the file since it was last saved in full
+         * are applied after the file is read.
          * May automatically fix some paths if the folder with index file and all its referenced files have been copied from another location.
+         * @param onDoc optional callback invoked with each document after it has been read from the file (before changes are applied),
+         *   e.g. to index documents while the file is loading
+         * @param onProgress optional callback invoked with a status message and fractional progress (0.0–1.0)
          */
-        fun loadFrom(indexFile: File): TextLibrary =
-            loadFrom(indexFile.readText(Charset.defaultCharset()), indexFile.parentFile)
+        fun loadFrom(
+            indexFile: File,
+            onDoc: ((TextDoc) -> Unit)? = null,
+            onProgress: ((String, Double) -> Unit)? = null
+        ): TextLibrary {
+            val library = TextLibrary()
+            var attacher: TextLibraryVectorFile.VectorAttacher? = null
+            val length = indexFile.length().coerceAtLeast(1L)
+            var lastProgress = -1
+            var snapshotId: String? = null
+            CountingInputStream(BufferedInputStream(FileInputStream(indexFile))).use { input ->
+                mapperFor(TextLibraryFormat.detect(indexFile)).factory.createParser(input).use { parser ->
+                    if (parser.nextToken() != JsonToken.START_OBJECT)
+                        throw JsonParseException(parser, "Expected library object in $indexFile")
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        val field = parser.currentName()
+                        parser.nextToken()
+                        when (field) {
+                            "snapshot" -> snapshotId = parser.valueAsString
+                            "metadata" -> parser.readValueAs(TextLibraryMetadata::class.java).let {
+                                library.metadata.id = it.id
+                                library.metadata.path = it.path
+                            }
+                            "docs" -> {
+                                // the snapshot id is saved before the documents, so its vector file can be opened here
+                                attacher = TextLibraryVectorFile.openFor(indexFile, snapshotId)
+                                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    val doc = parser.readValueAs(TextDoc::class.java)
+                                    resolveDoc(doc, indexFile.absoluteFile.parentFile)
+                                    attacher?.attach(library.docs.size, doc)
+                                    library.docs += doc
+                                    onDoc?.invoke(doc)
+                                    val progress = (100 * input.count / length).toInt()
+                                    if (progress != lastProgress) {
+                                        lastProgress = progress
+                                        onProgress?.invoke("Loading ${indexFile.name}: ${library.docs.size} documents", progress / 100.0)
+                                    }
+                                }
+                            }
+                            else -> parser.skipChildren()
+                        }
+                    }
+                }
+            }
+            attacher?.finish(library.docs)
+            val format = TextLibraryFormat.detect(indexFile)
+            TextLibraryChangeLog.replay(TextLibraryChangeLog.changeLogFor(indexFile, format), format, snapshotId, library) {
+                resolveDoc(it, indexFile.absoluteFile.parentFile)
+            }
+            return library
+        }
 
         /**
          * Load a [TextLibrary] from text.
@@ -62,45 +129,240 @@ class TextLibrary(_id: String? = null) {
          */
         fun loadFrom(indexFile: String, parentFile: File): TextLibrary =
             MAPPER.readValue<TextLibrary>(indexFile).also {
-                it.docs.forEach { doc ->
-                    val uri = doc.metadata.path
-                    if (uri != null) {
-                        try {
-                            val file = LocalFileManager.fixPath(File(uri), parentFile)
-                            doc.metadata.path = file!!.toURI()
-                            doc.all = TextChunkRaw(file.fileToText(useCache = true))
-                            
-                            // Load metadata from .meta.json file if it exists
-                            val metadataFromFile = file.readMetadata()
-                            if (metadataFromFile.isNotEmpty()) {
-                                doc.metadata.mergeAll(metadataFromFile)
-                            }
-                        } catch (x: URISyntaxException) {
-                            fine<TextLibrary>("Failed to parse URI path syntax for ${doc.metadata}")
-                        } catch (x: NullPointerException) {
-                            fine<TextLibrary>("Failed to find file for ${doc.metadata}")
-                        } catch (x: IllegalArgumentException) {
-                            fine<TextLibrary>("Failed to parse URI path syntax for ${doc.metadata}")
-                        }
+                it.docs.forEach { doc -> resolveDoc(doc, parentFile) }
+            }
+
+        /** Fix the path of a document's file if needed, and load its text and any metadata saved next to the file. */
+        private fun resolveDoc(doc: TextDoc, parentFile: File) {
+            val uri = doc.metadata.path ?: return
+            try {
+                val file = LocalFileManager.fixPath(File(uri), parentFile)
+                doc.metadata.path = file!!.toURI()
+                doc.all = LazyTextChunkRaw(file)
+
+                // Load metadata from .meta.json file if it exists
+                val metadataFromFile = file.readMetadata()
+                if (metadataFromFile.isNotEmpty()) {
+                    doc.metadata.mergeAll(metadataFromFile)
+                }
+            } catch (x: URISyntaxException) {
+                fine<TextLibrary>("Failed to parse URI path syntax for ${doc.metadata}")
+            } catch (x: NullPointerException) {
+                fine<TextLibrary>("Failed to find file for ${doc.metadata}")
+            } catch (x: IllegalArgumentException) {
+                fine<TextLibrary>("Failed to parse URI path syntax for ${doc.metadata}")
+            }
+        }
+
+        /**
+         * Save a [TextLibrary] to a file, writing compact JSON one document at a time. The file is written to a temporary
+         * file first and then moved into place, so a failed save does not corrupt an existing file.
+         * If [useVectorFile] is true, embedding vectors are saved in a binary [TextLibraryVectorFile] next to the library file
+         * instead of inline in the JSON, and vectors in the library are replaced by memory-mapped views of that file.
+         * Otherwise, all vectors are saved inline. Vector files of earlier snapshots are removed once the library file is saved.
+         * By default, an existing file is saved in its current format, and a new file as JSON. The [format] may differ from
+         * the file's current format, e.g. to upgrade an existing JSON file to [TextLibraryFormat.SMILE].
+         * Any [TextLibraryChangeLog] for the file (in either format) is removed, since its changes are included in the saved file.
+         */
+        fun saveTo(index: TextLibrary, indexFile: File, useVectorFile: Boolean = false, format: TextLibraryFormat = TextLibraryFormat.detect(indexFile)) {
+            val snapshotId = UUID.randomUUID().toString()
+            // the new vector file is written under its own name, so the previous library file keeps its vectors until
+            // the new library file replaces it, and only then are older vector files removed
+            val vectorFile = TextLibraryVectorFile.vectorFileFor(indexFile, snapshotId)
+            if (useVectorFile && TextLibraryVectorFile.write(index, vectorFile, snapshotId).isNotEmpty()) {
+                writeStreaming(mapperFor(format, omitMappedVectors = true), index, indexFile, snapshotId)
+            } else {
+                writeStreaming(mapperFor(format), index, indexFile, snapshotId)
+            }
+            TextLibraryVectorFile.vectorFilesFor(indexFile).filter { it != vectorFile }.forEach {
+                if (!it.delete())
+                    warning<TextLibrary>("Unable to remove outdated vector file $it")
+            }
+            TextLibraryFormat.entries.map { TextLibraryChangeLog.changeLogFor(indexFile, it) }.forEach { changeLog ->
+                if (changeLog.exists() && !changeLog.delete())
+                    warning<TextLibrary>("Unable to remove outdated change log $changeLog")
+            }
+        }
+
+        /**
+         * Save changes to a library previously loaded from or saved to a file, by appending them to the file's
+         * [TextLibraryChangeLog], so the cost of saving depends on the size of the changes rather than the library.
+         * The log is written in the same format as the library file. Documents are identified by
+         * [TextLibraryChangeLog.key], and library metadata is always saved.
+         * The whole library is saved with [saveTo] instead (compacting the log) if the file does not exist or is in a
+         * different format, or if the log would grow beyond [COMPACT_RATIO] times the size of the file plus its vector file.
+         * @param updated documents that have been added or changed
+         * @param removedKeys keys of documents that have been removed, see [TextLibraryChangeLog.key]
+         * @return true if changes were appended to the log, false if the whole library was saved
+         */
+        fun saveChanges(
+            index: TextLibrary,
+            indexFile: File,
+            updated: Collection<TextDoc>,
+            removedKeys: Collection<String>,
+            useVectorFile: Boolean = false,
+            format: TextLibraryFormat = TextLibraryFormat.detect(indexFile)
+        ): Boolean {
+            val snapshotId = if (indexFile.exists() && TextLibraryFormat.detect(indexFile) == format) readSnapshotId(indexFile, format) else null
+            val changeLog = TextLibraryChangeLog.changeLogFor(indexFile, format)
+            val records = snapshotId?.let { TextLibraryChangeLog.encode(format, index.metadata, updated, removedKeys) }
+            val logSize = (if (changeLog.exists()) changeLog.length() else 0L) + (records?.sumOf { it.size.toLong() } ?: 0L)
+            val vectorFile = snapshotId?.let { TextLibraryVectorFile.vectorFileFor(indexFile, it) }?.takeIf { it.exists() }
+                ?: TextLibraryVectorFile.vectorFileFor(indexFile)
+            val librarySize = indexFile.length() + (if (vectorFile.exists()) vectorFile.length() else 0L)
+            if (snapshotId == null || logSize > COMPACT_RATIO * librarySize) {
+                saveTo(index, indexFile, useVectorFile, format)
+                return false
+            }
+            TextLibraryChangeLog.append(changeLog, format, snapshotId, records!!)
+            return true
+        }
+
+        /** Read the snapshot id at the start of a library file, or null if the file was saved without one. */
+        private fun readSnapshotId(indexFile: File, format: TextLibraryFormat): String? {
+            mapperFor(format).factory.createParser(indexFile).use { parser ->
+                if (parser.nextToken() != JsonToken.START_OBJECT)
+                    return null
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    val field = parser.currentName()
+                    parser.nextToken()
+                    when (field) {
+                        "snapshot" -> return parser.valueAsString
+                        "docs" -> return null
+                        else -> parser.skipChildren()
                     }
                 }
             }
+            return null
+        }
 
-        /** Save a [TextLibrary] to a file. */
-        fun saveTo(index: TextLibrary, indexFile: File) {
-            MAPPER.writerWithDefaultPrettyPrinter()
-                .writeValue(indexFile, index)
+        private fun writeStreaming(mapper: ObjectMapper, index: TextLibrary, indexFile: File, snapshotId: String) {
+            writeAtomically(indexFile) { out ->
+                mapper.factory.createGenerator(BufferedOutputStream(out)).use { gen ->
+                    gen.codec = mapper
+                    gen.writeStartObject()
+                    gen.writeStringField("version", index.version)
+                    gen.writeStringField("snapshot", snapshotId)
+                    gen.writeObjectField("metadata", index.metadata)
+                    gen.writeArrayFieldStart("docs")
+                    index.docs.forEach { gen.writeObject(it) }
+                    gen.writeEndArray()
+                    gen.writeEndObject()
+                    gen.flush()
+                    out.fd.sync()
+                }
+            }
         }
 
+        /** Maximum size of a change log relative to its library file, before the library is saved in full. */
+        const val COMPACT_RATIO = 0.5
+
         val MAPPER = ObjectMapper()
             .registerKotlinModule()
             .registerModule(JavaTimeModule())
             .registerModule(SimpleModule().apply {
                 addDeserializer(TextChunk::class.java, TextChunkDeserializer())
             })
+
+        /** Mapper that omits memory-mapped vectors from chunk attributes, used when vectors are saved in a [TextLibraryVectorFile]. */
+        private val VECTOR_FILE_MAPPER = MAPPER.copy()
+            .addMixIn(TextChunk::class.java, TextChunkVectorFileMixIn::class.java)
+
+        /** Mapper for the Smile binary format, with embedding vectors written as packed float arrays. */
+        private val SMILE_MAPPER = ObjectMapper(SmileFactory().disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT))
+            .registerKotlinModule()
+            .registerModule(JavaTimeModule())
+            .registerModule(SimpleModule().apply {
+                addDeserializer(TextChunk::class.java, TextChunkDeserializer())
+            })
+            .addMixIn(TextChunk::class.java, TextChunkSmileMixIn::class.java)
+
+        /** Smile mapper that also omits memory-mapped vectors, used when vectors are saved in a [TextLibraryVectorFile]. */
+        private val SMILE_VECTOR_FILE_MAPPER = SMILE_MAPPER.copy()
+            .addMixIn(TextChunk::class.java, TextChunkSmileVectorFileMixIn::class.java)
+
+        internal fun mapperFor(format: TextLibraryFormat, omitMappedVectors: Boolean = false) = when (format) {
+            TextLibraryFormat.JSON -> if (omitMappedVectors) VECTOR_FILE_MAPPER else MAPPER
+            TextLibraryFormat.SMILE -> if (omitMappedVectors) SMILE_VECTOR_FILE_MAPPER else SMILE_MAPPER
+        }
     }
 }
 
+/** Input stream that counts the bytes read, for reporting progress. */
+private class CountingInputStream(input: InputStream) : FilterInputStream(input) {
+    var count = 0L
+        private set
+
+    override fun read(): Int = super.read().also { if (it >= 0) count++ }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, len).also { if (it > 0) count += it }
+
+    override fun skip(n: Long): Long = super.skip(n).also { count += it }
+}
+
+/** Mix-in for serializing [TextChunk] attributes without memory-mapped vectors. */
+private abstract class TextChunkVectorFileMixIn {
+    @get:JsonSerialize(using = UnmappedAttributesSerializer::class)
+    abstract val attributes: TextAttributes
+}
+
+/** Mix-in for serializing [TextChunk] attributes with packed vectors. */
+private abstract class TextChunkSmileMixIn {
+    @get:JsonSerialize(using = PackedAttributesSerializer::class)
+    abstract val attributes: TextAttributes
+}
+
+/** Mix-in for serializing [TextChunk] attributes with packed vectors, without memory-mapped vectors. */
+private abstract class TextChunkSmileVectorFileMixIn {
+    @get:JsonSerialize(using = UnmappedPackedAttributesSerializer::class)
+    abstract val attributes: TextAttributes
+}
+
+/** Serializes chunk attributes, omitting any [MappedEmbedding] vectors (and the embeddings map itself, if left empty). */
+private class UnmappedAttributesSerializer : ChunkAttributesSerializer(omitMapped = true, packVectors = false)
+
+/** Serializes chunk attributes, writing embedding vectors as packed float32 binary values. */
+private class PackedAttributesSerializer : ChunkAttributesSerializer(omitMapped = false, packVectors = true)
+
+/** Serializes chunk attributes, omitting any [MappedEmbedding] vectors and writing others as packed float32 binary values. */
+private class UnmappedPackedAttributesSerializer : ChunkAttributesSerializer(omitMapped = true, packVectors = true)
+
+/** Serializes chunk attributes, optionally omitting [MappedEmbedding] vectors and writing vectors as packed binary values. */
+private abstract class ChunkAttributesSerializer(
+    private val omitMapped: Boolean,
+    private val packVectors: Boolean
+) : JsonSerializer<Map<String, Any?>>() {
+    override fun serialize(value: Map<String, Any?>, gen: JsonGenerator, serializers: SerializerProvider) {
+        gen.writeStartObject()
+        value.filtered().forEach { (k, v) ->
+            gen.writeFieldName(k)
+            if (packVectors && k == "embeddings" && v is Map<*, *>) {
+                gen.writeStartObject()
+                v.forEach { (model, vector) ->
+                    gen.writeFieldName(model.toString())
+                    if (vector is List<*> && vector.all { it is Number }) {
+                        @Suppress("UNCHECKED_CAST")
+                        gen.writeBinary(PackedEmbedding.pack(vector as List<Number>))
+                    } else {
+                        serializers.defaultSerializeValue(vector, gen)
+                    }
+                }
+                gen.writeEndObject()
+            } else {
+                serializers.defaultSerializeValue(v, gen)
+            }
+        }
+        gen.writeEndObject()
+    }
+
+    override fun isEmpty(provider: SerializerProvider, value: Map<String, Any?>) =
+        value.filtered().isEmpty()
+
+    private fun Map<String, Any?>.filtered() = if (!omitMapped) this else mapValues { (k, v) ->
+        if (k == "embeddings" && v is Map<*, *>) v.filterValues { it !is MappedEmbedding } else v
+    }.filter { (k, v) -> k != "embeddings" || (v as? Map<*, *>)?.isNotEmpty() != false }
+}
+
 /**
  * Metadata for a [TextLibrary].
  */
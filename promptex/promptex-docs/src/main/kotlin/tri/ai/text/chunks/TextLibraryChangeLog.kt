@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.core.JsonProcessingException
+import tri.util.warning
+import java.io.*
+import java.nio.ByteBuffer
+
+/**
+ * Append-only log of changes to a [TextLibrary] since its file was last saved in full, saved next to the library file
+ * in the same [TextLibraryFormat]. Each record is an [Entry] that updates (adds or replaces) a document, removes a
+ * document, or sets the library metadata. Documents are identified by [key], which is their path, or their
+ * [TextDocMetadata.id] if they have no path. The first record identifies the snapshot the log applies to, so a log
+ * left behind after the library file is rewritten is ignored.
+ *
+ * In [TextLibraryFormat.JSON], each record is a line of JSON. In [TextLibraryFormat.SMILE], each record is a Smile value
+ * preceded by its length as a 4-byte integer, with embedding vectors packed as in the library file.
+ *
+ * Each append is flushed to disk before returning, and a partially written record (e.g. after a crash) is skipped when
+ * the log is replayed, so the library file plus the log always describe a consistent library.
+ */
+object TextLibraryChangeLog {
+
+    /** Extension used for change log files in [TextLibraryFormat.JSON]. */
+    const val EXTENSION = "changes.jsonl"
+    /** Extension used for change log files in [TextLibraryFormat.SMILE]. */
+    const val EXTENSION_SMILE = "changes.smile"
+
+    /** Get the change log associated with a library file saved in the given format. */
+    fun changeLogFor(indexFile: File, format: TextLibraryFormat = TextLibraryFormat.detect(indexFile)) =
+        File(indexFile.absoluteFile.parentFile, "${indexFile.nameWithoutExtension}.${extension(format)}")
+
+    private fun extension(format: TextLibraryFormat) = when (format) {
+        TextLibraryFormat.JSON -> EXTENSION
+        TextLibraryFormat.SMILE -> EXTENSION_SMILE
+    }
+
+    /** Key identifying a document in the log, which is its path if it has one, since ids need not be unique. */
+    fun key(doc: TextDoc) = doc.metadata.path?.toString() ?: doc.metadata.id
+
+    /** Encode changes as log records. */
+    internal fun encode(format: TextLibraryFormat, metadata: TextLibraryMetadata, updated: Collection<TextDoc>,
+                        removedKeys: Collection<String>): List<ByteArray> =
+        (listOf(Entry(metadata = metadata)) + removedKeys.map { Entry(remove = it) } + updated.map { Entry(update = it) })
+            .map { record(format, it) }
+
+    private fun record(format: TextLibraryFormat, value: Any): ByteArray {
+        val bytes = TextLibrary.mapperFor(format).writeValueAsBytes(value)
+        return when (format) {
+            TextLibraryFormat.JSON -> bytes + NEWLINE
+            TextLibraryFormat.SMILE -> ByteBuffer.allocate(4 + bytes.size).putInt(bytes.size).put(bytes).array()
+        }
+    }
+
+    /**
+     * Append encoded records to the log for the given snapshot, starting a new log if the file is missing or belongs to
+     * a different snapshot.
+     */
+    internal fun append(file: File, format: TextLibraryFormat, snapshotId: String, records: List<ByteArray>) {
+        if (readSnapshotId(file, format) != snapshotId)
+            file.writeBytes(record(format, Header(snapshotId, VERSION)))
+        else
+            repairEnd(file, format)
+        FileOutputStream(file, true).use { out ->
+            records.forEach { out.write(it) }
+            out.flush()
+            out.fd.sync()
+        }
+    }
+
+    /** Terminate or remove a partially written record at the end of the log, if the last append was interrupted. */
+    private fun repairEnd(file: File, format: TextLibraryFormat) {
+        RandomAccessFile(file, "rw").use { raf ->
+            when (format) {
+                TextLibraryFormat.JSON -> if (raf.length() > 0) {
+                    raf.seek(raf.length() - 1)
+                    if (raf.read() != NEWLINE.toInt())
+                        raf.write(NEWLINE.toInt())
+                }
+                TextLibraryFormat.SMILE -> {
+                    var end = 0L
+                    while (end + 4 <= raf.length()) {
+                        raf.seek(end)
+                        val length = raf.readInt()
+                        if (length < 0 || end + 4 + length > raf.length())
+                            break
+                        end += 4 + length
+                    }
+                    if (end < raf.length())
+                        raf.setLength(end)
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply changes in the log to a library loaded from the snapshot with the given id, calling [resolve] on each
+     * updated document before it is added. Returns the number of entries applied.
+     */
+    internal fun replay(file: File, format: TextLibraryFormat, snapshotId: String?, library: TextLibrary,
+                        resolve: (TextDoc) -> Unit): Int {
+        if (!file.exists())
+            return 0
+        return BufferedInputStream(FileInputStream(file)).use { input ->
+            val records = records(input, format, file).iterator()
+            val header = if (records.hasNext()) readHeader(records.next(), format) else null
+            if (snapshotId == null || header == null || header.snapshot != snapshotId) {
+                warning<TextLibraryChangeLog>("Ignoring change log $file, which does not match its library file")
+                return 0
+            }
+            // logs written before documents were keyed by path identify documents by id
+            val keyOf: (TextDoc) -> String = if (header.version >= 2) { doc -> key(doc) } else { doc -> doc.metadata.id }
+            replay(records, format, file, library, keyOf, resolve)
+        }
+    }
+
+    private fun replay(records: Iterator<ByteArray>, format: TextLibraryFormat, file: File, library: TextLibrary,
+                       keyOf: (TextDoc) -> String, resolve: (TextDoc) -> Unit): Int {
+        // apply changes by position, so documents keep their order
+        val docs: MutableList<TextDoc?> = library.docs.toMutableList()
+        val positions = mutableMapOf<String, Int>()
+        docs.forEachIndexed { i, doc -> positions.putIfAbsent(keyOf(doc!!), i) }
+        var count = 0
+        records.forEach { record ->
+            val entry = try {
+                TextLibrary.mapperFor(format).readValue(record, Entry::class.java)
+            } catch (x: JsonProcessingException) {
+                warning<TextLibraryChangeLog>("Skipping incomplete entry in change log $file")
+                return@forEach
+            }
+            entry.metadata?.let {
+                library.metadata.id = it.id
+                library.metadata.path = it.path
+            }
+            entry.remove?.let { key ->
+                positions.remove(key)?.let { docs[it] = null }
+            }
+            entry.update?.let { doc ->
+                resolve(doc)
+                val key = keyOf(doc)
+                val i = positions[key]
+                if (i != null) {
+                    docs[i] = doc
+                } else {
+                    positions[key] = docs.size
+                    docs += doc
+                }
+            }
+            count++
+        }
+        library.docs.clear()
+        library.docs.addAll(docs.filterNotNull())
+        return count
+    }
+
+    /** Read the records of a log, stopping at a partially written record at the end of a Smile log. */
+    private fun records(input: InputStream, format: TextLibraryFormat, file: File): Sequence<ByteArray> = when (format) {
+        TextLibraryFormat.JSON -> input.bufferedReader().lineSequence().filter { it.isNotBlank() }.map { it.toByteArray() }
+        TextLibraryFormat.SMILE -> {
+            val data = DataInputStream(input)
+            generateSequence {
+                val length = try {
+                    data.readInt()
+                } catch (x: EOFException) {
+                    return@generateSequence null
+                }
+                val bytes = if (length < 0) null else ByteArray(length)
+                if (bytes == null || data.readNBytes(bytes, 0, length) < length) {
+                    warning<TextLibraryChangeLog>("Skipping incomplete entry in change log $file")
+                    null
+                } else bytes
+            }
+        }
+    }
+
+    /** Read the id of the snapshot a log applies to, or null if there is no valid log. */
+    private fun readSnapshotId(file: File, format: TextLibraryFormat): String? {
+        if (!file.exists())
+            return null
+        return BufferedInputStream(FileInputStream(file)).use { input ->
+            records(input, format, file).firstOrNull()?.let { readHeader(it, format) }?.snapshot
+        }
+    }
+
+    private fun readHeader(record: ByteArray, format: TextLibraryFormat) = try {
+        TextLibrary.mapperFor(format).readValue(record, Header::class.java)
+    } catch (x: JsonProcessingException) {
+        null
+    }
+
+    private const val NEWLINE = '\n'.code.toByte()
+    /** Version of the log, where version 2 identifies documents by [key] rather than by id. */
+    private const val VERSION = 2
+
+    /** First record of a change log. */
+    private class Header(val snapshot: String? = null, val version: Int = 1)
+
+    /** A single change, with exactly one non-null value. */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    internal class Entry(
+        val update: TextDoc? = null,
+        val remove: String? = null,
+        val metadata: TextLibraryMetadata? = null
+    )
+
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/** File formats for saving a [TextLibrary]. */
+enum class TextLibraryFormat {
+    /** Text JSON, with embedding vectors saved as arrays of decimal numbers. */
+    JSON,
+    /**
+     * Binary JSON in Jackson's Smile format, with embedding vectors saved as packed little-endian float32 arrays.
+     * Vectors are loaded as [PackedEmbedding]s, so values saved at full precision are rounded to float precision.
+     */
+    SMILE;
+
+    companion object {
+        /** Header at the start of every Smile file (`:)\n`). */
+        private val SMILE_HEADER = byteArrayOf(0x3A, 0x29, 0x0A)
+
+        /** Detect the format of a library file from its header, assuming [JSON] if the file is missing or empty. */
+        fun detect(file: File): TextLibraryFormat {
+            if (!file.isFile)
+                return JSON
+            val header = ByteArray(SMILE_HEADER.size)
+            val n = FileInputStream(file).use { it.readNBytes(header, 0, header.size) }
+            return if (n == header.size && header.contentEquals(SMILE_HEADER)) SMILE else JSON
+        }
+    }
+}
+
+/** Embedding vector held as a float array, as loaded from a [TextLibraryFormat.SMILE] file. */
+class PackedEmbedding(private val values: FloatArray) : AbstractList<Double>(), RandomAccess {
+
+    override val size
+        get() = values.size
+
+    override fun get(index: Int) = values[index].toDouble()
+
+    /** Get a single value as a float. */
+    fun getFloat(index: Int) = values[index]
+
+    companion object {
+        /** Pack a vector as little-endian float32 bytes. */
+        fun pack(vector: List<Number>): ByteArray {
+            val buffer = ByteBuffer.allocate(4 * vector.size).order(ByteOrder.LITTLE_ENDIAN)
+            when (vector) {
+                is PackedEmbedding -> vector.values.forEach { buffer.putFloat(it) }
+                is MappedEmbedding -> for (i in 0 until vector.size) buffer.putFloat(vector.getFloat(i))
+                else -> vector.forEach { buffer.putFloat(it.toFloat()) }
+            }
+            return buffer.array()
+        }
+
+        /** Unpack a vector from little-endian float32 bytes. */
+        fun unpack(bytes: ByteArray): PackedEmbedding {
+            val floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+            return PackedEmbedding(FloatArray(floats.remaining()).also { floats.get(it) })
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.util.io.writeAtomically
+import tri.util.warning
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+ * Binary "sidecar" storage for the embedding vectors of a [TextLibrary], saved next to the library's JSON file.
+ * Vectors are stored as contiguous little-endian float32 rows, grouped by embedding model, and are memory-mapped
+ * on load so they do not need to be held on the heap. Each model block has a row index mapping rows to
+ * (document index, chunk index) positions in the library.
+ *
+ * Each vector file is named by the snapshot id of the library file it was saved with (see [vectorFileFor]), and also
+ * records it in its header, so vectors are only attached to a library with the same snapshot id. A new vector file is
+ * written before the library file and older vector files are removed after it, so an interrupted save leaves the
+ * previous library file with its own vectors, and a vector file that is memory-mapped is never replaced.
+ *
+ * File layout (all values little-endian):
+ * ```
+ * int magic, int version, int docCount, int chunkCount, int modelCount, int snapshotLength, byte[] snapshot (padded to 4 bytes)
+ * per model: int idLength, byte[] id (padded to 4 bytes), int dims, int rows, long dataOffset, rows x (int doc, int chunk)
+ * per model: float32[rows x dims] at dataOffset
+ * ```
+ */
+object TextLibraryVectorFile {
+
+    /** Extension used for vector files. */
+    const val EXTENSION = "vec"
+
+    private const val MAGIC = 0x43455654 // "TVEC"
+    private const val VERSION = 2
+    private const val MAX_SEGMENT_BYTES = 1 shl 30
+
+    /** Get the vector file saved with the snapshot of a library file with the given id. */
+    fun vectorFileFor(indexFile: File, snapshotId: String) =
+        File(indexFile.absoluteFile.parentFile, "${indexFile.nameWithoutExtension}.$snapshotId.$EXTENSION")
+
+    /** Get the vector file of a library file saved before vector files were named by snapshot id. */
+    fun vectorFileFor(indexFile: File) =
+        File(indexFile.absoluteFile.parentFile, "${indexFile.nameWithoutExtension}.$EXTENSION")
+
+    /** Get all vector files of a library file, for any snapshot (snapshot ids are random UUIDs). */
+    fun vectorFilesFor(indexFile: File): List<File> {
+        val name = Regex("${Regex.escape(indexFile.nameWithoutExtension)}(\\.[0-9a-fA-F-]{36})?\\.$EXTENSION")
+        return indexFile.absoluteFile.parentFile.listFiles { f -> f.isFile && name.matches(f.name) }?.toList() ?: listOf()
+    }
+
+    //region WRITING
+
+    /**
+     * Write all fixed-size embedding vectors in the library to a vector file, replacing any existing file. The
+     * [snapshotId] must be the snapshot id of the library file saved with the vector file.
+     * After writing, vectors in the library are replaced by views of the memory-mapped file.
+     * Returns the set of model ids written, or an empty set if there was nothing to write or the file could not be written.
+     */
+    fun write(library: TextLibrary, file: File, snapshotId: String): Set<String> {
+        val blocks = collectBlocks(library)
+        if (blocks.isEmpty()) {
+            file.delete()
+            return emptySet()
+        }
+
+        try {
+            writeAtomically(file) { out ->
+                LittleEndianWriter(out.channel).apply {
+                    writeHeader(library, snapshotId, blocks)
+                    blocks.forEach { block ->
+                        block.vectors.forEach { v ->
+                            if (v is MappedEmbedding)
+                                v.copyTo(this)
+                            else
+                                v.forEach { putFloat(it.toFloat()) }
+                        }
+                    }
+                    flush()
+                }
+            }
+        } catch (x: IOException) {
+            warning<TextLibraryVectorFile>("Unable to write vector file $file: ${x.message}", x)
+            return emptySet()
+        }
+        attach(library, file, snapshotId, replaceExisting = true)
+        return blocks.map { it.modelId }.toSet()
+    }
+
+    /**
+     * Collects vectors by model, keeping only vectors matching the dimension of the first vector seen for that model.
+     * Any other mapped vectors are copied to the heap, since they will be saved inline.
+     */
+    private fun collectBlocks(library: TextLibrary): List<VectorBlock> {
+        val blocks = linkedMapOf<String, VectorBlock>()
+        library.docs.forEachIndexed { d, doc ->
+            doc.chunks.forEachIndexed { c, chunk ->
+                chunk.getEmbeddingInfo()?.entries?.forEach { entry ->
+                    val vector = entry.value
+                    if (vector.isNotEmpty()) {
+                        val block = blocks.getOrPut(entry.key) { VectorBlock(entry.key, vector.size) }
+                        if (vector.size == block.dims) {
+                            block.docIndices += d
+                            block.chunkIndices += c
+                            block.vectors += vector
+                        } else if (vector is MappedEmbedding) {
+                            // vectors not saved to the file need to be kept inline
+                            entry.setValue(vector.toList())
+                        }
+                    }
+                }
+            }
+        }
+        return blocks.values.toList()
+    }
+
+    private fun LittleEndianWriter.writeHeader(library: TextLibrary, snapshotId: String, blocks: List<VectorBlock>) {
+        val snapshot = snapshotId.toByteArray(Charsets.UTF_8)
+        putInt(MAGIC)
+        putInt(VERSION)
+        putInt(library.docs.size)
+        putInt(library.docs.sumOf { it.chunks.size })
+        putInt(blocks.size)
+        putInt(snapshot.size)
+        snapshot.forEach { putByte(it) }
+        repeat(padding(snapshot.size)) { putByte(0) }
+        var offset = 24L + snapshot.size + padding(snapshot.size) + blocks.sumOf { it.headerSize() }
+        blocks.forEach { block ->
+            val id = block.modelId.toByteArray(Charsets.UTF_8)
+            putInt(id.size)
+            id.forEach { putByte(it) }
+            repeat(padding(id.size)) { putByte(0) }
+            putInt(block.dims)
+            putInt(block.rows)
+            putLong(offset)
+            for (i in 0 until block.rows) {
+                putInt(block.docIndices[i])
+                putInt(block.chunkIndices[i])
+            }
+            offset += 4L * block.rows * block.dims
+        }
+    }
+
+    //endregion
+
+    //region READING
+
+    /**
+     * Memory-map a vector file and attach its vectors to chunks in the library, whose file has the given [snapshotId].
+     * Unless [replaceExisting] is true, vectors already present on a chunk (e.g. stored inline in JSON) take precedence
+     * over those in the file.
+     * Returns false if the file does not exist, was saved with a different snapshot of the library, or does not match
+     * the library's structure.
+     */
+    fun attach(library: TextLibrary, file: File, snapshotId: String?, replaceExisting: Boolean = false): Boolean {
+        val attacher = open(file, replaceExisting) ?: return false
+        if (!attacher.matches(snapshotId))
+            return false
+        if (attacher.docCount != library.docs.size || attacher.chunkCount != library.docs.sumOf { it.chunks.size }) {
+            warning<TextLibraryVectorFile>("Ignoring vector file that does not match library structure: $file")
+            return false
+        }
+        library.docs.forEachIndexed { i, doc -> attacher.attach(i, doc) }
+        return attacher.finish(library.docs)
+    }
+
+    /**
+     * Open the vector file for the snapshot of a library file with the given id, or a vector file saved before files
+     * were named by snapshot id, to attach vectors to documents while the library is being read. Returns null if there
+     * is no vector file for the snapshot.
+     */
+    internal fun openFor(indexFile: File, snapshotId: String?): VectorAttacher? {
+        val attacher = snapshotId?.let { open(vectorFileFor(indexFile, it)) } ?: open(vectorFileFor(indexFile)) ?: return null
+        return if (attacher.matches(snapshotId)) attacher else null
+    }
+
+    /**
+     * Open a vector file to attach vectors to documents one at a time, in library order, e.g. while the library is
+     * being read. Returns null if the file does not exist or has an unexpected format.
+     */
+    internal fun open(file: File, replaceExisting: Boolean = false): VectorAttacher? {
+        if (!file.exists())
+            return null
+        FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+            val header = channel.readAt(0, minOf(channel.size(), 24L).toInt())
+            if (header.limit() < 24 || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                warning<TextLibraryVectorFile>("Ignoring vector file with unexpected format: $file")
+                return null
+            }
+            val snapshotLength = header.getInt(20)
+            val snapshotId = ByteArray(snapshotLength).also { channel.readAt(24, snapshotLength).get(0, it) }.toString(Charsets.UTF_8)
+            var pos = 24L + snapshotLength + padding(snapshotLength)
+            val blocks = List(header.getInt(16)) {
+                val idLength = channel.readAt(pos, 4).getInt(0)
+                val meta = channel.readAt(pos + 4, idLength + padding(idLength) + 16)
+                val id = ByteArray(idLength).also { meta.get(0, it) }.toString(Charsets.UTF_8)
+                val dims = meta.getInt(idLength + padding(idLength))
+                val rows = meta.getInt(idLength + padding(idLength) + 4)
+                val dataOffset = meta.getLong(idLength + padding(idLength) + 8)
+                pos += 4 + idLength + padding(idLength) + 16
+                val index = channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * rows).order(ByteOrder.LITTLE_ENDIAN)
+                pos += 8L * rows
+                // map data in segments, since a single mapping is limited to 2GB
+                val rowsPerSegment = maxOf(1, MAX_SEGMENT_BYTES / (4 * maxOf(1, dims)))
+                val segments = List((rows + rowsPerSegment - 1) / rowsPerSegment) { s ->
+                    val segmentRows = minOf(rowsPerSegment, rows - s * rowsPerSegment)
+                    channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 4L * s * rowsPerSegment * dims, 4L * segmentRows * dims)
+                        .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+                }
+                MappedBlock(id, dims, rows, index, rowsPerSegment, segments)
+            }
+            return VectorAttacher(file, snapshotId, header.getInt(8), header.getInt(12), blocks, replaceExisting)
+        }
+    }
+
+    /** Vectors for a single model in a memory-mapped vector file. */
+    internal class MappedBlock(
+        val modelId: String,
+        val dims: Int,
+        val rows: Int,
+        /** Pairs of (document index, chunk index) for each row. */
+        val index: ByteBuffer,
+        val rowsPerSegment: Int,
+        val segments: List<FloatBuffer>
+    ) {
+        /** Next row to attach, since rows are ordered by document. */
+        var cursor = 0
+
+        fun docIndex(row: Int) = index.getInt(8 * row)
+        fun chunkIndex(row: Int) = index.getInt(8 * row + 4)
+        fun vector(row: Int) = MappedEmbedding(segments[row / rowsPerSegment], (row % rowsPerSegment) * dims, dims)
+    }
+
+    /** Attaches vectors from a vector file to documents as they are provided, in library order. */
+    internal class VectorAttacher(
+        private val file: File,
+        /** Snapshot id of the library file the vector file was saved with. */
+        val snapshotId: String,
+        val docCount: Int,
+        val chunkCount: Int,
+        private val blocks: List<MappedBlock>,
+        private val replaceExisting: Boolean
+    ) {
+        private var docsSeen = 0
+        private var chunksSeen = 0
+        private var valid = true
+
+        /** Check the vector file was saved with the library file with the given snapshot id, logging a warning if not. */
+        fun matches(librarySnapshotId: String?): Boolean {
+            if (librarySnapshotId == snapshotId)
+                return true
+            warning<TextLibraryVectorFile>("Ignoring vector file saved with a different snapshot of the library: $file")
+            return false
+        }
+
+        /** Attach vectors for the document at the given index, which must be one more than the previous index. */
+        fun attach(docIndex: Int, doc: TextDoc) {
+            if (docIndex != docsSeen++)
+                valid = false
+            chunksSeen += doc.chunks.size
+            if (!valid)
+                return
+            blocks.forEach { block ->
+                while (block.cursor < block.rows && block.docIndex(block.cursor) == docIndex) {
+                    val chunk = doc.chunks.getOrNull(block.chunkIndex(block.cursor))
+                    if (chunk == null) {
+                        valid = false
+                        return
+                    }
+                    chunk.attributes.putIfAbsent("embeddings", mutableMapOf<String, List<Double>>())
+                    val info = chunk.getEmbeddingInfo()!!
+                    if (replaceExisting || info[block.modelId] == null || info[block.modelId] is MappedEmbedding)
+                        info[block.modelId] = block.vector(block.cursor)
+                    block.cursor++
+                }
+            }
+        }
+
+        /**
+         * Check that all documents were provided and match the file's structure. If not, removes any vectors attached
+         * from the file and returns false.
+         */
+        fun finish(docs: List<TextDoc>): Boolean {
+            if (valid && docsSeen == docCount && chunksSeen == chunkCount && blocks.all { it.cursor == it.rows })
+                return true
+            warning<TextLibraryVectorFile>("Ignoring vector file that does not match library structure: $file")
+            docs.forEach { doc ->
+                doc.chunks.forEach { chunk -> chunk.getEmbeddingInfo()?.values?.removeIf { it is MappedEmbedding } }
+            }
+            return false
+        }
+    }
+
+    //endregion
+
+    /** Read a number of bytes at a given position into a little-endian heap buffer. */
+    private fun FileChannel.readAt(position: Long, size: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining() && read(buffer, position + buffer.position()) >= 0) { }
+        return buffer.flip() as ByteBuffer
+    }
+
+    private fun padding(length: Int) = (4 - length % 4) % 4
+
+    /** Vectors for a single model, with their positions in the library. */
+    private class VectorBlock(val modelId: String, val dims: Int) {
+        val docIndices = mutableListOf<Int>()
+        val chunkIndices = mutableListOf<Int>()
+        val vectors = mutableListOf<List<Double>>()
+        val rows
+            get() = vectors.size
+
+        fun headerSize() = 4L + modelId.toByteArray(Charsets.UTF_8).size.let { it + padding(it) } + 16L + 8L * rows
+    }
+
+    /** Buffered little-endian writer for a file channel. */
+    internal class LittleEndianWriter(private val channel: FileChannel) {
+        private val buffer = ByteBuffer.allocate(1 shl 16).order(ByteOrder.LITTLE_ENDIAN)
+
+        fun putByte(b: Byte) { ensure(1); buffer.put(b) }
+        fun putInt(i: Int) { ensure(4); buffer.putInt(i) }
+        fun putLong(l: Long) { ensure(8); buffer.putLong(l) }
+        fun putFloat(f: Float) { ensure(4); buffer.putFloat(f) }
+
+        private fun ensure(bytes: Int) {
+            if (buffer.remaining() < bytes)
+                flush()
+        }
+
+        fun flush() {
+            buffer.flip()
+            while (buffer.hasRemaining())
+                channel.write(buffer)
+            buffer.clear()
+        }
+    }
+
+}
+
+/**
+ * Read-only view of an embedding vector stored in a memory-mapped [FloatBuffer].
+ * Values are read on access, so the vector is never copied onto the heap.
+ */
+class MappedEmbedding(
+    private val buffer: FloatBuffer,
+    private val offset: Int,
+    override val size: Int
+) : AbstractList<Double>(), RandomAccess {
+
+    override fun get(index: Int): Double {
+        if (index < 0 || index >= size)
+            throw IndexOutOfBoundsException("Index $index out of bounds for size $size")
+        return buffer.get(offset + index).toDouble()
+    }
+
+    /** Get a single value as a float, without bounds checking beyond the underlying buffer. */
+    fun getFloat(index: Int) = buffer.get(offset + index)
+
+    /** Compute the dot product with the first [size] values of an array, reading directly from the buffer. */
+    fun dot(values: FloatArray): Float {
+        var sum = 0f
+        for (i in 0 until size)
+            sum += values[i] * buffer.get(offset + i)
+        return sum
+    }
+
+    /** Compute the squared Euclidean norm, reading directly from the buffer. */
+    fun squaredNorm(): Float {
+        var sum = 0f
+        for (i in 0 until size) {
+            val v = buffer.get(offset + i)
+            sum += v * v
+        }
+        return sum
+    }
+
+    /** Copy the values into a new array. */
+    fun toFloatArray() = FloatArray(size) { buffer.get(offset + it) }
+
+    internal fun copyTo(writer: TextLibraryVectorFile.LittleEndianWriter) {
+        for (i in 0 until size)
+            writer.putFloat(buffer.get(offset + i))
+    }
+}
@@ -56,7 +56,8 @@ class DocumentQaPlanner(val chatHistory: List<TextChatMessage>, val historySize:
      * @param chunksToRetrieve number of chunks to retrieve
      * @param minChunkSize minimum size of a chunk for use in a prompt
      * @param contextStrategy strategy for constructing the context
-     * @param contextChunks how many of the retrieved chunks to use for constructing the context
+     * @param contextChunks how many of the retrieved chunks to use for constructing the context, ignored by
+     *   [PackingTemplateJoiner], which uses as many chunks as fit in the chat model's context
      * @param maxTokens maximum number of tokens to generate
      * @param temp temperature for sampling
      * @param numResponses number of responses to generate
@@ -73,13 +74,13 @@ class DocumentQaPlanner(val chatHistory: List<TextChatMessage>, val historySize:
         numResponses: Int,
         snippetCallback: (List<EmbeddingMatch>) -> Unit
     ) = AiTaskBuilder.task("load-embeddings-file-and-calculate") { context ->
-        // trigger loading of embeddings file (with progress), the result is ignored
+        // load the embeddings file (with progress) before searching, without embedding a query
         val index = context.resource<EmbeddingIndex>(RESOURCE_EMBEDDING_INDEX)
             ?: error("Missing context resource: $RESOURCE_EMBEDDING_INDEX")
         val progressScope = CoroutineScope(currentCoroutineContext() + Job())
         index.onProgress = { msg, pct -> progressScope.launch { context.monitor.progressUpdate(msg, pct) } }
         try {
-            index.findMostSimilar("a", 1)
+            index.forRetrieval().warmUp()
         } finally {
             index.onProgress = null
             progressScope.cancel()
@@ -87,31 +88,40 @@ class DocumentQaPlanner(val chatHistory: List<TextChatMessage>, val historySize:
     }.task<List<EmbeddingMatch>>("find-relevant-sections") { _, context ->
         // retrieve the real matches for this question, then notify via the callback
         val index = context.resource<EmbeddingIndex>(RESOURCE_EMBEDDING_INDEX)!!
-        val matches = index.findMostSimilar(question, chunksToRetrieve)
+        val matches = index.forRetrieval().findMostSimilar(question, chunksToRetrieve)
         snippetCallback(matches)
-        val modelId = (index as? LocalFolderEmbeddingIndex)?.embeddingStrategy?.modelId
+        val localIndex = index as? LocalFolderEmbeddingIndex
+        val dims = matches.firstOrNull()?.chunkEmbedding?.size
+        val searchDims = localIndex?.searchPrefixDims?.takeIf { dims != null && it < dims }
         context.logTrace("find-relevant-sections", AiTaskTrace(
-            env = modelId?.let { AiEnvInfo.of(it) },
+            env = localIndex?.let { AiEnvInfo.of(AiModelInfo.embedding(it.embeddingStrategy.modelId, dims, searchDims)) },
             output = AiOutputInfo.listSingleOutput(matches)
         ))
         matches
     }.task<QuestionAnswerResult>("question-answer") { snippets, context ->
         val index = context.resource<EmbeddingIndex>(RESOURCE_EMBEDDING_INDEX)!!
         val chat = context.resource<TextChat>(RESOURCE_TEXT_CHAT)!!
-        val queryChunks = snippets.filter { it.chunkSize >= minChunkSize }.take(contextChunks)
-        val ctx = contextStrategy.constructContext(queryChunks)
+        val history = chatHistory.takeLast(historySize)
+        val ctx = if (contextStrategy is PackingTemplateJoiner) {
+            val reserved = history.map { it.content ?: "" } + prompt.template().fillInstruct(input = "", instruct = question)
+            contextStrategy.constructContext(snippets.filter { it.chunkSize >= minChunkSize }, chat, reserved, maxTokens)
+        } else {
+            contextStrategy.constructContext(snippets.filter { it.chunkSize >= minChunkSize }.take(contextChunks))
+        }
         val query = prompt.template().fillInstruct(input = ctx, instruct = question)
-        val messages = chatHistory.takeLast(historySize) + TextChatMessage.user(query)
+        val messages = history + TextChatMessage.user(query)
         val response = chat.chat(messages, MChatVariation.temp(temp), maxTokens, null, numResponses, null)
         val embeddingModel = index.embeddingStrategy.model
-        val questionEmbedding = embeddingModel.calculateEmbedding(question)
+        // reuses the question embedding calculated for retrieval
+        val questionQuery = snippets.firstOrNull()?.query ?: index.semanticQuery(question)
         val responseEmbeddings = response.values?.map {
             embeddingModel.calculateEmbedding(it.textContent())
         } ?: listOf()
         // add snippet response scores for first response embedding only
         if (responseEmbeddings.isNotEmpty()) {
+            val responseVector = EmbeddingVector.of(responseEmbeddings[0])
             snippets.forEach {
-                it.responseScore = cosineSimilarity(responseEmbeddings[0], it.chunkEmbedding).toFloat()
+                it.responseScore = responseVector.cosine(it.chunkEmbedding)
             }
         }
         val model = response.env?.model ?: AiModelInfo(chat.modelId)
@@ -128,7 +138,7 @@ class DocumentQaPlanner(val chatHistory: List<TextChatMessage>, val historySize:
             )
         )
         val result = QuestionAnswerResult(
-            query = SemanticTextQuery(question, questionEmbedding, embeddingModel.modelId),
+            query = questionQuery,
             matches = snippets,
             trace = responseWithSourceInput.mapOutput { AiOutput.Text(it.textContent()) },
             responseEmbeddings = responseEmbeddings
@@ -20,11 +20,14 @@
 package tri.ai.text.docs
 
 import com.aallam.openai.api.embedding.Embedding
-import tri.ai.core.EmbeddingModel
 import tri.ai.core.TextChat
 import tri.ai.core.AiModelProvider
 import tri.ai.core.tool.ExecContext
+import tri.ai.embedding.EmbeddingIndex
+import tri.ai.embedding.EmbeddingIndexRegistry
 import tri.ai.embedding.EmbeddingStrategy
+import tri.ai.embedding.FederatedEmbeddingIndex
+import tri.ai.embedding.RetrievalMode
 import tri.ai.embedding.LocalFolderEmbeddingIndex
 import tri.ai.pips.AiWorkflowExecutor
 import tri.ai.pips.AiWorkflowResult
@@ -37,7 +40,9 @@ import java.io.File
 /**
  * A local file driver for document Q&A, using plugins for completion and embedding models.
  * This driver requires a root folder, using the child folders as the set of available document sets.
- * Documents and embeddings within a folder are managed by [LocalFolderEmbeddingIndex].
+ * Documents and embeddings within a folder are managed by [LocalFolderEmbeddingIndex], which are cached across questions
+ * by [EmbeddingIndexRegistry]. If [searchFolders] is set, questions are answered from all of those folders together,
+ * using a [FederatedEmbeddingIndex].
  */
 class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
 
@@ -59,8 +64,21 @@ class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
     val docsFolder
         get() = if (folder == "") root else File(root, folder)
 
+    /** Subfolders to search together, instead of [folder]. If empty, only [folder] is searched. */
+    var searchFolders: List<String> = listOf()
+        set(value) {
+            require(value.all { it in folders }) { "Expected all search folders to be subfolders of root, but was $value." }
+            field = value
+        }
+    /** Maximum time to wait for results from each folder when searching several [searchFolders], or null to wait for all. */
+    var folderTimeoutMillis: Long? = null
+
     private lateinit var chatModelInst: TextChat
-    private lateinit var embeddingModelInst: EmbeddingModel
+    /**
+     * Strategy for embedding documents and retrieving chunks relevant to a question, whose [EmbeddingStrategy.retrieval]
+     * selects vector or hybrid retrieval. Setting [embeddingModel] keeps the retrieval mode.
+     */
+    lateinit var embeddingStrategy: EmbeddingStrategy
 
     override var chatModel
         get() = chatModelInst.modelId
@@ -68,17 +86,21 @@ class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
             chatModelInst = AiModelProvider.chatModels().first { it.modelId == value }
         }
     override var embeddingModel
-        get() = embeddingModelInst.modelId
+        get() = embeddingStrategy.modelId
         set(value) {
-            embeddingModelInst = AiModelProvider.embeddingModels().first { it.modelId == value }
+            val model = AiModelProvider.embeddingModels().first { it.modelId == value }
+            val retrieval = if (::embeddingStrategy.isInitialized) embeddingStrategy.retrieval else RetrievalMode.VECTOR
+            // the registry's chunk size is in characters, so the chunker does not count tokens
+            embeddingStrategy = EmbeddingStrategy(model, SmartTextChunker(), retrieval)
         }
     override var temp: Double = 1.0
     override var maxTokens: Int = 2000
     var templateId: String? = null
+    /** How the context for a question is filled from the retrieved document chunks. */
+    var contextPacking = ContextPacking.FIXED_COUNT
 
     private val prompt
         get() = PromptLibrary.INSTANCE.get(templateId ?: PROMPT_PREFIX)!!
-    private val joiner = GroupingTemplateJoiner("$JOINER_PREFIX/citations")
 
     override fun initialize() {
     }
@@ -93,7 +115,10 @@ class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
         historySize: Int,
         context: ExecContext
     ): AiWorkflowResult {
-        val index = LocalFolderEmbeddingIndex(docsFolder, EmbeddingStrategy(embeddingModelInst, SmartTextChunker()))
+        val index = if (searchFolders.isEmpty())
+            indexFor(docsFolder)
+        else
+            federatedIndexFor(searchFolders.map { indexFor(File(root, it)) })
         context.putResource(DocumentQaPlanner.RESOURCE_EMBEDDING_INDEX, index)
         context.putResource(DocumentQaPlanner.RESOURCE_TEXT_CHAT, chatModelInst)
         val planner = DocumentQaPlanner(listOf(), historySize).plan(
@@ -101,7 +126,7 @@ class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
             prompt = prompt,
             chunksToRetrieve = 8,
             minChunkSize = 50,
-            contextStrategy = joiner,
+            contextStrategy = contextPacking.joiner("$JOINER_PREFIX/citations"),
             contextChunks = 10,
             maxTokens = maxTokens,
             temp = temp,
@@ -112,6 +137,18 @@ class LocalDocumentQaDriver(val root: File) : DocumentQaDriver {
         return result.asWorkflowResult()
     }
 
+    /** Get the cached index for a folder, or its hybrid index if selected by [embeddingStrategy]. */
+    private fun indexFor(folder: File) =
+        EmbeddingIndexRegistry.get(folder, embeddingStrategy).forRetrieval(embeddingStrategy.retrieval)
+
+    /** Index last used to search [searchFolders], reused while it searches the same cached indexes. */
+    private var federatedIndex: FederatedEmbeddingIndex? = null
+
+    /** Get an index searching the given indexes together, reusing [federatedIndex] if possible. */
+    private fun federatedIndexFor(children: List<EmbeddingIndex>) =
+        federatedIndex?.takeIf { it.children == children && it.shardTimeoutMillis == folderTimeoutMillis }
+            ?: FederatedEmbeddingIndex(children, folderTimeoutMillis).also { federatedIndex = it }
+
     companion object {
         const val PROMPT_PREFIX = "docs-qa/answer"
         const val JOINER_PREFIX = "snippet-joiners"
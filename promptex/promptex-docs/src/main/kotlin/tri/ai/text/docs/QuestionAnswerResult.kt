@@ -21,8 +21,8 @@ package tri.ai.text.docs
 
 import tri.ai.core.TextChatMessage
 import tri.ai.embedding.EmbeddingMatch
+import tri.ai.embedding.EmbeddingVector
 import tri.ai.embedding.SemanticTextQuery
-import tri.ai.embedding.cosineSimilarity
 import tri.ai.prompt.trace.AiOutputInfo
 import tri.ai.prompt.trace.AiPromptTrace
 
@@ -37,7 +37,7 @@ data class QuestionAnswerResult(
 
     /** Calculates the similarity between the question and response. */
     val responseScore
-        get() = responseEmbeddings.map { cosineSimilarity(query.embedding, it).toFloat() }
+        get() = EmbeddingVector.of(query.embedding).let { q -> responseEmbeddings.map { q.cosine(EmbeddingVector.of(it)) } }
 
     /** Split a QA result into multiple QA results, one per output. */
     fun splitOutputs(): List<QuestionAnswerResult> {
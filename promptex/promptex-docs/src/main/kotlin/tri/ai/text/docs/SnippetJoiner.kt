@@ -19,9 +19,19 @@
  */
 package tri.ai.text.docs
 
+import tri.ai.core.AiModel
+import tri.ai.core.AiModelProvider
+import tri.ai.core.ModelIndex
+import tri.ai.core.TokenCounter
+import tri.ai.core.TokenEncodings
 import tri.ai.embedding.EmbeddingMatch
+import tri.ai.prompt.PromptDef
 import tri.ai.prompt.PromptLibrary
 import tri.ai.prompt.fill
+import tri.ai.text.chunks.LazyTextChunkRaw
+import tri.ai.text.chunks.TextChunkInDoc
+import tri.ai.text.chunks.TextDoc
+import java.text.BreakIterator
 
 /** Name used in snippet joiner template for matching text. */
 const val MATCHES_TEMPLATE = "matches"
@@ -97,6 +107,159 @@ class BulletedTemplateJoiner(_id: String) : SnippetJoiner(_id) {
     }
 }
 
+/**
+ * A joiner that fills the context up to a token budget rather than using a fixed number of matches, grouping snippets
+ * by document as in [GroupingTemplateJoiner]. Matches are added in order of descending score, adjacent or overlapping
+ * chunks of the same document are merged into one snippet, and the first match that does not fit is truncated at a
+ * sentence boundary. Tokens are counted with [tokenCounter] if set, or with the chat model's counter from its
+ * [ModelIndex], and are otherwise estimated at about four characters per token.
+ *
+ * The budget is [contextTokens] less the tokens reserved for the rest of the prompt, the chat history and the response.
+ * If [contextTokens] is null, the input token limit of the chat model is read from its [ModelIndex].
+ */
+class PackingTemplateJoiner(_id: String, val contextTokens: Int? = null, val tokenCounter: TokenCounter? = null) : SnippetJoiner(_id) {
+
+    override fun constructContext(matches: List<EmbeddingMatch>) =
+        constructContext(matches, contextTokens ?: DEFAULT_CONTEXT_TOKENS)
+
+    /** Constructs the context from as many of the matches as fit in the given number of tokens, counted with [counter]. */
+    fun constructContext(matches: List<EmbeddingMatch>, tokenBudget: Int, counter: TokenCounter = tokenCounter ?: TokenCounter.ESTIMATE): String {
+        val template = PromptLibrary.INSTANCE.get(id)!!
+        val emptyTokens = counter.countTokens(template.fill(MATCHES_TEMPLATE to listOf<NameText>()))
+        val separatorTokens = counter.countTokens(SNIPPET_SEPARATOR)
+        var remaining = tokenBudget - emptyTokens
+        val snippetsByDoc = LinkedHashMap<TextDoc, List<Snippet>>()
+        for (match in matches.sortedByDescending { it.queryScore }) {
+            val doc = match.document
+            val existing = snippetsByDoc[doc]
+            val overhead = if (existing == null) docTokens(template, match, counter) - emptyTokens else 0
+            val snippet = Snippet.of(match)
+            val merged = merge(doc, existing.orEmpty() + snippet)
+            val added = overhead + tokens(merged, counter, separatorTokens) - tokens(existing.orEmpty(), counter, separatorTokens)
+            if (added <= remaining) {
+                snippetsByDoc[doc] = merged
+                remaining -= added
+            } else {
+                val separator = if (existing == null) 0 else separatorTokens
+                val truncated = snippet.truncate(remaining - overhead - separator, counter)
+                if (truncated != null)
+                    snippetsByDoc[doc] = merge(doc, existing.orEmpty() + truncated)
+                break
+            }
+        }
+        val content = snippetsByDoc.entries.mapIndexed { i, (doc, snippets) ->
+            NameText(i + 1, doc.shortName(), doc.contextPrefix(), snippets.joinToString(SNIPPET_SEPARATOR) { it.text.trim() }.trim())
+        }
+        return template.fill(MATCHES_TEMPLATE to content)
+    }
+
+    /**
+     * Constructs the context for a prompt to [chat], reserving tokens for the prompt without the context, the chat
+     * history and the response. The context size is [contextTokens], or the input token limit of the chat model, and
+     * tokens are counted with [tokenCounter], or with the chat model's counter if not set. Model limits and encodings
+     * are read from the preconfigured [ModelIndex] of the model's provider, which does not call provider APIs.
+     */
+    fun constructContext(matches: List<EmbeddingMatch>, chat: AiModel, reserved: List<String>, maxResponseTokens: Int): String {
+        val modelIndex = AiModelProvider.modelIndex(chat)
+        val counter = tokenCounter ?: modelIndex?.tokenCounter(chat.modelId) ?: TokenEncodings.counterForModel(chat.modelId)
+        val context = contextTokens ?: modelIndex?.inputTokenLimit(chat.modelId) ?: DEFAULT_CONTEXT_TOKENS
+        val budget = context - reserved.sumOf { counter.countTokens(it) } - maxResponseTokens
+        return constructContext(matches, budget, counter)
+    }
+
+    private fun docTokens(template: PromptDef, match: EmbeddingMatch, counter: TokenCounter) =
+        counter.countTokens(template.fill(MATCHES_TEMPLATE to listOf(NameText(1, match.document.shortName(), match.document.contextPrefix(), ""))))
+
+    private fun tokens(snippets: List<Snippet>, counter: TokenCounter, separatorTokens: Int) =
+        snippets.sumOf { it.tokens(counter) } + maxOf(0, snippets.size - 1) * separatorTokens
+
+    /**
+     * Merge snippets whose ranges in the document overlap or are separated only by whitespace, ordering them by position.
+     * Overlapping snippets are joined from their own text. Gaps between snippets are only checked if the document text
+     * is in memory, so merging never loads a document from file.
+     */
+    private fun merge(doc: TextDoc, snippets: List<Snippet>): List<Snippet> {
+        if (snippets.size < 2)
+            return snippets
+        val docText by lazy { doc.all?.takeIf { it !is LazyTextChunkRaw || it.isLoaded }?.text(null) }
+        val (ranged, unranged) = snippets.partition { it.range != null }
+        val merged = mutableListOf<Snippet>()
+        ranged.sortedBy { it.range!!.first }.forEach { next ->
+            val last = merged.lastOrNull()
+            val lastRange = last?.range
+            val range = next.range!!
+            val gap = if (lastRange == null || range.first <= lastRange.last + 1) ""
+                else docText?.substring(lastRange.last + 1, range.first)?.takeIf { it.isBlank() }
+            when {
+                last == null || lastRange == null || gap == null -> merged += next
+                range.last <= lastRange.last -> { }
+                else -> merged[merged.lastIndex] = Snippet(last.text + gap + next.text.substring(maxOf(0, lastRange.last + 1 - range.first)), lastRange.first..range.last)
+            }
+        }
+        return merged + unranged
+    }
+
+    /** Text of a snippet, with its character range in the document if known. */
+    private class Snippet(val text: String, val range: IntRange?) {
+
+        private var tokenCount = -1
+
+        /** Number of tokens in the trimmed text, counted once per snippet. */
+        fun tokens(counter: TokenCounter): Int {
+            if (tokenCount < 0)
+                tokenCount = counter.countTokens(text.trim())
+            return tokenCount
+        }
+
+        /** Truncate to at most the given number of tokens, ending at a sentence boundary, or null if no sentence fits. */
+        fun truncate(maxTokens: Int, counter: TokenCounter): Snippet? {
+            if (maxTokens <= 0)
+                return null
+            val sentences = BreakIterator.getSentenceInstance()
+            sentences.setText(text)
+            var end = 0
+            var next = sentences.next()
+            while (next != BreakIterator.DONE && counter.countTokens(text, 0, next) <= maxTokens) {
+                end = next
+                next = sentences.next()
+            }
+            return if (end == 0) null else Snippet(text.substring(0, end), range?.let { it.first until it.first + end })
+        }
+
+        companion object {
+            fun of(match: EmbeddingMatch): Snippet {
+                val chunk = match.chunk
+                val range = if (chunk is TextChunkInDoc && match.document.all != null) chunk.range else null
+                return Snippet(match.chunkText, range)
+            }
+        }
+    }
+
+    companion object {
+        /** Context size used if none is configured or found for the chat model. */
+        const val DEFAULT_CONTEXT_TOKENS = 8192
+
+        private const val SNIPPET_SEPARATOR = "\n...\n"
+
+        private fun TextDoc.shortName() = browsable()?.shortNameWithoutExtension ?: metadata.id
+        private fun TextDoc.contextPrefix() = attributes[TEXT_DOC_ATTRIBUTE_CONTEXT_PREFIX] as? String ?: ""
+    }
+}
+
+/** How the context for a question is filled from the retrieved matches. */
+enum class ContextPacking {
+    /** Use a fixed number of the best matches. */
+    FIXED_COUNT,
+    /** Use as many matches as fit in the chat model's context, with [PackingTemplateJoiner]. */
+    TOKEN_BUDGET;
+
+    /** Get the joiner for this packing, using the given joiner template. */
+    fun joiner(templateId: String): SnippetJoiner = when (this) {
+        FIXED_COUNT -> GroupingTemplateJoiner(templateId)
+        TOKEN_BUDGET -> PackingTemplateJoiner(templateId)
+    }
+}
+
 /** Utility class for holding the name and text of a match. This is used when filling in joiner templates with Mustache templates. */
 private class NameText(val number: Int, val name: String, val prefix: String, val text: String) {
     constructor(index: Int, match: EmbeddingMatch) : this(index, match.document.browsable()?.shortNameWithoutExtension ?: match.document.metadata.id, "", match.chunkText.trim())
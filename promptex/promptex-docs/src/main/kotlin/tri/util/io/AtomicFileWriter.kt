@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io
+
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Write a file by writing a temporary file next to it and then moving it into place, atomically if supported, so a
+ * failed write does not corrupt an existing file. The temporary file is deleted if writing or moving fails.
+ * Returns the result of [write].
+ */
+internal fun <T> writeAtomically(file: File, write: (FileOutputStream) -> T): T {
+    val tmp = File(file.absoluteFile.parentFile, "${file.name}.tmp")
+    try {
+        val result = FileOutputStream(tmp).use(write)
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (x: AtomicMoveNotSupportedException) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        return result
+    } catch (x: Throwable) {
+        tmp.delete()
+        throw x
+    }
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io
+
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import tri.util.warning
+import java.io.File
+import java.io.IOException
+import java.net.URI
+import java.security.MessageDigest
+
+/**
+ * Tracks the size, modification time, and content hash of a set of files, so that added, modified, and removed files
+ * can be detected between runs. Content hashes are only computed when a file's size or modification time changes,
+ * so checking an unchanged file does not read it.
+ */
+class FileManifest(
+    /** Entries by file URI. */
+    val entries: MutableMap<String, FileManifestEntry> = mutableMapOf()
+) {
+
+    /** Status of a file compared to the manifest. */
+    enum class FileStatus { ADDED, MODIFIED, UNCHANGED }
+
+    /** True if the manifest has changed since it was loaded or saved. */
+    @get:JsonIgnore
+    var isChanged = false
+        private set
+
+    /** URIs of files in the manifest. */
+    fun uris() = entries.keys.map { URI(it) }
+
+    /** True if the file is tracked by the manifest. */
+    operator fun contains(file: File) = file.toURI().toString() in entries
+
+    /**
+     * Compare a file to its manifest entry. If only the size or modification time changed but the content did not,
+     * the entry is updated and the file is reported as unchanged.
+     */
+    fun check(file: File): FileStatus {
+        val entry = entries[file.toURI().toString()] ?: return FileStatus.ADDED
+        if (entry.size == file.length() && entry.lastModified == file.lastModified())
+            return FileStatus.UNCHANGED
+        val current = entryFor(file)
+        return if (current.hash == entry.hash) {
+            entries[file.toURI().toString()] = current
+            isChanged = true
+            FileStatus.UNCHANGED
+        } else {
+            FileStatus.MODIFIED
+        }
+    }
+
+    /** Record the current state of a file. */
+    fun update(file: File) {
+        entries[file.toURI().toString()] = entryFor(file)
+        isChanged = true
+    }
+
+    /** Remove a file from the manifest. */
+    fun remove(uri: URI) {
+        if (entries.remove(uri.toString()) != null)
+            isChanged = true
+    }
+
+    /** Remove all files from the manifest. */
+    fun clear() {
+        entries.clear()
+        isChanged = true
+    }
+
+    /** Save the manifest to a file. */
+    fun saveTo(file: File) {
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, this)
+        isChanged = false
+    }
+
+    companion object {
+        private val MAPPER = ObjectMapper().registerKotlinModule()
+
+        /** Load a manifest from a file, returning an empty manifest if the file does not exist or cannot be read. */
+        fun loadFrom(file: File): FileManifest {
+            if (!file.exists())
+                return FileManifest()
+            return try {
+                MAPPER.readValue<FileManifest>(file)
+            } catch (x: IOException) {
+                warning<FileManifest>("Unable to read file manifest $file: ${x.message}", x)
+                FileManifest()
+            }
+        }
+
+        /** Create a manifest entry from a file's current state. */
+        fun entryFor(file: File) =
+            FileManifestEntry(file.length(), file.lastModified(), hash(file))
+
+        /** Compute the SHA-256 hash of a file's content. */
+        fun hash(file: File): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            file.inputStream().use { input ->
+                val buffer = ByteArray(1 shl 16)
+                while (true) {
+                    val n = input.read(buffer)
+                    if (n < 0)
+                        break
+                    digest.update(buffer, 0, n)
+                }
+            }
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+    }
+
+}
+
+/** Size, modification time, and content hash of a file. */
+data class FileManifestEntry(val size: Long, val lastModified: Long, val hash: String)
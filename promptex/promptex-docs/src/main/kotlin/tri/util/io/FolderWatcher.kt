@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io
+
+import tri.util.fine
+import java.io.Closeable
+import java.io.File
+import java.io.FileFilter
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds.*
+import kotlin.concurrent.thread
+
+/**
+ * Watches a folder (not including subfolders) for files being created, modified, or deleted, and reports files
+ * accepted by [filter] to [onChange] from a background daemon thread. If events are lost because too many changes
+ * happened at once, [onChange] is called with the folder itself, indicating the whole folder should be rescanned.
+ */
+class FolderWatcher(
+    val folder: File,
+    private val filter: FileFilter,
+    private val onChange: (File) -> Unit
+) : Closeable {
+
+    private val service = folder.toPath().fileSystem.newWatchService()
+
+    init {
+        require(folder.isDirectory) { "Not a directory: $folder" }
+        folder.toPath().register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE)
+        thread(isDaemon = true, name = "folder-watcher-${folder.name}") { watch() }
+    }
+
+    private fun watch() {
+        try {
+            while (true) {
+                val key = service.take()
+                key.pollEvents().forEach { event ->
+                    if (event.kind() == OVERFLOW) {
+                        onChange(folder)
+                    } else {
+                        val file = File(folder, (event.context() as Path).toString())
+                        if (filter.accept(file))
+                            onChange(file)
+                    }
+                }
+                if (!key.reset())
+                    break
+            }
+        } catch (x: ClosedWatchServiceException) {
+            // closed, stop watching
+        } catch (x: InterruptedException) {
+            // interrupted, stop watching
+        }
+        fine<FolderWatcher>("Stopped watching $folder")
+    }
+
+    override fun close() {
+        service.close()
+    }
+
+}
@@ -21,6 +21,7 @@ package tri.util.io
 
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import tri.util.io.pdf.PdfPageIndex
 import tri.util.io.pdf.PdfUtils
 import tri.util.io.poi.WordDocUtils
 import tri.util.warning
@@ -89,6 +90,9 @@ object LocalFileManager {
         val name = nameWithoutExtension
         return File(parentFile, "$name.txt")
     }
+    /** Map a file to an associated PDF page index file. */
+    fun File.pageIndexFile() = File(parentFile, "$nameWithoutExtension.pages.json")
+
     /** Map a file to an associated metadata file. */
     fun File.metadataFile() = when {
         name.endsWith(".meta.json") -> this
@@ -120,14 +124,24 @@ object LocalFileManager {
     /**
      * Get text from a file by extension.
      * @param useCache if true, reads/writes to a .txt file in the same directory, creating it if it doesn't already exist
+     *   or is older than this file
      */
     fun File.fileToText(useCache: Boolean): String {
         val txtFile = textCacheFile()
-        if (useCache && txtFile.exists()) {
+        if (useCache && txtFile.exists() && (txtFile == this || txtFile.lastModified() >= lastModified())) {
             return txtFile.readText()
         }
+        if (extension == PDF) {
+            // text and metadata are read in a single pass over the document
+            val info = PdfUtils.pdfDocumentInfo(this)
+            if (useCache) {
+                txtFile.writeText(info.text)
+                writeMetadata(info.metadata.nonBlankValues())
+                PdfPageIndex.of(info).saveTo(pageIndexFile())
+            }
+            return info.text
+        }
         return when (extension) {
-            PDF -> PdfUtils.pdfText(this)
             DOC -> WordDocUtils.readDoc(this)
             DOCX -> WordDocUtils.readDocx(this)
             else -> readText()
@@ -139,6 +153,25 @@ object LocalFileManager {
         }
     }
 
+    /**
+     * Get the page index for a PDF, mapping pages to character ranges in its text cache.
+     * If the index is missing or older than the text cache (e.g. a cache written before indexes were saved), the PDF is
+     * parsed once to create it, provided the extracted text still matches the cache.
+     * Returns null if this is not a PDF, there is no current text cache, or the index cannot be created.
+     */
+    fun File.pdfPageIndex(): PdfPageIndex? {
+        val txtFile = textCacheFile()
+        if (extension.lowercase() != PDF || !txtFile.exists() || txtFile.lastModified() < lastModified())
+            return null
+        val indexFile = pageIndexFile()
+        if (indexFile.exists() && indexFile.lastModified() >= txtFile.lastModified())
+            PdfPageIndex.loadFrom(indexFile)?.let { return it }
+        val info = PdfUtils.pdfDocumentInfo(this)
+        if (info.text != txtFile.readText())
+            return null
+        return PdfPageIndex.of(info).also { it.saveTo(indexFile) }
+    }
+
     /**
      * Extract metadata from a given file and save it adjacent to the file so it can be easily accessed later.
      */
@@ -148,11 +181,14 @@ object LocalFileManager {
             DOC -> WordDocUtils.readDocMetadata(this)
             DOCX -> WordDocUtils.readDocxMetadata(this)
             else -> emptyMap()
-        }.filterValues { it !is String || it.isNotBlank() }
+        }.nonBlankValues()
         writeMetadata(props)
         return props
     }
 
+    /** Remove blank string values from metadata. */
+    private fun Map<String, Any>.nonBlankValues() = filterValues { it !is String || it.isNotBlank() }
+
     /**
      * Write metadata to a given file's associated metadata file.
      */
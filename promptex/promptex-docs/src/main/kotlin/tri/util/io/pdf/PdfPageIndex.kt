@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io.pdf
+
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import tri.util.warning
+import java.io.File
+import java.io.IOException
+
+/**
+ * Maps the pages of a PDF to character ranges in its extracted text, so that an offset into the text (e.g. the start of
+ * a chunk) can be resolved to a page by binary search, without parsing the PDF again.
+ * [tri.util.io.LocalFileManager] saves this next to the text cache when it extracts text from a PDF.
+ */
+class PdfPageIndex(
+    /** Offset of the first character of each page in the extracted text. */
+    val pageStarts: List<Int> = listOf(),
+    /** Offset after the last character of each page in the extracted text. */
+    val pageEnds: List<Int> = listOf(),
+    /** Length of the extracted text. */
+    val textLength: Int = 0
+) {
+
+    init {
+        require(pageStarts.size == pageEnds.size) { "Page starts and ends must have the same size" }
+    }
+
+    /** Number of pages. */
+    @get:JsonIgnore
+    val pageCount
+        get() = pageStarts.size
+
+    /** Get the range of characters in the extracted text for a given page (1-based). */
+    fun pageRange(pageNumber: Int) =
+        pageStarts[pageNumber - 1] until pageEnds[pageNumber - 1]
+
+    /**
+     * Get the page number (1-based) containing a character offset in the extracted text, or -1 if the offset is outside
+     * the text. Offsets in the separator between pages resolve to the preceding page.
+     */
+    fun pageNumberAt(offset: Int): Int {
+        if (offset !in 0 until textLength || pageCount == 0)
+            return -1
+        return pageIndexAt(pageStarts, offset) + 1
+    }
+
+    /** Get the range of pages (1-based) spanned by a range of characters in the extracted text. */
+    fun pageNumbers(range: IntRange) =
+        pageNumberAt(range.first)..pageNumberAt(range.last)
+
+    /** Save the index to a file. */
+    fun saveTo(file: File) {
+        MAPPER.writeValue(file, this)
+    }
+
+    companion object {
+        private val MAPPER = ObjectMapper().registerKotlinModule()
+
+        /**
+         * Get the index (0-based) of the page containing a character offset by binary search, given the sorted offsets
+         * of the first character of each page, or -1 if the offset precedes the first page or there are no pages.
+         */
+        internal fun pageIndexAt(pageStarts: List<Int>, offset: Int): Int {
+            val i = pageStarts.binarySearch(offset)
+            return if (i >= 0) i else -i - 2
+        }
+
+        /** Create an index from extracted document info, whose text is [PdfDocumentInfo.text]. */
+        fun of(info: PdfDocumentInfo) = PdfPageIndex(
+            info.pageOffsets,
+            info.pageOffsets.zip(info.pages) { offset, page -> offset + page.text.length },
+            info.text.length
+        )
+
+        /** Load an index from a file, returning null if the file does not exist or cannot be read. */
+        fun loadFrom(file: File): PdfPageIndex? {
+            if (!file.exists())
+                return null
+            return try {
+                MAPPER.readValue<PdfPageIndex>(file)
+            } catch (x: IOException) {
+                warning<PdfPageIndex>("Unable to read PDF page index $file: ${x.message}", x)
+                null
+            }
+        }
+    }
+
+}
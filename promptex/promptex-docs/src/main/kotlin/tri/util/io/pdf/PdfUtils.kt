@@ -19,13 +19,19 @@
  */
 package tri.util.io.pdf
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
 import org.apache.pdfbox.Loader
 import org.apache.pdfbox.filter.MissingImageReaderException
+import org.apache.pdfbox.io.MemoryUsageSetting
 import org.apache.pdfbox.pdmodel.PDDocument
 import org.apache.pdfbox.pdmodel.PDPage
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject
 import org.apache.pdfbox.pdmodel.interactive.action.PDActionURI
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineNode
 import org.apache.pdfbox.text.PDFTextStripper
 import org.apache.pdfbox.text.PDFTextStripperByArea
 import tri.util.io.pdf.PdfImageFinder
@@ -33,6 +39,8 @@ import tri.util.io.pdf.PdfImageInfo
 import tri.util.warning
 import java.awt.geom.Rectangle2D
 import java.io.File
+import java.io.IOException
+import java.io.StringWriter
 import java.time.Instant
 import java.time.LocalDateTime
 import java.time.ZoneId
@@ -41,9 +49,73 @@ import java.util.*
 /** Utilities for working with PDF files. */
 object PdfUtils {
 
+    /** Separator between pages when joining page text. */
+    const val PAGE_SEPARATOR = "\n\n\n"
+    /** Minimum number of pages for each thread when extracting page ranges in parallel. */
+    private const val MIN_PAGES_PER_THREAD = 25
+    /** Maximum depth of outline items, to guard against malformed outlines. */
+    private const val MAX_OUTLINE_DEPTH = 16
+    /** Number of documents whose page text is kept for [findTextInPdf]. */
+    private const val PAGE_TEXT_CACHE_SIZE = 8
+
+    /** Heap used for buffers of decoded streams of each document with the default [memoryUsage], in bytes. */
+    const val MAX_MAIN_MEMORY_BYTES = 64L * 1024 * 1024
+
+    /**
+     * Memory settings used when loading PDFs. Buffers for decoded streams are kept in heap up to
+     * [MAX_MAIN_MEMORY_BYTES], and in temporary files beyond that, so very large documents do not exhaust memory while
+     * typical documents avoid temporary file I/O.
+     */
+    var memoryUsage: MemoryUsageSetting = MemoryUsageSetting.setupMixed(MAX_MAIN_MEMORY_BYTES)
+
+    /** Page text of recently searched documents, keyed by path and modification time. */
+    private val pageTextCache = Collections.synchronizedMap(object : LinkedHashMap<Pair<String, Long>, List<String>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<String, Long>, List<String>>) =
+            size > PAGE_TEXT_CACHE_SIZE
+    })
+
+    /** Load a PDF using [memoryUsage]. */
+    private fun load(file: File) = Loader.loadPDF(file, memoryUsage.streamCache)
+
+    /**
+     * Extract page text, page offsets, metadata, and outline from a PDF, walking its pages once.
+     * If [threads] is more than one, page ranges of long documents are extracted in parallel, each with a separate
+     * document handle, since PDFBox documents are not thread-safe.
+     * @param findImages if true, also extracts images on each page, which has significant memory overhead
+     */
+    fun pdfDocumentInfo(file: File, findImages: Boolean = false, threads: Int = 1): PdfDocumentInfo = load(file).use { doc ->
+        val pageCount = doc.numberOfPages
+        val rangeCount = minOf(threads, pageCount / MIN_PAGES_PER_THREAD).coerceAtLeast(1)
+        val ranges = (0 until rangeCount).map {
+            (it * pageCount / rangeCount + 1)..((it + 1) * pageCount / rangeCount)
+        }
+        val pages = if (ranges.size == 1) {
+            doc.pageInfo(1..pageCount, findImages)
+        } else runBlocking {
+            ranges.mapIndexed { i, range ->
+                async(Dispatchers.Default) {
+                    if (i == 0) doc.pageInfo(range, findImages)
+                    else load(file).use { it.pageInfo(range, findImages) }
+                }
+            }.awaitAll().flatten()
+        }
+        PdfDocumentInfo(pages, doc.metadata(file), doc.outline())
+    }
+
     /** Extract metadata from PDF. */
-    fun pdfMetadata(file: File) = Loader.loadPDF(file).use {
-        it.documentInformation.let {
+    fun pdfMetadata(file: File) = load(file).use { it.metadata(file) }
+
+    /** Extract text from PDF. */
+    fun pdfText(file: File) =
+        pdfDocumentInfo(file).text
+
+    /** Extract text from PDF into pages. */
+    fun pdfPageInfo(file: File, findImages: Boolean) =
+        pdfDocumentInfo(file, findImages).pages
+
+    /** Get metadata from the document information dictionary. */
+    private fun PDDocument.metadata(file: File) =
+        documentInformation.let {
             mapOfNonNullValues(
                 "pdf.title" to it.title,
                 "pdf.author" to it.author,
@@ -66,15 +138,26 @@ object PdfUtils {
                 )
             )
         }
-    }
-
-    /** Extract text from PDF. */
-    fun pdfText(file: File) =
-        pdfPageInfo(file, findImages = false).joinToString("\n\n\n") { it.text }
 
-    /** Extract text from PDF into pages. */
-    fun pdfPageInfo(file: File, findImages: Boolean) = Loader.loadPDF(file).use { doc ->
-        (1..doc.numberOfPages).map { doc.pageInfo(it, findImages) }
+    /** Get the outline (bookmarks) of a document, flattened in order with nesting levels. */
+    private fun PDDocument.outline(): List<PdfOutlineItem> {
+        val result = mutableListOf<PdfOutlineItem>()
+        // page numbers by page, so each item is not resolved with a linear search of the page tree
+        val pageNumbers by lazy { pages.withIndex().associate { (i, page) -> page to i + 1 } }
+        fun walk(node: PDOutlineNode, level: Int) {
+            node.children().forEach { item ->
+                val pageNumber = try {
+                    item.findDestinationPage(this)?.let { pageNumbers[it] }
+                } catch (x: IOException) {
+                    null
+                }
+                result += PdfOutlineItem(item.title ?: "", pageNumber, level)
+                if (level < MAX_OUTLINE_DEPTH)
+                    walk(item, level + 1)
+            }
+        }
+        documentCatalog.documentOutline?.let { walk(it, 0) }
+        return result
     }
 
     //region GENERAL UTILS
@@ -91,21 +174,39 @@ object PdfUtils {
 
     //region PAGE UTILS
 
-    /** Extract text from a specific page of a PDF. */
-    private fun PDDocument.pageInfo(pageNumber: Int, findImages: Boolean): PdfPageInfo {
-        val page = getPage(pageNumber - 1)
-        val text = textOnPage(pageNumber)
-        val images = if (findImages) page.images() else listOf() // image extraction has significant memory overhead
-        val links = page.links()
-        return PdfPageInfo(pageNumber, text, images, links)
+    /** Extract text, links, and optionally images from a range of pages (1-based), using a single text stripper. */
+    private fun PDDocument.pageInfo(pageNumbers: IntRange, findImages: Boolean): List<PdfPageInfo> {
+        val result = mutableListOf<PdfPageInfo>()
+        PageTextStripper { pageNumber, page, text ->
+            val images = if (findImages) page.images() else listOf() // image extraction has significant memory overhead
+            result += PdfPageInfo(pageNumber, text, images, page.links())
+        }.extract(this, pageNumbers)
+        return result
     }
 
-    /** Extract text from a specific page of a PDF. */
-    private fun PDDocument.textOnPage(pageNumber: Int): String =
-        PDFTextStripper().apply {
-            startPage = pageNumber
-            endPage = pageNumber
-        }.getText(this)
+    /**
+     * Text stripper that reports the text of each page as it finishes, so a range of pages is processed in one pass.
+     * The text for each page matches what [PDFTextStripper.getText] returns for that page alone.
+     */
+    private class PageTextStripper(val onPage: (Int, PDPage, String) -> Unit) : PDFTextStripper() {
+        private val buffer = StringWriter()
+
+        fun extract(doc: PDDocument, pageNumbers: IntRange) {
+            startPage = pageNumbers.first
+            endPage = pageNumbers.last
+            writeText(doc, buffer)
+        }
+
+        override fun startPage(page: PDPage) {
+            buffer.buffer.setLength(0)
+            super.startPage(page)
+        }
+
+        override fun endPage(page: PDPage) {
+            super.endPage(page)
+            onPage(currentPageNo, page, buffer.toString())
+        }
+    }
 
     /** Get links on a specific page of a PDF. */
     private fun PDPage.links(): List<PdfLinkInfo> {
@@ -163,24 +264,26 @@ object PdfUtils {
      * Look for a matching text in PDF file, returning the page number if found.
      * Since the text may be split across pages, we check for matches of substrings of the text -- the first 20, the last 20,
      * and the middle 20, with the middle 20 weighted higher in case of ties.
+     * Page text is cached for recently searched files, so repeated lookups in the same file do not parse it again.
      */
     fun findTextInPdf(pdfFile: File, searchText: String): Int {
+        val key = pdfFile.absolutePath to pdfFile.lastModified()
+        val pages = pageTextCache[key] ?: pdfDocumentInfo(pdfFile).pages.map { it.text }.also { pageTextCache[key] = it }
+        return findTextInPages(pages, searchText)
+    }
+
+    /** Look for a matching text in a list of page text, returning the page number if found. See [findTextInPdf]. */
+    fun findTextInPages(pages: List<String>, searchText: String): Int {
         val mid20 = searchText.substring(searchText.length / 2 - 10, searchText.length / 2 + 10)
         val searchFor = listOf(searchText.take(20), mid20, mid20, searchText.takeLast(20))
         val partialMatches = mutableMapOf<Int, Pair<String, Int>>()
-        Loader.loadPDF(pdfFile).use { document ->
-            val stripper = PDFTextStripper()
-            val totalPages = document.numberOfPages
-            for (page in 1..totalPages) {
-                stripper.startPage = page
-                stripper.endPage = page
-                val textOnPage = stripper.getText(document)
-                val matchCount = searchFor.count { it in textOnPage }
-                if (matchCount == 4)
-                    return page
-                else if (matchCount > 0)
-                    partialMatches[page] = textOnPage to matchCount
-            }
+        pages.forEachIndexed { i, textOnPage ->
+            val page = i + 1
+            val matchCount = searchFor.count { it in textOnPage }
+            if (matchCount == 4)
+                return page
+            else if (matchCount > 0)
+                partialMatches[page] = textOnPage to matchCount
         }
         return if (partialMatches.isEmpty()) -1 else
             partialMatches.maxByOrNull { it.value.second }!!.key
@@ -188,6 +291,35 @@ object PdfUtils {
 
 }
 
+/** Information on a PDF document, with text by page, metadata, and outline. */
+data class PdfDocumentInfo(
+    val pages: List<PdfPageInfo>,
+    val metadata: Map<String, Any>,
+    val outline: List<PdfOutlineItem>
+) {
+    /** Text of all pages, separated by [PdfUtils.PAGE_SEPARATOR]. */
+    val text by lazy { pages.joinToString(PdfUtils.PAGE_SEPARATOR) { it.text } }
+
+    /** Character offset of the start of each page within [text]. */
+    val pageOffsets: List<Int> by lazy {
+        var offset = 0
+        pages.map { page -> offset.also { offset += page.text.length + PdfUtils.PAGE_SEPARATOR.length } }
+    }
+
+    /** Get the page number (1-based) containing the given character offset in [text], or -1 if there are no pages. */
+    fun pageNumberAt(offset: Int): Int {
+        require(offset in 0..text.length) { "Offset $offset is outside the document text" }
+        return pages.getOrNull(PdfPageIndex.pageIndexAt(pageOffsets, offset))?.pageNumber ?: -1
+    }
+}
+
+/** Item in a PDF outline, with its page number (if known) and nesting level (0 at top). */
+data class PdfOutlineItem(
+    val title: String,
+    val pageNumber: Int?,
+    val level: Int
+)
+
 /** Information on a PDF page. */
 data class PdfPageInfo(
     val pageNumber: Int,
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.text.chunks.LazyTextChunkRaw
+import tri.ai.text.chunks.TextChunkInDoc
+import tri.ai.text.chunks.TextDoc
+import java.io.File
+
+class Bm25IndexTest {
+
+    private fun doc(path: String, vararg texts: String): TextDoc {
+        val all = texts.joinToString(" ")
+        return TextDoc(path, all).apply {
+            metadata.path = File(path).toURI()
+            var start = 0
+            texts.forEach {
+                chunks += TextChunkInDoc(start until start + it.length)
+                start += it.length + 1
+            }
+        }
+    }
+
+    @Test
+    fun `test tokenize`() {
+        assertEquals(listOf("part", "xj-220", "xj", "220", "fits", "v1.2", "v1", "2"),
+            Bm25Index.tokenize("Part XJ-220 fits v1.2."))
+    }
+
+    @Test
+    fun `test search ranks rare terms`() {
+        val docs = listOf(
+            doc("a.txt", "The pump uses part XJ-220 for the seal.", "The pump is blue."),
+            doc("b.txt", "The pump is green.", "NASA designed the pump.")
+        )
+        val index = Bm25Index()
+        assertTrue(index.sync(docs))
+        assertFalse(index.sync(docs))
+        assertEquals(4, index.size)
+
+        val part = index.search("xj-220", 3)
+        assertEquals(1, part.size)
+        assertSame(docs[0].chunks[0], part[0].chunk)
+        assertSame(docs[1].chunks[1], index.search("nasa pump", 3).first().chunk)
+        assertEquals(3, index.search("pump", 3).size)
+        assertTrue(index.search("missing", 3).isEmpty())
+    }
+
+    @Test
+    fun `test incremental sync and reload`(@TempDir tempDir: File) {
+        val a = doc("a.txt", "Alpha chunk.", "Beta chunk.")
+        val b = doc("b.txt", "Gamma chunk.")
+        val index = Bm25Index()
+        index.sync(listOf(a, b))
+        val file = File(tempDir, "test.bm25")
+        index.saveTo(file)
+
+        val b2 = doc("b.txt", "Delta chunk.")
+        val reloaded = Bm25Index.loadFrom(file, listOf(a, b2))!!
+        assertEquals(2, reloaded.size)
+        assertTrue(reloaded.search("gamma", 3).isEmpty())
+        assertTrue(reloaded.sync(listOf(a, b2)))
+        assertEquals(3, reloaded.size)
+        assertSame(b2.chunks[0], reloaded.search("delta", 3).single().chunk)
+        assertSame(a.chunks[1], reloaded.search("beta", 3).single().chunk)
+    }
+
+    @Test
+    fun `test parameters are restored`(@TempDir tempDir: File) {
+        val docs = listOf(doc("a.txt", "Alpha chunk.", "Beta chunk."))
+        val file = File(tempDir, "test.bm25")
+        Bm25Index(k1 = 2.0, b = 0.5).apply { sync(docs) }.saveTo(file)
+        val reloaded = Bm25Index.loadFrom(file, docs)!!
+        assertEquals(2.0, reloaded.k1)
+        assertEquals(0.5, reloaded.b)
+    }
+
+    @Test
+    fun `test unreadable documents are skipped`(@TempDir tempDir: File) {
+        val missing = TextDoc("missing", LazyTextChunkRaw(File(tempDir, "missing.txt"))).apply {
+            metadata.path = File(tempDir, "missing.txt").toURI()
+            chunks += TextChunkInDoc(0..4)
+        }
+        val index = Bm25Index()
+        index.sync(listOf(doc("a.txt", "Alpha chunk."), missing))
+        assertEquals(1, index.size)
+        assertEquals(1, index.search("alpha", 3).size)
+    }
+
+    @Test
+    fun `test hybrid index finds lexical matches`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Replace filter FX-1138 every month.")
+        File(tempDir, "b.txt").writeText("General maintenance notes.")
+        File(tempDir, "c.txt").writeText("Other notes about the building.")
+        val strategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID)
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        val hybrid = HybridEmbeddingIndex(index, pruneVectorSearch = true)
+        hybrid.warmUp()
+        val matches = hybrid.findMostSimilar("fx-1138", 1)
+        assertEquals(File(tempDir, "a.txt").toURI(), matches.single().document.metadata.path)
+        assertTrue(index.lexicalIndexFile.exists())
+
+        File(tempDir, "d.txt").writeText("Spare FX-1138 filters are in storage.")
+        index.reindexNew()
+        assertEquals(2, index.findLexicalMatches("fx-1138", 5).size)
+        assertEquals(3, HybridEmbeddingIndex(index).findMostSimilar("notes", 3).size)
+    }
+
+}
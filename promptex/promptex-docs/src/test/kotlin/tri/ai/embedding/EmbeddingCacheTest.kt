@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.runBlocking
+import tri.ai.core.EmbeddingModel
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.io.RandomAccessFile
+
+class EmbeddingCacheTest {
+
+    @TempDir
+    lateinit var folder: File
+
+    @Test
+    fun testPersistAndReload() {
+        val file = File(folder, "test.cache")
+        EmbeddingCache(file).use {
+            it.put("model", null, "hello  world", listOf(0.5, -0.25))
+            it.put("model", 2, "hello world", listOf(1.0, 0.0))
+            assertEquals(listOf(0.5, -0.25), it.get("model", null, " hello world\n"))
+            assertNull(it.get("other", null, "hello world"))
+        }
+        EmbeddingCache(file).use {
+            assertEquals(2, it.size)
+            assertEquals(listOf(1.0, 0.0), it.get("model", 2, "hello world"))
+        }
+    }
+
+    @Test
+    fun testSharedCacheOffUnlessEnabled() {
+        if (System.getProperty(EmbeddingCache.CACHE_FILE_PROPERTY) == null)
+            assertNull(EmbeddingCache.shared)
+    }
+
+    @Test
+    fun testTruncatedRecordIgnored() {
+        val file = File(folder, "test.cache")
+        EmbeddingCache(file).use {
+            it.put("model", null, "a", listOf(1.0, 2.0))
+            it.put("model", null, "b", listOf(3.0, 4.0))
+        }
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 2) }
+        EmbeddingCache(file).use {
+            assertEquals(1, it.size)
+            assertEquals(listOf(1.0, 2.0), it.get("model", null, "a"))
+            assertNull(it.get("model", null, "b"))
+        }
+    }
+
+    @Test
+    fun testCompactionKeepsRecentEntries() {
+        val file = File(folder, "test.cache")
+        EmbeddingCache(file, maxMemoryEntries = 2, maxFileBytes = 200).use { cache ->
+            (0 until 10).forEach { cache.put("model", null, "text $it", listOf(it.toDouble(), 0.0)) }
+            assertTrue(file.length() <= 200)
+            assertTrue(cache.size < 10)
+            assertEquals(listOf(9.0, 0.0), cache.get("model", null, "text 9"))
+            assertNull(cache.get("model", null, "text 0"))
+        }
+    }
+
+    @Test
+    fun testKeyMismatchIsMiss() {
+        val file = File(folder, "test.cache")
+        val other = File(folder, "other.cache")
+        EmbeddingCache(other).use { it.put("model", null, "b", listOf(3.0, 4.0)) }
+        EmbeddingCache(file, maxMemoryEntries = 0).use { cache ->
+            cache.put("model", null, "a", listOf(1.0, 2.0))
+            RandomAccessFile(file, "rw").use { it.write(other.readBytes()) }
+            assertNull(cache.get("model", null, "a"))
+            assertEquals(0, cache.size)
+        }
+    }
+
+    @Test
+    fun testSharedFile() {
+        val file = File(folder, "test.cache")
+        EmbeddingCache(file).use { a ->
+            EmbeddingCache(file, maxFileBytes = 200).use { b ->
+                a.put("model", null, "a", listOf(1.0, 2.0))
+                b.put("model", null, "b", listOf(3.0, 4.0))
+                EmbeddingCache(file).use {
+                    assertEquals(listOf(1.0, 2.0), it.get("model", null, "a"))
+                    assertEquals(listOf(3.0, 4.0), it.get("model", null, "b"))
+                }
+
+                // compaction by one cache replaces the file, and the other picks up the new file before appending
+                (0 until 10).forEach { b.put("model", null, "text $it", listOf(it.toDouble(), 0.0)) }
+                a.put("model", null, "c", listOf(5.0, 6.0))
+                EmbeddingCache(file).use {
+                    assertEquals(listOf(5.0, 6.0), it.get("model", null, "c"))
+                    assertEquals(listOf(9.0, 0.0), it.get("model", null, "text 9"))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testCalculateEmbeddingCached() {
+        EmbeddingCache(File(folder, "test.cache")).use { cache ->
+            val model = MockEmbeddingModel()
+            var calls = 0
+            val counting = object : EmbeddingModel by model {
+                override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+                    calls += text.size
+                    return model.calculateEmbedding(text, outputDimensionality)
+                }
+            }
+            runBlocking {
+                assertEquals(3, counting.calculateEmbeddingCached(listOf("a", "b", "a "), cache = cache).size)
+                assertEquals(2, calls)
+                counting.calculateEmbeddingCached(listOf("a", "b", "c"), cache = cache)
+                assertEquals(3, calls)
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.TokenCounter
+import tri.ai.text.chunks.SmartTextChunker
+import java.io.File
+
+class EmbeddingIndexRegistryTest {
+
+    private val strategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel())
+
+    @AfterEach
+    fun cleanup() {
+        EmbeddingIndexRegistry.clear()
+        EmbeddingIndexRegistry.memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 4
+        EmbeddingIndexRegistry.watchFolders = false
+        EmbeddingIndexRegistry.rescanIntervalMillis = EmbeddingIndexRegistry.DEFAULT_RESCAN_INTERVAL_MILLIS
+    }
+
+    @Test
+    fun `test indexes are reused`(@TempDir tempDir: File) {
+        val index = EmbeddingIndexRegistry.get(tempDir, strategy)
+        assertSame(index, EmbeddingIndexRegistry.get(File(tempDir, "."), strategy))
+        assertNotSame(index, EmbeddingIndexRegistry.get(tempDir, strategy, maxChunkSize = 500))
+        assertEquals(500, EmbeddingIndexRegistry.get(tempDir, strategy, maxChunkSize = 500).maxChunkSize)
+        EmbeddingIndexRegistry.invalidate(tempDir)
+        assertEquals(0, EmbeddingIndexRegistry.size)
+    }
+
+    @Test
+    fun `test chunk size units are not shared`(@TempDir tempDir: File) {
+        val characters = EmbeddingStrategy(MockEmbeddingModel(), SmartTextChunker())
+        val tokens = EmbeddingStrategy(MockEmbeddingModel(), SmartTextChunker(TokenCounter.ESTIMATE))
+        val index = EmbeddingIndexRegistry.get(tempDir, characters)
+        assertSame(index, EmbeddingIndexRegistry.get(tempDir, EmbeddingStrategy(MockEmbeddingModel(), SmartTextChunker())))
+        assertNotSame(index, EmbeddingIndexRegistry.get(tempDir, tokens))
+    }
+
+    @Test
+    fun `test retrieval modes share an index`(@TempDir tempDir: File) {
+        val hybrid = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID)
+        val index = EmbeddingIndexRegistry.get(tempDir, hybrid)
+        assertSame(index, EmbeddingIndexRegistry.get(tempDir, strategy))
+        assertEquals(RetrievalMode.VECTOR, index.embeddingStrategy.retrieval)
+        assertEquals(1, EmbeddingIndexRegistry.size)
+    }
+
+    @Test
+    fun `test cached indexes watch their folders`(@TempDir tempDir: File) {
+        assertFalse(EmbeddingIndexRegistry.get(tempDir, strategy).isWatching)
+        EmbeddingIndexRegistry.clear()
+
+        EmbeddingIndexRegistry.watchFolders = true
+        val index = EmbeddingIndexRegistry.get(tempDir, strategy)
+        assertTrue(index.isWatching)
+        EmbeddingIndexRegistry.invalidate(tempDir)
+        assertFalse(index.isWatching)
+    }
+
+    @Test
+    fun `test unwatched indexes are rescanned after interval`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Some text.")
+        val index = EmbeddingIndexRegistry.get(tempDir, strategy)
+        index.warmUp()
+        File(tempDir, "b.txt").writeText("More text.")
+        EmbeddingIndexRegistry.get(tempDir, strategy).warmUp()
+        assertEquals(1, index.findMostSimilar("query", 5).size)
+
+        EmbeddingIndexRegistry.rescanIntervalMillis = 0
+        EmbeddingIndexRegistry.get(tempDir, strategy).warmUp()
+        assertEquals(2, index.findMostSimilar("query", 5).size)
+    }
+
+    @Test
+    fun `test evicted indexes stop watching`(@TempDir tempDir: File) = runTest {
+        EmbeddingIndexRegistry.watchFolders = true
+        val dirs = (1..2).map { File(tempDir, "d$it").apply { mkdirs(); File(this, "a.txt").writeText("Text $it") } }
+        val first = EmbeddingIndexRegistry.get(dirs[0], strategy)
+        first.calculateAndGetDocs()
+        assertTrue(first.isWatching)
+
+        EmbeddingIndexRegistry.memoryBudgetBytes = 0
+        EmbeddingIndexRegistry.get(dirs[1], strategy)
+        assertEquals(1, EmbeddingIndexRegistry.size)
+        assertFalse(first.isWatching)
+    }
+
+    @Test
+    fun `test index is reloaded after external change`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Some text for the index.")
+        val index = EmbeddingIndexRegistry.get(tempDir, strategy)
+        assertEquals(1, index.calculateAndGetDocs().size)
+        assertSame(index, EmbeddingIndexRegistry.get(tempDir, strategy))
+
+        index.indexFile.appendText(" ")
+        index.indexFile.setLastModified(index.indexFile.lastModified() + 2000)
+        assertNotSame(index, EmbeddingIndexRegistry.get(tempDir, strategy))
+    }
+
+    @Test
+    fun `test eviction keeps most recent index`(@TempDir tempDir: File) = runTest {
+        val dirs = (1..3).map { File(tempDir, "d$it").apply { mkdirs(); File(this, "a.txt").writeText("Text $it") } }
+        dirs.forEach { EmbeddingIndexRegistry.get(it, strategy).calculateAndGetDocs() }
+        assertEquals(3, EmbeddingIndexRegistry.size)
+
+        EmbeddingIndexRegistry.memoryBudgetBytes = 0
+        val last = EmbeddingIndexRegistry.get(dirs[1], strategy)
+        assertEquals(1, EmbeddingIndexRegistry.size)
+        assertSame(last, EmbeddingIndexRegistry.get(dirs[1], strategy))
+    }
+
+    @Test
+    fun `test memory estimate is updated when library changes`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Some text for the index.")
+        val index = EmbeddingIndexRegistry.get(tempDir, strategy)
+        assertEquals(0L, index.estimatedMemoryBytes())
+        index.calculateAndGetDocs()
+        val loaded = index.estimatedMemoryBytes()
+        assertTrue(loaded > 0L)
+
+        File(tempDir, "b.txt").writeText("More text for the index, in a second file.")
+        index.reindexNew()
+        assertTrue(index.estimatedMemoryBytes() > loaded)
+    }
+
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingModel
+import tri.ai.text.chunks.TextChunkRaw
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import java.io.File
+
+class FederatedEmbeddingIndexTest {
+
+    /** Embeds text by its counts of the letters 'a' and 'b'. */
+    private val model = object : EmbeddingModel {
+        override val modelId = "letters"
+        override val modelSource = "Test"
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?) =
+            text.map { t -> listOf(t.count { it == 'a' } + 0.01, t.count { it == 'b' } + 0.01) }
+    }
+    private val strategy = EmbeddingStrategy(model, MockEmbeddingModel())
+
+    private fun doc(id: String, vararg chunks: String) = TextDoc(id).apply {
+        chunks.forEach { this.chunks.add(TextChunkRaw(it)) }
+    }
+
+    private val docs = listOf(
+        doc("d1", "aaaa", "bbbb"),
+        doc("d2", "aab", "abbb"),
+        doc("d3", "ab", "bbba"),
+        doc("d4", "aaab")
+    )
+
+    @Test
+    fun `test merged results match single index`() = runBlocking {
+        val single = TextLibraryEmbeddingIndex(strategy, docs).findMostSimilar("a", 3)
+        val federated = FederatedEmbeddingIndex(listOf(
+            TextLibraryEmbeddingIndex(strategy, docs.take(2)),
+            TextLibraryEmbeddingIndex(strategy, docs.drop(2))
+        )).findMostSimilar("a", 3)
+        assertEquals(single.map { it.chunkText }, federated.map { it.chunkText })
+        assertEquals(listOf("aaaa", "aaab", "aab"), federated.map { it.chunkText })
+    }
+
+    @Test
+    fun `test slow and failing shards are skipped`() = runBlocking {
+        val slow = object : EmbeddingIndex(strategy) {
+            override suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch> {
+                delay(10_000)
+                return listOf()
+            }
+        }
+        val failing = object : EmbeddingIndex(strategy) {
+            override suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch> =
+                throw IllegalStateException("unavailable")
+        }
+        val index = FederatedEmbeddingIndex(listOf(slow, failing, TextLibraryEmbeddingIndex(strategy, docs)), shardTimeoutMillis = 200)
+        val start = System.currentTimeMillis()
+        assertEquals(listOf("aaaa", "aaab"), index.findMostSimilar("a", 2).map { it.chunkText })
+        assertTrue(System.currentTimeMillis() - start < 5_000)
+    }
+
+    @Test
+    fun `test blocking shards are skipped`() = runBlocking {
+        val blocking = object : EmbeddingIndex(strategy) {
+            override suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch> {
+                Thread.sleep(3_000)
+                return listOf()
+            }
+        }
+        val index = FederatedEmbeddingIndex(listOf(blocking, TextLibraryEmbeddingIndex(strategy, docs)), shardTimeoutMillis = 200)
+        val start = System.currentTimeMillis()
+        assertEquals(listOf("aaaa", "aaab"), index.findMostSimilar("a", 2).map { it.chunkText })
+        assertTrue(System.currentTimeMillis() - start < 2_000)
+    }
+
+    @Test
+    fun `test shard searches are cancelled with the caller`() = runBlocking {
+        val cancelled = CompletableDeferred<Unit>()
+        val waiting = object : EmbeddingIndex(strategy) {
+            override suspend fun findMostSimilar(query: String, n: Int): List<EmbeddingMatch> {
+                try {
+                    delay(10_000)
+                } finally {
+                    cancelled.complete(Unit)
+                }
+                return listOf()
+            }
+        }
+        val index = FederatedEmbeddingIndex(listOf(waiting, TextLibraryEmbeddingIndex(strategy, docs)), shardTimeoutMillis = 5_000)
+        val search = launch { index.findMostSimilar("a", 2) }
+        delay(100)
+        search.cancel()
+        assertNotNull(withTimeoutOrNull(1_000) { cancelled.await() })
+    }
+
+    @Test
+    fun `test hybrid children are merged by rank and reindexed`(@TempDir tempDir: File) = runBlocking {
+        val hybridStrategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID)
+        val hybrids = listOf("one", "two").map { name ->
+            val folder = File(tempDir, name).apply { mkdirs() }
+            File(folder, "a.txt").writeText("Filter FX-1138 in $name.")
+            File(folder, "b.txt").writeText("Filter FX-1138 and FX-1138 spares in $name.")
+            HybridEmbeddingIndex(LocalFolderEmbeddingIndex(folder, hybridStrategy))
+        }
+        val federated = FederatedEmbeddingIndex(hybrids)
+        assertTrue(federated.mergesByRank)
+        federated.warmUp()
+        val byChild = hybrids.map { h -> h.findMostSimilar("fx-1138", 2).map { it.chunkText } }
+        assertEquals(listOf(byChild[0][0], byChild[1][0], byChild[0][1], byChild[1][1]),
+            federated.findMostSimilar("fx-1138", 4).map { it.chunkText })
+
+        File(tempDir, "one/c.txt").writeText("New notes.")
+        federated.reindexNew()
+        assertEquals(3, hybrids[0].index.calculateAndGetDocs().size)
+    }
+
+    @Test
+    fun `test retrieval indexes are reused`(@TempDir tempDir: File) {
+        val hybrid = LocalFolderEmbeddingIndex(tempDir, EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID))
+        val vector = LocalFolderEmbeddingIndex(tempDir, EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel()))
+        assertSame(hybrid.hybridIndex, hybrid.forRetrieval())
+        assertSame(vector, vector.forRetrieval())
+
+        val federated = FederatedEmbeddingIndex(listOf(hybrid, vector))
+        val retrieval = federated.forRetrieval() as FederatedEmbeddingIndex
+        assertSame(retrieval, federated.forRetrieval())
+        assertEquals(listOf(hybrid.hybridIndex, vector), retrieval.children)
+        assertSame(retrieval, retrieval.forRetrieval())
+    }
+
+    @Test
+    fun `test unsupported children are not reindexed`() {
+        val other = object : EmbeddingIndex(strategy) {
+            override suspend fun findMostSimilar(query: String, n: Int) = listOf<EmbeddingMatch>()
+        }
+        val index = FederatedEmbeddingIndex(listOf(TextLibraryEmbeddingIndex(strategy, docs), other))
+        assertThrows(UnsupportedOperationException::class.java) { runBlocking { index.reindexNew() } }
+    }
+
+    @Test
+    fun `test shards are balanced and indexed in parallel`() = runBlocking {
+        val index = FederatedEmbeddingIndex.shards(docs, strategy, shardCount = 3)
+        assertEquals(3, index.children.size)
+        assertEquals(listOf(1, 1, 2), index.children.map { (it as TextLibraryEmbeddingIndex).size }.sorted())
+
+        index.reindexNew()
+        assertTrue(docs.all { doc -> doc.chunks.all { it.getEmbeddingInfo("letters") != null } })
+        assertEquals("bbbb", index.findMostSimilar("b", 1).single().chunkText)
+    }
+
+    @Test
+    fun `test children must share embedding model`() {
+        assertThrows(IllegalArgumentException::class.java) {
+            FederatedEmbeddingIndex(listOf(
+                TextLibraryEmbeddingIndex(strategy, docs),
+                TextLibraryEmbeddingIndex(EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel()), docs)
+            ))
+        }
+    }
+
+}
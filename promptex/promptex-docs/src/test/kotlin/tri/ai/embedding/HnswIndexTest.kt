@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextChunkInDoc
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.*
+import java.util.BitSet
+import kotlin.random.Random
+
+class HnswIndexTest {
+
+    private val random = Random(1)
+    private fun randomVector(n: Int) = EmbeddingVector.of(FloatArray(n) { random.nextFloat() - 0.5f })
+
+    private fun exactTop(vectors: List<EmbeddingVector>, query: EmbeddingVector, k: Int) =
+        vectors.indices.sortedByDescending { query.cosine(vectors[it]) }.take(k)
+
+    @Test
+    fun `test recall against exact search`() {
+        val vectors = List(2000) { randomVector(32) }
+        val index = HnswIndex(32, HnswConfig(m = 12, efConstruction = 100, efSearch = 64))
+        vectors.forEach { index.insert(it) }
+
+        var found = 0
+        repeat(20) {
+            val query = randomVector(32)
+            val expected = exactTop(vectors, query, 10).toSet()
+            val results = index.search(query, 10)
+            assertEquals(10, results.size)
+            assertTrue(results.zipWithNext().all { (a, b) -> a.score >= b.score })
+            found += results.count { it.row in expected }
+        }
+        val recall = found / 200.0
+        assertTrue(recall >= 0.9, "Recall $recall is too low")
+    }
+
+    @Test
+    fun `test deleted nodes are excluded`() {
+        val vectors = List(200) { randomVector(8) }
+        val index = HnswIndex(8)
+        vectors.forEach { index.insert(it) }
+        val nearest = index.search(vectors[5], 1)[0]
+        assertEquals(5, nearest.row)
+        assertEquals(1f, nearest.score, 1e-5f)
+
+        index.delete(5)
+        assertTrue(index.search(vectors[5], 10).none { it.row == 5 })
+        assertEquals(1, index.deletedCount)
+    }
+
+    @Test
+    fun `test filtered search returns only allowed nodes`() {
+        val vectors = List(1000) { randomVector(16) }
+        val index = HnswIndex(16)
+        vectors.forEach { index.insert(it) }
+        val query = randomVector(16)
+
+        // small subset is scored exactly
+        val few = BitSet().apply { (0 until 1000 step 50).forEach { set(it) } }
+        val expectedFew = few.stream().toArray().toList().sortedByDescending { query.cosine(vectors[it]) }.take(5)
+        assertEquals(expectedFew, index.search(query, 5, few).map { it.row })
+
+        // large subset searches the graph
+        val half = BitSet().apply { (0 until 1000 step 2).forEach { set(it) } }
+        val results = index.search(query, 10, half)
+        assertEquals(10, results.size)
+        assertTrue(results.all { it.row % 2 == 0 })
+        val expectedHalf = exactTop(vectors, query, 40).filter { it % 2 == 0 }.take(10)
+        assertTrue(results.count { it.row in expectedHalf } >= 8)
+    }
+
+    @Test
+    fun `test write and read graph`() {
+        val vectors = List(300) { randomVector(16) }
+        val index = HnswIndex(16)
+        vectors.forEach { index.insert(it) }
+        index.delete(7)
+
+        val bytes = ByteArrayOutputStream().also { index.writeTo(DataOutputStream(it)) }.toByteArray()
+        val read = HnswIndex.readFrom(DataInputStream(ByteArrayInputStream(bytes)), index.config) { vectors[it] }!!
+        assertEquals(300, read.size)
+        assertTrue(read.isDeleted(7))
+        val query = randomVector(16)
+        assertEquals(index.search(query, 10), read.search(query, 10))
+
+        val other = HnswIndex.readFrom(DataInputStream(ByteArrayInputStream(bytes)), HnswConfig(m = 8)) { vectors[it] }
+        assertNull(other, "Graphs built with different parameters should not be reused")
+    }
+
+    @Test
+    fun `test chunk index sync and reload`(@TempDir tempDir: File) {
+        val docs = List(20) { d ->
+            TextDoc("doc$d", "text of document $d").apply {
+                repeat(5) { c ->
+                    chunks.add(TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model", List(8) { random.nextDouble(-1.0, 1.0) }, EmbeddingPrecision.FULL)
+                    })
+                }
+            }
+        }
+        val index = ChunkHnswIndex("model")
+        assertTrue(index.sync(docs))
+        assertFalse(index.sync(docs))
+        assertEquals(100, index.size)
+
+        val file = File(tempDir, "test.hnsw")
+        index.saveTo(file)
+        val loaded = ChunkHnswIndex.loadFrom(file, "model", index.config, docs.drop(1))!!
+        assertEquals(95, loaded.size)
+        assertFalse(loaded.sync(docs.drop(1)))
+
+        val query = SemanticTextQuery("query", List(8) { random.nextDouble(-1.0, 1.0) }, "model")
+        val matches = loaded.search(query, 5)
+        assertEquals(5, matches.size)
+        assertTrue(matches.none { it.document.metadata.id == "doc0" })
+        assertNull(ChunkHnswIndex.loadFrom(file, "other-model", index.config, docs))
+    }
+
+    @Test
+    fun `test chunk index sync updates changed documents`() {
+        val docs = List(10) { d ->
+            TextDoc("doc$d", "text of document $d").apply {
+                repeat(3) {
+                    chunks.add(TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model", List(8) { random.nextDouble(-1.0, 1.0) }, EmbeddingPrecision.FULL)
+                    })
+                }
+            }
+        }
+        val index = ChunkHnswIndex("model")
+        assertTrue(index.sync(docs))
+
+        val embedding = List(8) { if (it == 0) 1.0 else 0.0 }
+        docs[3].chunks[1].putEmbeddingInfo("model", embedding, EmbeddingPrecision.FULL)
+        assertTrue(index.sync(docs))
+        assertFalse(index.sync(docs))
+        assertEquals(30, index.size)
+
+        val match = index.search(SemanticTextQuery("query", embedding, "model"), 1).first()
+        assertEquals("doc3", match.document.metadata.id)
+        assertSame(docs[3].chunks[1], match.chunk)
+    }
+
+}
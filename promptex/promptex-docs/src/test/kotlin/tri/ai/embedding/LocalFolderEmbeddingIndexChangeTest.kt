@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingModel
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import java.io.File
+
+class LocalFolderEmbeddingIndexChangeTest {
+
+    private val strategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel())
+
+    /** Model that fails while [fail] is set, e.g. to simulate a rate limit. */
+    private class FailingEmbeddingModel : EmbeddingModel {
+        override val modelId = "failing-${System.nanoTime()}"
+        override val modelSource = "Test"
+        var fail = false
+
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+            if (fail)
+                throw IllegalStateException("Rate limit exceeded")
+            return text.map { listOf(1.0) }
+        }
+    }
+
+    private suspend fun LocalFolderEmbeddingIndex.docText(name: String) =
+        calculateAndGetDocs().firstOrNull { it.metadata.path == File(rootDir, name).toURI() }?.all?.text
+
+    @Test
+    fun `test modified and removed files are reindexed`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("First version.")
+        File(tempDir, "b.txt").writeText("Another document.")
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        index.reindexNew()
+        assertEquals(2, index.calculateAndGetDocs().size)
+        assertTrue(index.manifestFile.exists())
+
+        File(tempDir, "a.txt").apply {
+            writeText("Second version, which is longer.")
+            setLastModified(lastModified() + 2000)
+        }
+        File(tempDir, "b.txt").delete()
+        index.reindexNew()
+        assertEquals(1, index.calculateAndGetDocs().size)
+        assertEquals("Second version, which is longer.", index.docText("a.txt"))
+
+        // a new index should load the manifest and see no changes
+        val reloaded = LocalFolderEmbeddingIndex(tempDir, strategy)
+        val saved = index.indexFile.lastModified()
+        reloaded.reindexNew()
+        assertEquals(saved, reloaded.indexFile.lastModified())
+        assertEquals("Second version, which is longer.", reloaded.docText("a.txt"))
+    }
+
+    @Test
+    fun `test files are retried if embedding fails`(@TempDir tempDir: File) = runTest {
+        val model = FailingEmbeddingModel()
+        File(tempDir, "a.txt").writeText("First version ${System.nanoTime()}.")
+        val index = LocalFolderEmbeddingIndex(tempDir, EmbeddingStrategy(model, MockEmbeddingModel()))
+        index.reindexNew()
+        val manifest = index.manifestFile.readText()
+
+        File(tempDir, "a.txt").apply {
+            writeText("Second version ${System.nanoTime()}.")
+            setLastModified(lastModified() + 2000)
+        }
+        File(tempDir, "b.txt").writeText("A new document ${System.nanoTime()}.")
+        model.fail = true
+        assertTrue(runCatching { index.reindexNew() }.isFailure)
+        // the previous document is kept, and the manifest does not mark the changed files as indexed
+        assertEquals(1, index.calculateAndGetDocs().size)
+        assertEquals(manifest, index.manifestFile.readText())
+
+        model.fail = false
+        index.reindexNew()
+        val docs = index.calculateAndGetDocs()
+        assertEquals(2, docs.size)
+        assertTrue(docs.all { doc -> doc.chunks.all { it.getEmbeddingInfo(model.modelId) != null } })
+    }
+
+    @Test
+    fun `test new files are saved to change log`(@TempDir tempDir: File) = runTest {
+        repeat(20) { File(tempDir, "doc$it.txt").writeText("Text of document $it.") }
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        index.reindexNew()
+        val saved = index.indexFile.readBytes()
+
+        File(tempDir, "new.txt").writeText("A new document.")
+        File(tempDir, "doc0.txt").delete()
+        index.reindexNew()
+        assertTrue(index.changeLogFile.exists())
+        assertArrayEquals(saved, index.indexFile.readBytes())
+
+        val reloaded = LocalFolderEmbeddingIndex(tempDir, strategy)
+        assertEquals(20, reloaded.calculateAndGetDocs().size)
+        assertEquals("A new document.", reloaded.docText("new.txt"))
+        assertNull(reloaded.docText("doc0.txt"))
+    }
+
+    @Test
+    fun `test queries do not scan the file system`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Some text.")
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        assertEquals(0, index.findMostSimilar("query", 5).size)
+        index.warmUp()
+        assertEquals(1, index.findMostSimilar("query", 5).size)
+
+        File(tempDir, "b.txt").writeText("More text.")
+        index.warmUp()
+        assertEquals(1, index.findMostSimilar("query", 5).size)
+        index.requestRescan()
+        assertEquals(1, index.findMostSimilar("query", 5).size)
+        index.warmUp()
+        assertEquals(2, index.findMostSimilar("query", 5).size)
+    }
+
+    @Test
+    fun `test watcher reindexes changed files`(@TempDir tempDir: File) {
+        File(tempDir, "a.txt").writeText("Some text.")
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        runBlocking {
+            index.reindexNew()
+            val job = index.startWatching(this + Dispatchers.IO, debounceMillis = 50)
+            assertTrue(index.isWatching)
+            File(tempDir, "b.txt").writeText("More text.")
+            withTimeout(20_000) {
+                while (index.calculateAndGetDocs().size < 2)
+                    delay(100)
+            }
+            index.stopWatching()
+            job.join()
+            assertFalse(index.isWatching)
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingModel
+import tri.ai.embedding.MetadataFilter.Companion.AUTHOR
+import tri.ai.embedding.MetadataFilter.Companion.PATH
+import tri.ai.text.chunks.TextChunkRaw
+import tri.ai.text.chunks.TextDoc
+import java.io.File
+import java.net.URI
+import java.time.LocalDate
+import java.time.LocalDateTime
+
+class MetadataFilterTest {
+
+    /** Embeds text by its counts of the letters 'a' and 'b'. */
+    private val model = object : EmbeddingModel {
+        override val modelId = "letters"
+        override val modelSource = "Test"
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?) =
+            text.map { t -> listOf(t.count { it == 'a' } + 0.01, t.count { it == 'b' } + 0.01) }
+    }
+    private val strategy = EmbeddingStrategy(model, MockEmbeddingModel())
+
+    private fun doc(id: String, author: String, date: LocalDate?, vararg chunks: String) = TextDoc(id).apply {
+        metadata.author = author
+        metadata.dateTime = date?.atStartOfDay()
+        metadata.path = URI.create("file:/docs/${author.lowercase()}/$id.txt")
+        chunks.forEach { this.chunks.add(TextChunkRaw(it)) }
+    }
+
+    private val docs = listOf(
+        doc("d1", "Alice", LocalDate.of(2024, 1, 5), "aaaa", "bbbb"),
+        doc("d2", "Bob", LocalDate.of(2024, 6, 1), "aab", "abbb"),
+        doc("d3", "Alice", null, "ab", "bbba"),
+        doc("d4", "Carol", LocalDate.of(2025, 3, 9), "aaab")
+    ).also { it[1].chunks[1].attributes["section"] = "summary" }
+
+    private val filters = listOf(
+        MetadataFilter.Equals(AUTHOR, " alice"),
+        MetadataFilter.AnyOf(AUTHOR, listOf("bob", "Carol")),
+        MetadataFilter.Prefix(PATH, "file:/docs/alice/"),
+        MetadataFilter.DateRange(LocalDate.of(2024, 2, 1), null),
+        MetadataFilter.DateRange(null, LocalDate.of(2024, 6, 1)),
+        MetadataFilter.Equals("section", "Summary"),
+        !MetadataFilter.Equals(AUTHOR, "alice") and MetadataFilter.DateRange(to = LocalDate.of(2024, 12, 31)),
+        MetadataFilter.Equals(AUTHOR, "carol") or MetadataFilter.Equals(MetadataFilter.DATE, "2024-01-05"),
+        MetadataFilter.Equals(AUTHOR, "nobody")
+    )
+
+    @Test
+    fun `test bitmap index matches filter`() {
+        val index = MetadataBitmapIndex.of(docs)
+        val rows = docs.flatMap { doc -> doc.chunks.map { doc to it } }
+        assertEquals(rows.size, index.size)
+        filters.forEach { filter ->
+            val expected = rows.indices.filter { rows[it].let { (doc, chunk) -> filter.matches(doc, chunk) } }
+            val actual = index.rows(filter).stream().toArray().toList()
+            assertEquals(expected, actual, "Rows for $filter")
+        }
+        assertEquals(listOf(0, 1, 4, 5), index.rows(filters[0]).stream().toArray().toList())
+        assertEquals(listOf(3), index.rows(filters[5]).stream().toArray().toList())
+    }
+
+    @Test
+    fun `test bitmap index rows added out of order`() {
+        val rows = docs.flatMap { doc -> doc.chunks.map { doc to it } }
+        val index = MetadataBitmapIndex()
+        listOf(4, 0, 6, 2, 1, 5, 3).forEach { index.add(it, rows[it].first, rows[it].second) }
+        val expected = MetadataBitmapIndex.of(docs)
+        assertEquals(expected.size, index.size)
+        filters.forEach { assertEquals(expected.rows(it), index.rows(it), "Rows for $it") }
+    }
+
+    @Test
+    fun `test metadata index is created by the first filtered search`() = runBlocking {
+        TextLibraryEmbeddingIndex(strategy, docs).findMostSimilar("a", 1)
+        val matrix = ChunkEmbeddingMatrix(model.modelId).apply { this@MetadataFilterTest.docs.forEach { addDoc(it) } }
+        val bytes = matrix.estimatedMemoryBytes()
+        matrix.topK(EmbeddingVector.of(listOf(1.0, 0.0)), 2)
+        assertFalse(matrix.isMetadataIndexed)
+        assertEquals(2, matrix.topK(EmbeddingVector.of(listOf(1.0, 0.0)), 2, filters[0]).size)
+        assertTrue(matrix.isMetadataIndexed)
+        assertTrue(matrix.estimatedMemoryBytes() > bytes)
+    }
+
+    @Test
+    fun `test filtered hybrid search returns enough matches`(@TempDir tempDir: File) = runBlocking {
+        val files = (1..20).map { i ->
+            File(tempDir, "widget$i.txt").apply {
+                writeText(if (i > 18) "Widget $i notes, with several other words about assembly and packing." else "Widget $i.")
+            }
+        }
+        val hybridStrategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID)
+        val index = HybridEmbeddingIndex(LocalFolderEmbeddingIndex(tempDir, hybridStrategy), candidateFactor = 1)
+        index.warmUp()
+        val filter = MetadataFilter.AnyOf(PATH, files.takeLast(2).map { it.toURI().toString() })
+        val matches = index.findMostSimilar("widget", 2, filter)
+        assertEquals(files.takeLast(2).map { it.toURI() }.toSet(), matches.map { it.document.metadata.path }.toSet())
+    }
+
+    @Test
+    fun `test filtered search scores only matching chunks`() = runBlocking {
+        docs.forEach { it.metadata.dateTime = it.metadata.dateTime ?: LocalDateTime.of(2023, 1, 1, 0, 0) }
+        val index = TextLibraryEmbeddingIndex(strategy, docs)
+        assertEquals(listOf("aaaa", "aaab"), index.findMostSimilar("a", 2).map { it.chunkText })
+        assertEquals(listOf("aaab", "aab"),
+            index.findMostSimilar("a", 2, MetadataFilter.AnyOf(AUTHOR, listOf("bob", "carol"))).map { it.chunkText })
+        assertEquals(listOf("bbba", "ab"),
+            index.findMostSimilar("b", 5, MetadataFilter.DateRange(to = LocalDate.of(2023, 12, 31))).map { it.chunkText })
+        assertEquals(listOf<String>(), index.findMostSimilar("a", 2, MetadataFilter.Equals(AUTHOR, "nobody")))
+
+        val federated = FederatedEmbeddingIndex(listOf(
+            TextLibraryEmbeddingIndex(strategy, docs.take(2)),
+            TextLibraryEmbeddingIndex(strategy, docs.drop(2))
+        ))
+        assertEquals(listOf("aaaa", "ab"),
+            federated.findMostSimilar("a", 2, MetadataFilter.Equals(AUTHOR, "alice")).map { it.chunkText })
+    }
+
+}
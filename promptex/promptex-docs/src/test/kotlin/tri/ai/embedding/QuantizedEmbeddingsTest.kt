@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextChunkInDoc
+import tri.ai.text.chunks.TextDoc
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.File
+import kotlin.math.abs
+import kotlin.random.Random
+
+class QuantizedEmbeddingsTest {
+
+    private val random = Random(0)
+    private fun randomVector(n: Int) = List(n) { random.nextDouble(-1.0, 1.0) }
+
+    @Test
+    fun `test int8 precision`() {
+        val quantized = EmbeddingPrecision.INT8.quantize(listOf(0.5, -1.27, 0.013))
+        assertEquals(-1.27, quantized[1], 1e-9)
+        assertEquals(0.5, quantized[0], 0.01)
+        assertEquals(listOf(0.0, 0.0), EmbeddingPrecision.INT8.quantize(listOf(0.0, 0.0)))
+    }
+
+    @Test
+    fun `test int8 scores`() {
+        val matrix = EmbeddingMatrix(64)
+        val int8 = Int8EmbeddingMatrix(64, initialCapacity = 2)
+        repeat(100) {
+            val v = EmbeddingVector.of(randomVector(64))
+            matrix.add(v)
+            int8.add(v)
+        }
+        assertEquals(100, int8.rows)
+        assertTrue(int8.estimatedMemoryBytes() < 4L * matrix.data.size / 3)
+        val query = EmbeddingVector.of(randomVector(64))
+        for (r in 0 until 100)
+            assertEquals(matrix.score(query, r), int8.score(query, r), 0.01f)
+    }
+
+    @Test
+    fun `test product quantization scores`() {
+        val matrix = EmbeddingMatrix(32)
+        repeat(500) { matrix.add(EmbeddingVector.of(randomVector(32))) }
+        val pq = PqEmbeddingMatrix.of(matrix)
+        assertEquals(500, pq.rows)
+        assertEquals(4, pq.quantizer.subspaces)
+        val query = EmbeddingVector.of(randomVector(32))
+        val error = (0 until 500).map { abs(matrix.score(query, it) - pq.score(query, it)) }.average()
+        assertTrue(error < 0.15, "Mean score error was $error")
+    }
+
+    @Test
+    fun `test quantized search re-ranks at full precision`() {
+        val docs = (0 until 20).map { d ->
+            TextDoc("doc$d", "text of document $d").apply {
+                repeat(50) {
+                    chunks += TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model", randomVector(48), EmbeddingPrecision.FULL)
+                    }
+                }
+            }
+        }
+        val query = EmbeddingVector.of(randomVector(48))
+        val exact = ChunkEmbeddingMatrix.of("model", docs).topK(query, 10)
+        listOf(EmbeddingPrecision.INT8, EmbeddingPrecision.PRODUCT_QUANTIZED).forEach { precision ->
+            val quantized = ChunkEmbeddingMatrix.of("model", docs, precision)
+            val results = quantized.topK(query, 10, rerankFactor = 10)
+            assertEquals(exact.first().row, results.first().row, "Top result for $precision")
+            results.forEach {
+                assertEquals(query.cosine(quantized.chunks[it.row].getEmbeddingInfo("model")!!), it.score, 1e-6f)
+            }
+            assertTrue(quantized.estimatedMemoryBytes() < 4L * 48 * 1000)
+        }
+    }
+
+    @Test
+    fun `test quantized vectors are saved and reused`(@TempDir folder: File) {
+        val docs = (0 until 10).map { d ->
+            TextDoc("doc$d", "text of document $d").apply {
+                repeat(30) {
+                    chunks += TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model", randomVector(32), EmbeddingPrecision.FULL)
+                    }
+                }
+            }
+        }
+        val query = EmbeddingVector.of(randomVector(32))
+        listOf(EmbeddingPrecision.INT8, EmbeddingPrecision.PRODUCT_QUANTIZED).forEach { precision ->
+            val file = File(folder, "test-$precision.qvec")
+            val built = ChunkEmbeddingMatrix.of("model", docs, precision, quantizedFile = file)
+            assertTrue(built.quantizedModified)
+            built.saveQuantizedTo(file)
+            assertTrue(file.exists())
+
+            val loaded = ChunkEmbeddingMatrix.of("model", docs, precision, quantizedFile = file)
+            assertFalse(loaded.quantizedModified)
+            for (r in 0 until loaded.size)
+                assertEquals(built.quantized!!.score(query, r), loaded.quantized!!.score(query, r))
+
+            // unchanged chunks are reused by key, and new chunks are encoded with the saved quantizer
+            val newDoc = TextDoc("new", "new document").apply {
+                chunks += TextChunkInDoc(0..3).apply { putEmbeddingInfo("model", randomVector(32), EmbeddingPrecision.FULL) }
+            }
+            val updated = ChunkEmbeddingMatrix.of("model", listOf(newDoc) + docs.drop(1), precision, quantizedFile = file)
+            assertTrue(updated.quantizedModified)
+            assertEquals(built.quantized!!.score(query, 30), updated.quantized!!.score(query, 1))
+            if (precision == EmbeddingPrecision.PRODUCT_QUANTIZED)
+                assertEquals(
+                    (built.quantized as PqEmbeddingMatrix).quantizer.scoreTable(query.values).toList(),
+                    (updated.quantized as PqEmbeddingMatrix).quantizer.scoreTable(query.values).toList()
+                )
+
+            assertNull(ChunkEmbeddingMatrix.of("other", listOf(), precision, quantizedFile = file).quantized)
+        }
+    }
+
+    @Test
+    fun `test filtered product quantized search uses one score table`() {
+        val docs = (0 until 10).map { d ->
+            TextDoc("doc$d", "text of document $d").apply {
+                metadata.author = if (d % 2 == 0) "alice" else "bob"
+                repeat(30) {
+                    chunks += TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model", randomVector(32), EmbeddingPrecision.FULL)
+                    }
+                }
+            }
+        }
+        val matrix = ChunkEmbeddingMatrix.of("model", docs, EmbeddingPrecision.PRODUCT_QUANTIZED)
+        val pq = matrix.quantized as PqEmbeddingMatrix
+        val query = EmbeddingVector.of(randomVector(32))
+        val scorer = pq.scorer(query)
+        for (r in 0 until pq.rows)
+            assertEquals(pq.score(query, r), scorer(r))
+
+        val before = pq.quantizer.scoreTableCount.get()
+        val results = matrix.topK(query, 5, MetadataFilter.Equals(MetadataFilter.AUTHOR, "alice"))
+        assertEquals(1, pq.quantizer.scoreTableCount.get() - before)
+        assertEquals(5, results.size)
+        results.forEach { assertEquals("alice", matrix.docs[it.row].metadata.author) }
+    }
+
+    @Test
+    fun `test prefix search re-scores with full vectors`() {
+        // mimic Matryoshka embeddings, with most of the information in the leading dimensions
+        val docs = listOf(TextDoc("doc", "text of document").apply {
+            repeat(500) {
+                chunks += TextChunkInDoc(0..3).apply {
+                    putEmbeddingInfo("model", List(64) { j -> random.nextDouble(-1.0, 1.0) / (1 + j / 4) }, EmbeddingPrecision.FULL)
+                }
+            }
+        })
+        val query = EmbeddingVector.of(List(64) { j -> random.nextDouble(-1.0, 1.0) / (1 + j / 4) })
+        val full = ChunkEmbeddingMatrix.of("model", docs)
+        val prefix = ChunkEmbeddingMatrix.of("model", docs, prefixDims = 16)
+        assertEquals(16, prefix.prefix!!.dims)
+        val exact = full.topK(query, 5)
+        val results = prefix.topK(query, 5, rerankFactor = 10)
+        assertEquals(exact.first(), results.first())
+        results.forEach { assertEquals(full.matrix!!.score(query, it.row), it.score) }
+        assertNull(ChunkEmbeddingMatrix.of("model", docs, prefixDims = 64).prefix)
+    }
+
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import tri.ai.core.EmbeddingModel
+import tri.ai.text.chunks.TextChunkRaw
+import tri.ai.text.chunks.TextDoc
+import java.util.concurrent.atomic.AtomicInteger
+
+class QueryEmbeddingCacheTest {
+
+    private val calls = mutableListOf<String>()
+
+    /** Embeds text by its counts of the letters 'a' and 'b', recording each text embedded. */
+    private val model = object : EmbeddingModel {
+        override val modelId = "letters"
+        override val modelSource = "Test"
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+            synchronized(calls) { calls.addAll(text) }
+            delay(20)
+            return text.map { t -> listOf(t.count { it == 'a' } + 0.01, t.count { it == 'b' } + 0.01) }
+        }
+    }
+
+    @Test
+    fun `test each query is embedded once`() = runBlocking {
+        val cache = QueryEmbeddingCache()
+        val questions = listOf("a b", "aab", "a  b ", "aab", "bbb", "a b")
+        val embeddings = questions.map { async(Dispatchers.Default) { cache.embedding(model, it) } }.awaitAll()
+        assertEquals(listOf("a b", "aab", "bbb"), calls.map { EmbeddingCache.normalize(it) }.sorted())
+        assertEquals(embeddings[0], embeddings[2])
+
+        cache.embedding(model, "aab", outputDimensionality = 1)
+        assertEquals(4, calls.size)
+    }
+
+    @Test
+    fun `test cache is bounded and failures are not cached`() = runBlocking {
+        val cache = QueryEmbeddingCache(maxEntries = 2)
+        listOf("a", "b", "ab", "a").forEach { cache.embedding(model, it) }
+        assertEquals(2, cache.size)
+        assertEquals(4, calls.size)
+
+        val attempts = AtomicInteger()
+        val failing = object : EmbeddingModel {
+            override val modelId = "failing"
+            override val modelSource = "Test"
+            override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+                attempts.incrementAndGet()
+                throw IllegalStateException("unavailable")
+            }
+        }
+        repeat(2) { assertThrows<IllegalStateException> { cache.embedding(failing, "a") } }
+        assertEquals(2, attempts.get())
+    }
+
+    @Test
+    fun `test cancelled calls do not cancel waiting callers`() = runBlocking {
+        val cache = QueryEmbeddingCache()
+        val started = CompletableDeferred<Unit>()
+        val attempts = AtomicInteger()
+        val slow = object : EmbeddingModel {
+            override val modelId = "slow"
+            override val modelSource = "Test"
+            override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+                attempts.incrementAndGet()
+                started.complete(Unit)
+                delay(100)
+                return text.map { listOf(1.0) }
+            }
+        }
+        val first = async(Dispatchers.Default) { cache.embedding(slow, "a") }
+        started.await()
+        val second = async(Dispatchers.Default) { cache.embedding(slow, "a") }
+        delay(20)
+        first.cancel()
+        assertEquals(listOf(1.0), second.await())
+        assertTrue(first.isCancelled)
+        assertEquals(2, attempts.get())
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun `test waiting callers see failures and failures are evicted`() = runBlocking {
+        val cache = QueryEmbeddingCache()
+        val failing = object : EmbeddingModel {
+            override val modelId = "failing"
+            override val modelSource = "Test"
+            override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+                delay(50)
+                throw IllegalStateException("unavailable")
+            }
+        }
+        val calls = (1..2).map { async(Dispatchers.Default) { runCatching { cache.embedding(failing, "a") } } }
+        calls.forEach { assertTrue(it.await().exceptionOrNull() is IllegalStateException) }
+        assertEquals(0, cache.size)
+    }
+
+    @Test
+    fun `test warm up and search share cached query embeddings`() = runBlocking {
+        val docs = listOf(TextDoc("d1").apply { chunks.add(TextChunkRaw("aaab")) })
+        val index = TextLibraryEmbeddingIndex(EmbeddingStrategy(model, MockEmbeddingModel()), docs)
+        index.queryCache = QueryEmbeddingCache()
+        index.warmUp()
+        assertTrue("which a?" !in calls)
+        val warmUpCalls = calls.size
+
+        repeat(3) { assertEquals("aaab", index.findMostSimilar("which a?", 1).single().chunkText) }
+        assertEquals(listOf("which a?"), calls.drop(warmUpCalls))
+    }
+
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.embedding
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class VectorKernelTest {
+
+    private val random = Random(0)
+    private fun randomVector(n: Int) = List(n) { random.nextDouble(-1.0, 1.0) }
+
+    @Test
+    fun `test kernels agree`() {
+        listOf(1, 3, 8, 17, 64, 1536).forEach { n ->
+            val a = FloatArray(n) { random.nextFloat() - 0.5f }
+            val b = FloatArray(n) { random.nextFloat() - 0.5f }
+            val expected = a.indices.sumOf { a[it].toDouble() * b[it] }
+            assertEquals(expected, ScalarVectorKernel.dot(a, 0, b, 0, n).toDouble(), 1e-3)
+            assertEquals(expected, VectorKernel.DEFAULT.dot(a, 0, b, 0, n).toDouble(), 1e-3)
+        }
+    }
+
+    @Test
+    fun `test cosine similarity`() {
+        val a = listOf(1.0, 2.0, 3.0)
+        val b = listOf(-2.0, 0.5, 4.0)
+        val expected = cosineSimilarity(a, b)
+        assertEquals(expected, EmbeddingVector.of(a).cosine(EmbeddingVector.of(b)).toDouble(), 1e-6)
+        assertEquals(expected, EmbeddingVector.of(a).cosine(b).toDouble(), 1e-6)
+        assertEquals(expected, cosineSimilarity(a.map { it.toFloat() }.toFloatArray(), b.map { it.toFloat() }.toFloatArray()).toDouble(), 1e-6)
+    }
+
+    @Test
+    fun `test matrix scores`() {
+        val vectors = (1..50).map { randomVector(37) }
+        val matrix = EmbeddingMatrix(37, initialCapacity = 4)
+        vectors.forEach { matrix.add(EmbeddingVector.of(it)) }
+        assertEquals(50, matrix.rows)
+
+        val query = EmbeddingVector.of(randomVector(37))
+        val scores = matrix.scores(query)
+        vectors.forEachIndexed { i, v ->
+            assertEquals(query.cosine(EmbeddingVector.of(v)), scores[i], 1e-5f)
+        }
+    }
+
+    @Test
+    fun `test matrix top k`() {
+        val matrix = EmbeddingMatrix(24)
+        repeat(1000) { matrix.add(EmbeddingVector.of(randomVector(24))) }
+        matrix.add(EmbeddingVector.of(matrix.row(10)))
+
+        val query = EmbeddingVector.of(matrix.row(10))
+        val scores = matrix.scores(query)
+        val expected = scores.indices.sortedWith(compareByDescending<Int> { scores[it] }.thenBy { it }).take(7)
+        val sequential = matrix.topK(query, 7)
+        val parallel = matrix.topK(query, 7, partitionRows = 50)
+        assertEquals(expected, sequential.map { it.row })
+        assertEquals(sequential, parallel)
+        assertEquals(setOf(10, 1000), parallel.take(2).map { it.row }.toSet())
+        assertEquals(1001, matrix.topK(query, 2000).size)
+    }
+
+    @Test
+    fun `test top k heap`() {
+        val heap = TopKHeap(3)
+        listOf(0.5f, 0.1f, 0.9f, 0.3f, 0.7f, 0.9f).forEachIndexed { i, s -> heap.offer(i, s) }
+        assertEquals(listOf(ScoredRow(2, 0.9f), ScoredRow(5, 0.9f), ScoredRow(4, 0.7f)), heap.toSortedList())
+        assertEquals(0.7f, heap.threshold)
+        assertEquals(listOf<ScoredRow>(), TopKHeap(0).apply { offer(0, 1f) }.toSortedList())
+    }
+
+}
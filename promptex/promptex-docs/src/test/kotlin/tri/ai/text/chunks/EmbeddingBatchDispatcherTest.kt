@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingModel
+import tri.ai.core.TokenCounter
+import tri.ai.embedding.EmbeddingCache
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+class EmbeddingBatchDispatcherTest {
+
+    /** Model that records batch sizes and the maximum number of concurrent calls. */
+    private class RecordingModel(override val maxBatchSize: Int, override val maxBatchTokens: Int? = null,
+                                 override val maxConcurrentRequests: Int = 3, val failAbove: Int = Int.MAX_VALUE) : EmbeddingModel {
+        override val modelId = "recording"
+        override val modelSource = "Test"
+        val batchSizes = mutableListOf<Int>()
+        val active = AtomicInteger()
+        var maxActive = 0
+
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+            if (text.size > failAbove)
+                throw IllegalArgumentException("Too many inputs")
+            maxActive = maxOf(maxActive, active.incrementAndGet())
+            delay(10)
+            active.decrementAndGet()
+            batchSizes += text.size
+            return text.map { listOf(it.length.toDouble()) }
+        }
+    }
+
+    private fun docs(count: Int, chunksPerDoc: Int) = List(count) { d ->
+        val text = "x".repeat(40 * chunksPerDoc)
+        TextDoc("doc$d", text).apply {
+            repeat(chunksPerDoc) { c -> chunks.add(TextChunkInDoc(c * 40 until (c + 1) * 40)) }
+        }
+    }
+
+    @Test
+    fun `test batches span documents with bounded concurrency`() = runTest {
+        val model = RecordingModel(maxBatchSize = 7)
+        val docs = docs(10, 3)
+        var lastProgress = 0.0
+        EmbeddingBatchDispatcher(model).calculateMissingEmbeddings(docs) { _, pct -> lastProgress = pct }
+
+        assertEquals(listOf(7, 7, 7, 7, 2), model.batchSizes.sortedDescending())
+        assertTrue(model.maxActive in 2..3, "Expected concurrent batches, max was ${model.maxActive}")
+        assertEquals(1.0, lastProgress, 1e-9)
+        assertTrue(docs.all { doc -> doc.chunks.all { it.getEmbeddingInfo("recording") == listOf(40.0) } })
+    }
+
+    @Test
+    fun `test batches respect token limit`() {
+        val model = RecordingModel(maxBatchSize = 100, maxBatchTokens = 25)
+        val pending = docs(1, 10).flatMap { doc -> doc.chunks.map { EmbeddingBatchDispatcher.PendingChunk(it, it.text(doc.all)) } }
+        // each chunk is 40 characters, or about 10 tokens
+        assertEquals(listOf(2, 2, 2, 2, 2), EmbeddingBatchDispatcher(model).batches(pending).map { it.size })
+    }
+
+    @Test
+    fun `test batches count non-ascii text conservatively`() {
+        val model = RecordingModel(maxBatchSize = 100, maxBatchTokens = 100)
+        val text = "お誕生日おめでとう".repeat(4)
+        val doc = TextDoc("cjk", text.repeat(6)).apply {
+            repeat(6) { c -> chunks.add(TextChunkInDoc(c * text.length until (c + 1) * text.length)) }
+        }
+        val pending = doc.chunks.map { EmbeddingBatchDispatcher.PendingChunk(it, it.text(doc.all)) }
+        // 36 characters would be estimated as 9 tokens at four characters per token, but are 108 bytes in UTF-8
+        val dispatcher = EmbeddingBatchDispatcher(model)
+        assertSame(EmbeddingBatchDispatcher.CONSERVATIVE_ESTIMATE, dispatcher.tokenCounter)
+        assertEquals(108, dispatcher.tokenCounter.countTokens(text))
+        assertEquals(listOf(1, 1, 1, 1, 1, 1), dispatcher.batches(pending).map { it.size })
+        assertEquals(5, EmbeddingBatchDispatcher.CONSERVATIVE_ESTIMATE.countTokens("Hello, world!"))
+
+        val counting = object : TokenCounter {
+            override val id = "test"
+            override fun countTokens(text: String) = text.length
+        }
+        assertEquals(listOf(2, 2, 2), EmbeddingBatchDispatcher(model, tokenCounter = counting).batches(pending).map { it.size })
+    }
+
+    @Test
+    fun `test cache is keyed by output dimensionality`(@TempDir tempDir: File) = runTest {
+        val model = RecordingModel(maxBatchSize = 8)
+        val text = "x".repeat(40)
+        EmbeddingCache(File(tempDir, "test.cache")).use { cache ->
+            EmbeddingBatchDispatcher(model, cache = cache, outputDimensionality = 256).calculateMissingEmbeddings(docs(1, 2))
+            assertNotNull(cache.get("recording", 256, text))
+            assertNull(cache.get("recording", null, text))
+
+            EmbeddingBatchDispatcher(model, cache = cache, outputDimensionality = 256).calculateMissingEmbeddings(docs(1, 2))
+            assertEquals(listOf(2), model.batchSizes)
+        }
+    }
+
+    @Test
+    fun `test failed batch is split and retried`() = runTest {
+        val model = RecordingModel(maxBatchSize = 8, failAbove = 4)
+        val docs = docs(1, 8)
+        EmbeddingBatchDispatcher(model).calculateMissingEmbeddings(docs)
+        assertEquals(listOf(4, 4), model.batchSizes)
+        assertTrue(docs[0].chunks.all { it.getEmbeddingInfo("recording") != null })
+
+        val failing = RecordingModel(maxBatchSize = 8, failAbove = 2)
+        assertThrows(IllegalArgumentException::class.java) {
+            runBlocking { EmbeddingBatchDispatcher(failing).calculateMissingEmbeddings(docs(1, 8)) }
+        }
+    }
+
+}
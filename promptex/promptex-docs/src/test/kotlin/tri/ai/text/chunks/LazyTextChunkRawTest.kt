@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.embedding.EmbeddingStrategy
+import tri.ai.embedding.HybridEmbeddingIndex
+import tri.ai.embedding.LocalFolderEmbeddingIndex
+import tri.ai.embedding.MockEmbeddingModel
+import tri.ai.embedding.RetrievalMode
+import java.io.File
+
+class LazyTextChunkRawTest {
+
+    @AfterEach
+    fun reset() {
+        DocumentTextCache.clear()
+        DocumentTextCache.budgetBytes = Runtime.getRuntime().maxMemory() / 16
+    }
+
+    @Test
+    fun `test library text is loaded on demand`(@TempDir tempDir: File) {
+        val file = File(tempDir, "doc.txt").apply { writeText("The quick brown fox.") }
+        val library = TextLibrary("lazy").apply {
+            docs.add(TextDoc("doc", file.readText()).apply {
+                metadata.path = file.toURI()
+                chunks.add(TextChunkInDoc(4..8))
+            })
+        }
+        val indexFile = File(tempDir, "library.json")
+        TextLibrary.saveTo(library, indexFile)
+
+        val doc = TextLibrary.loadFrom(indexFile).docs.single()
+        val all = doc.all as LazyTextChunkRaw
+        assertFalse(all.isLoaded)
+        assertEquals("quick", doc.chunks[0].text(doc.all))
+        assertTrue(all.isLoaded)
+        assertEquals(40L, DocumentTextCache.sizeBytes)
+    }
+
+    @Test
+    fun `test hybrid index does not load text`(@TempDir tempDir: File) = runTest {
+        File(tempDir, "a.txt").writeText("Replace filter FX-1138 every month.")
+        File(tempDir, "b.txt").writeText("General maintenance notes.")
+        val strategy = EmbeddingStrategy(MockEmbeddingModel(), MockEmbeddingModel(), RetrievalMode.HYBRID)
+        HybridEmbeddingIndex(LocalFolderEmbeddingIndex(tempDir, strategy)).findMostSimilar("fx-1138", 1)
+        DocumentTextCache.clear()
+
+        // load the library and the saved lexical index, and sync it with the library
+        val index = LocalFolderEmbeddingIndex(tempDir, strategy)
+        assertEquals(1, HybridEmbeddingIndex(index).findMostSimilar("fx-1138", 1).size)
+        val docs = index.calculateAndGetDocs()
+        assertEquals(2, docs.size)
+        docs.forEach { assertFalse((it.all as LazyTextChunkRaw).isLoaded, "Text of ${it.metadata.id} was loaded") }
+
+        // only new documents are tokenized when the lexical index is updated
+        File(tempDir, "c.txt").writeText("Spare FX-1138 filters are in storage.")
+        index.reindexNew()
+        assertEquals(2, index.findLexicalMatches("fx-1138", 5).size)
+        docs.forEach { assertFalse((it.all as LazyTextChunkRaw).isLoaded, "Text of ${it.metadata.id} was loaded") }
+    }
+
+    @Test
+    fun `test cache budget and invalidation`(@TempDir tempDir: File) {
+        val a = File(tempDir, "a.txt").apply { writeText("aaaa") }
+        val b = File(tempDir, "b.txt").apply { writeText("bbbb") }
+        DocumentTextCache.budgetBytes = 10
+        assertEquals("aaaa", LazyTextChunkRaw(a).text)
+        assertEquals("bbbb", LazyTextChunkRaw(b).text)
+        assertEquals(8L, DocumentTextCache.sizeBytes)
+        assertNull(DocumentTextCache.get(a))
+        assertEquals("bbbb", DocumentTextCache.get(b))
+
+        b.writeText("changed")
+        b.setLastModified(b.lastModified() + 2000)
+        assertNull(DocumentTextCache.get(b))
+        assertEquals("changed", LazyTextChunkRaw(b).text)
+    }
+
+}
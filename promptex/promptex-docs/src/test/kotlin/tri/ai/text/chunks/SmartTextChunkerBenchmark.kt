@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import tri.ai.core.TokenCounter
+import tri.ai.core.TokenEncodings
+
+/**
+ * Measures chunking time for a large text made by repeating a sample book, with sizes in characters and in tokens.
+ * Text size in MB can be set with the `benchmark.mb` system property, the chunk size with `benchmark.chunkSize`, and
+ * the number of runs with `benchmark.repeat`. Token counts use the `cl100k_base` encoding if its merge table is
+ * available (see [TokenEncodings]), and are estimated otherwise.
+ */
+@Tag("benchmark")
+class SmartTextChunkerBenchmark {
+
+    private val megabytes = Integer.getInteger("benchmark.mb", 50)
+    private val chunkSize = Integer.getInteger("benchmark.chunkSize", 1000)
+    private val runCount = Integer.getInteger("benchmark.repeat", 3)
+
+    @Test
+    fun `benchmark chunking`() {
+        val sample = SmartTextChunkerBenchmark::class.java.getResource("resources/pg1513.txt")!!.readText()
+        val text = buildString {
+            while (length < megabytes * 1_000_000)
+                append(sample).append("\n\n\n")
+        }
+        val tokens = TokenEncodings.encoding(TokenEncodings.CL100K_BASE) ?: TokenCounter.ESTIMATE
+        listOf("characters" to SmartTextChunker(), "tokens ($tokens)" to SmartTextChunker(tokens)).forEach { (label, chunker) ->
+            val max = if (chunker.tokenCounter == null) chunkSize else chunkSize / 4
+            repeat(runCount) { i ->
+                val start = System.nanoTime()
+                val chunks = chunker.chunkText(text, max)
+                val millis = maxOf(1L, (System.nanoTime() - start) / 1_000_000)
+                assertTrue(chunks.isNotEmpty())
+                println("[$label #${i + 1}] ${text.length / 1_000_000}MB into ${chunks.size} chunks of at most $max " +
+                        "in ${millis}ms, ${text.length / 1000L / millis}MB/s")
+            }
+        }
+    }
+
+}
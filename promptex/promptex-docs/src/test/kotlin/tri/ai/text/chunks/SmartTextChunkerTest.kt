@@ -21,6 +21,7 @@ package tri.ai.text.chunks
 
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
+import tri.ai.core.TokenCounter
 import tri.ai.text.chunks.SmartTextChunker.Companion.chunkWhile
 
 class SmartTextChunkerTest {
@@ -32,6 +33,32 @@ class SmartTextChunkerTest {
         Assertions.assertEquals(listOf(listOf(1, 2, 3), listOf(4), listOf(5), listOf(6), listOf(7)), result)
     }
 
+    @Test
+    fun testChunkLevels() {
+        val text = "Title\n\n\nAlpha beta. Gamma delta epsilon.\nZeta eta.\n\nLast section."
+        fun chunks(maxChunkSize: Int) = SmartTextChunker().chunkText(text, maxChunkSize).map { it.text(TextChunkRaw(text)) }
+        Assertions.assertEquals(listOf(text), chunks(100))
+        Assertions.assertEquals(listOf("Title\n\n\nAlpha beta. Gamma delta epsilon.\nZeta eta.", "Last section."), chunks(60))
+        Assertions.assertEquals(listOf("Title", "Alpha beta. Gamma delta epsilon.", "Zeta eta.", "Last section."), chunks(40))
+        Assertions.assertEquals(listOf("Title", "Alpha beta.", "Gamma delta epsilon.", "Zeta eta.", "Last section."), chunks(20))
+    }
+
+    @Test
+    fun testChunkSizes() {
+        val fullText = SmartTextChunkerTest::class.java.getResource("resources/pg1513.txt")!!.readText()
+        listOf(SmartTextChunker() to 1000, SmartTextChunker(TokenCounter.ESTIMATE) to 250).forEach { (chunker, max) ->
+            val chunks = chunker.chunkText(fullText, max).map { (it as TextChunkInDoc).range }
+            Assertions.assertTrue(chunks.size > 100)
+            Assertions.assertTrue(chunks.zipWithNext().all { (a, b) -> a.last < b.first })
+            chunks.forEach {
+                val chunk = fullText.substring(it)
+                Assertions.assertEquals(chunk.trim(), chunk)
+                Assertions.assertTrue(chunk.isNotEmpty())
+                Assertions.assertTrue((chunker.tokenCounter ?: CHARACTERS).countTokens(chunk) <= max, chunk)
+            }
+        }
+    }
+
     @Test
     fun testTextChunking() {
         val chunker = SmartTextChunker()
@@ -48,4 +75,11 @@ class SmartTextChunkerTest {
         }
     }
 
+    companion object {
+        private val CHARACTERS = object : TokenCounter {
+            override val id = "characters"
+            override fun countTokens(text: String) = text.length
+        }
+    }
+
 }
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingModel
+import tri.ai.pips.ExecEvent
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+class TextDocIngestPipelineTest {
+
+    @TempDir
+    lateinit var folder: File
+
+    /** Model that records the number of calls and the maximum number of concurrent calls. */
+    private class RecordingModel : EmbeddingModel {
+        override val modelId = "ingest-test"
+        override val modelSource = "Test"
+        val calls = AtomicInteger()
+        val active = AtomicInteger()
+        var maxActive = 0
+
+        override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
+            calls.incrementAndGet()
+            maxActive = maxOf(maxActive, active.incrementAndGet())
+            delay(10)
+            active.decrementAndGet()
+            return text.map { listOf(it.length.toDouble()) }
+        }
+    }
+
+    @Test
+    fun `test ingest chunks and embeds documents`() {
+        repeat(8) { i ->
+            File(folder, "doc$i.txt").writeText("Document $i ${System.nanoTime()}.\n\nSecond section of document $i.")
+        }
+        val model = RecordingModel()
+        val progress = mutableListOf<Double>()
+        val monitor = FlowCollector<ExecEvent> { if (it is ExecEvent.TaskUpdate) progress += it.progress }
+        val index = LocalTextDocIndex(folder)
+        val pipeline = TextDocIngestPipeline(SmartTextChunker(), 40, model, embedConcurrency = 2, bufferSize = 1)
+        val count = runBlocking { index.ingest(pipeline, reindexAll = false, monitor = monitor) }
+
+        assertEquals(8, count)
+        assertEquals(8, index.docIndex.size)
+        index.docIndex.values.forEach { (_, doc) ->
+            assertEquals(2, doc.chunks.size)
+            assertTrue(doc.chunks.all { it.getEmbeddingInfo(model.modelId) != null })
+        }
+        assertTrue(model.maxActive <= 2, "Expected at most 2 concurrent requests, was ${model.maxActive}")
+        assertEquals(1.0, progress.last(), 1e-9)
+        assertTrue(File(folder, "docs.json").exists())
+    }
+
+    @Test
+    fun `test ingest batches chunks across documents`() {
+        repeat(8) { i ->
+            File(folder, "doc$i.txt").writeText("Short document $i ${System.nanoTime()}.")
+        }
+        val model = RecordingModel()
+        val index = LocalTextDocIndex(folder)
+        val pipeline = TextDocIngestPipeline(SmartTextChunker(), 100, model, embedConcurrency = 1)
+        assertEquals(8, runBlocking { index.ingest(pipeline, reindexAll = false) })
+
+        assertTrue(index.docIndex.values.all { (_, doc) -> doc.chunks.all { it.getEmbeddingInfo(model.modelId) != null } })
+        assertEquals(1, model.calls.get(), "Expected chunks of all documents to share one request")
+    }
+
+    @Test
+    fun `test ingest keeps chunked documents unless reindexing`() {
+        File(folder, "a.txt").writeText("First.\n\nSecond.")
+        val index = LocalTextDocIndex(folder)
+        val pipeline = TextDocIngestPipeline(SmartTextChunker(), 10)
+        runBlocking { index.ingest(pipeline, reindexAll = false) }
+        val doc = index.docIndex["a.txt"]!!.second
+        assertEquals(2, doc.chunks.size)
+
+        runBlocking { index.ingest(TextDocIngestPipeline(SmartTextChunker(), 100), reindexAll = false) }
+        assertSame(doc, index.docIndex["a.txt"]!!.second)
+        assertEquals(2, doc.chunks.size)
+
+        runBlocking { index.ingest(TextDocIngestPipeline(SmartTextChunker(), 100), reindexAll = true) }
+        assertEquals(1, index.docIndex["a.txt"]!!.second.chunks.size)
+    }
+
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.File
+import kotlin.random.Random
+
+class TextLibraryChangeLogTest {
+
+    private fun testLibrary(n: Int) = TextLibrary("test").apply {
+        repeat(n) { i ->
+            docs.add(TextDoc("doc$i", "text of document $i").apply {
+                chunks.add(TextChunkInDoc(0..3))
+            })
+        }
+    }
+
+    @Test
+    fun `test changes are replayed on load`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val library = testLibrary(20)
+        TextLibrary.saveTo(library, file)
+        val snapshot = file.readBytes()
+
+        val updated = TextDoc("doc3", "updated").apply { chunks.add(TextChunkInDoc(0..6)) }
+        library.docs[3] = updated
+        val added = TextDoc("doc20", "added")
+        library.docs += added
+        library.docs.removeAt(5)
+        library.metadata.id = "renamed"
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(updated, added), listOf("doc5")))
+        assertArrayEquals(snapshot, file.readBytes(), "Library file should not be rewritten")
+
+        val loaded = TextLibrary.loadFrom(file)
+        assertEquals("renamed", loaded.metadata.id)
+        assertEquals(library.docs.map { it.metadata.id }, loaded.docs.map { it.metadata.id })
+        assertEquals(0..6, (loaded.docs[3].chunks[0] as TextChunkInDoc).range)
+    }
+
+    @Test
+    fun `test log is compacted when large`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val library = testLibrary(20)
+        TextLibrary.saveTo(library, file)
+        val log = TextLibraryChangeLog.changeLogFor(file)
+
+        var appended = 0
+        while (TextLibrary.saveChanges(library, file, listOf(library.docs[0]), listOf()))
+            appended++
+        assertTrue(appended > 1)
+        assertFalse(log.exists(), "Log should be removed when the library is saved in full")
+        assertEquals(20, TextLibrary.loadFrom(file).docs.size)
+    }
+
+    @Test
+    fun `test stale and incomplete log entries are ignored`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val library = testLibrary(20)
+        TextLibrary.saveTo(library, file)
+        TextLibrary.saveChanges(library, file, listOf(), listOf("doc1"))
+        val log = TextLibraryChangeLog.changeLogFor(file)
+
+        // interrupted append
+        log.appendText("""{"remove":"doc""")
+        assertEquals(19, TextLibrary.loadFrom(file).docs.size)
+        TextLibrary.saveChanges(library, file, listOf(), listOf("doc2"))
+        assertEquals(18, TextLibrary.loadFrom(file).docs.size)
+
+        // log left over from an earlier snapshot
+        val staleLog = log.readBytes()
+        TextLibrary.saveTo(testLibrary(20), file)
+        log.writeBytes(staleLog)
+        assertEquals(20, TextLibrary.loadFrom(file).docs.size)
+    }
+
+
+    @Test
+    fun `test documents are identified by path`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val library = TextLibrary("test").apply {
+            ('a'..'j').forEach { name ->
+                docs.add(TextDoc("readme", "text of $name").apply { metadata.path = File(tempDir, "$name/readme.txt").toURI() })
+            }
+        }
+        TextLibrary.saveTo(library, file)
+
+        val updated = TextDoc("readme", "updated").apply { metadata.path = library.docs[1].metadata.path }
+        library.docs[1] = updated
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(updated), listOf()))
+        val loaded = TextLibrary.loadFrom(file)
+        assertEquals(10, loaded.docs.size)
+        assertEquals(library.docs.map { it.metadata.path }, loaded.docs.map { it.metadata.path })
+
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(), listOf(TextLibraryChangeLog.key(library.docs[0]))))
+        assertEquals(library.docs.drop(1).map { it.metadata.path }, TextLibrary.loadFrom(file).docs.map { it.metadata.path })
+    }
+
+    @Test
+    fun `test log uses library format`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.smile")
+        val library = testLibrary(20)
+        library.docs.forEach { it.chunks[0].putEmbeddingInfo("model", listOf(0.25, 0.5), EmbeddingPrecision.FULL) }
+        TextLibrary.saveTo(library, file, format = TextLibraryFormat.SMILE)
+        val updated = TextDoc("doc3", "updated").apply {
+            chunks.add(TextChunkInDoc(0..6).apply { putEmbeddingInfo("model", listOf(1.0, 0.0), EmbeddingPrecision.FULL) })
+        }
+        library.docs[3] = updated
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(updated), listOf("doc5")))
+        val log = TextLibraryChangeLog.changeLogFor(file)
+        assertEquals("lib.${TextLibraryChangeLog.EXTENSION_SMILE}", log.name)
+        assertFalse(TextLibraryChangeLog.changeLogFor(file, TextLibraryFormat.JSON).exists())
+
+        // interrupted append
+        log.appendBytes(byteArrayOf(0, 0, 1, 0, 1, 2))
+        val loaded = TextLibrary.loadFrom(file)
+        assertEquals(19, loaded.docs.size)
+        assertEquals(listOf(1.0, 0.0), loaded.docs[3].chunks[0].getEmbeddingInfo("model"))
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(), listOf("doc6")))
+        assertEquals(18, TextLibrary.loadFrom(file).docs.size)
+    }
+
+    @Test
+    fun `test compaction includes vector file`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val random = Random(0)
+        val library = testLibrary(20)
+        library.docs.forEach {
+            it.chunks[0].putEmbeddingInfo("model", List(200) { random.nextDouble() }, EmbeddingPrecision.FULL)
+        }
+        TextLibrary.saveTo(library, file, useVectorFile = true)
+        assertTrue(TextLibrary.saveChanges(library, file, listOf(library.docs[0]), listOf(), useVectorFile = true))
+        assertTrue(TextLibraryChangeLog.changeLogFor(file).length() > TextLibrary.COMPACT_RATIO * file.length())
+    }
+
+}
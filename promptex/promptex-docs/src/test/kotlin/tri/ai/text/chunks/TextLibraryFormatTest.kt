@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.File
+
+class TextLibraryFormatTest {
+
+    private fun testLibrary() = TextLibrary("test").apply {
+        docs.add(TextDoc("doc1", "first document text").apply {
+            chunks.add(TextChunkInDoc(0..4).apply {
+                putEmbeddingInfo("model-a", listOf(0.25, -0.5, 1.0), EmbeddingPrecision.FULL)
+                attributes["note"] = "kept"
+            })
+            chunks.add(TextChunkRaw("raw chunk"))
+        })
+    }
+
+    @Test
+    fun `test save and load smile`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.smile")
+        TextLibrary.saveTo(testLibrary(), file, format = TextLibraryFormat.SMILE)
+        assertEquals(TextLibraryFormat.SMILE, TextLibraryFormat.detect(file))
+
+        val loaded = TextLibrary.loadFrom(file)
+        assertEquals("test", loaded.metadata.id)
+        val chunk = loaded.docs[0].chunks[0]
+        assertTrue(chunk.getEmbeddingInfo("model-a") is PackedEmbedding)
+        assertEquals(listOf(0.25, -0.5, 1.0), chunk.getEmbeddingInfo("model-a"))
+        assertEquals("kept", chunk.attributes["note"])
+        assertEquals("raw chunk", (loaded.docs[0].chunks[1] as TextChunkRaw).text)
+    }
+
+    @Test
+    fun `test upgrade json to smile`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file)
+        assertEquals(TextLibraryFormat.JSON, TextLibraryFormat.detect(file))
+        val jsonSize = file.length()
+
+        TextLibrary.saveTo(TextLibrary.loadFrom(file), file, format = TextLibraryFormat.SMILE)
+        assertEquals(TextLibraryFormat.SMILE, TextLibraryFormat.detect(file))
+        assertTrue(file.length() < jsonSize)
+
+        // saving again keeps the existing format by default
+        TextLibrary.saveTo(TextLibrary.loadFrom(file), file)
+        assertEquals(TextLibraryFormat.SMILE, TextLibraryFormat.detect(file))
+        assertEquals(listOf(0.25, -0.5, 1.0), TextLibrary.loadFrom(file).docs[0].chunks[0].getEmbeddingInfo("model-a"))
+    }
+
+    @Test
+    fun `test smile with vector file`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.smile")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true, format = TextLibraryFormat.SMILE)
+        assertEquals(1, TextLibraryVectorFile.vectorFilesFor(file).size)
+
+        val chunk = TextLibrary.loadFrom(file).docs[0].chunks[0]
+        assertTrue(chunk.getEmbeddingInfo("model-a") is MappedEmbedding)
+        assertEquals(listOf(0.25, -0.5, 1.0), chunk.getEmbeddingInfo("model-a"))
+    }
+
+}
@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.text.chunks.TextDocEmbeddings.chunkCount
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.File
+import kotlin.random.Random
+
+/**
+ * Measures time to save and load a synthetic [TextLibrary], with vectors inline in JSON and in a vector file.
+ * Library size can be set with system properties `benchmark.docs`, `benchmark.chunks` and `benchmark.dim`,
+ * and the number of runs with `benchmark.repeat`.
+ */
+@Tag("benchmark")
+class TextLibraryLoadBenchmark {
+
+    private val docCount = Integer.getInteger("benchmark.docs", 1000)
+    private val chunksPerDoc = Integer.getInteger("benchmark.chunks", 100)
+    private val dim = Integer.getInteger("benchmark.dim", 384)
+    private val runCount = Integer.getInteger("benchmark.repeat", 3)
+
+    @Test
+    fun `benchmark library save and load`(@TempDir tempDir: File) {
+        val library = syntheticLibrary()
+        println("Library: $docCount docs x $chunksPerDoc chunks x $dim dims")
+        listOf(false, true).forEach { useVectorFile ->
+            val file = File(tempDir, "library-$useVectorFile.json")
+            val label = if (useVectorFile) "vector file" else "inline"
+            repeat(runCount) { i ->
+                val save = time { TextLibrary.saveTo(library, file, useVectorFile) }
+                var loaded: TextLibrary? = null
+                val load = time { loaded = TextLibrary.loadFrom(file) }
+                assertEquals(library.chunkCount(), loaded!!.chunkCount())
+                println("[$label #${i + 1}] save ${save}ms, load ${load}ms, size ${file.length() / 1024}KB")
+            }
+        }
+    }
+
+    private fun syntheticLibrary(): TextLibrary {
+        val random = Random(0)
+        return TextLibrary("benchmark").apply {
+            repeat(docCount) { d ->
+                docs.add(TextDoc("doc-$d", "x".repeat(chunksPerDoc * 10)).apply {
+                    repeat(chunksPerDoc) { c ->
+                        chunks.add(TextChunkInDoc(c * 10, c * 10 + 9).apply {
+                            putEmbeddingInfo("benchmark-model", List(dim) { random.nextDouble(-1.0, 1.0) }, EmbeddingPrecision.FULL)
+                        })
+                    }
+                })
+            }
+        }
+    }
+
+    private fun time(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return (System.nanoTime() - start) / 1_000_000
+    }
+
+}
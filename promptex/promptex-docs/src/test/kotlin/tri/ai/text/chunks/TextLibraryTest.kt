@@ -21,7 +21,10 @@ package tri.ai.text.chunks
 
 import com.fasterxml.jackson.module.kotlin.readValue
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.io.TempDir
 import java.io.File
@@ -92,4 +95,43 @@ class TextLibraryTest {
         }
     }
 
+    @Test
+    fun `test streaming load with callback and progress`(@TempDir tempDir: File) {
+        val library = TextLibrary("streamed").apply {
+            repeat(50) { i ->
+                docs.add(TextDoc("doc $i", "text of document $i").apply {
+                    chunks.add(TextChunkInDoc(0..3))
+                })
+            }
+        }
+        val indexFile = File(tempDir, "library.json")
+        TextLibrary.saveTo(library, indexFile)
+        assertFalse(indexFile.readText().contains("\n"), "Library should be saved as compact JSON")
+
+        val seen = mutableListOf<String>()
+        val progress = mutableListOf<Double>()
+        val loaded = TextLibrary.loadFrom(indexFile, onDoc = { seen += it.metadata.id }, onProgress = { _, pct -> progress += pct })
+        assertEquals("streamed", loaded.metadata.id)
+        assertEquals(library.docs.map { it.metadata.id }, seen)
+        assertEquals(seen, loaded.docs.map { it.metadata.id })
+        assertEquals(1, loaded.docs[10].chunks.size)
+        assertTrue(progress.isNotEmpty() && progress.zipWithNext().all { (a, b) -> a <= b })
+        assertEquals(1.0, progress.last(), 0.01)
+    }
+
+    @Test
+    fun `test chunk deserialization by fields`() {
+        val chunks = TextLibrary.MAPPER.readValue<List<TextChunk>>(
+            """[{"attributes":{"score":0.5,"tags":["a","b"]},"text":"raw text"},{"last":7,"first":2}]"""
+        )
+        val raw = chunks[0] as TextChunkRaw
+        assertEquals("raw text", raw.text)
+        assertEquals(0.5, raw.attributes["score"])
+        assertEquals(listOf("a", "b"), raw.attributes["tags"])
+        assertEquals(2..7, (chunks[1] as TextChunkInDoc).range)
+        assertThrows(Exception::class.java) {
+            TextLibrary.MAPPER.readValue<TextChunk>("""{"text":"x","first":0,"last":1}""")
+        }
+    }
+
 }
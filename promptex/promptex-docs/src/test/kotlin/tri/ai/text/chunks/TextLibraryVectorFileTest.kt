@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.text.chunks
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.ai.core.EmbeddingPrecision
+import tri.ai.embedding.ChunkEmbeddingMatrix
+import tri.ai.embedding.EmbeddingVector
+import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
+import tri.ai.text.chunks.TextDocEmbeddings.putEmbeddingInfo
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+class TextLibraryVectorFileTest {
+
+    private fun testLibrary() = TextLibrary("test").apply {
+        docs.add(TextDoc("doc1", "first document text").apply {
+            chunks.add(TextChunkInDoc(0..4).apply {
+                putEmbeddingInfo("model-a", listOf(0.25, -0.5, 1.0), EmbeddingPrecision.FULL)
+                putEmbeddingInfo("model-b", listOf(0.125, 0.75), EmbeddingPrecision.FULL)
+            })
+            chunks.add(TextChunkInDoc(6..13))
+        })
+        docs.add(TextDoc("doc2", "second document").apply {
+            chunks.add(TextChunkInDoc(0..5).apply {
+                putEmbeddingInfo("model-a", listOf(2.0, 3.0, -4.0), EmbeddingPrecision.FULL)
+                putEmbeddingInfo("model-b", listOf(1.0, 2.0, 3.0), EmbeddingPrecision.FULL) // mismatched size, kept inline
+            })
+        })
+    }
+
+    @Test
+    fun `test save and load with vector file`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true)
+
+        assertEquals(1, TextLibraryVectorFile.vectorFilesFor(file).size)
+        assertFalse(TextLibraryVectorFile.vectorFileFor(file).exists())
+        val json = file.readText()
+        assertFalse(json.contains("0.25"), "Mapped vectors should not be in JSON")
+        assertTrue(json.contains("model-b"), "Inline vectors should still be in JSON")
+
+        val loaded = TextLibrary.loadFrom(file)
+        val chunk1 = loaded.docs[0].chunks[0]
+        assertTrue(chunk1.getEmbeddingInfo("model-a") is MappedEmbedding)
+        assertEquals(listOf(0.25, -0.5, 1.0), chunk1.getEmbeddingInfo("model-a"))
+        assertEquals(listOf(0.125, 0.75), chunk1.getEmbeddingInfo("model-b"))
+        assertNull(loaded.docs[0].chunks[1].getEmbeddingInfo("model-a"))
+        assertEquals(listOf(2.0, 3.0, -4.0), loaded.docs[1].chunks[0].getEmbeddingInfo("model-a"))
+        assertEquals(listOf(1.0, 2.0, 3.0), loaded.docs[1].chunks[0].getEmbeddingInfo("model-b"))
+    }
+
+    @Test
+    fun `test resave without vector file inlines vectors`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true)
+        val loaded = TextLibrary.loadFrom(file)
+
+        TextLibrary.saveTo(loaded, file)
+        assertEquals(listOf<File>(), TextLibraryVectorFile.vectorFilesFor(file))
+        assertTrue(file.readText().contains("0.25"))
+
+        val reloaded = TextLibrary.loadFrom(file)
+        assertEquals(listOf(0.25, -0.5, 1.0), reloaded.docs[0].chunks[0].getEmbeddingInfo("model-a"))
+    }
+
+    @Test
+    fun `test vector file ignored if library changes`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true)
+        val lib = TextLibrary()
+        assertFalse(TextLibraryVectorFile.attach(lib, TextLibraryVectorFile.vectorFilesFor(file).single(), null))
+    }
+
+    @Test
+    fun `test vector file from another snapshot is not attached`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true)
+        val staleVecFile = File(tempDir, "stale.bin")
+        TextLibraryVectorFile.vectorFilesFor(file).single().copyTo(staleVecFile)
+
+        // same structure, different vectors, as if the library was saved again and only the vector file was kept
+        val changed = testLibrary().apply {
+            docs[0].chunks[0].putEmbeddingInfo("model-a", listOf(9.0, 9.0, 9.0), EmbeddingPrecision.FULL)
+        }
+        TextLibrary.saveTo(changed, file, useVectorFile = true)
+        val vecFile = TextLibraryVectorFile.vectorFilesFor(file).single()
+        Files.move(staleVecFile.toPath(), vecFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+
+        val loaded = TextLibrary.loadFrom(file)
+        assertNull(loaded.docs[0].chunks[0].getEmbeddingInfo("model-a"))
+        assertFalse(TextLibraryVectorFile.attach(loaded, vecFile, null))
+    }
+
+    @Test
+    fun `test vector file is kept until the library file is replaced`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        TextLibrary.saveTo(testLibrary(), file, useVectorFile = true)
+        val vecFile = TextLibraryVectorFile.vectorFilesFor(file).single()
+
+        // as if a save was interrupted after writing the new vector file, but before replacing the library file
+        val changed = testLibrary().apply {
+            docs[0].chunks[0].putEmbeddingInfo("model-a", listOf(9.0, 9.0, 9.0), EmbeddingPrecision.FULL)
+        }
+        TextLibraryVectorFile.write(changed, TextLibraryVectorFile.vectorFileFor(file, "00000000-0000-0000-0000-000000000000"), "00000000-0000-0000-0000-000000000000")
+        assertTrue(vecFile.exists())
+        assertEquals(listOf(0.25, -0.5, 1.0), TextLibrary.loadFrom(file).docs[0].chunks[0].getEmbeddingInfo("model-a"))
+
+        TextLibrary.saveTo(changed, file, useVectorFile = true)
+        assertFalse(vecFile.exists())
+        assertEquals(1, TextLibraryVectorFile.vectorFilesFor(file).size)
+        assertEquals(listOf(9.0, 9.0, 9.0), TextLibrary.loadFrom(file).docs[0].chunks[0].getEmbeddingInfo("model-a"))
+    }
+
+    @Test
+    fun `test search matrix scores mapped vectors in place`(@TempDir tempDir: File) {
+        val file = File(tempDir, "lib.json")
+        val library = TextLibrary("test").apply {
+            repeat(20) { d ->
+                docs.add(TextDoc("doc$d", "text of document $d").apply {
+                    chunks.add(TextChunkInDoc(0..3).apply {
+                        putEmbeddingInfo("model-a", listOf(d + 1.0, -2.0 * d, 0.5, 3.0 - d), EmbeddingPrecision.FULL)
+                    })
+                })
+            }
+        }
+        TextLibrary.saveTo(library, file, useVectorFile = true)
+        val loaded = TextLibrary.loadFrom(file)
+        val heap = ChunkEmbeddingMatrix.of("model-a", library.docs)
+        val mapped = ChunkEmbeddingMatrix.of("model-a", loaded.docs)
+        assertNull(mapped.matrix)
+        assertEquals(20, mapped.mapped!!.rows)
+
+        val query = EmbeddingVector.of(floatArrayOf(1f, 0.5f, -1f, 2f))
+        val expected = heap.topK(query, 5)
+        val actual = mapped.topK(query, 5)
+        assertEquals(expected.map { it.row }, actual.map { it.row })
+        expected.zip(actual).forEach { (e, a) -> assertEquals(e.score, a.score, 1e-5f) }
+
+        // adding a vector that is not mapped copies all vectors to the heap
+        mapped.addDoc(TextDoc("doc20", "text of document 20").apply {
+            chunks.add(TextChunkInDoc(0..3).apply {
+                putEmbeddingInfo("model-a", listOf(21.0, -40.0, 0.5, -17.0), EmbeddingPrecision.FULL)
+            })
+        })
+        assertNull(mapped.mapped)
+        assertEquals(21, mapped.matrix!!.rows)
+    }
+
+}
@@ -20,7 +20,10 @@
 package tri.ai.text.docs
 
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
+import tri.ai.core.TokenCounter
 import tri.ai.embedding.EmbeddingMatch
 import tri.ai.embedding.SemanticTextQuery
 import tri.ai.text.chunks.*
@@ -89,4 +92,55 @@ class SnippetJoinerTest {
         """.trimIndent(), res0)
     }
 
+    @Test
+    fun testPackingTemplateJoiner() {
+        val doc1 = TextDoc("doc1", "Alpha beta gamma. Delta epsilon zeta. Eta theta iota kappa lambda mu nu xi omicron.")
+        val doc2 = TextDoc("doc2", "Other text here.")
+        val matches = listOf(
+            EmbeddingMatch(testQuery, doc1, TextChunkInDoc(18, 36), "embedding-model", listOf(0.0), 0.9f),
+            EmbeddingMatch(testQuery, doc2, TextChunkInDoc(0, 15), "embedding-model", listOf(0.0), 0.8f),
+            EmbeddingMatch(testQuery, doc1, TextChunkInDoc(0, 16), "embedding-model", listOf(0.0), 0.7f)
+        )
+        val res0 = PackingTemplateJoiner("snippet-joiners/basic").constructContext(matches, 1000)
+        assertTrue("Relevant Text: Alpha beta gamma. Delta epsilon zeta.\n" in res0, res0)
+        assertTrue(res0.indexOf("doc1") < res0.indexOf("Other text here."), res0)
+
+        // the last snippet that does not fit is truncated at a sentence boundary
+        val whole = EmbeddingMatch(testQuery, doc1, TextChunkInDoc(0, 82), "embedding-model", listOf(0.0), 0.9f)
+        val header = PackingTemplateJoiner("snippet-joiners/basic").constructContext(listOf(whole), 1000)
+            .substringBefore("Alpha").length / 4
+        val res1 = PackingTemplateJoiner("snippet-joiners/basic").constructContext(listOf(whole), header + 12)
+        assertTrue("Alpha beta gamma. Delta epsilon zeta.\n" in res1, res1)
+        assertFalse("Eta" in res1, res1)
+
+        // tokens are counted with the given counter, here one token per word
+        val words = object : TokenCounter {
+            override val id = "words"
+            override fun countTokens(text: String) = text.split(Regex("\\s+")).count { it.isNotEmpty() }
+        }
+        val joiner = PackingTemplateJoiner("snippet-joiners/basic", tokenCounter = words)
+        val wordHeader = words.countTokens(joiner.constructContext(listOf(whole), 1000)) - 15
+        val res2 = joiner.constructContext(listOf(whole), wordHeader + 6)
+        assertTrue("Alpha beta gamma. Delta epsilon zeta.\n" in res2, res2)
+        assertFalse("Eta" in res2, res2)
+    }
+
+    @Test
+    fun testPackingTemplateJoinerCountsEachSnippetOnce() {
+        val text = (0 until 20).joinToString(" ") { "Sentence $it." }
+        val doc = TextDoc("doc", text)
+        val ranges = Regex("Sentence \\d+\\.").findAll(text).map { it.range }.filterIndexed { i, _ -> i % 2 == 0 }.toList()
+        val matches = ranges.mapIndexed { i, range ->
+            EmbeddingMatch(testQuery, doc, TextChunkInDoc(range), "embedding-model", listOf(0.0), 1f - i / 100f)
+        }
+        val counted = mutableListOf<String>()
+        val counter = object : TokenCounter {
+            override val id = "recording"
+            override fun countTokens(text: String) = text.length.also { counted += text }
+        }
+        val res = PackingTemplateJoiner("snippet-joiners/basic", tokenCounter = counter).constructContext(matches, 10_000)
+        assertTrue(ranges.all { text.substring(it) in res }, res)
+        ranges.forEach { range -> assertEquals(1, counted.count { it == text.substring(range) }, "Counts of ${text.substring(range)}") }
+    }
+
 }
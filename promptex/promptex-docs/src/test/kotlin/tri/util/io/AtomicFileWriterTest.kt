@@ -0,0 +1,54 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.io.IOException
+
+class AtomicFileWriterTest {
+
+    @Test
+    fun `test writeAtomically replaces file`(@TempDir tempDir: File) {
+        val file = File(tempDir, "test.bin")
+        file.writeText("old")
+        assertEquals(3, writeAtomically(file) { it.write("new!".toByteArray()); 3 })
+        assertEquals("new!", file.readText())
+        assertEquals(listOf("test.bin"), tempDir.list()!!.toList())
+    }
+
+    @Test
+    fun `test failed write keeps existing file`(@TempDir tempDir: File) {
+        val file = File(tempDir, "test.bin")
+        file.writeText("old")
+        assertThrows<IOException> {
+            writeAtomically(file) {
+                it.write("partial".toByteArray())
+                throw IOException("failed")
+            }
+        }
+        assertEquals("old", file.readText())
+        assertEquals(listOf("test.bin"), tempDir.list()!!.toList())
+    }
+
+}
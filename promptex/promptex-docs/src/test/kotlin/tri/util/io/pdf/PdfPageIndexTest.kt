@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.util.io.pdf
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import tri.util.io.LocalFileManager.fileToText
+import tri.util.io.LocalFileManager.pageIndexFile
+import tri.util.io.LocalFileManager.pdfPageIndex
+import java.io.File
+import kotlin.io.path.toPath
+
+class PdfPageIndexTest {
+
+    private val file = PdfPageIndexTest::class.java.getResource("resources/TEST.pdf")!!.toURI().toPath().toFile()
+
+    @TempDir
+    lateinit var folder: File
+
+    @Test
+    fun testPageNumberAt() {
+        val index = PdfPageIndex(listOf(0, 13, 30), listOf(10, 27, 40), 40)
+        assertEquals(3, index.pageCount)
+        assertEquals(1, index.pageNumberAt(0))
+        assertEquals(1, index.pageNumberAt(12))
+        assertEquals(2, index.pageNumberAt(13))
+        assertEquals(3, index.pageNumberAt(39))
+        assertEquals(-1, index.pageNumberAt(40))
+        assertEquals(2..3, index.pageNumbers(20..35))
+        assertEquals(13 until 27, index.pageRange(2))
+    }
+
+    @Test
+    fun testSaveAndLoad() {
+        val info = PdfUtils.pdfDocumentInfo(file)
+        val index = PdfPageIndex.of(info)
+        assertEquals(info.pages.size, index.pageCount)
+        info.pages.forEach {
+            assertEquals(it.text, info.text.substring(index.pageRange(it.pageNumber)))
+        }
+
+        val saved = File(folder, "TEST.pages.json")
+        index.saveTo(saved)
+        val loaded = PdfPageIndex.loadFrom(saved)!!
+        assertEquals(index.pageStarts, loaded.pageStarts)
+        assertEquals(index.pageEnds, loaded.pageEnds)
+        assertEquals(index.textLength, loaded.textLength)
+        assertNull(PdfPageIndex.loadFrom(File(folder, "missing.pages.json")))
+    }
+
+    @Test
+    fun testIndexSavedWithTextCache() {
+        val pdf = file.copyTo(File(folder, file.name))
+        val text = pdf.fileToText(useCache = true)
+        assertTrue(pdf.pageIndexFile().exists())
+
+        val index = pdf.pdfPageIndex()!!
+        assertEquals(text.length, index.textLength)
+        val offset = text.indexOf("Galaxy: Link Space Visualization")
+        assertEquals(1, index.pageNumberAt(offset))
+
+        // recreated from the PDF if missing
+        pdf.pageIndexFile().delete()
+        assertEquals(index.pageStarts, pdf.pdfPageIndex()!!.pageStarts)
+        assertTrue(pdf.pageIndexFile().exists())
+    }
+
+}
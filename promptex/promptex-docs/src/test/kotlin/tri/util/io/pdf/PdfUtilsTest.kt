@@ -20,6 +20,8 @@
 package tri.util.io.pdf
 
 import kotlinx.coroutines.runBlocking
+import org.apache.pdfbox.Loader
+import org.apache.pdfbox.text.PDFTextStripper
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
@@ -51,6 +53,27 @@ class PdfUtilsTest {
         assertEquals(0, PdfUtils.pdfPageInfo(file, findImages = false)[0].images.size)
     }
 
+    @Test
+    fun testPdfDocumentInfo() {
+        val info = PdfUtils.pdfDocumentInfo(file)
+        val expected = Loader.loadPDF(file).use { doc ->
+            (1..doc.numberOfPages).map { page ->
+                PDFTextStripper().apply { startPage = page; endPage = page }.getText(doc)
+            }
+        }
+        assertEquals(expected, info.pages.map { it.text })
+        assertEquals(expected.indices.map { it + 1 }, info.pages.map { it.pageNumber })
+        assertEquals(PdfUtils.pdfMetadata(file), info.metadata)
+
+        info.pages.forEachIndexed { i, page ->
+            val offset = info.pageOffsets[i]
+            assertEquals(page.text, info.text.substring(offset, offset + page.text.length))
+            assertEquals(page.pageNumber, info.pageNumberAt(offset))
+        }
+        assertEquals(info.pages.map { it.text }, PdfUtils.pdfDocumentInfo(file, threads = 4).pages.map { it.text })
+        assertEquals(1, PdfUtils.findTextInPdf(file, "Galaxy: Link Space Visualization and Analysis of Network Traffic"))
+    }
+
     @Test
     fun testPdfMetadata() {
         val metadata = PdfUtils.pdfMetadata(file)
@@ -30,6 +30,8 @@ import org.apache.commons.logging.LogFactory
 import org.apache.commons.logging.impl.Jdk14Logger
 import org.apache.pdfbox.pdmodel.font.PDSimpleFont
 import tornadofx.*
+import tri.ai.embedding.EmbeddingCache
+import tri.ai.embedding.EmbeddingIndexRegistry
 import java.util.logging.Level
 import kotlin.system.exitProcess
 
@@ -38,6 +40,9 @@ class PromptFx : App(PromptFxWorkspace::class, PromptFxStyles::class) {
 
     override fun init() {
         promptFxConfig.isStarshipEnabled = parameters.raw.contains("starship")
+        promptFxConfig.isEmbeddingCacheEnabled = parameters.raw.contains("embedding-cache")
+        if (promptFxConfig.isEmbeddingCacheEnabled)
+            EmbeddingCache.enableShared()
     }
 
     override fun start(stage: Stage) {
@@ -82,6 +87,8 @@ fun main(args: Array<String>) {
     (LogFactory.getLog(PDSimpleFont::class.java) as? Jdk14Logger)?.apply {
         logger.level = Level.SEVERE
     }
+    // document folders stay open while the app runs, so keep their indexes up to date as files change
+    EmbeddingIndexRegistry.watchFolders = true
 
     launch<PromptFx>(args)
 }
@@ -38,6 +38,8 @@ class PromptFxConfig: Component(), ScopedInstance {
 
     /** Whether starship button is enabled. */
     var isStarshipEnabled: Boolean = false
+    /** Whether embeddings are cached in the shared embedding cache, across libraries and runs. */
+    var isEmbeddingCacheEnabled: Boolean = false
 
     /** Management of local file/folder directory selections. */
     private val directories by lazy {
@@ -39,6 +39,7 @@ class PromptFxController : Controller() {
 
     val chatEngine: SimpleObjectProperty<AiChatEngine> =
         SimpleObjectProperty(PromptFxModels.chatEngineDefault())
+    /** Embedding model and chunker, measuring chunk sizes in characters as in the document views' settings. */
     val embeddingEngine: SimpleObjectProperty<EmbeddingStrategy> =
         SimpleObjectProperty(EmbeddingStrategy(PromptFxModels.embeddingModelDefault(), SmartTextChunker()))
 
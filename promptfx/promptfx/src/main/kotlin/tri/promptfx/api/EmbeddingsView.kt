@@ -24,10 +24,12 @@ import javafx.beans.property.SimpleIntegerProperty
 import javafx.beans.property.SimpleObjectProperty
 import javafx.beans.property.SimpleStringProperty
 import tornadofx.*
+import tri.ai.embedding.calculateEmbeddingCached
 import tri.ai.pips.AiWorkflowResult
 import tri.ai.pips.asWorkflowResult
 import tri.ai.prompt.trace.AiEnvInfo
 import tri.ai.prompt.trace.AiExecInfo
+import tri.ai.prompt.trace.AiModelInfo
 import tri.ai.prompt.trace.AiOutputInfo
 import tri.ai.prompt.trace.AiTaskTrace
 import tri.promptfx.AiTaskView
@@ -62,11 +64,10 @@ class EmbeddingsView : AiTaskView("Embeddings", "Enter text to calculate embeddi
     override suspend fun processUserInput(): AiWorkflowResult {
         val inputs = input.get().split("\n").filter { it.isNotBlank() }
         val ouputDim = if (customOutputDimensionality.value) outputDimensionality.value else null
-        return model.value!!.calculateEmbedding(inputs, ouputDim).let {
-            it.joinToString("\n") { it.joinToString(",", prefix = "[", postfix = "]") { it.format(3) } }
-        }.let {
+        val embeddings = model.value!!.calculateEmbeddingCached(inputs, ouputDim)
+        return embeddings.joinToString("\n") { it.joinToString(",", prefix = "[", postfix = "]") { it.format(3) } }.let {
             AiTaskTrace(
-                env = AiEnvInfo.of(model.value!!.modelId),
+                env = AiEnvInfo.of(AiModelInfo.embedding(model.value!!.modelId, embeddings.firstOrNull()?.size ?: ouputDim)),
                 output = AiOutputInfo.text(it)
             ).asWorkflowResult()
         }
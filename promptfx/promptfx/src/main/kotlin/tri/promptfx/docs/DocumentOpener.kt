@@ -24,10 +24,12 @@ import javafx.scene.control.Alert
 import javafx.stage.Modality
 import tornadofx.*
 import tri.ai.embedding.EmbeddingMatch
-import tri.ai.embedding.cosineSimilarity
+import tri.ai.embedding.EmbeddingVector
 import tri.ai.text.chunks.BrowsableSource
+import tri.ai.text.chunks.TextChunkInDoc
 import tri.util.info
 import tri.util.io.LocalFileManager.PDF
+import tri.util.io.LocalFileManager.pdfPageIndex
 import tri.util.io.pdf.PdfUtils.findTextInPdf
 import tri.util.ui.pdf.PdfViewer
 import java.awt.Desktop
@@ -76,12 +78,17 @@ class DocumentOpenInViewer(val document: BrowsableSource, val hostServices: Host
     }
 }
 
-/** Browses to a given snippet within a document, using built-in viewer if possible otherwise opening/browsing to file in system. */
-class DocumentBrowseToPage(val doc: BrowsableSource, val text: String, val hostServices: HostServices?): DocumentOpener() {
+/**
+ * Browses to a given snippet within a document, using built-in viewer if possible otherwise opening/browsing to file in system.
+ * If the snippet's character [range] in the document text is known, the page is found from the PDF's saved page index,
+ * otherwise by searching the text of each page.
+ */
+class DocumentBrowseToPage(val doc: BrowsableSource, val text: String, val hostServices: HostServices?, val range: IntRange? = null): DocumentOpener() {
     override fun open() {
         val file = doc.file
         if (file != null && file.extension.lowercase() == "pdf") {
-            val page = findTextInPdf(file, text)
+            val page = range?.let { file.pdfPageIndex()?.pageNumberAt(it.first) }?.takeIf { it > 0 }
+                ?: findTextInPdf(file, text)
             DocumentOpenInViewer(doc, hostServices).openPdf(page - 1)
         } else {
             DocumentOpenInSystem(doc, hostServices).open()
@@ -97,10 +104,13 @@ class DocumentBrowseToClosestMatch(val matches: List<EmbeddingMatch>, val textEm
             matches.size == 1 || textEmbedding == null -> matches.first()
             else -> closestMatchToResponse(matches, textEmbedding)
         }
-        DocumentBrowseToPage(closestSnippet.document.browsable()!!, closestSnippet.chunkText, hostServices).open()
+        DocumentBrowseToPage(closestSnippet.document.browsable()!!, closestSnippet.chunkText, hostServices,
+            (closestSnippet.chunk as? TextChunkInDoc)?.range).open()
     }
 
     /** Calculates the snippet that was most similar to the generated answer. */
-    private fun closestMatchToResponse(snippets: List<EmbeddingMatch>, embedding: List<Double>) =
-        snippets.maxBy { cosineSimilarity(it.chunkEmbedding, embedding) }
+    private fun closestMatchToResponse(snippets: List<EmbeddingMatch>, embedding: List<Double>): EmbeddingMatch {
+        val response = EmbeddingVector.of(embedding)
+        return snippets.maxBy { response.cosine(it.chunkEmbedding) }
+    }
 }
@@ -27,15 +27,16 @@ import javafx.beans.property.SimpleStringProperty
 import javafx.scene.control.ToggleGroup
 import javafx.scene.layout.Priority
 import tornadofx.*
-import tri.ai.embedding.LocalFolderEmbeddingIndex
+import tri.ai.embedding.EmbeddingIndexRegistry
 import tri.ai.core.tool.ExecContext
 import tri.ai.pips.AiWorkflowExecutor
 import tri.ai.pips.AiWorkflowResult
 import tri.ai.prompt.trace.AiPromptTraceSupport
 import tri.ai.text.chunks.BrowsableSource
+import tri.ai.text.chunks.TextChunkInDoc
 import tri.ai.text.chunks.TextLibrary
 import tri.ai.text.docs.FormattedText
-import tri.ai.text.docs.GroupingTemplateJoiner
+import tri.ai.text.docs.ContextPacking
 import tri.ai.text.docs.QuestionAnswerResult
 import tri.ai.text.docs.formattedOutputs
 import tri.ai.text.docs.DocumentQaPlanner
@@ -80,14 +81,13 @@ class DocumentQaView: AiPlanTaskView(
     private val chunksToRetrieve = SimpleIntegerProperty(50)
     private val minChunkSizeForRelevancy = SimpleIntegerProperty(50)
     private val chunksToSendWithQuery = SimpleIntegerProperty(5)
+    private val contextPacking = SimpleObjectProperty(ContextPacking.FIXED_COUNT)
     private val historySize = SimpleIntegerProperty(0)
 
     val planner = DocumentQaPlannerFx().apply {
         documentLibrary = this@DocumentQaView.documentLibrary
         embeddingIndex = controller.embeddingEngine.objectBinding(documentFolder, maxChunkSize) {
-            LocalFolderEmbeddingIndex(documentFolder.value, it!!).apply {
-                maxChunkSize = this@DocumentQaView.maxChunkSize.value
-            }
+            EmbeddingIndexRegistry.get(documentFolder.value, it!!, this@DocumentQaView.maxChunkSize.value)
         }
         historySize = this@DocumentQaView.historySize
     }
@@ -147,8 +147,13 @@ class DocumentQaView: AiPlanTaskView(
                 tooltip("Snippets with a character count below this limit will be ignored")
                 sliderwitheditablelabel(1..1000, minChunkSizeForRelevancy)
             }
+            field("Context") {
+                tooltip("Send a fixed number of snippets, or as many snippets as fit in the chat model's context")
+                combobox(contextPacking, ContextPacking.entries)
+            }
             field("Query snippets") {
-                tooltip("Number of matching snippets to send to the question answering engine")
+                tooltip("Number of matching snippets to send to the question answering engine (with a fixed number of snippets)")
+                enableWhen(contextPacking.isEqualTo(ContextPacking.FIXED_COUNT))
                 slider(1..50, chunksToSendWithQuery)
                 label(chunksToSendWithQuery)
             }
@@ -215,7 +220,7 @@ class DocumentQaView: AiPlanTaskView(
             prompt = prompt.prompt.value,
             chunksToRetrieve = chunksToRetrieve.value,
             minChunkSize = minChunkSizeForRelevancy.value,
-            contextStrategy = GroupingTemplateJoiner(joinerPrompt.id.value),
+            contextStrategy = contextPacking.value.joiner(joinerPrompt.id.value),
             contextChunks = chunksToSendWithQuery.value,
             maxTokens = common.maxTokens.value,
             temp = common.temp.value,
@@ -272,7 +277,8 @@ class DocumentQaView: AiPlanTaskView(
                 if (matches.size == 1) {
                     info<DocumentQaView>("Browsing to only match")
                     val match = matches.first()
-                    DocumentBrowseToPage(match.document.browsable()!!, match.chunkText, hostServices).open()
+                    DocumentBrowseToPage(match.document.browsable()!!, match.chunkText, hostServices,
+                        (match.chunk as? TextChunkInDoc)?.range).open()
                 } else {
                     info<DocumentQaView>("Browsing to closest match")
                     // TODO - support for multiple responses
@@ -21,7 +21,7 @@ package tri.promptfx.docs
 
 import javafx.beans.property.SimpleStringProperty
 import tornadofx.*
-import tri.ai.embedding.cosineSimilarity
+import tri.ai.embedding.EmbeddingVector
 import tri.ai.pips.AiWorkflowResult
 import tri.ai.pips.asWorkflowResult
 import tri.ai.prompt.trace.AiEnvInfo
@@ -55,7 +55,8 @@ class TextSimilarityView: AiTaskView("Text Similarity",
         val mod = controller.embeddingEngine.get().model
         val embedList = mod.calculateEmbedding(listOf(firstText.get(), secondText.get()) + chunks)
 
-        val score = cosineSimilarity(embedList[0], embedList[1])
+        val query = EmbeddingVector.of(embedList[0])
+        val score = query.cosine(embedList[1])
         val scoreText = "Overall similarity: %.2f%%".format(score * 100)
 
         return if (chunks.size == 1) {
@@ -65,7 +66,7 @@ class TextSimilarityView: AiTaskView("Text Similarity",
             )
         } else {
             val scores = chunks.mapIndexed { index, line ->
-                val similarity = cosineSimilarity(embedList[0], embedList[index + 2])
+                val similarity = query.cosine(embedList[index + 2])
                 line to similarity
             }.sortedByDescending { it.second }.take(2)
             val highestText = "${"Closest paragraph match: %.2f%%\n".format(scores[0].second * 100)}${scores[0].first}"
@@ -24,7 +24,7 @@ import com.fasterxml.jackson.module.kotlin.readValue
 import tri.ai.core.CompletionBuilder
 import tri.ai.core.CompletionBuilder.Companion.JSON_MAPPER
 import tri.ai.core.EmbeddingModel
-import tri.ai.embedding.cosineSimilarity
+import tri.ai.embedding.EmbeddingVector
 import tri.ai.pips.AiTaskBuilder
 import tri.util.json.jsonMapper
 import tri.ai.prompt.trace.AiOutput
@@ -77,7 +77,7 @@ class WeatherAiTaskPlanner(val chatEngine: AiChatEngine, val common: ModelParame
 
     private suspend fun checkWeatherSimilarity(input: String): String {
         val embeddings = embeddingModel.calculateEmbedding("is it raining snowing sunny windy in city new york", input)
-        val similarity = cosineSimilarity(embeddings[0], embeddings[1])
+        val similarity = EmbeddingVector.of(embeddings[0]).cosine(EmbeddingVector.of(embeddings[1]))
         info<WeatherAiTaskPlanner>("Input alignment to weather: $similarity")
         if (similarity < 0.5)
             throw IllegalArgumentException("The input is not about weather.")
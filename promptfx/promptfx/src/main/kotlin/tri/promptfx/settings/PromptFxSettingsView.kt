@@ -627,6 +627,7 @@ class PromptFxSettingsView : AiTaskView("PromptFx Settings", "View and manage ap
                     style { fontWeight = FontWeight.BOLD }
                 }
                 label("Starship Enabled: ${promptFxConfig.isStarshipEnabled}")
+                label("Embedding Cache Enabled: ${promptFxConfig.isEmbeddingCacheEnabled}")
             }
             
             separator()
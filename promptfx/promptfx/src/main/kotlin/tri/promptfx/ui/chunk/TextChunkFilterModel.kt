@@ -28,7 +28,8 @@ import tornadofx.*
 import tri.ai.core.EmbeddingModel
 import tri.ai.core.MChatVariation.Companion.temp
 import tri.ai.core.TextCompletion
-import tri.ai.embedding.cosineSimilarity
+import tri.ai.embedding.EmbeddingVector
+import tri.ai.embedding.calculateEmbeddingCached
 import tri.ai.prompt.PromptTemplate
 import tri.promptfx.prompts.PromptScriptView
 import java.util.regex.PatternSyntaxException
@@ -125,14 +126,12 @@ class TextChunkFilterModel : Component(), ScopedInstance {
 
     /** Updates scores of chunks using an embedding cosine similarity. */
     private fun updateChunkScores(text: String, chunkList: List<TextChunkViewModel>, model: EmbeddingModel, onComplete: () -> Unit) {
-        var vector: List<Double>?
         val chunkVectors = mutableMapOf<TextChunkViewModel, Pair<List<Double>?, Float>>()
         runBlocking {
-            vector = model.calculateEmbedding(text)
+            val vector = EmbeddingVector.of(model.calculateEmbeddingCached(text))
             chunkList.forEach {
-                val embed = it.embedding ?: model.calculateEmbedding(it.text)
-                val score = cosineSimilarity(vector!!, embed).toFloat()
-                chunkVectors[it] = Pair(embed, score)
+                val embed = it.embedding ?: model.calculateEmbeddingCached(it.text)
+                chunkVectors[it] = Pair(embed, vector.cosine(embed))
             }
         }
         runLater {
@@ -29,6 +29,7 @@ import tornadofx.action
 import tornadofx.hyperlink
 import tornadofx.text
 import tornadofx.tooltip
+import tri.ai.text.chunks.TextChunkInDoc
 import tri.promptfx.docs.DocumentBrowseToPage
 import tri.util.ui.DocumentUtils
 
@@ -52,7 +53,8 @@ class TextChunkView(it: TextChunkViewModel, hostServices: HostServices) : HBox()
                     tooltip { graphic = ImageView(thumb) }
                 }
                 action {
-                    DocumentBrowseToPage(doc, it.text, hostServices).open()
+                    val range = ((it as? TextChunkViewModelImpl)?.chunk as? TextChunkInDoc)?.range
+                    DocumentBrowseToPage(doc, it.text, hostServices, range).open()
                 }
             }
         }
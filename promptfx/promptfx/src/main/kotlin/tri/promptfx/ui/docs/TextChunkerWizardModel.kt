@@ -175,7 +175,7 @@ class TextChunkerWizardModel: ViewModel() {
         previewChunks.setAll(useChunks.map { it.asTextChunkViewModel(doc, controller.embeddingEngine.value?.modelId, null) })
     }
 
-    /** Chunker based on current settings. */
+    /** Chunker based on current settings. Automatic chunking uses [maxChunkSize] in characters. */
     private fun chunker(): TextChunker = when {
         isChunkAutomatic.get() ->
             SmartTextChunker()
@@ -41,6 +41,7 @@ import tri.ai.text.chunks.TextDocEmbeddings.getEmbeddingInfo
 import tri.ai.text.chunks.TextDocEmbeddings.summaryInfo
 import tri.ai.text.chunks.TextDocMetadata
 import tri.ai.text.chunks.TextLibrary
+import tri.ai.text.chunks.TextLibraryChangeLog
 import tri.promptfx.PromptFxController
 import tri.promptfx.TextLibraryReceiver
 import tri.promptfx.docs.TextLibraryInfo
@@ -53,6 +54,7 @@ import tri.util.ui.createListBinding
 import java.io.File
 import java.time.LocalDate
 import java.time.LocalDateTime
+import java.util.concurrent.ConcurrentHashMap
 
 /** Model for views that depend on a "library" of documents. */
 class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
@@ -77,6 +79,9 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
 
     val chunkListModel: TextChunkListModel by inject()
 
+    /** Changes to libraries since they were loaded from or saved to their file, so saving only needs to write what changed. */
+    private val unsavedChanges = ConcurrentHashMap<TextLibrary, LibraryChanges>()
+
     init {
         // pull images from selected PDF's, add results incrementally to model
         docSelection.onChange {
@@ -136,6 +141,7 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
             info<TextLibraryViewModel>("Loaded library '${lib.metadata.id}': ${lib.summaryInfo()}")
             TextLibraryInfo(lib, file)
         } ui { libInfo ->
+            unsavedChanges[libInfo.library] = LibraryChanges()
             loadTextLibrary(libInfo, replace, selectAllDocs)
             // Check for embedding models and offer to select one
             val embeddingModels = libInfo.library.embeddingModels()
@@ -187,9 +193,17 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
 
     //region MUTATORS
 
-    /** Save library to a file. */
+    /**
+     * Save library to a file. If the library is being saved to the file it was loaded from, only changes are saved,
+     * by appending them to the file's change log.
+     */
     fun saveLibrary(library: TextLibraryInfo, it: File) {
-        TextLibrary.saveTo(library.library, it)
+        val changes = unsavedChanges[library.library]
+        if (changes != null && it == library.file)
+            TextLibrary.saveChanges(library.library, it, changes.updated.toList(), changes.removedKeys.toList())
+        else
+            TextLibrary.saveTo(library.library, it)
+        unsavedChanges[library.library] = LibraryChanges()
         library.file = it
         markSaved(library)
     }
@@ -197,7 +211,13 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
     /** Remove selected documents from library and model. */
     fun removeSelectedDocuments() {
         val selected = docSelection.toList()
-        librarySelection.value?.library?.docs?.removeAll(selected)
+        librarySelection.value?.library?.let { lib ->
+            lib.docs.removeAll(selected)
+            unsavedChanges[lib]?.let { changes ->
+                changes.updated.removeAll(selected.toSet())
+                changes.removedKeys.addAll(selected.map { TextLibraryChangeLog.key(it) })
+            }
+        }
         docList.removeAll(selected)
         docsModified.removeAll(selected)
         markChanged(librarySelection.value)
@@ -273,8 +293,10 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
     private fun markChanged(doc: TextDoc) {
         docsModified.add(doc)
         val lib = libraryList.find { it.library.docs.contains(doc) }
-        if (lib != null)
+        if (lib != null) {
+            unsavedChanges[lib.library]?.updated?.add(doc)
             markChanged(lib)
+        }
     }
 
     //endregion
@@ -285,10 +307,13 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
     fun calculateEmbeddings(): AiTaskBuilder<String> {
         val service = embeddingEngine.value
         val result = mutableMapOf<TextChunk, List<Double>>()
+        val changes = unsavedChanges[librarySelection.value.library]
         return listOf(librarySelection.value).flatMap { it.library.docs }.map { doc ->
             AiTask.task("calculate-embeddings: " + doc.metadata.id) {
-                if (doc.chunks.any { it.getEmbeddingInfo(service.modelId) == null })
+                if (doc.chunks.any { it.getEmbeddingInfo(service.modelId) == null }) {
                     service.model.addEmbeddingInfo(doc)
+                    changes?.updated?.add(doc)
+                }
                 var count = 0
                 doc.chunks.forEach {
                     val embed = it.getEmbeddingInfo(service.modelId)
@@ -306,6 +331,12 @@ class TextLibraryViewModel : Component(), ScopedInstance, TextLibraryReceiver {
 
     //endregion
 
+    /** Documents added, changed, or removed in a library since it was last loaded or saved. */
+    private class LibraryChanges {
+        val updated: MutableSet<TextDoc> = ConcurrentHashMap.newKeySet()
+        val removedKeys: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    }
+
     companion object {
         /** Merge metadata from a map into a TextDocMetadata object. */
         internal fun TextDocMetadata.mergeIn(other: Map<String, Any>) {
@@ -35,6 +35,8 @@ interface AiModelProvider {
     fun modelSource(): String
     /** Provide a list of model information. */
     fun modelInfo(): List<ModelInfo>
+    /** Provide the preconfigured model index for this plugin, if any. Unlike [modelInfo], this does not call provider APIs. */
+    fun modelIndex(): ModelIndex? = null
 
     /** Provide a list of embedding models. */
     fun embeddingModels(): List<EmbeddingModel>
@@ -85,6 +87,8 @@ interface AiModelProvider {
         fun sources() = orderedPlugins.map { it.modelSource() }
         /** Get all registered model info. */
         fun modelInfo() = orderedPlugins.flatMap { it.modelInfo() }
+        /** Get the model index of the plugin providing a model, if any. */
+        fun modelIndex(model: AiModel) = orderedPlugins.firstOrNull { it.modelSource() == model.modelSource }?.modelIndex()
 
         /** Get registered embedding models. */
         fun embeddingModels() = orderedPlugins.flatMap { it.embeddingModels() }
@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.core
+
+import java.io.InputStream
+import java.util.Base64
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Pattern
+
+/**
+ * Byte-pair encoding (BPE) tokenizer compatible with tiktoken encodings such as `cl100k_base` and `o200k_base`.
+ * Text is split into pieces by a pre-tokenization [pattern], and the UTF-8 bytes of each piece are merged pairwise,
+ * lowest rank first, until no adjacent pair has a rank. Token ids of recently seen pieces are cached, since most text
+ * is made of a small set of common words. Special tokens are not recognized and are encoded as ordinary text.
+ * This class is thread-safe.
+ */
+class BpeTokenizer(
+    override val id: String,
+    private val ranks: ByteSequenceRanks,
+    val pattern: Pattern,
+    val cacheSize: Int = DEFAULT_CACHE_SIZE
+) : TokenCounter {
+
+    init {
+        require((0 until 256).all { ranks.get(byteArrayOf(it.toByte()), 0, 1) >= 0 }) {
+            "Merge table must have a rank for every single byte"
+        }
+    }
+
+    private val cache = ConcurrentHashMap<String, IntArray>()
+
+    /** Number of tokens in the vocabulary. */
+    val vocabularySize
+        get() = ranks.size
+
+    /** Encode a text as token ids. */
+    fun encode(text: String): IntArray {
+        val tokens = mutableListOf<IntArray>()
+        var count = 0
+        val matcher = pattern.matcher(text)
+        while (matcher.find()) {
+            val piece = encodePiece(text.substring(matcher.start(), matcher.end()))
+            tokens += piece
+            count += piece.size
+        }
+        val result = IntArray(count)
+        var i = 0
+        tokens.forEach {
+            it.copyInto(result, i)
+            i += it.size
+        }
+        return result
+    }
+
+    override fun countTokens(text: String) =
+        countTokens(text, 0, text.length)
+
+    override fun countTokens(text: CharSequence, start: Int, end: Int): Int {
+        var count = 0
+        val matcher = pattern.matcher(text).region(start, end)
+        while (matcher.find())
+            count += encodePiece(text.subSequence(matcher.start(), matcher.end()).toString()).size
+        return count
+    }
+
+    override fun toString() = id
+
+    /** Encode a single piece, using the cache if possible. */
+    private fun encodePiece(piece: String): IntArray {
+        cache[piece]?.let { return it }
+        val bytes = piece.toByteArray(Charsets.UTF_8)
+        val rank = ranks.get(bytes, 0, bytes.size)
+        val tokens = if (rank >= 0) intArrayOf(rank) else bytePairMerge(bytes)
+        if (cache.size >= cacheSize)
+            cache.clear()
+        cache[piece] = tokens
+        return tokens
+    }
+
+    /** Merge the lowest-ranked adjacent pair of parts until no pair can be merged. */
+    private fun bytePairMerge(bytes: ByteArray): IntArray {
+        // part i is bytes[starts[i] until starts[i + 1]], and pairRanks[i] is the rank of parts i and i + 1 together
+        val starts = IntArray(bytes.size + 1) { it }
+        val pairRanks = IntArray(bytes.size)
+        var parts = bytes.size
+        fun pairRank(i: Int) = if (i + 2 > parts) NO_RANK else ranks.get(bytes, starts[i], starts[i + 2]).let { if (it < 0) NO_RANK else it }
+        for (i in 0 until parts - 1)
+            pairRanks[i] = pairRank(i)
+        while (parts > 1) {
+            var min = 0
+            for (i in 1 until parts - 1) {
+                if (pairRanks[i] < pairRanks[min])
+                    min = i
+            }
+            if (pairRanks[min] == NO_RANK)
+                break
+            starts.copyInto(starts, min + 1, min + 2, parts + 1)
+            pairRanks.copyInto(pairRanks, min, min + 1, parts - 1)
+            parts--
+            if (min < parts - 1)
+                pairRanks[min] = pairRank(min)
+            if (min > 0)
+                pairRanks[min - 1] = pairRank(min - 1)
+        }
+        return IntArray(parts) { ranks.get(bytes, starts[it], starts[it + 1]) }
+    }
+
+    companion object {
+        /** Default maximum number of cached pieces. */
+        const val DEFAULT_CACHE_SIZE = 100_000
+        private const val NO_RANK = Int.MAX_VALUE
+
+        /** Load a merge table in the `.tiktoken` format, with a base64-encoded token and its rank on each line. */
+        fun load(id: String, input: InputStream, pattern: Pattern): BpeTokenizer {
+            val lines = input.bufferedReader().readLines().filter { it.isNotBlank() }
+            val ranks = ByteSequenceRanks(lines.size)
+            val decoder = Base64.getDecoder()
+            lines.forEach {
+                val token = it.substringBefore(' ')
+                val rank = it.substringAfter(' ', "").trim().toIntOrNull()
+                    ?: throw IllegalArgumentException("Invalid merge table line: $it")
+                ranks.put(decoder.decode(token), rank)
+            }
+            return BpeTokenizer(id, ranks, pattern)
+        }
+    }
+
+}
+
+/**
+ * Hash table from byte sequences to ranks, with all keys stored in one array so that ranks can be looked up for a
+ * range of a byte array without copying it.
+ */
+class ByteSequenceRanks(expectedSize: Int) {
+
+    private val mask = Integer.highestOneBit(maxOf(16, 2 * expectedSize)) * 2 - 1
+    private val offsets = IntArray(mask + 1)
+    private val lengths = IntArray(mask + 1)
+    private val ranks = IntArray(mask + 1) { -1 }
+    private var data = ByteArray(maxOf(256, 8 * expectedSize))
+    private var dataSize = 0
+
+    /** Number of byte sequences. */
+    var size = 0
+        private set
+
+    /** Set the rank of a byte sequence. */
+    fun put(bytes: ByteArray, rank: Int) {
+        require(rank >= 0) { "Rank must be non-negative" }
+        val slot = slot(bytes, 0, bytes.size)
+        if (ranks[slot] < 0) {
+            check(size < (mask + 1) / 2) { "Table is full" }
+            if (dataSize + bytes.size > data.size)
+                data = data.copyOf(maxOf(2 * data.size, dataSize + bytes.size))
+            bytes.copyInto(data, dataSize)
+            offsets[slot] = dataSize
+            lengths[slot] = bytes.size
+            dataSize += bytes.size
+            size++
+        }
+        ranks[slot] = rank
+    }
+
+    /** Get the rank of the byte sequence `bytes[from until to]`, or -1 if it has no rank. */
+    fun get(bytes: ByteArray, from: Int, to: Int) = ranks[slot(bytes, from, to)]
+
+    /** Find the slot holding the byte sequence, or the empty slot where it would be added. */
+    private fun slot(bytes: ByteArray, from: Int, to: Int): Int {
+        var hash = -0x7ee3623b // FNV-1a offset basis
+        for (i in from until to)
+            hash = (hash xor (bytes[i].toInt() and 0xff)) * 0x01000193
+        var slot = (hash xor (hash ushr 16)) and mask
+        while (ranks[slot] >= 0 && !matches(slot, bytes, from, to))
+            slot = (slot + 1) and mask
+        return slot
+    }
+
+    private fun matches(slot: Int, bytes: ByteArray, from: Int, to: Int): Boolean {
+        if (lengths[slot] != to - from)
+            return false
+        val offset = offsets[slot]
+        for (i in 0 until to - from) {
+            if (data[offset + i] != bytes[from + i])
+                return false
+        }
+        return true
+    }
+
+}
@@ -19,7 +19,9 @@
  */
 package tri.ai.core
 
+import kotlin.math.abs
 import kotlin.math.pow
+import kotlin.math.roundToInt
 import kotlin.math.roundToLong
 
 /**
@@ -31,6 +33,18 @@ interface EmbeddingModel : AiModel {
     val precision
         get() = EmbeddingPrecision.FIRST_EIGHT
 
+    /** Maximum number of texts to send in a single API call, for clients that batch requests. */
+    val maxBatchSize: Int
+        get() = DEFAULT_MAX_BATCH_SIZE
+
+    /** Maximum estimated number of tokens across all texts in a single API call, or null if there is no limit. */
+    val maxBatchTokens: Int?
+        get() = null
+
+    /** Maximum number of API calls that clients should have in flight at once. */
+    val maxConcurrentRequests: Int
+        get() = DEFAULT_MAX_CONCURRENT_REQUESTS
+
     /** Calculate embedding for multiple texts. */
     suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int? = null): List<List<Double>>
 
@@ -43,6 +57,11 @@ interface EmbeddingModel : AiModel {
         calculateEmbedding(listOf(*text), outputDimensionality)
 
     companion object {
+        /** Default value for [maxBatchSize]. */
+        const val DEFAULT_MAX_BATCH_SIZE = 20
+        /** Default value for [maxConcurrentRequests]. */
+        const val DEFAULT_MAX_CONCURRENT_REQUESTS = 4
+
         val UNAVAILABLE = object : EmbeddingModel {
             override val modelId = "Unavailable"
             override val modelSource = ""
@@ -53,7 +72,11 @@ interface EmbeddingModel : AiModel {
     }
 }
 
-/** Precision to use when storing embeddings. */
+/**
+ * Precision to use when storing and searching embeddings. Decimal rounding modes apply to each value separately,
+ * while quantized modes use information from the whole vector, or (for [PRODUCT_QUANTIZED]) a codebook trained by
+ * the search index.
+ */
 enum class EmbeddingPrecision {
     FULL {
         override fun op(x: Double) = x
@@ -63,9 +86,30 @@ enum class EmbeddingPrecision {
     },
     FIRST_EIGHT {
         override fun op(x: Double) = (x * 10.0.pow(8.0)).roundToLong() / 10.0.pow(8.0)
+    },
+    /** Scalar quantization of each value to an 8-bit integer, using a scale based on the largest value in the vector. */
+    INT8 {
+        override fun op(x: Double) = x
+        override fun quantize(embedding: List<Double>): List<Double> {
+            val scale = embedding.maxOfOrNull { abs(it) }?.div(127.0) ?: return embedding
+            return if (scale == 0.0) embedding else embedding.map { (it / scale).roundToInt() * scale }
+        }
+    },
+    /**
+     * Product quantization, where each group of dimensions is replaced by the nearest of 256 centroids learned from the
+     * indexed vectors. Since centroids depend on the index, stored values are kept at full precision.
+     */
+    PRODUCT_QUANTIZED {
+        override fun op(x: Double) = x
     };
 
     /** Apply given transformation to an embedding value, e.g. to reduce storage requirements. */
     abstract fun op(x: Double): Double
-}
 
+    /** Apply transformation to an entire embedding vector. */
+    open fun quantize(embedding: List<Double>) = embedding.map { op(it) }
+
+    /** True if vectors are searched as compressed codes, with a shortlist re-ranked at full precision. */
+    val isQuantized
+        get() = this == INT8 || this == PRODUCT_QUANTIZED
+}
@@ -57,6 +57,17 @@ open class ModelIndex(val modelFileName: String) {
     /** All available model ids, including runtime overrides. */
     val modelIds by lazy { models.modelIds() + runtimeModels.modelIds() }
 
+    /**
+     * Get a token counter for a model, using the encoding named by the model's [TokenEncodings.MODEL_PARAM] parameter if
+     * configured, or inferred from its id otherwise. Falls back to [TokenCounter.ESTIMATE] if no encoding is available.
+     */
+    fun tokenCounter(modelId: String): TokenCounter =
+        TokenEncodings.counterForModel(modelId, modelInfoIndex[modelId]?.params?.get(TokenEncodings.MODEL_PARAM) as? String)
+
+    /** Get the maximum number of input tokens for a model, from its [INPUT_TOKEN_LIMIT] parameter if configured. */
+    fun inputTokenLimit(modelId: String): Int? =
+        modelInfoIndex[modelId]?.params?.get(INPUT_TOKEN_LIMIT)?.toString()?.toIntOrNull()
+
     /** Get audio models. */
     fun audioModels() = models(ModelLibrary::audio)
     /** Get chat models. */
@@ -95,4 +106,9 @@ open class ModelIndex(val modelFileName: String) {
 
     //endregion
 
+    companion object {
+        /** Model parameter for the maximum number of input tokens. */
+        const val INPUT_TOKEN_LIMIT = "inputTokenLimit"
+    }
+
 }
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.core
+
+import tri.util.warning
+import java.io.File
+import java.io.IOException
+import java.util.regex.Pattern
+
+/** Counts the tokens in text for a model, without calling a model API. */
+interface TokenCounter {
+
+    /** Identifier of the encoding used for counting. */
+    val id: String
+
+    /** Count the tokens in a text. */
+    fun countTokens(text: String): Int
+
+    /** Count the tokens in `text[start until end]`, which implementations may do without copying the text. */
+    fun countTokens(text: CharSequence, start: Int, end: Int): Int =
+        countTokens(text.subSequence(start, end).toString())
+
+    companion object {
+        /** Rough estimate of tokens for any model, assuming about four characters per token. */
+        val ESTIMATE = object : TokenCounter {
+            override val id = "estimate"
+            override fun countTokens(text: String) = (text.length + 3) / 4
+            override fun countTokens(text: CharSequence, start: Int, end: Int) = (end - start + 3) / 4
+            override fun toString() = id
+        }
+    }
+}
+
+/**
+ * Registry of byte-pair encodings used by [BpeTokenizer], loaded on first use from merge tables in the `.tiktoken`
+ * format (one base64-encoded token and its rank per line). Tables are looked up by encoding name in the directory given
+ * by the [DIRECTORY_PROPERTY] system property, then as classpath resources under [RESOURCE_PATH]. The tables for
+ * [CL100K_BASE] and [O200K_BASE] are downloaded and bundled there by the build, unless it sets
+ * `tokenizer.download.skip`. If a table is found in neither place, a warning is logged when the encoding is first used
+ * and counts fall back to [TokenCounter.ESTIMATE].
+ */
+object TokenEncodings {
+
+    const val CL100K_BASE = "cl100k_base"
+    const val O200K_BASE = "o200k_base"
+
+    /** [ModelInfo.params] key for the name of a model's encoding. */
+    const val MODEL_PARAM = "tokenizer"
+    /** System property with a directory of merge tables. */
+    const val DIRECTORY_PROPERTY = "promptkt.tokenizer.dir"
+    /** Classpath folder of bundled merge tables. */
+    const val RESOURCE_PATH = "/tri/ai/core/tokenizer/"
+
+    /** Pre-tokenization patterns by encoding, splitting text into pieces that are encoded separately. */
+    private val patterns = mapOf(
+        CL100K_BASE to "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+",
+        O200K_BASE to listOf(
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+            "\\p{N}{1,3}",
+            " ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*",
+            "\\s*[\\r\\n]+",
+            "\\s+(?!\\S)",
+            "\\s+"
+        ).joinToString("|")
+    )
+
+    private val encodings = mutableMapOf<String, BpeTokenizer?>()
+
+    /**
+     * Get the pre-tokenization pattern for an encoding, defaulting to that of [CL100K_BASE]. Patterns use Unicode
+     * character classes, as tiktoken does, so `\s` also matches whitespace such as U+00A0 and U+3000.
+     */
+    fun pattern(encoding: String): Pattern =
+        Pattern.compile(patterns[encoding] ?: patterns[CL100K_BASE]!!, Pattern.UNICODE_CHARACTER_CLASS)
+
+    /** Get the tokenizer for an encoding, or null if its merge table cannot be found. */
+    @Synchronized
+    fun encoding(name: String): BpeTokenizer? {
+        if (name !in encodings)
+            encodings[name] = load(name)
+        return encodings[name]
+    }
+
+    /** Get the name of the encoding used by a model, for model ids following OpenAI naming conventions. */
+    fun encodingForModel(modelId: String): String? {
+        val id = modelId.substringAfterLast('/').lowercase()
+        return when {
+            O200K_PREFIXES.any { id.startsWith(it) } -> O200K_BASE
+            CL100K_PREFIXES.any { id.startsWith(it) } -> CL100K_BASE
+            else -> null
+        }
+    }
+
+    /**
+     * Get a token counter for a model, using the named encoding if given or the encoding inferred from the model id.
+     * Falls back to [TokenCounter.ESTIMATE] if the encoding is unknown or its merge table is not available.
+     */
+    fun counterForModel(modelId: String, encodingName: String? = null): TokenCounter =
+        (encodingName ?: encodingForModel(modelId))?.let { encoding(it) } ?: TokenCounter.ESTIMATE
+
+    private fun load(name: String): BpeTokenizer? {
+        val file = System.getProperty(DIRECTORY_PROPERTY)?.let { File(it, "$name.tiktoken") }
+        val input = file?.takeIf { it.exists() }?.inputStream()
+            ?: TokenEncodings::class.java.getResourceAsStream("$RESOURCE_PATH$name.tiktoken")
+        if (input == null) {
+            warning<TokenEncodings>("Merge table for encoding $name not found, token counts will be estimated")
+            return null
+        }
+        return try {
+            input.use { BpeTokenizer.load(name, it, pattern(name)) }
+        } catch (x: IOException) {
+            warning<TokenEncodings>("Unable to load merge table for encoding $name: ${x.message}", x)
+            null
+        } catch (x: IllegalArgumentException) {
+            warning<TokenEncodings>("Invalid merge table for encoding $name: ${x.message}", x)
+            null
+        }
+    }
+
+    private val O200K_PREFIXES = listOf("gpt-4o", "gpt-4.1", "gpt-4.5", "gpt-5", "o1", "o3", "o4", "chatgpt-4o", "gpt-oss")
+    private val CL100K_PREFIXES = listOf("gpt-4", "gpt-3.5", "gpt-35", "text-embedding-3", "text-embedding-ada-002")
+
+}
@@ -46,6 +46,7 @@ data class AiModelInfo(
         const val RESPONSE_FORMAT = "response_format"
         const val SEED = "seed"
         const val OUTPUT_DIMENSIONS = "dimensions"
+        const val SEARCH_DIMENSIONS = "search_dimensions"
         const val SIZE = "size"
         const val QUALITY = "quality"
         const val STYLE = "style"
@@ -65,8 +66,13 @@ data class AiModelInfo(
                 mapOfNotNull(MAX_TOKENS to tokens, STOP to stop, NUM_RESPONSES to numResponses, "request_json" to requestJson)
             )
 
-        /** Create embedding model info. */
-        fun embedding(modelId: String, outputDims: Int? = null) = AiModelInfo(modelId, modelParams = mapOfNotNull(OUTPUT_DIMENSIONS to outputDims))
+        /**
+         * Create embedding model info.
+         * @param outputDims number of dimensions of the embedding vectors
+         * @param searchDims number of leading dimensions used for a coarse search pass, if any
+         */
+        fun embedding(modelId: String, outputDims: Int? = null, searchDims: Int? = null) =
+            AiModelInfo(modelId, modelParams = mapOfNotNull(OUTPUT_DIMENSIONS to outputDims, SEARCH_DIMENSIONS to searchDims))
 
         private fun mapOfNotNull(vararg pairs: Pair<String, Any?>): Map<String, Any> =
             mapOf(*pairs).filterValues { it != null } as Map<String, Any>
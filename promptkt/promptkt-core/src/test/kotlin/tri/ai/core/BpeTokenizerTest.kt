@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.core
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.util.Base64
+
+class BpeTokenizerTest {
+
+    /** Merge table with a rank for every byte, then "he", "ll", "llo" in that order. */
+    private val table = ((0 until 256).map { byteArrayOf(it.toByte()) } + listOf("he", "ll", "llo").map { it.toByteArray() })
+        .mapIndexed { rank, bytes -> "${Base64.getEncoder().encodeToString(bytes)} $rank" }
+        .joinToString("\n")
+
+    private val tokenizer = BpeTokenizer.load("test", table.byteInputStream(), TokenEncodings.pattern(TokenEncodings.CL100K_BASE))
+
+    @Test
+    fun `test encode merges lowest ranked pairs first`() {
+        assertEquals(259, tokenizer.vocabularySize)
+        // "hello" -> he l l o -> he ll o -> he llo; " world" has no merges
+        assertEquals(listOf(256, 258, 32, 119, 111, 114, 108, 100), tokenizer.encode("hello world").toList())
+        assertEquals(8, tokenizer.countTokens("hello world"))
+        assertEquals(tokenizer.encode("hello world").toList(), tokenizer.encode("hello world").toList())
+        assertEquals(0, tokenizer.countTokens(""))
+        // two-byte UTF-8 character
+        assertEquals(2, tokenizer.countTokens("é"))
+    }
+
+    @Test
+    fun `test pre-tokenization splits words, numbers and whitespace`() {
+        val pattern = TokenEncodings.pattern(TokenEncodings.CL100K_BASE)
+        val matcher = pattern.matcher("It's 12345 cats!\n\n")
+        val pieces = generateSequence { if (matcher.find()) matcher.group() else null }.toList()
+        assertEquals(listOf("It", "'s", " ", "123", "45", " cats", "!\n\n"), pieces)
+    }
+
+    @Test
+    fun `test pre-tokenization treats unicode whitespace as whitespace`() {
+        listOf(TokenEncodings.CL100K_BASE, TokenEncodings.O200K_BASE).forEach { encoding ->
+            val pattern = TokenEncodings.pattern(encoding)
+            fun pieces(text: String) = pattern.matcher(text).let { m -> generateSequence { if (m.find()) m.group() else null }.toList() }
+            assertEquals(listOf("hello", "\u00a0", "\u00a0world"), pieces("hello\u00a0\u00a0world"), encoding)
+            assertEquals(listOf("end", "\u00a0", "!"), pieces("end\u00a0!"), encoding)
+            assertEquals(listOf("a", "\u3000", "\u3000b"), pieces("a\u3000\u3000b"), encoding)
+        }
+    }
+
+    @Test
+    fun `test invalid merge tables are rejected`() {
+        assertThrows<IllegalArgumentException> {
+            BpeTokenizer.load("test", "aGU= 1".byteInputStream(), TokenEncodings.pattern(TokenEncodings.CL100K_BASE))
+        }
+        assertThrows<IllegalArgumentException> {
+            BpeTokenizer.load("test", "aGU=".byteInputStream(), TokenEncodings.pattern(TokenEncodings.CL100K_BASE))
+        }
+    }
+
+    @Test
+    @Tag("tokenizer")
+    fun `test cl100k_base token ids match tiktoken`() {
+        val encoding = TokenEncodings.encoding(TokenEncodings.CL100K_BASE)
+        assertNotNull(encoding, "Merge table for cl100k_base is not bundled")
+        encoding!!
+        assertEquals(100256, encoding.vocabularySize)
+        assertEquals(listOf(15339, 1917), encoding.encode("hello world").toList())
+        assertEquals(listOf(9906, 11, 1917, 0), encoding.encode("Hello, world!").toList())
+        assertEquals(listOf(83, 1609, 5963, 374, 2294, 0), encoding.encode("tiktoken is great!").toList())
+        assertEquals(listOf(17, 489, 220, 17, 284, 220, 19), encoding.encode("2 + 2 = 4").toList())
+        assertEquals(6, encoding.countTokens("antidisestablishmentarianism"))
+        assertEquals(9, encoding.countTokens("お誕生日おめでとう"))
+        assertEquals(
+            listOf("hello", "\u00a0", "\u00a0world").flatMap { encoding.encode(it).toList() },
+            encoding.encode("hello\u00a0\u00a0world").toList()
+        )
+    }
+
+    @Test
+    @Tag("tokenizer")
+    fun `test o200k_base token ids match tiktoken`() {
+        val encoding = TokenEncodings.encoding(TokenEncodings.O200K_BASE)
+        assertNotNull(encoding, "Merge table for o200k_base is not bundled")
+        encoding!!
+        assertEquals(199998, encoding.vocabularySize)
+        assertEquals(listOf(24912, 2375), encoding.encode("hello world").toList())
+        assertEquals(listOf(13225, 11, 2375, 0), encoding.encode("Hello, world!").toList())
+        assertEquals(listOf(83, 8251, 2488, 382, 2212, 0), encoding.encode("tiktoken is great!").toList())
+        assertEquals(listOf(17, 659, 220, 17, 314, 220, 19), encoding.encode("2 + 2 = 4").toList())
+        assertEquals(6, encoding.countTokens("antidisestablishmentarianism"))
+        assertEquals(8, encoding.countTokens("お誕生日おめでとう"))
+    }
+
+    @Test
+    fun `test model token counters`(@TempDir tempDir: File) {
+        assertEquals(TokenEncodings.O200K_BASE, TokenEncodings.encodingForModel("gpt-4o-mini"))
+        assertEquals(TokenEncodings.CL100K_BASE, TokenEncodings.encodingForModel("openai/gpt-4-turbo"))
+        assertNull(TokenEncodings.encodingForModel("claude-3-5-haiku"))
+        assertSame(TokenCounter.ESTIMATE, TokenEncodings.counterForModel("claude-3-5-haiku"))
+        assertEquals(3, TokenCounter.ESTIMATE.countTokens("hello world"))
+
+        File(tempDir, "test_base.tiktoken").writeText(table)
+        val previous = System.setProperty(TokenEncodings.DIRECTORY_PROPERTY, tempDir.absolutePath)
+        try {
+            val counter = TokenEncodings.counterForModel("custom-model", "test_base")
+            assertEquals("test_base", counter.id)
+            assertEquals(8, counter.countTokens("hello world"))
+        } finally {
+            if (previous == null)
+                System.clearProperty(TokenEncodings.DIRECTORY_PROPERTY)
+            else
+                System.setProperty(TokenEncodings.DIRECTORY_PROPERTY, previous)
+        }
+    }
+
+}
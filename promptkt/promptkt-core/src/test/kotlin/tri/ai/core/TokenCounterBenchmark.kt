@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * tri.promptfx:promptkt
+ * %%
+ * Copyright (C) 2023 - 2026 Johns Hopkins University Applied Physics Laboratory
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package tri.ai.core
+
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.util.Base64
+import kotlin.random.Random
+
+/**
+ * Measures token counting throughput of [BpeTokenizer] on synthetic English-like text.
+ * Uses the encoding named by the `benchmark.encoding` system property (default `cl100k_base`) if its merge table is
+ * available (see [TokenEncodings]), or a small synthetic merge table otherwise. Text size can be set with the
+ * `benchmark.words` system property, and the number of runs with `benchmark.repeat`.
+ */
+@Tag("benchmark")
+class TokenCounterBenchmark {
+
+    private val encoding = System.getProperty("benchmark.encoding", TokenEncodings.CL100K_BASE)
+    private val wordCount = Integer.getInteger("benchmark.words", 1_000_000)
+    private val runCount = Integer.getInteger("benchmark.repeat", 5)
+
+    private val vocabulary = listOf("the", "of", "and", "to", "in", "model", "token", "document", "embedding", "search",
+        "question", "answer", "context", "chunk", "library", "prompt", "response", "index", "vector", "score")
+
+    @Test
+    fun `benchmark token counting`() {
+        val tokenizer = TokenEncodings.encoding(encoding) ?: syntheticTokenizer()
+        val text = syntheticText()
+        println("Encoding: ${tokenizer.id}, text: $wordCount words, ${text.length / 1024}KB")
+        repeat(runCount) { i ->
+            val start = System.nanoTime()
+            val tokens = tokenizer.countTokens(text)
+            val millis = maxOf(1L, (System.nanoTime() - start) / 1_000_000)
+            assertTrue(tokens > 0)
+            println("[#${i + 1}] $tokens tokens in ${millis}ms, ${tokens * 1000L / millis} tokens/s, " +
+                    "${text.length / 1024 * 1000L / millis}KB/s")
+        }
+    }
+
+    private fun syntheticText(): String {
+        val random = Random(0)
+        return buildString {
+            repeat(wordCount) {
+                append(if (random.nextInt(20) == 0) random.nextInt(10_000).toString() else vocabulary.random(random))
+                append(if (random.nextInt(12) == 0) ".\n" else " ")
+            }
+        }
+    }
+
+    /** Merge table with all bytes, all pairs of lowercase letters, and the vocabulary words with a leading space. */
+    private fun syntheticTokenizer(): BpeTokenizer {
+        val pairs = ('a'..'z').flatMap { a -> ('a'..'z').map { b -> "$a$b" } }
+        val tokens = (0 until 256).map { byteArrayOf(it.toByte()) } +
+                (pairs + vocabulary.map { " $it" }).map { it.toByteArray() }
+        val table = tokens.mapIndexed { rank, bytes -> "${Base64.getEncoder().encodeToString(bytes)} $rank" }
+            .joinToString("\n")
+        return BpeTokenizer.load("synthetic", table.byteInputStream(), TokenEncodings.pattern(TokenEncodings.CL100K_BASE))
+    }
+
+}
@@ -31,6 +31,8 @@ class AnthropicSdkPlugin : AiModelProvider {
 
     override fun modelSource() = AnthropicSdkModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = AnthropicSdkModelIndex
+
     override fun modelInfo(): List<ModelInfo> {
         val allIds = (AnthropicSdkModelIndex.chatModels() +
                 AnthropicSdkModelIndex.completionModels() +
@@ -31,9 +31,17 @@ class GeminiSdkEmbeddingModel(
 
     override fun toString() = modelDisplayName()
 
+    override val maxBatchSize = MAX_EMBEDDING_BATCH_SIZE
+
     override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?) =
-        client.batchEmbedContents(text, modelId, outputDimensionality).map { embedding ->
-            embedding.map { it.toDouble() }
+        text.chunked(maxBatchSize).flatMap {
+            client.batchEmbedContents(it, modelId, outputDimensionality).map { embedding ->
+                embedding.map { it.toDouble() }
+            }
         }
 
+    companion object {
+        private const val MAX_EMBEDDING_BATCH_SIZE = 100
+    }
+
 }
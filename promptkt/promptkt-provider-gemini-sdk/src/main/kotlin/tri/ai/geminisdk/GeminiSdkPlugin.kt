@@ -40,6 +40,8 @@ class GeminiSdkPlugin : AiModelProvider {
 
     override fun modelSource() = GeminiSdkModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = GeminiSdkModelIndex
+
     override fun modelInfo() = if (client.isConfigured())
         runBlocking {
             try {
@@ -34,6 +34,8 @@ class GeminiAiPlugin : AiModelProvider {
 
     override fun modelSource() = GeminiModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = GeminiModelIndex
+
     override fun modelInfo() = if (client.settings.isConfigured())
         runBlocking {
             try {
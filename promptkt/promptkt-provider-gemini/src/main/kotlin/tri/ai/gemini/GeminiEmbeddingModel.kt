@@ -21,6 +21,7 @@ package tri.ai.gemini
 
 import tri.ai.core.EmbeddingModel
 import tri.ai.gemini.GeminiModelIndex.GEMINI_EMBEDDING
+import java.util.concurrent.ConcurrentHashMap
 
 /** An embedding service that uses the Gemini API. */
 class GeminiEmbeddingModel(override val modelId: String = GEMINI_EMBEDDING, val client: GeminiClient = GeminiClient.INSTANCE) :
@@ -30,11 +31,13 @@ class GeminiEmbeddingModel(override val modelId: String = GEMINI_EMBEDDING, val
 
     override fun toString() = modelDisplayName()
 
-    private val embeddingCache = mutableMapOf<Pair<String, Int?>, List<Float>>()
+    override val maxBatchSize = MAX_EMBEDDING_BATCH_SIZE
+
+    private val embeddingCache: MutableMap<Pair<String, Int?>, List<Float>> = ConcurrentHashMap()
 
     override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
         val uncached = text.filter { (it to outputDimensionality) !in embeddingCache }
-        val uncachedCalc = uncached.chunked(MAX_EMBEDDING_BATCH_SIZE).flatMap {
+        val uncachedCalc = uncached.chunked(maxBatchSize).flatMap {
             client.batchEmbedContents(it, modelId, outputDimensionality).embeddings
         }
         uncachedCalc.forEachIndexed { index, embedding -> embeddingCache[uncached[index] to outputDimensionality] = embedding.values }
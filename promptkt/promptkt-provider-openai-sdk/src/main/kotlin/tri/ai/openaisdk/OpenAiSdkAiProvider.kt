@@ -34,6 +34,8 @@ class OpenAiSdkAiProvider : AiModelProvider {
 
     override fun modelSource() = OpenAiSdkModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = OpenAiSdkModelIndex
+
     override fun modelInfo() = if (client.isConfigured())
         try {
             runBlocking {
@@ -23,6 +23,7 @@ import com.openai.models.embeddings.EmbeddingCreateParams
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import tri.ai.core.EmbeddingModel
+import java.util.concurrent.ConcurrentHashMap
 
 /** Embedding model using the OpenAI official Java SDK. */
 class OpenAiSdkEmbeddingModel(
@@ -33,12 +34,15 @@ class OpenAiSdkEmbeddingModel(
 
     override fun toString() = modelDisplayName()
 
-    private val embeddingCache = mutableMapOf<Pair<String, Int?>, List<Double>>()
+    override val maxBatchSize = MAX_EMBEDDING_BATCH_SIZE
+    override val maxBatchTokens = MAX_EMBEDDING_BATCH_TOKENS
+
+    private val embeddingCache: MutableMap<Pair<String, Int?>, List<Double>> = ConcurrentHashMap()
 
     override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
         val uncached = text.filter { (it to outputDimensionality) !in embeddingCache }
         if (uncached.isNotEmpty()) {
-            val computed = uncached.chunked(MAX_EMBEDDING_BATCH_SIZE).flatMap { batch ->
+            val computed = uncached.chunked(maxBatchSize).flatMap { batch ->
                 fetchEmbeddings(batch, outputDimensionality)
             }
             computed.forEachIndexed { index, embedding ->
@@ -63,6 +67,8 @@ class OpenAiSdkEmbeddingModel(
 
     companion object {
         private const val MAX_EMBEDDING_BATCH_SIZE = 100
+        /** API limit on total tokens across all inputs in one request. */
+        private const val MAX_EMBEDDING_BATCH_TOKENS = 300_000
     }
 
 }
@@ -22,6 +22,7 @@ package tri.ai.openai
 import tri.ai.core.EmbeddingModel
 import tri.ai.openai.OpenAiModelIndex.EMBEDDING_ADA
 import tri.ai.prompt.trace.AiOutput
+import java.util.concurrent.ConcurrentHashMap
 
 /** An embedding service that uses the OpenAI API. */
 class OpenAiEmbeddingModel(override val modelId: String = EMBEDDING_ADA, override val modelSource: String = OpenAiModelIndex.MODEL_SOURCE, val client: OpenAiAdapter = OpenAiAdapter.INSTANCE) :
@@ -29,11 +30,14 @@ class OpenAiEmbeddingModel(override val modelId: String = EMBEDDING_ADA, overrid
 
     override fun toString() = modelDisplayName()
 
-    private val embeddingCache = mutableMapOf<Pair<String, Int?>, List<Double>>()
+    override val maxBatchSize = MAX_EMBEDDING_BATCH_SIZE
+    override val maxBatchTokens = MAX_EMBEDDING_BATCH_TOKENS
+
+    private val embeddingCache: MutableMap<Pair<String, Int?>, List<Double>> = ConcurrentHashMap()
 
     override suspend fun calculateEmbedding(text: List<String>, outputDimensionality: Int?): List<List<Double>> {
         val uncached = text.filter { (it to outputDimensionality) !in embeddingCache }
-        val uncachedCalc = uncached.chunked(MAX_EMBEDDING_BATCH_SIZE).flatMap {
+        val uncachedCalc = uncached.chunked(maxBatchSize).flatMap {
             client.quickEmbedding(modelId, outputDimensionality, it).values!!.map { (it as AiOutput.Other).other as List<Double> }
         }
         uncachedCalc.forEachIndexed { index, embedding -> embeddingCache[uncached[index] to outputDimensionality] = embedding }
@@ -42,6 +46,8 @@ class OpenAiEmbeddingModel(override val modelId: String = EMBEDDING_ADA, overrid
 
     companion object {
         private const val MAX_EMBEDDING_BATCH_SIZE = 100
+        /** API limit on total tokens across all inputs in one request. */
+        private const val MAX_EMBEDDING_BATCH_TOKENS = 300_000
     }
 
 }
@@ -34,6 +34,8 @@ class OpenAiPlugin : AiModelProvider {
 
     override fun modelSource() = OpenAiModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = OpenAiModelIndex
+
     override fun modelInfo() = if (client.settings.isConfigured())
         try {
             runBlocking {
@@ -35,6 +35,8 @@ class OpenAiAzurePlugin : AiModelProvider {
 
     override fun modelSource() = OpenAiModelIndex.MODEL_SOURCE
 
+    override fun modelIndex() = OpenAiAzureModelIndex
+
     override fun modelInfo() = if (isApiConfigured())
         try {
             runBlocking {
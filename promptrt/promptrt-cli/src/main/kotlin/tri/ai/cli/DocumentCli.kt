@@ -37,12 +37,16 @@ import com.github.ajalt.clikt.parameters.types.int
 import com.github.ajalt.clikt.parameters.types.path
 import kotlinx.coroutines.runBlocking
 import tri.ai.core.AiModelProvider
+import tri.ai.embedding.EmbeddingCache
+import tri.ai.embedding.EmbeddingIndexRegistry
 import tri.ai.embedding.EmbeddingStrategy
 import tri.ai.embedding.LocalFolderEmbeddingIndex
 import tri.ai.openai.OpenAiAdapter
 import tri.ai.openai.OpenAiModelIndex
+import tri.ai.pips.PrintMonitor
 import tri.ai.text.chunks.LocalTextDocIndex
 import tri.ai.text.chunks.SmartTextChunker
+import tri.ai.text.chunks.TextDocIngestPipeline
 import tri.ai.text.docs.LocalDocumentQaDriver
 import tri.util.*
 import java.io.File
@@ -83,8 +87,12 @@ class DocumentCli : CliktCommand(name = "document") {
         .int()
         .default(2000)
     private val templateId by option(help = "Q&A prompt template id (qa/chat modes, default question-answer-docs)")
+    private val embeddingCache by option(help = "Cache embeddings in a file shared across folders and runs (default ~/.promptfx/embeddings.cache)")
+        .flag()
 
     override fun run() {
+        if (embeddingCache)
+            EmbeddingCache.enableShared()
         currentContext.obj = DocumentQaConfig(root, folder, model, embedding, temp, maxTokens, templateId)
     }
 }
@@ -105,6 +113,8 @@ class DocumentChat : CliktCommand(name = "chat") {
     override fun run() {
         OpenAiAdapter.INSTANCE.settings.logLevel = LogLevel.None
         MIN_LEVEL_TO_LOG = Level.WARNING
+        // a chat session answers many questions, so keep indexes up to date as files change
+        EmbeddingIndexRegistry.watchFolders = true
         val driver = createQaDriver(config)
 
         val status: (String) -> String = { "Asking a question about documents in ${ANSI_YELLOW}$it${ANSI_RESET}. Say '${ANSI_GREEN}bye${ANSI_RESET}' to exit, or '${ANSI_GREEN}switch x${ANSI_RESET}' to switch to a different folder." }
@@ -198,9 +208,11 @@ class DocumentEmbeddings: CliktCommand(name = "embeddings") {
         .flag(default = false)
     private val reindexNew by option(help = "Reindex new documents in the folder (default)")
         .flag(default = true)
-    private val maxChunkSize by option(help = "Maximum chunk size (# of characters) for embeddings (default 1000)")
+    private val maxChunkSize by option(help = "Maximum chunk size (# of characters, or tokens with --tokens) for embeddings (default 1000)")
         .int()
         .default(1000)
+    private val tokens by option(help = "Measure chunk size in tokens of the embedding model instead of characters")
+        .flag(default = false)
 
     override fun help(context: Context) =
         "Generate/update local embeddings file for a given folder"
@@ -214,7 +226,8 @@ class DocumentEmbeddings: CliktCommand(name = "embeddings") {
             System.err.println("Embedding model '${config.embeddingModel}' not found. Available models: $available")
             exitProcess(1)
         }
-        val index = LocalFolderEmbeddingIndex(docsFolder, EmbeddingStrategy(embeddingModel, SmartTextChunker()))
+        val chunker = if (tokens) SmartTextChunker.forModel(embeddingModel) else SmartTextChunker()
+        val index = LocalFolderEmbeddingIndex(docsFolder, EmbeddingStrategy(embeddingModel, chunker))
         index.maxChunkSize = maxChunkSize
         try {
             runBlocking {
@@ -242,9 +255,11 @@ class DocumentChunker: CliktCommand(name = "chunk") {
         .flag(default = false)
     private val reindexNew by option(help = "Reindex new documents in the folder (default)")
         .flag(default = true)
-    private val maxChunkSize by option(help = "Maximum chunk size (# of characters) for embeddings (default 1000)")
+    private val maxChunkSize by option(help = "Maximum chunk size (# of characters, or tokens with --tokens) for embeddings (default 1000)")
         .int()
         .default(1000)
+    private val tokens by option(help = "Measure chunk size in tokens of the embedding model instead of characters")
+        .flag(default = false)
     private val indexFile by option(help = "Index file name for the documents (default docs.json)")
         .default("docs.json")
 
@@ -254,17 +269,20 @@ class DocumentChunker: CliktCommand(name = "chunk") {
     override fun run() {
         val docsFolder = config.docsFolder
         val indexFile = File(docsFolder, indexFile)
+        val chunker = if (!tokens) SmartTextChunker() else try {
+            SmartTextChunker.forModel(AiModelProvider.embeddingModel(config.embeddingModel!!))
+        } catch (x: NoSuchElementException) {
+            System.err.println("Measuring chunks in tokens requires an embedding model, '${config.embeddingModel}' not found.")
+            exitProcess(1)
+        }
 
-        println("${ANSI_CYAN}Refreshing file text in $docsFolder...$ANSI_RESET")
+        println("${ANSI_CYAN}Extracting and chunking documents in $docsFolder with max-chunk-size=$maxChunkSize...$ANSI_RESET")
         val docs = LocalTextDocIndex(docsFolder, indexFile)
         docs.loadIndex()
-        docs.processDocuments(reindexAll)
-
-        println("${ANSI_CYAN}Chunking documents with max-chunk-size=$maxChunkSize...$ANSI_RESET")
-        docs.processChunks(SmartTextChunker(), maxChunkSize,reindexAll)
-
-        println("${ANSI_CYAN}Saving document set info...$ANSI_RESET")
-        docs.saveIndex()
+        val count = runBlocking {
+            docs.ingest(TextDocIngestPipeline(chunker, maxChunkSize), reindexAll, PrintMonitor())
+        }
+        println("${ANSI_CYAN}Saved document set info for $count documents.$ANSI_RESET")
 
         println("${ANSI_CYAN}Processing complete.$ANSI_RESET")
         AiModelProvider.orderedPlugins.forEach { it.close() }
@@ -34,6 +34,7 @@ import tri.ai.cli.repl.SessionState
 import tri.ai.core.AiModelProvider
 import tri.ai.core.MChatRole
 import tri.ai.core.TextChatMessage
+import tri.ai.embedding.EmbeddingCache
 import tri.ai.prompt.trace.AiOutput
 import java.io.File
 
@@ -42,9 +43,11 @@ class PromptRt : CliktCommand(name = "promptrt") {
 
     companion object {
         @JvmStatic
-        fun main(args: Array<String>) = PromptRt()
-            .subcommands(PromptRtChatOnce(), PromptRtBatch(), PromptRtModels(), PromptRtProviders(), PromptRtShowConfig())
-            .main(args)
+        fun main(args: Array<String>) {
+            PromptRt()
+                .subcommands(PromptRtChatOnce(), PromptRtBatch(), PromptRtModels(), PromptRtProviders(), PromptRtShowConfig())
+                .main(args)
+        }
     }
 
     private val configFile by option("--config", "-c", help = "Config file (default ~/.promptrt/config.yaml)")
@@ -53,7 +56,12 @@ class PromptRt : CliktCommand(name = "promptrt") {
 
     private val mode by option("--mode", "-m", help = "Launch in a specific mode")
 
+    private val embeddingCache by option("--embedding-cache", help = "Cache embeddings in a file shared across runs (default ~/.promptfx/embeddings.cache)")
+        .flag()
+
     override fun run() {
+        if (embeddingCache)
+            EmbeddingCache.enableShared()
         if (currentContext.invokedSubcommand != null) return
         val config = ConfigLoader.load(configFile)
         val effectiveConfig = if (mode != null) config.copy(defaultMode = mode!!) else config
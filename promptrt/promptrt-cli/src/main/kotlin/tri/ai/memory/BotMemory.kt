@@ -26,7 +26,7 @@ import tri.ai.core.EmbeddingModel
 import tri.ai.core.TextChat
 import tri.ai.core.TextChatMessage
 import tri.ai.core.MChatRole
-import tri.ai.embedding.dot
+import tri.ai.embedding.VectorKernel
 import java.io.File
 
 /**
@@ -75,9 +75,11 @@ class BotMemory(val persona: BotPersona, val chatEngine: TextChat, val embedding
     override fun buildContextualConversationHistory(userInput: MemoryItem): List<MemoryItem> {
         // use embedding index with recent chat for relevant messages
         val historyForMemorySearch = chatHistory.takeLast(2)
-        val avgHistoryEmbedding = historyForMemorySearch.map { it.embedding }
-            .mapIndexed { i, floats -> floats.map { it * (i + 1) } }
-            .reduce { acc, floats -> acc.zip(floats).map { it.first + it.second } }
+        val avgHistoryEmbedding = FloatArray(historyForMemorySearch.minOf { it.embedding.size })
+        historyForMemorySearch.forEachIndexed { i, item ->
+            for (j in avgHistoryEmbedding.indices)
+                avgHistoryEmbedding[j] += item.embedding[j] * (i + 1)
+        }
         val relevant = chatHistory.map { it to it.embedding.dot(avgHistoryEmbedding) }
             .sortedByDescending { it.second }
             .take(memoryHistoryLimit)
@@ -99,6 +101,10 @@ class BotMemory(val persona: BotPersona, val chatEngine: TextChat, val embedding
             this
     }
 
+    /** Dot product with a query vector, over the dimensions both have. */
+    private fun List<Float>.dot(query: FloatArray) =
+        VectorKernel.DEFAULT.dot(toFloatArray(), 0, query, 0, minOf(size, query.size))
+
     private fun stepsSinceLastMemory() = chatHistory.size - chatHistory.indexOfLast { it.isMemory() }
 
     private suspend fun generateMemories() {